@@ -0,0 +1,254 @@
+/*
+ * AlignmentFileWriter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import dr.evolution.datatype.AminoAcids;
+import dr.evolution.datatype.Codons;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.util.Taxon;
+
+/**
+ * Writes an alignment to a file in blocks of columns so the whole alignment never has to be held
+ * in memory. Each sequence has a fixed width in the file so the header, the taxon names and
+ * the line ends are written first and then each block of columns is written straight to its
+ * place in every row. Blocks can be written in any order and from different threads. The states
+ * of a data type may have codes of more than one character (e.g., the locations of a general
+ * data type) but they must all be the same length so each site has the same width.
+ *
+ * @version $Id$
+ */
+public class AlignmentFileWriter {
+
+	public enum Format {
+		FASTA("fasta"), NEXUS("nexus"), PHYLIP("phylip");
+
+		private final String text;
+
+		private Format(String text) {
+			this.text = text;
+		}
+
+		public String toString() {
+			return text;
+		}
+
+		public static Format parseFromString(String text) {
+			for (Format format : Format.values()) {
+				if (format.text.equalsIgnoreCase(text)) {
+					return format;
+				}
+			}
+			return null;
+		}// END: parseFromString
+	}// END: Format enum
+
+	private static final String ENCODING = "UTF-8";
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private final int charactersPerSite;
+	private final byte[][] stateCodes;
+	private final byte[] gapCode;
+
+	// the position in the file of the first character of each sequence
+	private final long[] rowStarts;
+
+	/**
+	 * @param taxa the taxa in the order of the rows
+	 * @param siteCount the number of sites (columns) of the alignment
+	 */
+	public AlignmentFileWriter(File outputFile, Format format, List<Taxon> taxa, int siteCount,
+			DataType dataType) throws IOException {
+
+		charactersPerSite = getCodeWidth(dataType);
+
+		stateCodes = new byte[dataType.getStateCount()][];
+		for (int state = 0; state < stateCodes.length; state++) {
+			stateCodes[state] = getCode(dataType, state).getBytes(ENCODING);
+		}
+
+		// not every data type has a code for the gap state (e.g., a general data type)
+		gapCode = new byte[charactersPerSite];
+		Arrays.fill(gapCode, (byte) '-');
+
+		final long sequenceLength = (long) siteCount * charactersPerSite;
+
+		int nameWidth = 0;
+		for (Taxon taxon : taxa) {
+			nameWidth = Math.max(nameWidth, taxon.getId().length());
+		}
+
+		StringBuilder header = new StringBuilder();
+		if (format == Format.NEXUS) {
+			header.append("#NEXUS\n\nBEGIN DATA;\n");
+			header.append("\tDIMENSIONS NTAX=").append(taxa.size()).append(" NCHAR=").append(sequenceLength).append(";\n");
+			header.append("\tFORMAT DATATYPE=").append(getNexusDataType(dataType)).append(" MISSING=? GAP=-;\n");
+			header.append("\tMATRIX\n");
+		} else if (format == Format.PHYLIP) {
+			header.append(taxa.size()).append(" ").append(sequenceLength).append("\n");
+		}
+
+		file = new RandomAccessFile(outputFile, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+
+		long position = write(header.toString(), 0);
+
+		rowStarts = new long[taxa.size()];
+		for (int i = 0; i < taxa.size(); i++) {
+
+			String name = taxa.get(i).getId();
+			if (format == Format.FASTA) {
+				position = write(">" + name + "\n", position);
+			} else if (format == Format.NEXUS) {
+				position = write("\t" + pad(quote(name), nameWidth + 2), position);
+			} else {
+				position = write(pad(name, nameWidth), position);
+			}
+
+			rowStarts[i] = position;
+			position = write("\n", position + sequenceLength);
+
+		}// END: taxa loop
+
+		if (format == Format.NEXUS) {
+			write("\t;\nEND;\n", position);
+		}
+
+	}// END: Constructor
+
+	public int getCharactersPerSite() {
+		return charactersPerSite;
+	}
+
+	/**
+	 * @return the characters for each state
+	 */
+	public byte[][] getStateCodes() {
+		return stateCodes;
+	}
+
+	public byte[] getGapCode() {
+		return gapCode;
+	}
+
+	/**
+	 * Writes the characters of a block of columns starting at the given site. There should be a
+	 * row of characters for each taxon.
+	 */
+	public void writeBlock(int firstSite, byte[][] block) throws IOException {
+
+		long offset = (long) firstSite * charactersPerSite;
+		for (int i = 0; i < block.length; i++) {
+
+			ByteBuffer buffer = ByteBuffer.wrap(block[i]);
+			long position = rowStarts[i] + offset;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+
+		}// END: rows loop
+
+	}// END: writeBlock
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	private long write(String text, long position) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(ENCODING));
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+
+		return position;
+	}// END: write
+
+	/**
+	 * @return the number of characters of the code of each state (3 for codons)
+	 * @throws IllegalArgumentException if the codes of the states have different lengths
+	 */
+	public static int getCodeWidth(DataType dataType) {
+
+		int width = getCode(dataType, 0).length();
+		for (int state = 1; state < dataType.getStateCount(); state++) {
+			if (getCode(dataType, state).length() != width) {
+				throw new IllegalArgumentException("The states of the data type, " + dataType.getDescription()
+						+ ", have codes of different lengths so they can't be written in columns");
+			}
+		}// END: states loop
+
+		return width;
+	}// END: getCodeWidth
+
+	/**
+	 * @return the code of a state (the triplet for codons)
+	 */
+	public static String getCode(DataType dataType, int state) {
+		if (dataType instanceof Codons) {
+			return dataType.getTriplet(state);
+		} else {
+			return dataType.getCode(state);
+		}
+	}// END: getCode
+
+	private static String getNexusDataType(DataType dataType) {
+		if (dataType instanceof Nucleotides || dataType instanceof Codons) {
+			return "DNA";
+		} else if (dataType instanceof AminoAcids) {
+			return "PROTEIN";
+		}
+		return "STANDARD";
+	}// END: getNexusDataType
+
+	private static String quote(String name) {
+		if (name.matches("[A-Za-z0-9_.\\-]+")) {
+			return name;
+		}
+		return "'" + name.replace("'", "''") + "'";
+	}// END: quote
+
+	private static String pad(String name, int width) {
+		StringBuilder builder = new StringBuilder(name);
+		do {
+			builder.append(' ');
+		} while (builder.length() < width + 1);
+		return builder.toString();
+	}// END: pad
+
+}// END: class
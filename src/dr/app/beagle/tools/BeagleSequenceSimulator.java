@@ -25,6 +25,8 @@
 
 package dr.app.beagle.tools;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -33,8 +35,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import dr.app.bss.Utils;
 import dr.evolution.alignment.SimpleAlignment;
@@ -42,6 +47,7 @@ import dr.evolution.datatype.DataType;
 import dr.evolution.sequence.Sequence;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.util.Taxon;
+import dr.evomodel.tree.TreeModel;
 
 /**
  * @author Filip Bielejec
@@ -144,6 +150,116 @@ public class BeagleSequenceSimulator {
 		return alignment;
 	}// END: simulate
 
+	/**
+	 * Simulates the alignment in blocks of sites on a number of threads, writing each block
+	 * straight to the output file so the whole alignment is never held in memory. Each block of
+	 * each partition has its own random number stream so the result depends only on the seed.
+	 * The rows are the taxa of the partitions in order of their first appearance and the sites
+	 * not simulated for a taxon are gaps. Ancestral sequences are not written.
+	 *
+	 * @param threadCount the number of threads (0 or less to use one for each processor)
+	 * @param blockSize the number of sites in each block
+	 */
+	public void simulate(File outputFile, AlignmentFileWriter.Format format, int threadCount, final int blockSize)
+			throws IOException {
+
+		// the rows of the alignment and the row of each tip of each partition tree
+		final List<Taxon> taxa = new ArrayList<Taxon>();
+		Map<Taxon, Integer> taxonRows = new LinkedHashMap<Taxon, Integer>();
+		final int[][] tipRows = new int[partitions.size()][];
+
+		int partitionCount = 0;
+		for (Partition partition : partitions) {
+
+			TreeModel tree = partition.getTreeModel();
+			tipRows[partitionCount] = new int[tree.getNodeCount()];
+			for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+
+				NodeRef node = tree.getExternalNode(i);
+				Taxon taxon = tree.getNodeTaxon(node);
+				Integer row = taxonRows.get(taxon);
+				if (row == null) {
+					row = taxa.size();
+					taxonRows.put(taxon, row);
+					taxa.add(taxon);
+				}
+				tipRows[partitionCount][node.getNumber()] = row;
+
+			}// END: tips loop
+
+			partition.setPartitionNumber(partitionCount);
+			partition.prepareBlockSimulation();
+			partitionCount++;
+
+		}// END: partitions loop
+
+		final AlignmentFileWriter writer = new AlignmentFileWriter(outputFile, format, taxa, siteCount, dataType);
+		final int charactersPerSite = writer.getCharactersPerSite();
+		final byte[] gapCode = writer.getGapCode();
+
+		if (threadCount <= 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "sequence-simulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// the block buffers are only made when a block is started so at most one for each thread is held
+		List<Callable<Object>> simulateBlockCallers = new ArrayList<Callable<Object>>();
+		for (int firstSite = 0; firstSite < siteCount; firstSite += blockSize) {
+
+			final int blockNumber = firstSite / blockSize;
+			final int firstColumn = firstSite;
+			final int lastColumn = Math.min(siteCount, firstSite + blockSize);
+			simulateBlockCallers.add(new Callable<Object>() {
+				public Object call() throws Exception {
+
+					byte[][] block = new byte[taxa.size()][(lastColumn - firstColumn) * charactersPerSite];
+					for (byte[] row : block) {
+						for (int i = 0; i < row.length; i += charactersPerSite) {
+							System.arraycopy(gapCode, 0, row, i, charactersPerSite);
+						}
+					}
+
+					for (int p = 0; p < partitions.size(); p++) {
+						partitions.get(p).simulateBlock(blockNumber, firstColumn, lastColumn, tipRows[p],
+								writer.getStateCodes(), block);
+					}
+
+					writer.writeBlock(firstColumn, block);
+					return null;
+				}// END: call
+			});
+
+		}// END: blocks loop
+
+		try {
+			List<Future<Object>> results = executor.invokeAll(simulateBlockCallers);
+			for (Future<Object> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}// END: try-catch block
+
+	}// END: simulate
+
 	private class SimulatePartitionCallable implements Callable<Void> {
 
 		private Partition partition;
@@ -25,7 +25,9 @@
 
 package dr.app.beagle.tools;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import dr.evomodel.treedatalikelihood.BufferIndexHelper;
@@ -94,8 +96,15 @@ public class Partition {
 	private boolean outputAncestralSequences = false;
 
 	// Random number generation
+	private long seed;
 	private MersenneTwister random;
 
+	// Simulation in blocks of sites
+	private double[][][] nodeProbabilities;
+	private double[] categoryProportions;
+	private double[] frequencies;
+	private int[] rootStates;
+
 	// Annotating trees
 //	private boolean annotateTree = true;
 
@@ -127,7 +136,8 @@ public class Partition {
 		loadBeagleInstance();
 
 		alignmentMap = new LinkedHashMap<Taxon, int[]>();
-		random = new MersenneTwister(MathUtils.nextLong());
+		seed = MathUtils.nextLong();
+		random = new MersenneTwister(seed);
 
 	}// END: Constructor
 
@@ -271,6 +281,152 @@ public class Partition {
 
 	}// END: simulatePartition
 
+	/**
+	 * Calculates the transition probabilities of every branch (using the BEAGLE instance) so that
+	 * blocks of sites can then be simulated on different threads with simulateBlock.
+	 */
+	public void prepareBlockSimulation() {
+
+		beagle.setCategoryRates(siteRateModel.getCategoryRates());
+		categoryProportions = siteRateModel.getCategoryProportions();
+		frequencies = freqModel.getFrequencies();
+
+		rootStates = null;
+		if (hasRootSequence) {
+
+			// the codes of the states may be more than one character but are all the same length
+			final int width = AlignmentFileWriter.getCodeWidth(dataType);
+			if (rootSequence.getLength() == width * partitionSiteCount) {
+
+				rootStates = parseRootStates(rootSequence.getSequenceString(), width);
+
+			} else {
+
+				throw new RuntimeException("Ancestral sequence length of "
+						+ rootSequence.getLength()
+						+ " does not match partition site count of "
+						+ partitionSiteCount + ".");
+
+			}
+
+		}// END: ancestralSequence check
+
+		substitutionModelDelegate.updateSubstitutionModels(beagle);
+
+		nodeProbabilities = new double[nodeCount][][];
+		for (int i = 0; i < nodeCount; i++) {
+
+			NodeRef node = treeModel.getNode(i);
+			if (!treeModel.isRoot(node)) {
+				nodeProbabilities[node.getNumber()] = getTransitionProbabilities(node);
+			}
+
+		}// END: nodes loop
+
+	}// END: prepareBlockSimulation
+
+	private int[] parseRootStates(String sequence, int width) {
+
+		int[] states = new int[partitionSiteCount];
+		for (int i = 0; i < partitionSiteCount; i++) {
+
+			String code = sequence.substring(i * width, (i + 1) * width);
+			int state;
+			if (dataType instanceof Codons) {
+				state = ((Codons) dataType).getState(code.charAt(0), code.charAt(1), code.charAt(2));
+			} else {
+				state = dataType.getState(code);
+			}
+
+			if (state < 0 || state >= stateCount) {
+				throw new RuntimeException("Ancestral sequence has an unknown or ambiguous state, " + code
+						+ ", at site " + (i + 1) + ".");
+			}
+			states[i] = state;
+
+		}// END: sites loop
+
+		return states;
+	}// END: parseRootStates
+
+	/**
+	 * Simulates the sites of this partition that are in the columns firstColumn to lastColumn - 1
+	 * of the alignment. Each block has its own random number stream (seeded from the seed of the
+	 * partition and the block number) so the result doesn't depend on the number of threads or
+	 * the order the blocks are done in. The characters for the tips are put in the row of the
+	 * block given by tipRows (indexed by node number). prepareBlockSimulation must be called first.
+	 */
+	public void simulateBlock(int blockNumber, int firstColumn, int lastColumn, int[] tipRows,
+			byte[][] stateCodes, byte[][] block) {
+
+		// the partition sites in the columns of the block
+		int firstSite = (firstColumn <= from ? 0 : (firstColumn - from + every - 1) / every);
+		int lastSite = (lastColumn <= from ? 0 : Math.min(partitionSiteCount, (lastColumn - from + every - 1) / every));
+		int blockSiteCount = lastSite - firstSite;
+		if (blockSiteCount <= 0) {
+			return;
+		}
+
+		MersenneTwister blockRandom = new MersenneTwister(new int[] { (int) (seed >>> 32), (int) seed, blockNumber });
+
+		int[] category = new int[blockSiteCount];
+		for (int i = 0; i < blockSiteCount; i++) {
+			category[i] = randomChoicePDF(categoryProportions, 0, categoryProportions.length, blockRandom);
+		}
+
+		int[] rootSequence = new int[blockSiteCount];
+		for (int i = 0; i < blockSiteCount; i++) {
+			if (rootStates != null) {
+				rootSequence[i] = rootStates[firstSite + i];
+			} else {
+				rootSequence[i] = randomChoicePDF(frequencies, 0, frequencies.length, blockRandom);
+			}
+		}
+
+		// a pre-order traversal with a stack (trees of many taxa can be too deep for recursion)
+		List<NodeRef> nodeStack = new ArrayList<NodeRef>();
+		List<int[]> parentSequenceStack = new ArrayList<int[]>();
+
+		NodeRef root = treeModel.getRoot();
+		for (int iChild = treeModel.getChildCount(root) - 1; iChild >= 0; iChild--) {
+			nodeStack.add(treeModel.getChild(root, iChild));
+			parentSequenceStack.add(rootSequence);
+		}
+
+		while (!nodeStack.isEmpty()) {
+
+			NodeRef node = nodeStack.remove(nodeStack.size() - 1);
+			int[] parentSequence = parentSequenceStack.remove(parentSequenceStack.size() - 1);
+
+			double[][] probabilities = nodeProbabilities[node.getNumber()];
+			int[] sequence = new int[blockSiteCount];
+			for (int i = 0; i < blockSiteCount; i++) {
+				sequence[i] = randomChoicePDF(probabilities[category[i]], parentSequence[i] * stateCount, stateCount,
+						blockRandom);
+			}
+
+			if (treeModel.isExternal(node)) {
+
+				byte[] row = block[tipRows[node.getNumber()]];
+				for (int i = 0; i < blockSiteCount; i++) {
+					byte[] code = stateCodes[sequence[i]];
+					int column = from + (firstSite + i) * every - firstColumn;
+					System.arraycopy(code, 0, row, column * code.length, code.length);
+				}
+
+			} else {
+
+				for (int iChild = treeModel.getChildCount(node) - 1; iChild >= 0; iChild--) {
+					nodeStack.add(treeModel.getChild(node, iChild));
+					parentSequenceStack.add(sequence);
+				}
+
+			}// END: tip node check
+
+		}// END: traversal loop
+
+	}// END: simulateBlock
+
 	private void traverse(NodeRef node, //
 						  int[] parentSequence, //
 						  int[] category //
@@ -516,6 +672,24 @@ public class Partition {
 		return samplePos;
 	}// END: randomChoicePDF
 
+	private static int randomChoicePDF(double[] pdf, int offset, int length, MersenneTwister random) {
+
+		double cumProb = 0.0;
+		double u = random.nextDouble();
+
+		for (int i = 0; i < length; i++) {
+
+			cumProb += pdf[offset + i];
+
+			if (u < cumProb) {
+				return i;
+			}
+		}
+
+		// rounding error
+		return length - 1;
+	}// END: randomChoicePDF
+
 	// /////////////
 	// --SETTERS--//
 	// /////////////
@@ -25,6 +25,7 @@
 
 package dr.app.beagle.tools.parsers;
 
+import dr.app.beagle.tools.AlignmentFileWriter;
 import dr.app.beagle.tools.BeagleSequenceSimulator;
 import dr.app.beagle.tools.Partition;
 import dr.evolution.alignment.Alignment;
@@ -33,6 +34,8 @@ import dr.evolution.datatype.Codons;
 import dr.evolution.datatype.Nucleotides;
 import dr.xml.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.logging.Logger;
 
@@ -46,6 +49,12 @@ public class BeagleSequenceSimulatorParser extends AbstractXMLObjectParser {
     public static final String PARALLEL = "parallel";
     public static final String OUTPUT_ANCESTRAL_SEQUENCES = "outputAncestralSequences";
     public static final String OUTPUT = "output";
+    public static final String FILE_NAME = "fileName";
+    public static final String FILE_FORMAT = "fileFormat";
+    public static final String THREADS = "threads";
+    public static final String BLOCK_SIZE = "blockSize";
+
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
 
     public String getParserName() {
         return BEAGLE_SEQUENCE_SIMULATOR;
@@ -72,7 +81,13 @@ public class BeagleSequenceSimulatorParser extends AbstractXMLObjectParser {
                         
                 		SimpleAlignment.OutputType.values(), //TODO: this should ignore upper/lower cas
                         false),
-                        
+                new StringAttributeRule(FILE_NAME, "Write the alignment to this file in blocks of sites simulated in parallel, " +
+                        "instead of returning it", true),
+                new StringAttributeRule(FILE_FORMAT, "The format of the file (default fasta)",
+                        AlignmentFileWriter.Format.values(), true),
+                AttributeRule.newIntegerRule(THREADS, true, "The number of threads used to simulate blocks (default one for each processor)"),
+                AttributeRule.newIntegerRule(BLOCK_SIZE, true, "The number of sites in each block (default " + DEFAULT_BLOCK_SIZE + ")"),
+
                 new ElementRule(Partition.class, 1, Integer.MAX_VALUE)
         };
     }// END: getSyntaxRules
@@ -163,6 +178,33 @@ public class BeagleSequenceSimulatorParser extends AbstractXMLObjectParser {
         }
 
         BeagleSequenceSimulator s = new BeagleSequenceSimulator(partitionsList);
+
+        if (xo.hasAttribute(FILE_NAME)) {
+
+            AlignmentFileWriter.Format format = AlignmentFileWriter.Format.FASTA;
+            if (xo.hasAttribute(FILE_FORMAT)) {
+                format = AlignmentFileWriter.Format.parseFromString(xo.getStringAttribute(FILE_FORMAT));
+            }
+
+            int threadCount = xo.getAttribute(THREADS, -1);
+            int blockSize = xo.getAttribute(BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+            if (blockSize < 1) {
+                throw new XMLParseException("The " + BLOCK_SIZE + " attribute should be at least 1");
+            }
+
+            File file = XMLParser.getLogFile(xo, FILE_NAME);
+            try {
+                s.simulate(file, format, threadCount, blockSize);
+            } catch (IOException ioe) {
+                throw new XMLParseException("Unable to write simulated alignment to file, " + file.getName() + ": " + ioe.getMessage());
+            } catch (IllegalArgumentException iae) {
+                throw new XMLParseException(iae.getMessage());
+            }
+
+            Logger.getLogger("dr.app.beagle.tools").info("Simulated alignment written to " + file.getName());
+            return null;
+        }
+
         SimpleAlignment alignment = s.simulate(parallel, outputAncestralSequences);
 
         alignment.setOutputType(output);
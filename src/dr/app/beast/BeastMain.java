@@ -32,6 +32,9 @@ import dr.app.plugin.Plugin;
 import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.markovchain.ChainMetrics;
+import dr.inference.markovchain.ChainReplicas;
+import dr.inference.markovchain.MarkovChain;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
@@ -81,7 +84,7 @@ public class BeastMain {
 
     public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
                      boolean parserWarning, boolean strictXML, List<String> additionalParsers,
-                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery) {
+                     boolean useMC3, MCMCMCOptions mcmcmcOptions, int proposalCount) {
 
         if (inputFile == null) {
             throw new RuntimeException("Error: no input file specified");
@@ -159,15 +162,55 @@ public class BeastMain {
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
 
-            if (!useMC3) {
+            if (!useMC3 && proposalCount <= 1) {
                 // just parse the file running all threads...
 
                 parser.parse(fileReader, true);
 
+            } else if (!useMC3) {
+                MarkovChain[] chains = new MarkovChain[proposalCount];
+
+                Logger.getLogger("dr.apps.beast").info("Evaluating " + proposalCount + " proposals at each step");
+
+                // parse the file for the chain that will be run returning the MCMC object
+                MCMC mcmc = (MCMC) parser.parse(fileReader, MCMC.class);
+                if (mcmc == null) {
+                    throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                }
+                fileReader.close();
+                chains[0] = mcmc.getMarkovChain();
+
+                // the replicas are never run themselves so their loggers don't open the log files
+                // (which the chain being run already has)
+                System.setProperty(XMLParser.DISCARD_LOGS, "true");
+                for (int i = 1; i < proposalCount; i++) {
+                    // parse the file once for each replica used to make the other proposals
+                    fileReader = new FileReader(inputFile);
+
+                    messageHandler.setLevel(Level.OFF);
+                    parser = new BeastParser(new String[]{fileName}, additionalParsers, verbose, parserWarning, strictXML, version);
+
+                    MCMC replica = (MCMC) parser.parse(fileReader, MCMC.class);
+                    if (replica == null) {
+                        throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                    }
+                    fileReader.close();
+                    chains[i] = replica.getMarkovChain();
+                }
+                System.clearProperty(XMLParser.DISCARD_LOGS);
+
+                // restart messages
+                messageHandler.setLevel(Level.ALL);
+
+                ChainReplicas replicas = new ChainReplicas(chains, 0);
+                chains[0].setReplicas(replicas);
+                mcmc.run();
+                replicas.shutdown();
+
             } else {
+                double[] chainTemperatures = mcmcmcOptions.getChainTemperatures();
                 int chainCount = chainTemperatures.length;
                 MCMC[] chains = new MCMC[chainCount];
-                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery);
 
                 Logger.getLogger("dr.apps.beast").info("Starting cold chain plus hot chains with temperatures: ");
                 for (int i = 1; i < chainTemperatures.length; i++) {
@@ -204,9 +247,10 @@ public class BeastMain {
                 // restart messages
                 messageHandler.setLevel(Level.ALL);
 
-                MCMCMC mc3 = new MCMCMC(chains, options);
-                Thread thread = new Thread(mc3);
-                thread.start();
+                // run it in this thread (as the parser does for a single chain) so it finishes
+                // before BEAST exits
+                MCMCMC mc3 = new MCMCMC(chains, mcmcmcOptions);
+                mc3.run();
             }
 
         } catch (java.io.IOException ioe) {
@@ -362,13 +406,24 @@ public class BeastMain {
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
                         new Arguments.IntegerOption("mc3_swap", 1, Integer.MAX_VALUE, "frequency at which chains temperatures will be swapped"),
+                        new Arguments.IntegerOption("mc3_swap_count", 1, Integer.MAX_VALUE, "number of swaps of adjacent temperatures proposed each time [default = 1]"),
+                        new Arguments.IntegerOption("mc3_threads", 1, Integer.MAX_VALUE, "number of threads to run the chains on [default = one per processor]"),
+                        new Arguments.RealOption("mc3_target", 0.0, 1.0, "tune the temperatures towards this swap acceptance rate"),
+                        new Arguments.IntegerOption("proposals", 1, Integer.MAX_VALUE, "number of proposals evaluated in parallel at each step [default = 1]"),
 
                         new Arguments.StringOption("load_dump", "FILENAME", "Specify a filename to load a dumped state from"),
                         new Arguments.LongOption("dump_state", "Specify a state at which to write a dump file"),
                         new Arguments.LongOption("dump_every", "Specify a frequency to write a dump file"),
                         new Arguments.StringOption("save_dump", "FILENAME", "Specify a filename to save a dumped state to"),
+                        new Arguments.StringOption("dump_format", new String[]{"text", "binary"}, false,
+                                "Specify the format of dump files (binary dumps are written in the background)"),
+                        new Arguments.IntegerOption("dump_generations", 1, Integer.MAX_VALUE, "Specify the number of binary dump files to keep"),
                         new Arguments.Option("force_resume", "Force resuming from a dumped state"),
 
+                        new Arguments.StringOption("metrics", "FILENAME", "Specify a filename to write timings of the parts of the chain to (JSON or .csv)"),
+                        new Arguments.IntegerOption("metrics_every", 1, Integer.MAX_VALUE, "Specify an interval in seconds at which to write the timings"),
+                        new Arguments.Option("metrics_jmx", "Make the timings of the parts of the chain available through JMX"),
+
                         new Arguments.StringOption("citations_file", "FILENAME", "Specify a filename to write a citation list to"),
 
                         new Arguments.Option("version", "Print the version and credits and stop"),
@@ -496,7 +551,29 @@ public class BeastMain {
             swapChainsEvery = arguments.getIntegerOption("mc3_swap");
         }
 
+        int swapCount = 1;
+        if (arguments.hasOption("mc3_swap_count")) {
+            swapCount = arguments.getIntegerOption("mc3_swap_count");
+        }
+
+        int mc3ThreadCount = 0;
+        if (arguments.hasOption("mc3_threads")) {
+            mc3ThreadCount = arguments.getIntegerOption("mc3_threads");
+        }
+
+        double targetSwapAcceptance = 0.0;
+        if (arguments.hasOption("mc3_target")) {
+            targetSwapAcceptance = arguments.getRealOption("mc3_target");
+        }
+
+        int proposalCount = 1;
+        if (arguments.hasOption("proposals")) {
+            proposalCount = arguments.getIntegerOption("proposals");
+        }
+
         boolean useMC3 = chainCount > 1;
+        MCMCMCOptions mcmcmcOptions = new MCMCMCOptions(chainTemperatures, swapChainsEvery, swapCount,
+                mc3ThreadCount, targetSwapAcceptance);
 
         // ============= BEAGLE settings =============
         long beagleFlags = 0;
@@ -596,10 +673,32 @@ public class BeastMain {
             System.setProperty(BeastCheckpointer.SAVE_STATE_FILE, debugStateFile);
         }
 
+        if (arguments.hasOption("dump_format")) {
+            String debugFormat = arguments.getStringOption("dump_format");
+            System.setProperty(BeastCheckpointer.SAVE_STATE_FORMAT, debugFormat);
+        }
+
+        if (arguments.hasOption("dump_generations")) {
+            int debugGenerations = arguments.getIntegerOption("dump_generations");
+            System.setProperty(BeastCheckpointer.SAVE_STATE_GENERATIONS, Integer.toString(debugGenerations));
+        }
+
         if (arguments.hasOption("force_resume")) {
             System.setProperty("force.resume", Boolean.TRUE.toString());
         }
 
+        if (arguments.hasOption("metrics")) {
+            System.setProperty(ChainMetrics.METRICS_FILE, arguments.getStringOption("metrics"));
+        }
+
+        if (arguments.hasOption("metrics_every")) {
+            System.setProperty(ChainMetrics.METRICS_EVERY, Integer.toString(arguments.getIntegerOption("metrics_every")));
+        }
+
+        if (arguments.hasOption("metrics_jmx")) {
+            System.setProperty(ChainMetrics.METRICS_JMX, Boolean.TRUE.toString());
+        }
+
         if (arguments.hasOption("citations_file")) {
             String debugStateFile = arguments.getStringOption("citations_file");
             System.setProperty("citations.filename", debugStateFile);
@@ -809,7 +908,7 @@ public class BeastMain {
         System.out.println("Random number seed: " + seed);
 
         try {
-            new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers, useMC3, chainTemperatures, swapChainsEvery);
+            new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers, useMC3, mcmcmcOptions, proposalCount);
         } catch (RuntimeException rte) {
             // The stack trace here is not useful
 //            rte.printStackTrace(System.err);
@@ -0,0 +1,359 @@
+/*
+ * AsyncCheckpointWriter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Writes binary checkpoints on a background thread. The chain thread serializes its state into
+ * one of two in-memory buffers and carries on while the other buffer is written out. Each file is
+ * written to a temporary file, synced and then renamed over the target so an interrupted write never
+ * damages an existing checkpoint. Older checkpoints are kept as numbered generations (file.1, file.2...).
+ *
+ * File layout: the MAGIC bytes, a format version, the payload length, the payload and a CRC32 of
+ * the payload.
+ */
+public class AsyncCheckpointWriter {
+
+    public static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'C', 'K', 'P'};
+    public static final int VERSION = 1;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String PREVIOUS_SUFFIX = ".old";
+
+    /**
+     * @param generationCount the number of checkpoints to keep for each file name (at least 1)
+     */
+    public AsyncCheckpointWriter(int generationCount) {
+        this.generationCount = Math.max(generationCount, 1);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncCheckpointWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get a stream to write the state into. Blocks only if both buffers are still waiting to be written.
+     * @return the stream for the next snapshot
+     */
+    public DataOutputStream beginSnapshot() {
+        current = 1 - current;
+        waitFor(pending[current]);
+
+        snapshotStartTime = System.nanoTime();
+        buffers[current].reset();
+        return new DataOutputStream(buffers[current]);
+    }
+
+    /**
+     * Queue the snapshot written since beginSnapshot() to be written to the file.
+     * @param file the checkpoint file
+     */
+    public void submit(final File file) {
+        final SnapshotBuffer buffer = buffers[current];
+        final double snapshotTime = (System.nanoTime() - snapshotStartTime) / 1.0E6;
+
+        pending[current] = executor.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    long start = System.nanoTime();
+                    long checksum = write(file, buffer);
+                    double writeTime = (System.nanoTime() - start) / 1.0E6;
+
+                    recordWrite(snapshotTime, writeTime);
+                    Logger.getLogger("dr.app.checkpoint").info("Checkpoint written to " + file.getName() +
+                            " (" + buffer.size() + " bytes, CRC32 " + Long.toHexString(checksum) +
+                            ", snapshot " + String.format("%.1f", snapshotTime) +
+                            " ms, write " + String.format("%.1f", writeTime) + " ms)");
+                } catch (IOException ioe) {
+                    System.err.println("Unable to write checkpoint file " + file.getName() + ": " + ioe.getMessage());
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Wait for any queued checkpoints to be written.
+     */
+    public void flush() {
+        waitFor(pending[0]);
+        waitFor(pending[1]);
+    }
+
+    /**
+     * Write any queued checkpoints, report the timings and stop the writer thread.
+     */
+    public void close() {
+        flush();
+        executor.shutdown();
+
+        if (writeCount > 0) {
+            Logger.getLogger("dr.app.checkpoint").info(writeCount + " checkpoints written: mean snapshot " +
+                    String.format("%.1f", totalSnapshotTime / writeCount) + " ms, mean write " +
+                    String.format("%.1f", totalWriteTime / writeCount) + " ms, max write " +
+                    String.format("%.1f", maxWriteTime) + " ms");
+        }
+    }
+
+    public synchronized int getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getLastChecksum() {
+        return lastChecksum;
+    }
+
+    /**
+     * @param file the checkpoint file
+     * @param generation 0 for the latest checkpoint, 1 for the one before etc.
+     * @return the file holding that generation
+     */
+    public static File getGenerationFile(File file, int generation) {
+        if (generation == 0) {
+            return file;
+        }
+        return new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * @return true if the file starts with the binary checkpoint MAGIC bytes
+     */
+    public static boolean isBinaryCheckpoint(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return java.util.Arrays.equals(magic, MAGIC);
+        } catch (EOFException eofe) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read a binary checkpoint file and check its checksum
+     * @param file the checkpoint file
+     * @return the payload
+     * @throws IOException if the file can't be read, is truncated or the checksum doesn't match
+     */
+    public static byte[] readPayload(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a binary checkpoint file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Checkpoint file is truncated");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            long checksum = in.readLong();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Checkpoint checksum doesn't match (expected " + Long.toHexString(checksum) +
+                        ", found " + Long.toHexString(crc.getValue()) + ")");
+            }
+            return payload;
+        } catch (EOFException eofe) {
+            throw new IOException("Checkpoint file is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the most recent generation of a binary checkpoint that is complete and has a valid checksum
+     * @param file the checkpoint file
+     * @return the payload
+     * @throws IOException if no generation can be read
+     */
+    public static byte[] readLatestPayload(File file) throws IOException {
+        int generation = 0;
+        File generationFile = file;
+        while (generation == 0 || generationFile.exists()) {
+            if (!generationFile.exists()) {
+                // a write stopped part way through a rename that had to move the old file aside
+                generationFile = new File(generationFile.getPath() + PREVIOUS_SUFFIX);
+            }
+            if (generationFile.exists()) {
+                try {
+                    byte[] payload = readPayload(generationFile);
+                    if (generation > 0) {
+                        System.out.println("Loading state from earlier checkpoint: " + generationFile.getName());
+                    }
+                    return payload;
+                } catch (IOException ioe) {
+                    System.err.println("Unable to read checkpoint " + generationFile.getName() + ": " + ioe.getMessage());
+                }
+            }
+            generation++;
+            generationFile = getGenerationFile(file, generation);
+        }
+        throw new IOException("Unable to find a valid checkpoint file: " + file.getName());
+    }
+
+    private long write(File file, SnapshotBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.getBuffer(), 0, buffer.size());
+        long checksum = crc.getValue();
+
+        File temporaryFile = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(buffer.size());
+            out.write(buffer.getBuffer(), 0, buffer.size());
+            out.writeLong(checksum);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        // shift the older generations along, dropping the oldest
+        for (int i = generationCount - 1; i > 0; i--) {
+            File older = getGenerationFile(file, i - 1);
+            if (older.exists()) {
+                rename(older, getGenerationFile(file, i));
+            }
+        }
+
+        rename(temporaryFile, file);
+
+        synchronized (this) {
+            lastChecksum = checksum;
+        }
+        return checksum;
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // renameTo replaces the target atomically on POSIX file systems but not on all platforms
+        if (from.renameTo(to)) {
+            return;
+        }
+        if (!to.exists()) {
+            throw new IOException("Unable to rename " + from.getName() + " to " + to.getName());
+        }
+
+        // otherwise move the old file aside and only remove it once the new one is in its place
+        File previous = new File(to.getPath() + PREVIOUS_SUFFIX);
+        if (previous.exists() && !previous.delete()) {
+            throw new IOException("Unable to delete " + previous.getName());
+        }
+        if (!to.renameTo(previous)) {
+            throw new IOException("Unable to rename " + to.getName() + " to " + previous.getName());
+        }
+        if (!from.renameTo(to)) {
+            if (!previous.renameTo(to)) {
+                throw new IOException("Unable to rename " + from.getName() + " to " + to.getName() +
+                        " (the previous file is kept as " + previous.getName() + ")");
+            }
+            throw new IOException("Unable to rename " + from.getName() + " to " + to.getName());
+        }
+        if (!previous.delete()) {
+            Logger.getLogger("dr.app.checkpoint").warning("Unable to delete " + previous.getName());
+        }
+    }
+
+    private synchronized void recordWrite(double snapshotTime, double writeTime) {
+        writeCount++;
+        totalSnapshotTime += snapshotTime;
+        totalWriteTime += writeTime;
+        maxWriteTime = Math.max(maxWriteTime, writeTime);
+    }
+
+    private static void waitFor(Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        // the buffer can't be reused until the write has finished so an interrupt only ends the wait
+        // once it has, and is then passed on to the caller
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gives access to the internal array so it can be written without a copy
+     */
+    private static class SnapshotBuffer extends ByteArrayOutputStream {
+        SnapshotBuffer() {
+            super(1 << 16);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final int generationCount;
+    private final ExecutorService executor;
+
+    private final SnapshotBuffer[] buffers = {new SnapshotBuffer(), new SnapshotBuffer()};
+    private final Future<?>[] pending = new Future<?>[2];
+    private int current = 0;
+    private long snapshotStartTime;
+
+    private int writeCount = 0;
+    private double totalSnapshotTime = 0.0;
+    private double totalWriteTime = 0.0;
+    private double maxWriteTime = 0.0;
+    private long lastChecksum = 0;
+}
@@ -63,17 +63,37 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
     public final static String SAVE_STATE_AT = "save.state.at";
     public final static String SAVE_STATE_EVERY = "save.state.every";
 
+    public final static String SAVE_STATE_FORMAT = "save.state.format";
+    public final static String SAVE_STATE_GENERATIONS = "save.state.generations";
+
     public final static String FORCE_RESUME = "force.resume";
 
     private final String loadStateFileName;
     private final String saveStateFileName;
 
+    // only used for binary checkpoints
+    private final AsyncCheckpointWriter checkpointWriter;
+
     private boolean forceResume = false;
 
     public BeastCheckpointer() {
         loadStateFileName = System.getProperty(LOAD_STATE_FILE, null);
         saveStateFileName = System.getProperty(SAVE_STATE_FILE, null);
 
+        if ("binary".equalsIgnoreCase(System.getProperty(SAVE_STATE_FORMAT, "text"))) {
+            int generationCount = Integer.parseInt(System.getProperty(SAVE_STATE_GENERATIONS, "1"));
+            checkpointWriter = new AsyncCheckpointWriter(generationCount);
+
+            // make sure the last checkpoint gets written out before BEAST exits
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    checkpointWriter.close();
+                }
+            });
+        } else {
+            checkpointWriter = null;
+        }
+
         final List<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
 
         if (System.getProperty(SAVE_STATE_AT) != null) {
@@ -112,12 +132,24 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
         String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(Calendar.getInstance().getTime());
         String fileName = (this.saveStateFileName != null ? this.saveStateFileName : "beast_state_" + timeStamp);
 
+        if (checkpointWriter != null) {
+            return writeStateToBinaryFile(new File(fileName), state, lnL, markovChain);
+        }
         return writeStateToFile(new File(fileName), state, lnL, markovChain);
     }
 
     @Override
     public long loadState(MarkovChain markovChain, double[] savedLnL) {
-        return readStateFromFile(new File(loadStateFileName), markovChain, savedLnL);
+        File file = new File(loadStateFileName);
+        try {
+            if (file.exists() ? AsyncCheckpointWriter.isBinaryCheckpoint(file) :
+                    AsyncCheckpointWriter.getGenerationFile(file, 1).exists()) {
+                return readStateFromBinaryFile(file, markovChain, savedLnL);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+        return readStateFromFile(file, markovChain, savedLnL);
     }
 
     @Override
@@ -332,6 +364,275 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
         return true;
     }
 
+    /**
+     * Serializes the state into the checkpoint writer's buffer on this thread and leaves it to
+     * be written to the file in the background.
+     */
+    private boolean writeStateToBinaryFile(File file, long state, double lnL, MarkovChain markovChain) {
+        DataOutputStream out = checkpointWriter.beginSnapshot();
+        try {
+            writeBinaryState(out, state, lnL, markovChain);
+            out.flush();
+        } catch (IOException ioe) {
+            System.err.println("Unable to write checkpoint: " + ioe.getMessage());
+            return false;
+        }
+        checkpointWriter.submit(file);
+        return true;
+    }
+
+    /**
+     * Writes the same information as writeStateToFile in binary
+     */
+    private void writeBinaryState(DataOutputStream out, long state, double lnL, MarkovChain markovChain) throws IOException {
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+
+        int[] rngState = MathUtils.getRandomState();
+        out.writeInt(rngState.length);
+        for (int value : rngState) {
+            out.writeInt(value);
+        }
+
+        out.writeLong(state);
+        out.writeDouble(lnL);
+
+        out.writeInt(Parameter.CONNECTED_PARAMETER_SET.size());
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            out.writeUTF(parameter.getParameterName());
+            out.writeInt(parameter.getDimension());
+            for (int dim = 0; dim < parameter.getDimension(); dim++) {
+                out.writeDouble(parameter.getParameterValue(dim));
+            }
+        }
+
+        out.writeInt(operatorSchedule.getOperatorCount());
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            out.writeUTF(operator.getOperatorName());
+            out.writeLong(operator.getAcceptCount());
+            out.writeLong(operator.getRejectCount());
+            out.writeBoolean(operator instanceof CoercableMCMCOperator);
+            if (operator instanceof CoercableMCMCOperator) {
+                out.writeDouble(((CoercableMCMCOperator)operator).getCoercableParameter());
+            }
+        }
+
+        List<TreeModel> treeModels = new ArrayList<TreeModel>();
+        List<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                treeModels.add((TreeModel) model);
+            }
+            if (model instanceof TreeParameterModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+
+        out.writeInt(treeModels.size());
+        for (TreeModel tree : treeModels) {
+            out.writeUTF(tree.getModelName());
+
+            int nodeCount = tree.getNodeCount();
+            out.writeInt(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                out.writeInt(node.getNumber());
+                out.writeDouble(tree.getNodeHeight(node));
+                out.writeBoolean(tree.isExternal(node));
+                if (tree.isExternal(node)) {
+                    out.writeUTF(tree.getNodeTaxon(node).getId());
+                }
+            }
+
+            List<TreeParameterModel> treeTraitModels = new ArrayList<TreeParameterModel>();
+            for (TreeParameterModel tpm : traitModels) {
+                if (tree == tpm.getTreeModel()) {
+                    treeTraitModels.add(tpm);
+                }
+            }
+            out.writeInt(treeTraitModels.size());
+
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                NodeRef parent = tree.getParent(node);
+                if (parent == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(parent.getNumber());
+                    if (tree.getChild(parent, 0) == node) {
+                        out.writeInt(0);
+                    } else if (tree.getChild(parent, 1) == node) {
+                        out.writeInt(1);
+                    } else {
+                        throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                    }
+                    for (TreeParameterModel tpm : treeTraitModels) {
+                        out.writeDouble(tpm.getNodeValue(tree, node));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the most recent binary checkpoint generation that is complete and has a valid checksum.
+     */
+    private long readStateFromBinaryFile(File file, MarkovChain markovChain, double[] lnL) {
+        try {
+            byte[] payload = AsyncCheckpointWriter.readLatestPayload(file);
+            return readBinaryState(new DataInputStream(new ByteArrayInputStream(payload)), markovChain, lnL);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe.getMessage());
+        }
+    }
+
+    private long readBinaryState(DataInputStream in, MarkovChain markovChain, double[] lnL) throws IOException {
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+
+        int[] rngState = new int[in.readInt()];
+        for (int i = 0; i < rngState.length; i++) {
+            rngState[i] = in.readInt();
+        }
+
+        long state = in.readLong();
+        double savedLnL = in.readDouble();
+        if (lnL != null) {
+            lnL[0] = savedLnL;
+        }
+
+        int parameterCount = in.readInt();
+        if (parameterCount != Parameter.CONNECTED_PARAMETER_SET.size()) {
+            throw new RuntimeException("Unable to match state parameters: found " + parameterCount +
+                    ", expecting " + Parameter.CONNECTED_PARAMETER_SET.size());
+        }
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            String name = in.readUTF();
+            double[] values = new double[in.readInt()];
+            for (int dim = 0; dim < values.length; dim++) {
+                values[dim] = in.readDouble();
+            }
+
+            if (values.length != parameter.getDimension()) {
+                System.err.println("Unable to match state parameter dimension: " + values.length + ", expecting " +
+                        parameter.getDimension() + " for parameter: " + parameter.getParameterName());
+            }
+
+            if (name.equals("branchRates.categories.rootNodeNumber")) {
+                parameter.setParameterValue(0, values[0]);
+            } else {
+                for (int dim = 0; dim < parameter.getDimension(); dim++) {
+                    parameter.setParameterValue(dim, values[dim]);
+                }
+            }
+        }
+
+        int operatorCount = in.readInt();
+        if (operatorCount != operatorSchedule.getOperatorCount()) {
+            throw new RuntimeException("Unable to match operators: found " + operatorCount +
+                    ", expecting " + operatorSchedule.getOperatorCount());
+        }
+        for (int i = 0; i < operatorCount; i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            String name = in.readUTF();
+            if (!name.equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match operator: " + name);
+            }
+            operator.setAcceptCount(in.readLong());
+            operator.setRejectCount(in.readLong());
+            boolean isCoercable = in.readBoolean();
+            if (operator instanceof CoercableMCMCOperator) {
+                if (!isCoercable) {
+                    throw new RuntimeException("Coercable operator missing parameter: " + name);
+                }
+                ((CoercableMCMCOperator)operator).setCoercableParameter(in.readDouble());
+            } else if (isCoercable) {
+                in.readDouble();
+            }
+        }
+
+        // load the tree models last as we get the node heights from the tree
+        Map<String, TreeModel> treeModels = new HashMap<String, TreeModel>();
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                treeModels.put(model.getModelName(), (TreeModel) model);
+            }
+            if (model instanceof TreeParameterModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+        Set<String> expectedTreeModelNames = new HashSet<String>(treeModels.keySet());
+
+        int treeCount = in.readInt();
+        for (int t = 0; t < treeCount; t++) {
+            String name = in.readUTF();
+            TreeModel tree = treeModels.get(name);
+            if (tree == null) {
+                throw new RuntimeException("Unable to match tree: " + name);
+            }
+
+            int nodeCount = in.readInt();
+            double[] nodeHeights = new double[nodeCount];
+            String[] taxaNames = new String[(nodeCount + 1) / 2];
+            for (int i = 0; i < nodeCount; i++) {
+                in.readInt();
+                nodeHeights[i] = in.readDouble();
+                if (in.readBoolean()) {
+                    String taxonId = in.readUTF();
+                    if (i < taxaNames.length) {
+                        taxaNames[i] = taxonId;
+                    }
+                }
+            }
+
+            int traitCount = in.readInt();
+            int linkedTraitCount = 0;
+            for (TreeParameterModel tpm : traitModels) {
+                if (tpm.getTreeModel().getId().equals(name)) {
+                    linkedTraitCount++;
+                }
+            }
+            if (traitCount != linkedTraitCount) {
+                throw new RuntimeException("Unable to match tree traits for tree: " + name);
+            }
+
+            double[][] traitValues = new double[traitCount][nodeCount];
+            int[] parents = new int[nodeCount];
+            int[] childOrder = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                parents[i] = in.readInt();
+                childOrder[i] = -1;
+                if (parents[i] != -1) {
+                    childOrder[i] = in.readInt();
+                    for (int j = 0; j < traitCount; j++) {
+                        traitValues[j][i] = in.readDouble();
+                    }
+                }
+            }
+
+            tree.beginTreeEdit();
+            tree.adoptTreeStructure(parents, nodeHeights, childOrder, taxaNames);
+            if (traitModels.size() > 0) {
+                tree.adoptTraitData(parents, traitModels, traitValues, taxaNames);
+            }
+            tree.endTreeEdit();
+
+            expectedTreeModelNames.remove(name);
+        }
+
+        if (expectedTreeModelNames.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (String notFoundName : expectedTreeModelNames) {
+                sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
+            }
+            throw new RuntimeException("\n" + sb.toString());
+        }
+
+        MathUtils.setRandomState(rngState);
+
+        return state;
+    }
+
     private long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
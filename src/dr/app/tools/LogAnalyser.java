@@ -28,6 +28,7 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.trace.StreamingLogAnalysis;
 import dr.inference.trace.TraceAnalysis;
 import dr.inference.trace.TraceException;
 import dr.util.Version;
@@ -36,7 +37,11 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class LogAnalyser {
 
@@ -142,6 +147,105 @@ public class LogAnalyser {
         }
     }
 
+    /**
+     * Summarizes log files in a single pass with bounded memory and, if follow is true, keeps reading
+     * them as they grow, printing a refreshed summary every interval. If the input is a directory it
+     * is rescanned on each refresh so new runs are picked up.
+     *
+     * @param input          a log file or a directory of log files
+     * @param burnin         the number of states to be considered as burn-in (must be known in advance)
+     * @param outputFileName if not null the summary is written to this file, replacing the previous one
+     * @param follow         if true keep reading the files as they grow until interrupted
+     * @param interval       the time between refreshes in seconds (greater than zero)
+     * @param verbose        if true then a full report is done on each log file, otherwise only a single line report is made
+     * @param hpds           if true then report 95% hpds
+     * @param ess            if true then report ESSs
+     * @param stdErr         if true then report standard error of the mean
+     */
+    public static void stream(File input, long burnin, String outputFileName, boolean follow, double interval,
+                              boolean verbose, boolean hpds, boolean ess, boolean stdErr)
+            throws IOException {
+
+        if (follow && !(interval > 0.0)) {
+            throw new IllegalArgumentException("The interval between refreshes must be greater than zero");
+        }
+
+        Map<File, StreamingLogAnalysis> analyses = new LinkedHashMap<File, StreamingLogAnalysis>();
+
+        do {
+            List<File> files = new ArrayList<File>();
+            collectLogFiles(input, files);
+            for (File file : files) {
+                if (!analyses.containsKey(file)) {
+                    analyses.put(file, new StreamingLogAnalysis(file, burnin));
+                }
+            }
+
+            for (StreamingLogAnalysis analysis : analyses.values()) {
+                analysis.update();
+            }
+
+            File outputFile = null;
+            File temporaryFile = null;
+            PrintStream out = System.out;
+            if (outputFileName != null) {
+                // write to a temporary file and rename it so readers never see a partial summary
+                outputFile = new File(outputFileName);
+                temporaryFile = new File(outputFileName + ".tmp");
+                out = new PrintStream(new FileOutputStream(temporaryFile));
+            }
+
+            boolean drawHeader = true;
+            for (StreamingLogAnalysis analysis : analyses.values()) {
+                if (analysis.getTraceCount() == 0) {
+                    continue;
+                }
+                if (verbose) {
+                    out.println(analysis.getFile().getPath());
+                    analysis.report(out, true);
+                } else {
+                    analysis.shortReport(out, drawHeader, hpds, ess, stdErr);
+                    drawHeader = false;
+                }
+            }
+            out.flush();
+
+            if (outputFile != null) {
+                out.close();
+                if (!temporaryFile.renameTo(outputFile)) {
+                    if (!outputFile.delete() || !temporaryFile.renameTo(outputFile)) {
+                        throw new IOException("Unable to write " + outputFileName);
+                    }
+                }
+            }
+
+            if (follow) {
+                try {
+                    Thread.sleep((long) Math.ceil(interval * 1000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } while (follow);
+    }
+
+    private static void collectLogFiles(File file, List<File> files) {
+        if (file.isFile()) {
+            files.add(file);
+        } else if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File f : children) {
+                    if (f.isDirectory()) {
+                        collectLogFiles(f, files);
+                    } else if (f.getName().endsWith(".log") || f.getName().endsWith(".p")) {
+                        files.add(f);
+                    }
+                }
+            }
+        }
+    }
+
     public static void printTitle() {
         System.out.println();
         centreLine("LogAnalyser " + version.getVersionString() + ", " + version.getDateString(), 60);
@@ -172,10 +276,11 @@ public class LogAnalyser {
 
     public static void printUsage(Arguments arguments) {
 
-        arguments.printUsage("loganalyser", "[-burnin <burnin>] [-short][-hpd] [-std] [<input-file-name> [<output-file-name>]]");
+        arguments.printUsage("loganalyser", "[-burnin <burnin>] [-short][-hpd] [-std] [-stream] [-follow] [-interval <seconds>] [<input-file-name> [<output-file-name>]]");
         System.out.println();
         System.out.println("  Example: loganalyser test.log");
         System.out.println("  Example: loganalyser -burnin 10000 trees.log out.txt");
+        System.out.println("  Example: loganalyser -follow -interval 300 -short -burnin 1000000 runs/ summary.txt");
         System.out.println();
 
     }
@@ -197,6 +302,9 @@ public class LogAnalyser {
                         new Arguments.Option("ess", "use this option to produce ESSs for each trace"),
                         new Arguments.Option("stdErr", "use this option to produce standard Error"),
                         new Arguments.StringOption("marginal", "trace_name", "specify the trace to use to calculate the marginal likelihood"),
+                        new Arguments.Option("stream", "summarize in a single pass with bounded memory (approximate HPDs and batch means ESSs)"),
+                        new Arguments.Option("follow", "keep reading the log files as they grow and refresh the summary (implies -stream)"),
+                        new Arguments.RealOption("interval", 0.0, Double.MAX_VALUE, "the number of seconds between refreshes with -follow [default 60]"),
 //				new Arguments.Option("html", "format output as html"),
 //				new Arguments.Option("svg", "generate svg graphics"),
                         new Arguments.Option("help", "option to print this message")
@@ -249,6 +357,34 @@ public class LogAnalyser {
             outputFileName = args2[1];
         }
 
+        boolean follow = arguments.hasOption("follow");
+        if (follow || arguments.hasOption("stream")) {
+            if (inputFileName == null) {
+                System.err.println("An input file or directory is required with -stream or -follow");
+                printUsage(arguments);
+                System.exit(1);
+            }
+            if (marginalLikelihood != null) {
+                System.err.println("The marginal likelihood can't be estimated with -stream or -follow");
+                System.exit(1);
+            }
+            if (burnin < 0) {
+                // the burn-in can't be taken as a proportion of a log that is still growing
+                System.out.println("No burn-in given: all states will be included (use -burnin <states>)");
+                burnin = 0;
+            }
+            double interval = 60.0;
+            if (arguments.hasOption("interval")) {
+                interval = arguments.getRealOption("interval");
+                if (interval <= 0.0) {
+                    System.err.println("The -interval must be greater than zero");
+                    System.exit(1);
+                }
+            }
+            stream(new File(inputFileName), burnin, outputFileName, follow, interval, !shortReport, hpds, ess, stdErr);
+            System.exit(0);
+        }
+
         if (inputFileName == null) {
             // No input file name was given so throw up a dialog box...
 //            inputFileName = Utils.getLoadFileName("LogAnalyser " + version.getVersionString() + " - Select log file to analyse");
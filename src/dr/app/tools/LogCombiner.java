@@ -28,12 +28,14 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
-import dr.evolution.io.NexusImporter;
+import dr.evolution.io.NexusTreeStream;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
+import dr.inference.trace.BinaryLogTraces;
+import dr.inference.trace.TraceException;
 import dr.util.Version;
 import jam.console.ConsoleApplication;
 
@@ -126,7 +128,8 @@ public class LogCombiner {
 
             if (treeFiles) {
 
-                TreeImporter importer = new NexusImporter(new FileReader(inputFile), stripAnnotations);
+                // the burnin trees are still parsed as they give the taxa and the sampling frequency
+                TreeImporter importer = new NexusTreeStream(new FileReader(inputFile), stripAnnotations);
                 try {
                     while (importer.hasTree()) {
                         Tree tree = importer.importNextTree();
@@ -195,7 +198,20 @@ public class LogCombiner {
                 }
 
             } else {
-                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+                BufferedReader reader;
+                if (BinaryLogTraces.isBinaryLog(inputFile)) {
+                    // binary logs are combined via their tab-delimited form and written as text
+                    BinaryLogTraces traces = new BinaryLogTraces(inputFileNames[i], inputFile);
+                    try {
+                        traces.loadTraces();
+                    } catch (TraceException te) {
+                        System.err.println("Error Parsing Input Log: " + te.getMessage());
+                        return;
+                    }
+                    reader = new BufferedReader(traces.getTabDelimitedReader());
+                } else {
+                    reader = new BufferedReader(new FileReader(inputFile));
+                }
                 //int lineCount = 1;
                 String line = reader.readLine();
 
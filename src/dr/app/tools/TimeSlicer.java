@@ -52,6 +52,12 @@ import java.awt.geom.Point2D;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author Marc A. Suchard
@@ -132,6 +138,8 @@ public class TimeSlicer {
     public static final boolean GREATCIRCLEDISTANCE = true;
     public static final String SUBSTITUTION = "N";
     public static final String DESCENDENTS = "descendents";
+    public static final String BINNED = "binned";
+    public static final String THREADS = "threads";
 
     public static final String[] falseTrue = {"false", "true"};
 
@@ -142,7 +150,8 @@ public class TimeSlicer {
                       boolean trueNoise, double mrsd, ContourMode contourMode, SliceMode sliceMode,
                       final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
                       String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
-                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString) {
+                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString,
+                      boolean binnedKDE, int threadCount) {
 
         this.traits = traits;
         traitCount = traits.length;
@@ -171,6 +180,8 @@ public class TimeSlicer {
         rateAttributeString = rateString;
 
         gridSize = grid;
+        this.binnedKDE = binnedKDE;
+        this.threadCount = threadCount;
 
         if (progress != null) {
             if (progress.equalsIgnoreCase("true")) {
@@ -368,9 +379,15 @@ public class TimeSlicer {
                 rootElement.addContent(documentElement);
             }
 
+            // the contours of all the slices are found first on a thread pool
+            ContourPath[][][][] sliceContourPaths = new ContourPath[sliceCount][hpdValues.length][traitCount][];
+            if (contours && (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.KML)) {
+                computeSliceContours(sliceContourPaths, hpdValues);
+            }
+
             if (sliceHeights == null) {
-                for (double hpdValue : hpdValues) {
-                    summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValue);
+                for (int h = 0; h < hpdValues.length; h++) {
+                    summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValues[h], sliceContourPaths[0][h]);
                 }
             } else {
                 if (outputFormat == OutputFormat.TAB) {
@@ -381,8 +398,8 @@ public class TimeSlicer {
                     }
                 }
                 for (int i = 0; i < sliceHeights.length; i++) {
-                    for (double hpdValue : hpdValues) {
-                        summarizeSlice(i, sliceHeights[i], contours, points, outputFormat, hpdValue);
+                    for (int h = 0; h < hpdValues.length; h++) {
+                        summarizeSlice(i, sliceHeights[i], contours, points, outputFormat, hpdValues[h], sliceContourPaths[i][h]);
                     }
                 }
             }
@@ -750,7 +767,7 @@ public class TimeSlicer {
 
                         if (contourElement != null) {
                             String name = "root_hpd" + (hpdValue * 100);
-                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                         }
 
                         if (pointsElement != null) {
@@ -835,7 +852,7 @@ public class TimeSlicer {
 
                             if (contourElement != null) {
                                 String name = tipNames.get(tipIndex) + "_hpd";
-                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                             }
 
                             if (pointsElement != null) {
@@ -866,7 +883,8 @@ public class TimeSlicer {
 
     }
 
-    private void summarizeSlice(int slice, double sliceValue, boolean contours, boolean points, OutputFormat outputFormat, double hpdValue) {
+    private void summarizeSlice(int slice, double sliceValue, boolean contours, boolean points, OutputFormat outputFormat, double hpdValue,
+                                ContourPath[][] contourPaths) {
 
         //if (outputFormat == OutputFormat.TAB)
         //    throw new RuntimeException("Only XML/KML output is implemented");
@@ -908,7 +926,7 @@ public class TimeSlicer {
 //            } else {
             summarizeSliceTrait(contourElement, pointsElement, slice, thisSlice.get(traitIndex), traitIndex, sliceValue,
                     outputFormat,
-                    hpdValue);
+                    hpdValue, contourPaths[traitIndex]);
 
 //            }
         }
@@ -934,7 +952,7 @@ public class TimeSlicer {
 
     private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, List<Trait> thisTrait, int traitIndex, double sliceValue,
                                      OutputFormat outputFormat,
-                                     double hpdValue) {
+                                     double hpdValue, ContourPath[] contourPaths) {
 
         if (thisTrait.size() == 0) {
             return;
@@ -968,16 +986,8 @@ public class TimeSlicer {
                 }
             }
 
-            int count = thisTrait.size();
-//            System.out.println("count = "+count+", dim = "+dim);
-            double[][] y = new double[dim][count];
-            for (int i = 0; i < count; i++) {
-                Trait trait = thisTrait.get(i);
-                double[] value = trait.getValue();
-                for (int j = 0; j < dim; j++) {
-                    y[j][i] = value[j];
-                }
-            }
+//            System.out.println("count = "+thisTrait.size()+", dim = "+dim);
+            double[][] y = getTraitValues(thisTrait, dim);
 //            System.out.println(y.length+"\t"+y[0].length);
 
             if (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.TAB) {
@@ -1044,7 +1054,7 @@ public class TimeSlicer {
 
                 if (contourElement != null) {
                     String name = "" + date + "_hpd" + hpdValue;
-                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue);
+                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue, contourPaths);
                 }
 
             }
@@ -1115,24 +1125,107 @@ public class TimeSlicer {
         }
     }
 
-    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue) {
-        //to test how much points are within the polygons
-        double numberOfPointsInPolygons = 0;
-        double totalArea = 0;
+    private static double[][] getTraitValues(List<Trait> thisTrait, int dim) {
+        int count = thisTrait.size();
+        double[][] y = new double[dim][count];
+        for (int i = 0; i < count; i++) {
+            Trait trait = thisTrait.get(i);
+            double[] value = trait.getValue();
+            for (int j = 0; j < dim; j++) {
+                y[j][i] = value[j];
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Finds the contours of every bivariate trait in every slice for each of the HPD values
+     * using a pool of threads. The contours are put in the array indexed by slice, HPD value
+     * and trait. Contouring with R is left to be done one slice at a time as it is not thread safe.
+     */
+    private void computeSliceContours(final ContourPath[][][][] sliceContourPaths, final double[] hpdValues) {
+
+        if (contourMode == ContourMode.R) {
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int slice = 0; slice < sliceCount; slice++) {
+            List<List<Trait>> thisSlice = values.get(slice);
+            for (int traitIndex = 0; traitIndex < thisSlice.size(); traitIndex++) {
+                List<Trait> thisTrait = thisSlice.get(traitIndex);
+                if (thisTrait.size() > 0 && thisTrait.get(0).isNumber() &&
+                        thisTrait.get(0).isMultivariate() && thisTrait.get(0).getDim() == 2) {
+                    final double[][] y = getTraitValues(thisTrait, 2);
+                    for (int h = 0; h < hpdValues.length; h++) {
+                        final ContourPath[][] paths = sliceContourPaths[slice][h];
+                        final int index = traitIndex;
+                        final double hpdValue = hpdValues[h];
+                        tasks.add(new Callable<Object>() {
+                            public Object call() throws Exception {
+                                paths[index] = createContourPaths(y, hpdValue);
+                                return null;
+                            }
+                        });
+                    }
+                }
+            }
+        }
 
+        if (tasks.size() == 0) {
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threadCount, tasks.size()), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "time-slicer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private ContourPath[] createContourPaths(double[][] y, double hpdValue) {
         ContourMaker contourMaker;
         if (contourMode == ContourMode.JAVA)
 //            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
-            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
+            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT, binnedKDE);
         else if (contourMode == ContourMode.R)
             contourMaker = new ContourWithR(y[0], y[1], gridSize);
         else if (contourMode == ContourMode.SNYDER)
 //            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
-            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
+            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT, binnedKDE);
         else
             throw new RuntimeException("Unimplemented ContourModel!");
 
-        ContourPath[] paths = contourMaker.getContourPaths(hpdValue);
+        return contourMaker.getContourPaths(hpdValue);
+    }
+
+    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue,
+                                  ContourPath[] paths) {
+        //to test how much points are within the polygons
+        double numberOfPointsInPolygons = 0;
+        double totalArea = 0;
+
+        if (paths == null) {
+            paths = createContourPaths(y, hpdValue);
+        }
         int pathCounter = 1;
         for (ContourPath path : paths) {
 
@@ -2157,6 +2250,8 @@ public class TimeSlicer {
     private boolean ancient = false;
     private boolean useStyles = true;
     private int gridSize;
+    private boolean binnedKDE;
+    private int threadCount;
     private double latMin;
     private double latMax;
     private double longMin;
@@ -2658,6 +2753,8 @@ public class TimeSlicer {
         double longMin = -Double.MAX_VALUE;
         String rateString = "location.rate";
         Set descendents = null;
+        boolean binnedKDE = false;
+        int threadCount = Runtime.getRuntime().availableProcessors();
 
 //        if (args.length == 0) {
 //          // TODO Make flash GUI
@@ -2710,7 +2807,10 @@ public class TimeSlicer {
                         new Arguments.RealOption(LONGMAX, "specifies the maximum longitude for a child node for a branch to be included in the summary [default=MAX_VALUE]"),
                         new Arguments.RealOption(LONGMIN, "specifies the minimum longitude for a child node for a branch to be included in the summary [default=MIN_VALUE]"),
                         new Arguments.IntegerOption(GRIDSIZE, "the grid size for contouring [default=200]"),
-                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]")
+                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]"),
+                        new Arguments.StringOption(BINNED, falseTrue, false,
+                                "bin the points onto the grid to estimate the densities for contouring [default = false]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads to use for contouring the slices [default = number of processors]")
 
                 });
 
@@ -2980,6 +3080,17 @@ public class TimeSlicer {
                 grid = arguments.getIntegerOption(GRIDSIZE);
             }
 
+            String binnedString = arguments.getStringOption(BINNED);
+            if (binnedString != null && binnedString.compareToIgnoreCase("true") == 0)
+                binnedKDE = true;
+
+            if (arguments.hasOption(THREADS)) {
+                threadCount = arguments.getIntegerOption(THREADS);
+                if (threadCount < 1) {
+                    threadCount = 1;
+                }
+            }
+
 
 
         } catch (Arguments.ArgumentException e) {
@@ -3011,7 +3122,8 @@ public class TimeSlicer {
 
         TimeSlicer timeSlicer = new TimeSlicer(inputFileName, burnin, skipEvery, traitNames, sliceHeights, impute,
                 trueNoise, mrsd, contourMode, sliceMode,summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress,
-                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString);
+                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString,
+                binnedKDE, threadCount);
         timeSlicer.output(outputFileName, summaryOnly, summarizeRoot, summarizeTips, contours, points, outputFormat, hpdValues, outputFileSDR, outputFileSNR);
 
         System.exit(0);
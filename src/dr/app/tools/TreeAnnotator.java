@@ -30,12 +30,14 @@ import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
+import dr.evolution.io.NexusTreeStream;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.*;
 import dr.evolution.util.TaxonList;
 import dr.geo.contouring.ContourMaker;
 import dr.geo.contouring.ContourPath;
 import dr.geo.contouring.ContourWithSynder;
+import dr.inference.trace.QuantileSketch;
 import dr.stats.DiscreteStatistics;
 import dr.util.HeapSort;
 import dr.util.Version;
@@ -50,6 +52,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Alexei Drummond
@@ -116,6 +119,9 @@ public class TreeAnnotator {
      * @param targetTreeFileName
      * @param inputFileName
      * @param outputFileName
+     * @param threadCount the number of threads used to count clades and score trees
+     * @param sketchCapacity if greater than zero then continuous attributes are summarized by quantile sketches
+     *                       of this size (bounded memory but approximate medians and HPDs)
      * @throws IOException
      */
     public TreeAnnotator(final int burninTrees,
@@ -126,16 +132,20 @@ public class TreeAnnotator {
                          Target targetOption,
                          String targetTreeFileName,
                          String inputFileName,
-                         String outputFileName
+                         String outputFileName,
+                         int threadCount,
+                         int sketchCapacity
     ) throws IOException {
 
         this.posteriorLimit = posteriorLimit;
         this.hpd2D = hpd2D;
+        this.threadCount = Math.max(threadCount, 1);
+        this.sketchCapacity = sketchCapacity;
 
         attributeNames.add("height");
         attributeNames.add("length");
 
-        CladeSystem cladeSystem = new CladeSystem();
+        final CladeHashCounter cladeCounter = new CladeHashCounter();
 
         int burnin = -1;
 
@@ -150,51 +160,32 @@ public class TreeAnnotator {
         if (stepSize < 1) stepSize = 1;
 
         if (targetOption != Target.USER_TARGET_TREE) {
-            cladeSystem = new CladeSystem();
-            FileReader fileReader = new FileReader(inputFileName);
-            TreeImporter importer = new NexusImporter(fileReader, true);
-            try {
-                totalTrees = 0;
-                while (importer.hasTree()) {
-                    Tree tree = importer.importNextTree();
-
-                    long state = Long.MAX_VALUE;
+            final int[] firstTreeUsed = {Integer.MAX_VALUE};
+            final int[] treesUsed = {0};
 
-                    if (burninStates > 0) {
-                        // if burnin has been specified in states, try to parse it out...
-                        String name = tree.getId().trim();
-
-                        if (name != null && name.length() > 0 && name.startsWith("STATE_")) {
-                            state = Long.parseLong(name.split("_")[1]);
+            // the reader only passes on trees past both of the burnin thresholds
+            TreeReader reader = new TreeReader(inputFileName, true, burninTrees, burninStates, stepSize);
+            try {
+                processTrees(reader, this.threadCount, new TreeWorker() {
+                    public void process(Tree tree, int index) {
+                        cladeCounter.add(tree);
+
+                        synchronized (treesUsed) {
+                            // record the number of trees the burnin represents for future use...
+                            firstTreeUsed[0] = Math.min(firstTreeUsed[0], index);
+                            treesUsed[0] += 1;
                         }
                     }
-
-                    if (totalTrees >= burninTrees && state >= burninStates) {
-                        // if either of the two burnin thresholds have been reached...
-
-                        if (burnin < 0) {
-                            // if this is the first time this point has been reached,
-                            // record the number of trees this represents for future use...
-                            burnin = totalTrees;
-                        }
-
-                        cladeSystem.add(tree, false);
-
-                        totalTreesUsed += 1;
-                    }
-
-                    if (totalTrees > 0 && totalTrees % stepSize == 0) {
-                        progressStream.print("*");
-                        progressStream.flush();
-                    }
-                    totalTrees++;
-                }
-
+                });
             } catch (Importer.ImportException e) {
                 System.err.println("Error Parsing Input Tree: " + e.getMessage());
                 return;
             }
-            fileReader.close();
+            totalTrees = reader.getTreeCount();
+            totalTreesUsed = treesUsed[0];
+            if (treesUsed[0] > 0) {
+                burnin = firstTreeUsed[0];
+            }
             progressStream.println();
             progressStream.println();
 
@@ -208,7 +199,6 @@ public class TreeAnnotator {
                     return;
                 }
             }
-            cladeSystem.calculateCladeCredibilities(totalTreesUsed);
 
             progressStream.println("Total trees read: " + totalTrees);
             if (burninTrees > 0) {
@@ -218,7 +208,7 @@ public class TreeAnnotator {
                 progressStream.println("Ignoring first " + burninStates + " states (" + burnin + " trees).");
             }
 
-            progressStream.println("Total unique clades: " + cladeSystem.getCladeMap().keySet().size());
+            progressStream.println("Total unique clades: " + cladeCounter.getCladeCount());
             progressStream.println();
         }
 
@@ -253,7 +243,7 @@ public class TreeAnnotator {
             }
             case MAX_CLADE_CREDIBILITY: {
                 progressStream.println("Finding maximum credibility tree...");
-                targetTree = new FlexibleTree(summarizeTrees(burnin, cladeSystem, inputFileName /*, false*/));
+                targetTree = new FlexibleTree(summarizeTrees(burnin, cladeCounter, inputFileName /*, false*/));
                 break;
             }
 //            case MAX_SUM_CLADE_CREDIBILITY: {
@@ -271,35 +261,24 @@ public class TreeAnnotator {
         stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        FileReader fileReader = new FileReader(inputFileName);
-        NexusImporter importer = new NexusImporter(fileReader);
-
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
-        cladeSystem = new CladeSystem(targetTree);
+        final CladeSystem cladeSystem = new CladeSystem(targetTree);
         totalTreesUsed = 0;
         try {
-            boolean firstTree = true;
-            int counter = 0;
-            while (importer.hasTree()) {
-                Tree tree = importer.importNextTree();
-
-                if (counter >= burnin) {
-                    if (firstTree) {
+            final int firstTree = burnin;
+            // the attributes are collected in the order of the trees (on this thread) so the
+            // summaries are the same however many threads are used elsewhere
+            processTrees(new TreeReader(inputFileName, false, firstTree, 0, stepSize), 1, new TreeWorker() {
+                public void process(Tree tree, int index) {
+                    if (totalTreesUsed == 0) {
                         setupAttributes(tree);
-                        firstTree = false;
                     }
 
                     cladeSystem.collectAttributes(tree);
                     totalTreesUsed += 1;
                 }
-                if (counter > 0 && counter % stepSize == 0) {
-                    progressStream.print("*");
-                    progressStream.flush();
-                }
-                counter++;
-
-            }
+            });
             cladeSystem.removeClades(targetTree, targetTree.getRoot(), true);
             //progressStream.println("totalTreesUsed=" + totalTreesUsed);
             cladeSystem.calculateCladeCredibilities(totalTreesUsed);
@@ -309,7 +288,6 @@ public class TreeAnnotator {
         }
         progressStream.println();
         progressStream.println();
-        fileReader.close();
 
         progressStream.println("Annotating target tree...");
 
@@ -357,11 +335,12 @@ public class TreeAnnotator {
         }
     }
 
-    private Tree summarizeTrees(int burnin, CladeSystem cladeSystem, String inputFileName /*, boolean useSumCladeCredibility */)
+    private Tree summarizeTrees(final int burnin, final CladeHashCounter cladeCounter, String inputFileName /*, boolean useSumCladeCredibility */)
             throws IOException {
 
-        Tree bestTree = null;
-        double bestScore = Double.NEGATIVE_INFINITY;
+        final Tree[] bestTree = {null};
+        final double[] bestScore = {Double.NEGATIVE_INFINITY};
+        final int[] bestTreeNumber = {0};
 
         progressStream.println("Analyzing " + totalTreesUsed + " trees...");
         progressStream.println("0              25             50             75            100");
@@ -370,66 +349,262 @@ public class TreeAnnotator {
         int stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        int counter = 0;
-        int bestTreeNumber = 0;
-        TreeImporter importer = new NexusImporter(new FileReader(inputFileName), true);
         try {
-            while (importer.hasTree()) {
-                Tree tree = importer.importNextTree();
-
-                if (counter >= burnin) {
-                    double score = scoreTree(tree, cladeSystem /*, useSumCladeCredibility*/);
+            processTrees(new TreeReader(inputFileName, true, burnin, 0, stepSize), threadCount, new TreeWorker() {
+                public void process(Tree tree, int index) {
+                    double score = scoreTree(tree, cladeCounter /*, useSumCladeCredibility*/);
 //                    progressStream.println(score);
-                    if (score > bestScore) {
-                        bestTree = tree;
-                        bestScore = score;
-                        bestTreeNumber = counter + 1;
+                    synchronized (bestTree) {
+                        // of equally good trees keep the first in the file, whatever order they are scored in
+                        if (score > bestScore[0] ||
+                                (score == bestScore[0] && bestTree[0] != null && index + 1 < bestTreeNumber[0])) {
+                            bestTree[0] = tree;
+                            bestScore[0] = score;
+                            bestTreeNumber[0] = index + 1;
+                        }
                     }
                 }
-                if (counter > 0 && counter % stepSize == 0) {
-                    progressStream.print("*");
-                    progressStream.flush();
-                }
-                counter++;
-            }
+            });
         } catch (Importer.ImportException e) {
             System.err.println("Error Parsing Input Tree: " + e.getMessage());
             return null;
         }
         progressStream.println();
         progressStream.println();
-        progressStream.println("Best tree: " + bestTree.getId() + " (tree number " + bestTreeNumber + ")");
+        progressStream.println("Best tree: " + bestTree[0].getId() + " (tree number " + bestTreeNumber[0] + ")");
 //        if (useSumCladeCredibility) {
 //            progressStream.println("Highest Sum Clade Credibility: " + bestScore);
 //        } else {
-            progressStream.println("Highest Log Clade Credibility: " + bestScore);
+            progressStream.println("Highest Log Clade Credibility: " + bestScore[0]);
 //        }
 
-        return bestTree;
+        return bestTree[0];
     }
 
-    private double scoreTree(Tree tree, CladeSystem cladeSystem /*, boolean useSumCladeCredibility*/) {
+    private double scoreTree(Tree tree, CladeHashCounter cladeCounter /*, boolean useSumCladeCredibility*/) {
 //        if (useSumCladeCredibility) {
 //            return cladeSystem.getSumCladeCredibility(tree, tree.getRoot(), null);
 //        } else {
-            return cladeSystem.getLogCladeCredibility(tree, tree.getRoot(), null);
+            return cladeCounter.getLogCladeCredibility(tree, totalTreesUsed);
 //        }
     }
 
-    private class CladeSystem {
-        //
-        // Public stuff
-        //
+    /**
+     * Something done to each tree read by a TreeReader.
+     */
+    private interface TreeWorker {
+        /**
+         * @param tree  the tree
+         * @param index the position of the tree in the file (starting at 0)
+         */
+        void process(Tree tree, int index);
+    }
+
+    /**
+     * Pass each tree from the reader to the worker. With more than one thread the trees are shared
+     * between the threads in no particular order, otherwise they are processed in order on this thread.
+     */
+    private static void processTrees(final TreeReader reader, int threadCount, final TreeWorker worker)
+            throws IOException, Importer.ImportException {
+
+        reader.start();
+        try {
+            if (threadCount <= 1) {
+                TreeReader.IndexedTree next;
+                while ((next = reader.next()) != null) {
+                    worker.process(next.tree, next.index);
+                }
+                return;
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TreeAnnotator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int i = 0; i < threadCount; i++) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        TreeReader.IndexedTree next;
+                        while ((next = reader.next()) != null) {
+                            worker.process(next.tree, next.index);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            try {
+                for (Future<Object> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Importer.ImportException) {
+                    throw (Importer.ImportException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Imports the trees from a file on its own thread so that parsing the next trees overlaps with
+     * the work being done on the earlier ones. Only a few trees are held in the queue at a time.
+     * The progress bar is drawn as the trees are read.
+     */
+    private static class TreeReader implements Runnable {
+
+        private static final int QUEUE_SIZE = 64;
+
+        private final IndexedTree END = new IndexedTree(null, -1);
+
+        TreeReader(String inputFileName, boolean ignoreMetaComments, int burninTrees, long burninStates,
+                   long stepSize) throws IOException {
+            this.fileReader = new FileReader(inputFileName);
+            this.importer = new NexusTreeStream(fileReader, ignoreMetaComments);
+            // the trees in the burnin are skipped without being parsed
+            this.importer.setBurnin(burninTrees, burninStates);
+            this.stepSize = stepSize;
+        }
+
+        void start() {
+            thread = new Thread(this, "TreeReader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            try {
+                try {
+                    long nextStep = stepSize;
+                    while (importer.hasTree()) {
+                        Tree tree = importer.importNextTree();
+                        int index = importer.getLastTreeIndex();
+                        queue.put(new IndexedTree(tree, index));
+
+                        while (index >= nextStep) {
+                            progressStream.print("*");
+                            progressStream.flush();
+                            nextStep += stepSize;
+                        }
+                    }
+                    treeCount = importer.getTreeCount();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    error = e;
+                } finally {
+                    try {
+                        importer.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // closed before all the trees were read
+            }
+        }
 
         /**
+         * @return the next tree or null if there are no more
          */
-        public CladeSystem() {
+        IndexedTree next() throws IOException, Importer.ImportException {
+            IndexedTree next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (next == END) {
+                // put it back for any other threads taking trees (there is room as the reader has finished)
+                queue.add(END);
+
+                if (error instanceof Importer.ImportException) {
+                    throw (Importer.ImportException) error;
+                } else if (error instanceof IOException) {
+                    throw (IOException) error;
+                } else if (error != null) {
+                    throw new RuntimeException(error);
+                }
+                return null;
+            }
+            return next;
         }
 
+        /**
+         * @return the number of trees read (once all have been read)
+         */
+        int getTreeCount() {
+            return treeCount;
+        }
+
+        void close() {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        static class IndexedTree {
+            IndexedTree(Tree tree, int index) {
+                this.tree = tree;
+                this.index = index;
+            }
+
+            final Tree tree;
+            final int index;
+        }
+
+        private final FileReader fileReader;
+        private final NexusTreeStream importer;
+        private final long stepSize;
+        private final BlockingQueue<IndexedTree> queue = new ArrayBlockingQueue<IndexedTree>(QUEUE_SIZE);
+        private Thread thread = null;
+        private volatile int treeCount = 0;
+        private volatile Exception error = null;
+    }
+
+    private class CladeSystem {
+        //
+        // Public stuff
+        //
+
         /**
          */
         public CladeSystem(Tree targetTree) {
             this.targetTree = targetTree;
+
+            taxonList = targetTree;
+            for (int i = 0; i < taxonList.getTaxonCount(); i++) {
+                String id = taxonList.getTaxonId(i);
+                if (!taxonIndices.containsKey(id)) {
+                    taxonIndices.put(id, i);
+                }
+            }
+
             add(targetTree, true);
         }
 
@@ -437,10 +612,6 @@ public class TreeAnnotator {
          * adds all the clades in the tree
          */
         public void add(Tree tree, boolean includeTips) {
-            if (taxonList == null) {
-                taxonList = tree;
-            }
-
             // Recurse over the tree and add all the clades (or increment their
             // frequency if already present). The root clade is added too (for
             // annotation purposes).
@@ -457,7 +628,7 @@ public class TreeAnnotator {
 
             if (tree.isExternal(node)) {
 
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 bits.set(index);
 
                 if (includeTips) {
@@ -498,7 +669,7 @@ public class TreeAnnotator {
 
             if (tree.isExternal(node)) {
 
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 if (index < 0) {
                     throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", not found in target tree");
                 }
@@ -524,53 +695,41 @@ public class TreeAnnotator {
             if (clade != null) {
 
                 if (clade.attributeValues == null) {
-                    clade.attributeValues = new ArrayList<Object[]>();
+                    clade.attributeValues = new AttributeValues[attributeNames.size()];
                 }
 
                 int i = 0;
-                Object[] values = new Object[attributeNames.size()];
                 for (String attributeName : attributeNames) {
-                    boolean processed = false;
-
-                    if (!processed) {
-                        Object value;
-                        if (attributeName.equals("height")) {
-                            value = tree.getNodeHeight(node);
-                        } else if (attributeName.equals("length")) {
-                            value = tree.getBranchLength(node);
-// AR - we deal with this once everything                             
-//                        } else if (attributeName.equals(location1Attribute)) {
-//                            // If this is one of the two specified bivariate location names then
-//                            // merge this and the other one into a single array.
-//                            Object value1 = tree.getNodeAttribute(node, attributeName);
-//                            Object value2 = tree.getNodeAttribute(node, location2Attribute);
-//
-//                            value = new Object[]{value1, value2};
-//                        } else if (attributeName.equals(location2Attribute)) {
-//                            // do nothing - already dealt with this...
-//                            value = null;
-                        } else {
-                            value = tree.getNodeAttribute(node, attributeName);
-                            if (value instanceof String && ((String) value).startsWith("\"")) {
-                                value = ((String) value).replaceAll("\"", "");
-                            }
+                    Object value;
+                    if (attributeName.equals("height")) {
+                        value = tree.getNodeHeight(node);
+                    } else if (attributeName.equals("length")) {
+                        value = tree.getBranchLength(node);
+                    } else {
+                        value = tree.getNodeAttribute(node, attributeName);
+                        if (value instanceof String && ((String) value).startsWith("\"")) {
+                            value = ((String) value).replaceAll("\"", "");
                         }
+                    }
 
-                        //if (value == null) {
-                        //    progressStream.println("attribute " + attributeNames[i] + " is null.");
-                        //}
-
-                        values[i] = value;
+                    if (clade.attributeValues[i] == null) {
+                        // the first value decides how the attribute is summarized
+                        clade.attributeValues[i] = new AttributeValues(value, sketchCapacity);
                     }
+                    clade.attributeValues[i].add(value);
                     i++;
                 }
-                clade.attributeValues.add(values);
 
                 //progressStream.println(clade + " " + clade.getValuesSize());
                 clade.setCount(clade.getCount() + 1);
             }
         }
 
+        private int getTaxonIndex(Tree tree, NodeRef node) {
+            Integer index = taxonIndices.get(tree.getNodeTaxon(node).getId());
+            return (index != null ? index : -1);
+        }
+
         public Map getCladeMap() {
             return cladeMap;
         }
@@ -616,49 +775,13 @@ public class TreeAnnotator {
 //            return sum;
 //        }
 
-        public double getLogCladeCredibility(Tree tree, NodeRef node, BitSet bits) {
-
-            double logCladeCredibility = 0.0;
-
-            if (tree.isExternal(node)) {
-
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits.set(index);
-            } else {
-
-                BitSet bits2 = new BitSet();
-                for (int i = 0; i < tree.getChildCount(node); i++) {
-
-                    NodeRef node1 = tree.getChild(node, i);
-
-                    logCladeCredibility += getLogCladeCredibility(tree, node1, bits2);
-                }
-
-                logCladeCredibility += Math.log(getCladeCredibility(bits2));
-
-                if (bits != null) {
-                    bits.or(bits2);
-                }
-            }
-
-            return logCladeCredibility;
-        }
-
-        private double getCladeCredibility(BitSet bits) {
-            Clade clade = cladeMap.get(bits);
-            if (clade == null) {
-                return 0.0;
-            }
-            return clade.getCredibility();
-        }
-
         public void annotateTree(MutableTree tree, NodeRef node, BitSet bits, HeightsSummary heightsOption) {
 
             BitSet bits2 = new BitSet();
 
             if (tree.isExternal(node)) {
 
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 bits2.set(index);
 
                 annotateNode(tree, node, bits2, true, heightsOption);
@@ -695,36 +818,21 @@ public class TreeAnnotator {
             int i = 0;
             for (String attributeName : attributeNames) {
 
-                if (clade.attributeValues != null && clade.attributeValues.size() > 0) {
-                    double[] values = new double[clade.attributeValues.size()];
-
-                    HashMap<Object, Integer> hashMap = new HashMap<Object, Integer>();
-
-                    Object[] v = clade.attributeValues.get(0);
-                    if (v[i] != null) {
+                AttributeValues attributeValues = (clade.attributeValues != null ? clade.attributeValues[i] : null);
+                if (attributeValues != null) {
+                    if (!attributeValues.isMissing()) {
 
                         final boolean isHeight = attributeName.equals("height");
-                        boolean isBoolean = v[i] instanceof Boolean;
+                        final boolean isBoolean = attributeValues.isBoolean();
+                        final boolean isDiscrete = attributeValues.isDiscrete();
+                        final boolean isDoubleArray = attributeValues.isDoubleArray();
 
-                        boolean isDiscrete = v[i] instanceof String;
+                        // null if the values were summarized by a sketch
+                        final double[] values = attributeValues.getValues();
+                        final HashMap<Object, Integer> hashMap = attributeValues.getCounts();
 
-                        if (forceIntegerToDiscrete && v[i] instanceof Integer) isDiscrete = true;
-
-                        double minValue = Double.MAX_VALUE;
-                        double maxValue = -Double.MAX_VALUE;
-
-                        final boolean isArray = v[i] instanceof Object[];
-                        boolean isDoubleArray = isArray && ((Object[]) v[i])[0] instanceof Double;
-                        // This is Java, friends - first value type does not imply all.
-                        if (isDoubleArray) {
-                            for (Object n : (Object[]) v[i]) {
-                                if (!(n instanceof Double)) {
-                                    isDoubleArray = false;
-                                    break;
-                                }
-                            }
-                        }
-                        // todo Handle other types of arrays
+                        final double minValue = attributeValues.getMinimum();
+                        final double maxValue = attributeValues.getMaximum();
 
                         double[][] valuesArray = null;
                         double[] minValueArray = null;
@@ -732,52 +840,18 @@ public class TreeAnnotator {
                         int lenArray = 0;
 
                         if (isDoubleArray) {
-                            lenArray = ((Object[]) v[i]).length;
-
-                            valuesArray = new double[lenArray][clade.attributeValues.size()];
-                            minValueArray = new double[lenArray];
-                            maxValueArray = new double[lenArray];
-
-                            for (int k = 0; k < lenArray; k++) {
-                                minValueArray[k] = Double.MAX_VALUE;
-                                maxValueArray[k] = -Double.MAX_VALUE;
-                            }
+                            lenArray = attributeValues.getArrayLength();
+                            valuesArray = attributeValues.getArrayValues();
+                            minValueArray = attributeValues.getArrayMinimum();
+                            maxValueArray = attributeValues.getArrayMaximum();
                         }
 
-                        for (int j = 0; j < clade.attributeValues.size(); j++) {
-                            Object value = clade.attributeValues.get(j)[i];
-                            if (isDiscrete) {
-                                final Object s = value;
-                                if (hashMap.containsKey(s)) {
-                                    hashMap.put(s, hashMap.get(s) + 1);
-                                } else {
-                                    hashMap.put(s, 1);
-                                }
-                            } else if (isBoolean) {
-                                values[j] = (((Boolean) value) ? 1.0 : 0.0);
-                            } else if (isDoubleArray) {
-                                // Forcing to Double[] causes a cast exception. MAS
-                                Object[] array = (Object[]) value;
-                                for (int k = 0; k < lenArray; k++) {
-                                    valuesArray[k][j] = ((Double) array[k]);
-                                    if (valuesArray[k][j] < minValueArray[k]) minValueArray[k] = valuesArray[k][j];
-                                    if (valuesArray[k][j] > maxValueArray[k]) maxValueArray[k] = valuesArray[k][j];
-                                }
-                            } else {
-                                // Ignore other (unknown) types
-                                if (value instanceof Number) {
-                                    values[j] = ((Number) value).doubleValue();
-                                    if (values[j] < minValue) minValue = values[j];
-                                    if (values[j] > maxValue) maxValue = values[j];
-                                }
-                            }
-                        }
                         if (isHeight) {
                             if (heightsOption == HeightsSummary.MEAN_HEIGHTS) {
-                                final double mean = DiscreteStatistics.mean(values);
+                                final double mean = (values != null ? DiscreteStatistics.mean(values) : attributeValues.getMean());
                                 tree.setNodeHeight(node, mean);
                             } else if (heightsOption == HeightsSummary.MEDIAN_HEIGHTS) {
-                                final double median = DiscreteStatistics.median(values);
+                                final double median = (values != null ? DiscreteStatistics.median(values) : attributeValues.getQuantile(0.5));
                                 tree.setNodeHeight(node, median);
                             } else {
                                 // keep the existing height
@@ -786,17 +860,23 @@ public class TreeAnnotator {
 
                         if (!filter) {
                             boolean processed = false;
-                            for (TreeAnnotationPlugin plugin : plugins) {
-                                if (plugin.handleAttribute(tree, node, attributeName, values)) {
-                                    processed = true;
+                            if (values != null) {
+                                for (TreeAnnotationPlugin plugin : plugins) {
+                                    if (plugin.handleAttribute(tree, node, attributeName, values)) {
+                                        processed = true;
+                                    }
                                 }
                             }
 
                             if (!processed) {
                                 if (!isDiscrete) {
-                                    if (!isDoubleArray)
-                                        annotateMeanAttribute(tree, node, attributeName, values);
-                                    else {
+                                    if (!isDoubleArray) {
+                                        if (values != null) {
+                                            annotateMeanAttribute(tree, node, attributeName, values);
+                                        } else {
+                                            tree.setNodeAttribute(node, attributeName, attributeValues.getMean());
+                                        }
+                                    } else {
                                         for (int k = 0; k < lenArray; k++) {
                                             annotateMeanAttribute(tree, node, attributeName + (k + 1), valuesArray[k]);
                                         }
@@ -808,9 +888,16 @@ public class TreeAnnotator {
                                 if (!isBoolean && minValue < maxValue && !isDiscrete && !isDoubleArray) {
                                     // Basically, if it is a boolean (0, 1) then we don't need the distribution information
                                     // Likewise if it doesn't vary.
-                                    annotateMedianAttribute(tree, node, attributeName + "_median", values);
-                                    annotateHPDAttribute(tree, node, attributeName + "_95%_HPD", 0.95, values);
-                                    annotateRangeAttribute(tree, node, attributeName + "_range", values);
+                                    if (values != null) {
+                                        annotateMedianAttribute(tree, node, attributeName + "_median", values);
+                                        annotateHPDAttribute(tree, node, attributeName + "_95%_HPD", 0.95, values);
+                                        annotateRangeAttribute(tree, node, attributeName + "_range", values);
+                                    } else {
+                                        tree.setNodeAttribute(node, attributeName + "_median", attributeValues.getQuantile(0.5));
+                                        double[] hpd = attributeValues.getHPDInterval(0.95);
+                                        tree.setNodeAttribute(node, attributeName + "_95%_HPD", new Object[]{hpd[0], hpd[1]});
+                                        tree.setNodeAttribute(node, attributeName + "_range", new Object[]{minValue, maxValue});
+                                    }
                                 }
 
                                 if (isDoubleArray) {
@@ -1102,7 +1189,7 @@ public class TreeAnnotator {
 
             if (tree.isExternal(node)) {
 
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 bits.set(index);
 
                 if (includeTips) {
@@ -1143,7 +1230,7 @@ public class TreeAnnotator {
             final int inode = node.getNumber();
             codes[inode].clear();
             if (tree.isExternal(node)) {
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 codes[inode].set(index);
             } else {
                 for (int i = 0; i < tree.getChildCount(node); i++) {
@@ -1200,20 +1287,233 @@ public class TreeAnnotator {
             int count;
             double credibility;
             BitSet bits;
-            List<Object[]> attributeValues = null;
+            AttributeValues[] attributeValues = null;
         }
 
         //
         // Private stuff
         //
         TaxonList taxonList = null;
+        // TaxonList.getTaxonIndex is a linear search which is too slow for large trees
+        Map<String, Integer> taxonIndices = new HashMap<String, Integer>();
         Map<BitSet, Clade> cladeMap = new HashMap<BitSet, Clade>();
 
         Tree targetTree;
     }
 
+    /**
+     * The values of one attribute for the nodes of one clade. Rather than keeping the boxed values
+     * from every tree, discrete values are counted as they are added and continuous values are kept
+     * in primitive arrays or, if a sketch capacity is given, summarized by their sum, range and a
+     * QuantileSketch so the memory used doesn't grow with the number of trees. As before, the kind
+     * of attribute is decided by the first value.
+     */
+    private static class AttributeValues {
+
+        private static final int MISSING = 0;
+        private static final int DISCRETE = 1;
+        private static final int BOOLEAN = 2;
+        private static final int DOUBLE_ARRAY = 3;
+        private static final int CONTINUOUS = 4;
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        AttributeValues(Object first, int sketchCapacity) {
+            if (first == null) {
+                type = MISSING;
+            } else if (first instanceof String || (forceIntegerToDiscrete && first instanceof Integer)) {
+                type = DISCRETE;
+                counts = new HashMap<Object, Integer>();
+            } else if (first instanceof Boolean) {
+                type = BOOLEAN;
+                values = new double[INITIAL_CAPACITY];
+            } else if (isDoubleArray(first)) {
+                type = DOUBLE_ARRAY;
+                arrayLength = ((Object[]) first).length;
+                arrayValues = new double[arrayLength][INITIAL_CAPACITY];
+                arrayMinimum = new double[arrayLength];
+                arrayMaximum = new double[arrayLength];
+                Arrays.fill(arrayMinimum, Double.MAX_VALUE);
+                Arrays.fill(arrayMaximum, -Double.MAX_VALUE);
+            } else {
+                type = CONTINUOUS;
+                if (sketchCapacity > 0) {
+                    sketch = new QuantileSketch(sketchCapacity);
+                } else {
+                    values = new double[INITIAL_CAPACITY];
+                }
+            }
+        }
+
+        private static boolean isDoubleArray(Object value) {
+            // This is Java, friends - first value type does not imply all.
+            if (!(value instanceof Object[]) || ((Object[]) value).length == 0) {
+                return false;
+            }
+            for (Object n : (Object[]) value) {
+                if (!(n instanceof Double)) {
+                    return false;
+                }
+            }
+            return true;
+            // todo Handle other types of arrays
+        }
+
+        void add(Object value) {
+            switch (type) {
+                case MISSING:
+                    return;
+                case DISCRETE:
+                    if (counts.containsKey(value)) {
+                        counts.put(value, counts.get(value) + 1);
+                    } else {
+                        counts.put(value, 1);
+                    }
+                    break;
+                case BOOLEAN:
+                    append(((Boolean) value) ? 1.0 : 0.0);
+                    break;
+                case DOUBLE_ARRAY:
+                    // Forcing to Double[] causes a cast exception. MAS
+                    Object[] array = (Object[]) value;
+                    if (count == arrayValues[0].length) {
+                        for (int k = 0; k < arrayLength; k++) {
+                            arrayValues[k] = Arrays.copyOf(arrayValues[k], count * 2);
+                        }
+                    }
+                    for (int k = 0; k < arrayLength; k++) {
+                        double x = (Double) array[k];
+                        arrayValues[k][count] = x;
+                        if (x < arrayMinimum[k]) arrayMinimum[k] = x;
+                        if (x > arrayMaximum[k]) arrayMaximum[k] = x;
+                    }
+                    break;
+                case CONTINUOUS:
+                    double x = 0.0;
+                    // Ignore other (unknown) types
+                    if (value instanceof Number) {
+                        x = ((Number) value).doubleValue();
+                        if (x < minimum) minimum = x;
+                        if (x > maximum) maximum = x;
+                    }
+                    if (sketch != null) {
+                        // accumulated in the same order as DiscreteStatistics.mean
+                        if (!Double.isNaN(x)) {
+                            sum += x;
+                            sumCount++;
+                        }
+                        sketch.add(x);
+                    } else {
+                        append(x);
+                    }
+                    break;
+            }
+            count++;
+        }
+
+        private void append(double x) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count] = x;
+        }
+
+        boolean isMissing() {
+            return type == MISSING;
+        }
+
+        boolean isDiscrete() {
+            return type == DISCRETE;
+        }
+
+        boolean isBoolean() {
+            return type == BOOLEAN;
+        }
+
+        boolean isDoubleArray() {
+            return type == DOUBLE_ARRAY;
+        }
+
+        /**
+         * @return a value for each tree (zero for discrete values) or null if they were summarized by a sketch
+         */
+        double[] getValues() {
+            if (type == DISCRETE) {
+                return new double[count];
+            }
+            if (values == null) {
+                return null;
+            }
+            return Arrays.copyOf(values, count);
+        }
+
+        HashMap<Object, Integer> getCounts() {
+            return (counts != null ? counts : new HashMap<Object, Integer>());
+        }
+
+        double getMinimum() {
+            return minimum;
+        }
+
+        double getMaximum() {
+            return maximum;
+        }
+
+        double getMean() {
+            return sum / (double) sumCount;
+        }
+
+        double getQuantile(double q) {
+            return sketch.getQuantile(q);
+        }
+
+        double[] getHPDInterval(double proportion) {
+            return sketch.getHPDInterval(proportion);
+        }
+
+        int getArrayLength() {
+            return arrayLength;
+        }
+
+        double[][] getArrayValues() {
+            double[][] copy = new double[arrayLength][];
+            for (int k = 0; k < arrayLength; k++) {
+                copy[k] = Arrays.copyOf(arrayValues[k], count);
+            }
+            return copy;
+        }
+
+        double[] getArrayMinimum() {
+            return arrayMinimum;
+        }
+
+        double[] getArrayMaximum() {
+            return arrayMaximum;
+        }
+
+        private final int type;
+        private int count = 0;
+
+        private HashMap<Object, Integer> counts = null;
+
+        private double[] values = null;
+        private double minimum = Double.MAX_VALUE;
+        private double maximum = -Double.MAX_VALUE;
+
+        private QuantileSketch sketch = null;
+        private double sum = 0.0;
+        private int sumCount = 0;
+
+        private int arrayLength = 0;
+        private double[][] arrayValues = null;
+        private double[] arrayMinimum = null;
+        private double[] arrayMaximum = null;
+    }
+
     int totalTrees = 0;
     int totalTreesUsed = 0;
+    int threadCount = 1;
+    int sketchCapacity = 0;
     double posteriorLimit = 0.0;
 //PL:    double hpd2D = 0.80;
     double[] hpd2D = {0.80};
@@ -1276,6 +1576,7 @@ public class TreeAnnotator {
         progressStream.println("  Example: treeannotator test.trees out.txt");
         progressStream.println("  Example: treeannotator -burnin 100 -heights mean test.trees out.txt");
         progressStream.println("  Example: treeannotator -burnin 100 -target map.tree test.trees out.txt");
+        progressStream.println("  Example: treeannotator -burnin 100 -threads 8 -sketch 200 test.trees out.txt");
         progressStream.println();
     }
 
@@ -1386,7 +1687,9 @@ public class TreeAnnotator {
                         targetOption,
                         targetTreeFileName,
                         inputFileName,
-                        outputFileName);
+                        outputFileName,
+                        Runtime.getRuntime().availableProcessors(),
+                        0);
 
             } catch (Exception ex) {
                 System.err.println("Exception: " + ex.getMessage());
@@ -1415,7 +1718,9 @@ public class TreeAnnotator {
                         new Arguments.StringOption("target", "target_file_name", "specifies a user target tree to be annotated"),
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
-                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)")
+                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)"),
+                        new Arguments.IntegerOption("threads", "the number of threads used to count clades and score trees [default: number of processors]"),
+                        new Arguments.IntegerOption("sketch", "summarize continuous traits with quantile sketches of this size (bounded memory, approximate medians and HPDs)")
                 });
 
         try {
@@ -1473,6 +1778,16 @@ public class TreeAnnotator {
             }
         }
 
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (arguments.hasOption("threads")) {
+            threadCount = arguments.getIntegerOption("threads");
+        }
+
+        int sketchCapacity = 0;
+        if (arguments.hasOption("sketch")) {
+            sketchCapacity = arguments.getIntegerOption("sketch");
+        }
+
         Target target = Target.MAX_CLADE_CREDIBILITY;
         if (arguments.hasOption("target")) {
             target = Target.USER_TARGET_TREE;
@@ -1496,7 +1811,8 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName, inputFileName, outputFileName);
+        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName,
+                inputFileName, outputFileName, threadCount, sketchCapacity);
 
         System.exit(0);
     }
@@ -1530,7 +1846,8 @@ public class TreeAnnotator {
         if (reportStepSize < 1) reportStepSize = 1;
 
         final FileReader fileReader = new FileReader(inputFileName);
-        final NexusImporter importer = new NexusImporter(fileReader, true);
+        final NexusTreeStream importer = new NexusTreeStream(fileReader, true);
+        importer.setBurnin(burnin, 0);
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -1557,32 +1874,30 @@ public class TreeAnnotator {
 
         totalTreesUsed = 0;
 
-        int counter = 0;
+        int nextStep = reportStepSize;
         while (importer.hasTree()) {
             final Tree tree = importer.importNextTree();
 
-            if (counter >= burnin) {
-                TreeUtils.preOrderTraversalList(tree, postOrderList);
-                cladeSystem.getTreeCladeCodes(tree, ctree);
-                for (int k = 0; k < nClades; ++k) {
-                    int j = postOrderList[k];
-                    for (int i = 0; i < nClades; ++i) {
-                        if( isSubSet(ctarget[i], ctree[j]) ) {
-                            hs[i] = tree.getNodeHeight(tree.getNode(j));
-                        }
+            TreeUtils.preOrderTraversalList(tree, postOrderList);
+            cladeSystem.getTreeCladeCodes(tree, ctree);
+            for (int k = 0; k < nClades; ++k) {
+                int j = postOrderList[k];
+                for (int i = 0; i < nClades; ++i) {
+                    if( isSubSet(ctarget[i], ctree[j]) ) {
+                        hs[i] = tree.getNodeHeight(tree.getNode(j));
                     }
                 }
-                for (int k = 0; k < nClades; ++k) {
-                    ths[k] += hs[k];
-                }
-                totalTreesUsed += 1;
             }
-            if (counter > 0 && counter % reportStepSize == 0) {
+            for (int k = 0; k < nClades; ++k) {
+                ths[k] += hs[k];
+            }
+            totalTreesUsed += 1;
+
+            while (importer.getLastTreeIndex() >= nextStep) {
                 progressStream.print("*");
                 progressStream.flush();
+                nextStep += reportStepSize;
             }
-            counter++;
-
         }
         cladeSystem.removeClades(targetTree, targetTree.getRoot(), true);
         for (int k = 0; k < nClades; ++k) {
@@ -1590,7 +1905,7 @@ public class TreeAnnotator {
             final NodeRef node = targetTree.getNode(k);
             targetTree.setNodeHeight(node, ths[k]);
         }
-        fileReader.close();
+        importer.close();
 
         progressStream.println();
         progressStream.println();
@@ -37,6 +37,7 @@ import java.io.*;
 
 import dr.evolution.io.Importer;
 import dr.evolution.io.NexusImporter;
+import dr.evolution.io.NexusTreeStream;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.Tree;
@@ -261,7 +262,7 @@ public class TreeStatFrame extends DocumentFrame {
         final TreeImporter importer;
 
         if (line.toUpperCase().startsWith("#NEXUS")) {
-            importer = new NexusImporter(reader);
+            importer = new NexusTreeStream(reader);
         } else {
             reader.close();
             importer = new NewickImporter(reader);
@@ -0,0 +1,195 @@
+/*
+ * PatternBlock.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.alignment;
+
+import dr.evolution.datatype.DataType;
+import dr.evolution.util.Taxon;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A view of a contiguous block of patterns from another PatternList. Unlike
+ * Patterns(patternList, subSet, subSetCount) no patterns are removed or merged so
+ * pattern i of the block is always pattern (start + i) of the source.
+ *
+ * @version $Id$
+ */
+public class PatternBlock implements PatternList {
+
+    /**
+     * Splits the source patterns into blockCount blocks of (nearly) equal size.
+     * @param patternList the source patterns
+     * @param blockCount the number of blocks
+     * @return the starting pattern of each block with the total pattern count appended
+     */
+    public static int[] getBlockStarts(PatternList patternList, int blockCount) {
+        int patternCount = patternList.getPatternCount();
+        int[] blockStarts = new int[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            blockStarts[i] = (int) (((long) patternCount * i) / blockCount);
+        }
+        return blockStarts;
+    }
+
+    /**
+     * @param patternList the source patterns
+     * @param start the first pattern in the block
+     * @param end one past the last pattern in the block
+     */
+    public PatternBlock(PatternList patternList, int start, int end) {
+        if (start < 0 || end > patternList.getPatternCount() || start >= end) {
+            throw new IllegalArgumentException("Pattern block [" + start + ", " + end + ") is out of range");
+        }
+
+        this.patterns = patternList;
+        this.start = start;
+        this.patternCount = end - start;
+
+        weights = new double[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            weights[i] = patternList.getPatternWeight(start + i);
+        }
+    }
+
+    /**
+     * @return the index in the source patterns of the first pattern in this block
+     */
+    public int getStart() {
+        return start;
+    }
+
+    // **************************************************************
+    // PatternList IMPLEMENTATION
+    // **************************************************************
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    public int getStateCount() {
+        return patterns.getStateCount();
+    }
+
+    public int getPatternLength() {
+        return patterns.getPatternLength();
+    }
+
+    public int[] getPattern(int patternIndex) {
+        return patterns.getPattern(start + patternIndex);
+    }
+
+    public double[][] getUncertainPattern(int patternIndex) {
+        return patterns.getUncertainPattern(start + patternIndex);
+    }
+
+    public int getPatternState(int taxonIndex, int patternIndex) {
+        return patterns.getPatternState(taxonIndex, start + patternIndex);
+    }
+
+    public double[] getUncertainPatternState(int taxonIndex, int patternIndex) {
+        return patterns.getUncertainPatternState(taxonIndex, start + patternIndex);
+    }
+
+    public double getPatternWeight(int patternIndex) {
+        return weights[patternIndex];
+    }
+
+    public double[] getPatternWeights() {
+        return weights;
+    }
+
+    public DataType getDataType() {
+        return patterns.getDataType();
+    }
+
+    public double[] getStateFrequencies() {
+        return PatternList.Utils.empiricalStateFrequencies(this);
+    }
+
+    public boolean areUnique() {
+        return patterns.areUnique();
+    }
+
+    public boolean areUncertain() {
+        return patterns.areUncertain();
+    }
+
+    // **************************************************************
+    // TaxonList IMPLEMENTATION
+    // **************************************************************
+
+    public int getTaxonCount() {
+        return patterns.getTaxonCount();
+    }
+
+    public Taxon getTaxon(int taxonIndex) {
+        return patterns.getTaxon(taxonIndex);
+    }
+
+    public String getTaxonId(int taxonIndex) {
+        return patterns.getTaxonId(taxonIndex);
+    }
+
+    public int getTaxonIndex(String id) {
+        return patterns.getTaxonIndex(id);
+    }
+
+    public int getTaxonIndex(Taxon taxon) {
+        return patterns.getTaxonIndex(taxon);
+    }
+
+    public List<Taxon> asList() {
+        return patterns.asList();
+    }
+
+    public Object getTaxonAttribute(int taxonIndex, String name) {
+        return patterns.getTaxonAttribute(taxonIndex, name);
+    }
+
+    public Iterator<Taxon> iterator() {
+        return patterns.iterator();
+    }
+
+    // **************************************************************
+    // Identifiable IMPLEMENTATION
+    // **************************************************************
+
+    protected String id = null;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    private final PatternList patterns;
+    private final int start;
+    private final int patternCount;
+    private final double[] weights;
+}
@@ -35,6 +35,7 @@ import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Stores a set of site patterns. This differs from the simple Patterns
@@ -97,6 +98,17 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
     private boolean uncertainSites = false;
 
+    /**
+     * The number of sites times the pattern length above which the patterns are built in parallel
+     */
+    private static final long PARALLEL_THRESHOLD = 1L << 20;
+
+    /**
+     * hashed index of the unique patterns (only kept while the patterns are being built)
+     */
+    private Map<PatternKey, Integer> patternIndex = null;
+    private int bitsPerState = 0;
+
     /**
      * Constructor
      */
@@ -268,6 +280,11 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             uncertainPatterns = new double[siteCount][][];
         }
 
+        if (unique) {
+            patternIndex = new HashMap<PatternKey, Integer>();
+            bitsPerState = getBitsPerState(siteList.getDataType());
+        }
+
         if (constantSiteCounts != null) {
             if (constantSiteCounts.length != siteList.getStateCount()) {
                 throw new IllegalArgumentException("Constant site count array length doesn't equal the number of states");
@@ -281,28 +298,14 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
+        int[] sourceSites = new int[siteCount];
         int site = 0;
-
         for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
-            double[][] probs = null;
-
-            if (uncertainSites) {
-                probs = siteList.getUncertainSitePattern(i);
-            }
-
-            if (!strip || !isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern))) {
-
-                sitePatternIndices[site] = addPattern(pattern, probs);
-
-            }  else {
-                sitePatternIndices[site] = -1;
-            }
+            sourceSites[site] = i;
             site++;
         }
+
+        addSites(sourceSites, site);
     }
 
     /**
@@ -335,32 +338,154 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         }
 
         invariantCount = 0;
-        int[] pattern;
 
-        int site = 0;
+        if (unique) {
+            patternIndex = new HashMap<PatternKey, Integer>();
+            bitsPerState = getBitsPerState(siteList.getDataType());
+        }
 
+        int[] sourceSites = new int[siteCount];
+        int site = 0;
         for (int i = from; i <= to; i += every) {
-            pattern = siteList.getSitePattern(i);
-
             if (mask[i]) {
-                if (!strip || !isInvariant(pattern) ||
-                        (!isGapped(pattern) &&
-                                !isAmbiguous(pattern) &&
-                                !isUnknown(pattern))
-                        ) {
+                sourceSites[site] = i;
+                site++;
+            }
+        }
+
+        addSites(sourceSites, site);
+    }
+
+    /**
+     * Adds the patterns of the given sites of the site list in order. Large alignments are split
+     * into ranges of sites which are compressed in parallel and the partial pattern tables are then
+     * merged in order, so the patterns, weights and site indices are the same as adding the sites
+     * one at a time.
+     *
+     * @param sourceSites the sites in the site list
+     * @param count       the number of sites
+     */
+    private void addSites(int[] sourceSites, int count) {
+
+        int threadCount = getThreadCount((long) count * siteList.getPatternLength());
+
+        if (unique && threadCount > 1) {
+            List<Callable<SiteRange>> tasks = new ArrayList<Callable<SiteRange>>();
+            for (int i = 0; i < threadCount; i++) {
+                final int rangeFrom = (int) (((long) count * i) / threadCount);
+                final int rangeTo = (int) (((long) count * (i + 1)) / threadCount);
+                final int[] sites = sourceSites;
+                tasks.add(new Callable<SiteRange>() {
+                    public SiteRange call() {
+                        return compressSites(sites, rangeFrom, rangeTo);
+                    }
+                });
+            }
 
+            List<SiteRange> ranges = new ArrayList<SiteRange>();
+            ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+            try {
+                for (Future<SiteRange> future : pool.invokeAll(tasks)) {
+                    ranges.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while compressing site patterns");
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error compressing site patterns: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+
+            for (SiteRange range : ranges) {
+                mergeSiteRange(range, sourceSites);
+            }
+
+        } else {
+            for (int site = 0; site < count; site++) {
+                int i = sourceSites[site];
+                int[] pattern = siteList.getSitePattern(i);
+
+                if (isIncluded(pattern)) {
                     double[][] probs = null;
                     if (uncertainSites) {
                         probs = siteList.getUncertainSitePattern(i);
                     }
                     sitePatternIndices[site] = addPattern(pattern, probs);
-
-                }  else {
+                } else {
                     sitePatternIndices[site] = -1;
                 }
-                site++;
             }
         }
+
+        // the index is only needed while the patterns are being built
+        patternIndex = null;
+    }
+
+    /**
+     * Compresses a range of sites into a table of the unique patterns in the order they are first
+     * seen with their counts. This only reads the site list so can be run in parallel.
+     */
+    private SiteRange compressSites(int[] sourceSites, int from, int to) {
+        SiteRange range = new SiteRange(from, to);
+        Map<PatternKey, Integer> localIndex = new HashMap<PatternKey, Integer>();
+
+        for (int site = from; site < to; site++) {
+            int[] pattern = siteList.getSitePattern(sourceSites[site]);
+
+            if (isIncluded(pattern)) {
+                PatternKey key = new PatternKey(pattern, bitsPerState);
+                Integer index = localIndex.get(key);
+                if (index == null) {
+                    index = range.add(key, site);
+                    localIndex.put(key, index);
+                } else {
+                    range.counts[index]++;
+                }
+                range.patternIndices[site - from] = index;
+            } else {
+                range.patternIndices[site - from] = -1;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Merges the table of patterns of a range of sites into the pattern list.
+     */
+    private void mergeSiteRange(SiteRange range, int[] sourceSites) {
+        int[] indices = new int[range.keys.size()];
+
+        for (int j = 0; j < indices.length; j++) {
+            PatternKey key = range.keys.get(j);
+            Integer index = patternIndex.get(key);
+            if (index == null) {
+                double[][] probs = null;
+                if (uncertainSites) {
+                    probs = siteList.getUncertainSitePattern(sourceSites[range.firstSites[j]]);
+                }
+                index = createPattern(key.pattern, 1, probs);
+                patternIndex.put(key, index);
+                weights[index] += range.counts[j] - 1;
+            } else {
+                weights[index] += range.counts[j];
+            }
+            indices[j] = index;
+        }
+
+        for (int site = range.from; site < range.to; site++) {
+            int j = range.patternIndices[site - range.from];
+            sitePatternIndices[site] = (j < 0 ? -1 : indices[j]);
+        }
+    }
+
+    /**
+     * @return true if the pattern is to be included (i.e., it isn't stripped out)
+     */
+    private boolean isIncluded(int[] pattern) {
+        return !strip || !isInvariant(pattern) ||
+                (!isGapped(pattern) &&
+                        !isAmbiguous(pattern) &&
+                        !isUnknown(pattern));
     }
 
 
@@ -380,15 +505,30 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
      */
     private int addPattern(int[] pattern, int weight, double[][] uncertainty) {
 
-        for (int i = 0; i < patternCount; i++) {
-
-            if (unique && comparePatterns(patterns[i], pattern)) {
-
+        PatternKey key = null;
+        if (unique) {
+            key = new PatternKey(pattern, bitsPerState);
+            Integer i = patternIndex.get(key);
+            if (i != null) {
                 weights[i] += weight;
                 return i;
             }
         }
 
+        int index = createPattern(pattern, weight, uncertainty);
+        if (unique) {
+            patternIndex.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * adds a new pattern to the end of the pattern list with the given weight
+     *
+     * @return the index of the pattern in the pattern list
+     */
+    private int createPattern(int[] pattern, int weight, double[][] uncertainty) {
+
         if (isInvariant(pattern)) {
             invariantCount += weight;
         }
@@ -795,4 +935,132 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         xhtml += "</pre>";
         return xhtml;
     }
+
+    /**
+     * @return the number of bits needed to pack the states of the data type or 0 if
+     * it isn't worth packing them
+     */
+    private static int getBitsPerState(DataType dataType) {
+        if (dataType == null) {
+            return 0;
+        }
+        int maxState = Math.max(dataType.getAmbiguousStateCount(), dataType.getStateCount() + 2) - 1;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(maxState, 1));
+        return (bits <= 16 ? bits : 0);
+    }
+
+    /**
+     * @return the number of threads to use to build the patterns (set with the
+     * 'patterns.threads' property, default is the number of processors)
+     */
+    private static int getThreadCount(long size) {
+        if (size < PARALLEL_THRESHOLD) {
+            return 1;
+        }
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        String property = System.getProperty("patterns.threads");
+        if (property != null) {
+            try {
+                threadCount = Integer.parseInt(property.trim());
+            } catch (NumberFormatException nfe) {
+                // use the default
+            }
+        }
+        return Math.max(threadCount, 1);
+    }
+
+    /**
+     * The key of a site pattern in the hashed pattern index. When the states fit in a few bits the
+     * pattern is packed into longs which makes the keys smaller and quicker to hash and compare.
+     * A pattern with a state that doesn't fit is kept as it is (and can't equal a packed one).
+     */
+    private static final class PatternKey {
+
+        PatternKey(int[] pattern, int bitsPerState) {
+            this.pattern = pattern;
+            this.packed = (bitsPerState > 0 ? pack(pattern, bitsPerState) : null);
+
+            long h = 0x9e3779b97f4a7c15L;
+            if (packed != null) {
+                for (long word : packed) {
+                    h = (h ^ word) * 0xbf58476d1ce4e5b9L;
+                    h ^= h >>> 31;
+                }
+            } else {
+                for (int state : pattern) {
+                    h = (h ^ state) * 0xbf58476d1ce4e5b9L;
+                    h ^= h >>> 31;
+                }
+            }
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        private static long[] pack(int[] pattern, int bitsPerState) {
+            int statesPerWord = 64 / bitsPerState;
+            long[] packed = new long[(pattern.length + statesPerWord - 1) / statesPerWord];
+            int limit = 1 << bitsPerState;
+            for (int i = 0; i < pattern.length; i++) {
+                int state = pattern[i];
+                if (state < 0 || state >= limit) {
+                    return null;
+                }
+                packed[i / statesPerWord] |= ((long) state) << ((i % statesPerWord) * bitsPerState);
+            }
+            return packed;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object object) {
+            PatternKey key = (PatternKey) object;
+            if (hash != key.hash) {
+                return false;
+            }
+            if (packed != null && key.packed != null) {
+                return Arrays.equals(packed, key.packed);
+            }
+            if (packed == null && key.packed == null) {
+                return Arrays.equals(pattern, key.pattern);
+            }
+            return false;
+        }
+
+        final int[] pattern;
+        final long[] packed;
+        final int hash;
+    }
+
+    /**
+     * The unique patterns of a range of sites, in the order they are first seen, with their
+     * counts and the index of the pattern of each site in the range.
+     */
+    private static final class SiteRange {
+
+        SiteRange(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.patternIndices = new int[to - from];
+        }
+
+        int add(PatternKey key, int site) {
+            int index = keys.size();
+            if (index == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+                firstSites = Arrays.copyOf(firstSites, firstSites.length * 2);
+            }
+            keys.add(key);
+            counts[index] = 1;
+            firstSites[index] = site;
+            return index;
+        }
+
+        final int from;
+        final int to;
+        final int[] patternIndices;
+        final List<PatternKey> keys = new ArrayList<PatternKey>();
+        int[] counts = new int[16];
+        int[] firstSites = new int[16];
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * SitePatternsBenchmark.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.alignment;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+
+/**
+ * A timing harness for building SitePatterns from large synthetic nucleotide alignments. The
+ * sequences are copies of a random reference with a few mutations, gaps and ambiguities each (like
+ * a large outbreak data set) so most sites are invariant and most variable sites have a pattern of
+ * their own. The patterns are checked against a simple linear scan compression when that is
+ * small enough to finish.
+ *
+ * Usage: SitePatternsBenchmark [taxonCount] [siteCount] [mutationsPerTaxon]
+ *
+ * @version $Id$
+ */
+public class SitePatternsBenchmark {
+
+    private static final long MAX_CHECKED_SIZE = 100000000000L;
+
+    public static void main(String[] args) {
+        int taxonCount = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+        int siteCount = (args.length > 1 ? Integer.parseInt(args[1]) : 30000);
+        int mutationCount = (args.length > 2 ? Integer.parseInt(args[2]) : 20);
+
+        MathUtils.setSeed(666);
+
+        System.out.println("Taxa: " + taxonCount + ", sites: " + siteCount + ", mutations per taxon: " + mutationCount);
+
+        long startTime = System.nanoTime();
+        SimpleAlignment alignment = createAlignment(taxonCount, siteCount, mutationCount);
+        System.out.println("  created alignment in " + milliseconds(startTime) + " ms");
+
+        String threadCount = System.getProperty("patterns.threads");
+
+        System.setProperty("patterns.threads", "1");
+        startTime = System.nanoTime();
+        SitePatterns serial = new SitePatterns(alignment, null, -1, -1, 1);
+        System.out.println("  SitePatterns (1 thread): " + milliseconds(startTime) + " ms, " +
+                serial.getPatternCount() + " patterns");
+
+        if (threadCount != null) {
+            System.setProperty("patterns.threads", threadCount);
+        } else {
+            System.clearProperty("patterns.threads");
+        }
+        startTime = System.nanoTime();
+        SitePatterns parallel = new SitePatterns(alignment, null, -1, -1, 1);
+        System.out.println("  SitePatterns (" + (threadCount != null ? threadCount : Runtime.getRuntime().availableProcessors()) +
+                " threads): " + milliseconds(startTime) + " ms, " + parallel.getPatternCount() + " patterns");
+
+        System.out.println("  parallel patterns identical: " + isIdentical(serial, parallel));
+
+        long size = (long) siteCount * serial.getPatternCount() * taxonCount;
+        if (size < MAX_CHECKED_SIZE) {
+            startTime = System.nanoTime();
+            int[] indices = new int[siteCount];
+            int patternCount = linearScan(alignment, indices);
+            System.out.println("  linear scan: " + milliseconds(startTime) + " ms, " + patternCount + " patterns");
+
+            boolean identical = patternCount == serial.getPatternCount();
+            for (int i = 0; identical && i < siteCount; i++) {
+                identical = indices[i] == serial.getPatternIndex(i);
+            }
+            System.out.println("  linear scan patterns identical: " + identical);
+        } else {
+            System.out.println("  linear scan skipped (too slow)");
+        }
+    }
+
+    private static long milliseconds(long startTime) {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    private static boolean isIdentical(SitePatterns patterns1, SitePatterns patterns2) {
+        if (patterns1.getPatternCount() != patterns2.getPatternCount() ||
+                patterns1.getInvariantCount() != patterns2.getInvariantCount()) {
+            return false;
+        }
+        for (int i = 0; i < patterns1.getPatternCount(); i++) {
+            if (patterns1.getPatternWeight(i) != patterns2.getPatternWeight(i) ||
+                    !java.util.Arrays.equals(patterns1.getPattern(i), patterns2.getPattern(i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < patterns1.getSiteCount(); i++) {
+            if (patterns1.getPatternIndex(i) != patterns2.getPatternIndex(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The compression as it used to be done, comparing each site to all the patterns so far.
+     */
+    private static int linearScan(SimpleAlignment alignment, int[] indices) {
+        int siteCount = alignment.getSiteCount();
+        int[][] patterns = new int[siteCount][];
+        int patternCount = 0;
+
+        for (int i = 0; i < siteCount; i++) {
+            int[] pattern = alignment.getSitePattern(i);
+
+            boolean invariant = true;
+            boolean ambiguous = false;
+            for (int state : pattern) {
+                invariant &= (state == pattern[0]);
+                ambiguous |= Nucleotides.INSTANCE.isAmbiguousState(state) || Nucleotides.INSTANCE.isGapState(state);
+            }
+            if (invariant && ambiguous) {
+                indices[i] = -1;
+                continue;
+            }
+
+            indices[i] = -1;
+            for (int j = 0; j < patternCount && indices[i] < 0; j++) {
+                if (java.util.Arrays.equals(patterns[j], pattern)) {
+                    indices[i] = j;
+                }
+            }
+            if (indices[i] < 0) {
+                patterns[patternCount] = pattern;
+                indices[i] = patternCount;
+                patternCount++;
+            }
+        }
+        return patternCount;
+    }
+
+    private static SimpleAlignment createAlignment(int taxonCount, int siteCount, int mutationCount) {
+        char[] reference = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            reference[i] = Nucleotides.INSTANCE.getChar(MathUtils.nextInt(4));
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < taxonCount; i++) {
+            char[] sequence = reference.clone();
+            for (int j = 0; j < mutationCount; j++) {
+                int site = MathUtils.nextInt(siteCount);
+                double u = MathUtils.nextDouble();
+                if (u < 0.05) {
+                    sequence[site] = '-';
+                } else if (u < 0.1) {
+                    sequence[site] = 'N';
+                } else {
+                    sequence[site] = Nucleotides.INSTANCE.getChar(MathUtils.nextInt(4));
+                }
+            }
+            Sequence s = new Sequence(new String(sequence));
+            s.setTaxon(new Taxon("taxon" + (i + 1)));
+            s.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(s);
+        }
+        return alignment;
+    }
+}
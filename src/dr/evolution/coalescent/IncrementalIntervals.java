@@ -0,0 +1,540 @@
+/*
+ * IncrementalIntervals.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.coalescent;
+
+import dr.math.Binomial;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A set of coalescent intervals that can be updated when the times of individual events change
+ * without collecting and sorting all the events again. Each event has a fixed id (e.g., the node
+ * number) and the events are kept sorted by time: moving one is a binary search for its new
+ * position and a shift of the events in between, and only the intervals between the old and new
+ * positions are recalculated (the lineage counts of all of these change anyway).
+ *
+ * The coalescent log likelihood contribution of each interval is cached so that when the
+ * demographic function hasn't changed only those of the changed intervals need calculating. The
+ * start and finish times of an interval are measured from the first event so a contribution
+ * doesn't depend on the intervals before it.
+ *
+ * Storing and restoring only copies the events, intervals and contributions that have changed since
+ * the last store or restore.
+ *
+ * @version $Id$
+ */
+public class IncrementalIntervals implements IntervalList {
+
+    public IncrementalIntervals(int maxEventCount) {
+        this.maxEventCount = maxEventCount;
+
+        position = new int[maxEventCount];
+        eventIds = new int[maxEventCount];
+        eventTimes = new double[maxEventCount];
+        eventTypes = new IntervalType[maxEventCount];
+
+        intervals = new double[maxEventCount - 1];
+        lineageCounts = new int[maxEventCount - 1];
+        intervalTypes = new IntervalType[maxEventCount - 1];
+
+        terms = new double[maxEventCount - 1];
+        termKnown = new boolean[maxEventCount - 1];
+
+        storedEventIds = new int[maxEventCount];
+        storedEventTimes = new double[maxEventCount];
+        storedEventTypes = new IntervalType[maxEventCount];
+
+        storedIntervals = new double[maxEventCount - 1];
+        storedLineageCounts = new int[maxEventCount - 1];
+        storedIntervalTypes = new IntervalType[maxEventCount - 1];
+
+        storedTerms = new double[maxEventCount - 1];
+        storedTermKnown = new boolean[maxEventCount - 1];
+
+        resetEvents();
+    }
+
+    /**
+     * Removes all the events. The events are then added with addEvent.
+     */
+    public void resetEvents() {
+        eventCount = 0;
+        sampleCount = 0;
+        intervalsKnown = false;
+    }
+
+    /**
+     * Adds an event.
+     *
+     * @param id   the id of the event (from 0 to maxEventCount - 1)
+     * @param time the time of the event
+     * @param type the type of the event (SAMPLE or COALESCENT)
+     */
+    public void addEvent(int id, double time, IntervalType type) {
+        if (type != IntervalType.SAMPLE && type != IntervalType.COALESCENT) {
+            throw new IllegalArgumentException("Only sample and coalescent events are supported");
+        }
+        eventIds[eventCount] = id;
+        eventTimes[eventCount] = time;
+        eventTypes[eventCount] = type;
+        eventCount++;
+        if (type == IntervalType.SAMPLE) {
+            sampleCount++;
+        }
+        intervalsKnown = false;
+    }
+
+    /**
+     * @return the time of an event
+     */
+    public double getEventTime(int id) {
+        if (!intervalsKnown) calculateIntervals();
+        return eventTimes[position[id]];
+    }
+
+    /**
+     * Changes the time of an event, moving it to its new place in the order and recalculating the
+     * intervals it has moved past.
+     */
+    public void setEventTime(int id, double time) {
+        if (!intervalsKnown) {
+            // the events haven't been sorted yet so just change the time
+            for (int i = 0; i < eventCount; i++) {
+                if (eventIds[i] == id) {
+                    eventTimes[i] = time;
+                }
+            }
+            return;
+        }
+
+        final int from = position[id];
+        final IntervalType type = eventTypes[from];
+
+        int to = from;
+        if (from < eventCount - 1 && compare(time, type, eventTimes[from + 1], eventTypes[from + 1]) > 0) {
+            // moving later: find the last event that should now come before it
+            int lower = from + 1;
+            int upper = eventCount - 1;
+            while (lower < upper) {
+                int mid = (lower + upper + 1) >>> 1;
+                if (compare(time, type, eventTimes[mid], eventTypes[mid]) > 0) {
+                    lower = mid;
+                } else {
+                    upper = mid - 1;
+                }
+            }
+            to = lower;
+
+            System.arraycopy(eventIds, from + 1, eventIds, from, to - from);
+            System.arraycopy(eventTimes, from + 1, eventTimes, from, to - from);
+            System.arraycopy(eventTypes, from + 1, eventTypes, from, to - from);
+        } else if (from > 0 && compare(time, type, eventTimes[from - 1], eventTypes[from - 1]) < 0) {
+            // moving earlier: find the first event that should now come after it
+            int lower = 0;
+            int upper = from - 1;
+            while (lower < upper) {
+                int mid = (lower + upper) >>> 1;
+                if (compare(time, type, eventTimes[mid], eventTypes[mid]) < 0) {
+                    upper = mid;
+                } else {
+                    lower = mid + 1;
+                }
+            }
+            to = lower;
+
+            System.arraycopy(eventIds, to, eventIds, to + 1, from - to);
+            System.arraycopy(eventTimes, to, eventTimes, to + 1, from - to);
+            System.arraycopy(eventTypes, to, eventTypes, to + 1, from - to);
+        }
+
+        eventIds[to] = id;
+        eventTimes[to] = time;
+        eventTypes[to] = type;
+
+        final int first = Math.min(from, to);
+        final int last = Math.max(from, to);
+        for (int i = first; i <= last; i++) {
+            position[eventIds[i]] = i;
+        }
+
+        if (first == 0) {
+            if (eventTypes[0] != IntervalType.SAMPLE) {
+                throw new IllegalArgumentException("First event is not a sample event");
+            }
+            // the start and finish times of all the intervals are measured from the first event
+            invalidateTerms();
+        }
+
+        updateIntervals(first, last);
+    }
+
+    /**
+     * Marks the cached likelihood contributions of all the intervals as unknown (e.g., because the
+     * demographic function has changed).
+     */
+    public void invalidateTerms() {
+        final int intervalCount = eventCount - 1;
+        for (int i = 0; i < intervalCount; i++) {
+            termKnown[i] = false;
+        }
+        changedTerms(0, intervalCount - 1);
+    }
+
+    /**
+     * Calculates the coalescent log likelihood in the same way as
+     * Coalescent.calculateLogLikelihood(IntervalList, DemographicFunction, double) but reusing the
+     * contribution of each interval that hasn't changed since it was last calculated. The
+     * contributions are only valid for one demographic function so invalidateTerms must be called
+     * when it changes.
+     */
+    public double calculateLogLikelihood(DemographicFunction demographicFunction, double threshold) {
+        if (!intervalsKnown) calculateIntervals();
+
+        final double origin = eventTimes[0];
+        final int intervalCount = eventCount - 1;
+
+        double logL = 0.0;
+        for (int i = 0; i < intervalCount; i++) {
+            if (!termKnown[i]) {
+                terms[i] = calculateTerm(i, eventTimes[i] - origin, eventTimes[i + 1] - origin,
+                        demographicFunction, threshold);
+                termKnown[i] = true;
+                changedTerms(i, i);
+            }
+            if (terms[i] == Double.NEGATIVE_INFINITY) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            logL += terms[i];
+        }
+
+        return logL;
+    }
+
+    private double calculateTerm(int i, double startTime, double finishTime,
+                                 DemographicFunction demographicFunction, double threshold) {
+        final double duration = intervals[i];
+
+        final double intervalArea = demographicFunction.getIntegral(startTime, finishTime);
+        if (intervalArea == 0 && duration != 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double term = -Binomial.choose2(lineageCounts[i]) * intervalArea;
+
+        if (intervalTypes[i] == IntervalType.COALESCENT) {
+            final double demographicAtCoalPoint = demographicFunction.getDemographic(finishTime);
+
+            if (duration == 0.0 || demographicAtCoalPoint * (intervalArea / duration) >= threshold) {
+                term -= Math.log(demographicAtCoalPoint);
+            } else {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        return term;
+    }
+
+    /**
+     * Stores the events, intervals and likelihood contributions.
+     */
+    public void storeState() {
+        storedIntervalsKnown = intervalsKnown;
+        if (!intervalsKnown) {
+            // nothing worth storing: the changes are kept so they are all copied at the next store
+            return;
+        }
+
+        if (firstChangedEvent <= lastChangedEvent) {
+            copyEvents(eventIds, eventTimes, eventTypes, storedEventIds, storedEventTimes, storedEventTypes);
+            copyIntervals(intervals, lineageCounts, intervalTypes, storedIntervals, storedLineageCounts, storedIntervalTypes);
+        }
+        if (firstChangedTerm <= lastChangedTerm) {
+            copyTerms(terms, termKnown, storedTerms, storedTermKnown);
+        }
+        storedEventCount = eventCount;
+        storedSampleCount = sampleCount;
+
+        clearChanges();
+    }
+
+    /**
+     * Restores the events, intervals and likelihood contributions to those when storeState was last
+     * called.
+     */
+    public void restoreState() {
+        if (!storedIntervalsKnown) {
+            // the events will have to be added again
+            resetEvents();
+            return;
+        }
+
+        if (firstChangedEvent <= lastChangedEvent || !intervalsKnown) {
+            if (!intervalsKnown) {
+                // the events have been reset since the store so restore them all
+                firstChangedEvent = 0;
+                lastChangedEvent = storedEventCount - 1;
+            }
+            copyEvents(storedEventIds, storedEventTimes, storedEventTypes, eventIds, eventTimes, eventTypes);
+            copyIntervals(storedIntervals, storedLineageCounts, storedIntervalTypes, intervals, lineageCounts, intervalTypes);
+            for (int i = firstChangedEvent; i <= lastChangedEvent; i++) {
+                position[eventIds[i]] = i;
+            }
+        }
+        if (firstChangedTerm <= lastChangedTerm) {
+            copyTerms(storedTerms, storedTermKnown, terms, termKnown);
+        }
+        eventCount = storedEventCount;
+        sampleCount = storedSampleCount;
+        intervalsKnown = true;
+
+        clearChanges();
+    }
+
+    private void copyEvents(int[] ids, double[] times, IntervalType[] types,
+                            int[] destIds, double[] destTimes, IntervalType[] destTypes) {
+        final int length = lastChangedEvent - firstChangedEvent + 1;
+        System.arraycopy(ids, firstChangedEvent, destIds, firstChangedEvent, length);
+        System.arraycopy(times, firstChangedEvent, destTimes, firstChangedEvent, length);
+        System.arraycopy(types, firstChangedEvent, destTypes, firstChangedEvent, length);
+    }
+
+    private void copyIntervals(double[] source, int[] counts, IntervalType[] types,
+                               double[] dest, int[] destCounts, IntervalType[] destTypes) {
+        // the intervals either side of the changed events
+        final int first = Math.max(firstChangedEvent - 1, 0);
+        final int last = Math.min(lastChangedEvent, maxEventCount - 2);
+        if (first <= last) {
+            System.arraycopy(source, first, dest, first, last - first + 1);
+            System.arraycopy(counts, first, destCounts, first, last - first + 1);
+            System.arraycopy(types, first, destTypes, first, last - first + 1);
+        }
+    }
+
+    private void copyTerms(double[] source, boolean[] known, double[] dest, boolean[] destKnown) {
+        final int length = lastChangedTerm - firstChangedTerm + 1;
+        System.arraycopy(source, firstChangedTerm, dest, firstChangedTerm, length);
+        System.arraycopy(known, firstChangedTerm, destKnown, firstChangedTerm, length);
+    }
+
+    private void clearChanges() {
+        firstChangedEvent = Integer.MAX_VALUE;
+        lastChangedEvent = -1;
+        firstChangedTerm = Integer.MAX_VALUE;
+        lastChangedTerm = -1;
+    }
+
+    private void changedEvents(int first, int last) {
+        firstChangedEvent = Math.min(firstChangedEvent, first);
+        lastChangedEvent = Math.max(lastChangedEvent, last);
+    }
+
+    private void changedTerms(int first, int last) {
+        if (first <= last) {
+            firstChangedTerm = Math.min(firstChangedTerm, first);
+            lastChangedTerm = Math.max(lastChangedTerm, last);
+        }
+    }
+
+    /**
+     * Recalculates the intervals either side of the events from first to last.
+     */
+    private void updateIntervals(int first, int last) {
+        changedEvents(first, last);
+
+        final int firstInterval = Math.max(first - 1, 0);
+        final int lastInterval = Math.min(last, eventCount - 2);
+
+        int lineages = (firstInterval == 0 ? 1 : lineageCounts[firstInterval - 1] + lineageChange(eventTypes[firstInterval]));
+        for (int i = firstInterval; i <= lastInterval; i++) {
+            intervals[i] = eventTimes[i + 1] - eventTimes[i];
+            intervalTypes[i] = eventTypes[i + 1];
+            lineageCounts[i] = lineages;
+            lineages += lineageChange(eventTypes[i + 1]);
+            termKnown[i] = false;
+        }
+        changedTerms(firstInterval, lastInterval);
+    }
+
+    private static int lineageChange(IntervalType type) {
+        return (type == IntervalType.SAMPLE ? 1 : -1);
+    }
+
+    /**
+     * Sorts all the events and calculates all the intervals.
+     */
+    private void calculateIntervals() {
+
+        if (eventCount < 2) {
+            throw new IllegalArgumentException("Too few events to construct intervals");
+        }
+
+        Integer[] order = new Integer[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            order[i] = i;
+        }
+        // a stable sort so events at the same time and of the same type stay in the order they were added
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return IncrementalIntervals.compare(eventTimes[i1], eventTypes[i1], eventTimes[i2], eventTypes[i2]);
+            }
+        });
+
+        int[] ids = new int[eventCount];
+        double[] times = new double[eventCount];
+        IntervalType[] types = new IntervalType[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            ids[i] = eventIds[order[i]];
+            times[i] = eventTimes[order[i]];
+            types[i] = eventTypes[order[i]];
+        }
+        System.arraycopy(ids, 0, eventIds, 0, eventCount);
+        System.arraycopy(times, 0, eventTimes, 0, eventCount);
+        System.arraycopy(types, 0, eventTypes, 0, eventCount);
+
+        if (eventTypes[0] != IntervalType.SAMPLE) {
+            throw new IllegalArgumentException("First event is not a sample event");
+        }
+
+        for (int i = 0; i < eventCount; i++) {
+            position[eventIds[i]] = i;
+        }
+
+        intervalsKnown = true;
+        updateIntervals(0, eventCount - 1);
+    }
+
+    /**
+     * Orders events by time and then by type (as Intervals does).
+     */
+    private static int compare(double time1, IntervalType type1, double time2, IntervalType type2) {
+        if (time1 < time2) {
+            return -1;
+        } else if (time1 > time2) {
+            return 1;
+        }
+        return type1.compareTo(type2);
+    }
+
+    // **************************************************************
+    // IntervalList IMPLEMENTATION
+    // **************************************************************
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getIntervalCount() {
+        if (!intervalsKnown) calculateIntervals();
+        return eventCount - 1;
+    }
+
+    public double getInterval(int i) {
+        if (!intervalsKnown) calculateIntervals();
+        return intervals[i];
+    }
+
+    public int getLineageCount(int i) {
+        if (!intervalsKnown) calculateIntervals();
+        return lineageCounts[i];
+    }
+
+    public int getCoalescentEvents(int i) {
+        if (!intervalsKnown) calculateIntervals();
+        if (i < eventCount - 2) {
+            return lineageCounts[i] - lineageCounts[i + 1];
+        } else {
+            return lineageCounts[i] - 1;
+        }
+    }
+
+    public IntervalType getIntervalType(int i) {
+        if (!intervalsKnown) calculateIntervals();
+        return intervalTypes[i];
+    }
+
+    public double getTotalDuration() {
+        if (!intervalsKnown) calculateIntervals();
+        return eventTimes[eventCount - 1];
+    }
+
+    public boolean isBinaryCoalescent() {
+        return true;
+    }
+
+    public boolean isCoalescentOnly() {
+        return true;
+    }
+
+    private Type units = Type.GENERATIONS;
+
+    public final Type getUnits() {
+        return units;
+    }
+
+    public final void setUnits(Type units) {
+        this.units = units;
+    }
+
+    private final int maxEventCount;
+
+    // the position of each event (by id) in the sorted arrays
+    private final int[] position;
+
+    private final int[] eventIds;
+    private final double[] eventTimes;
+    private final IntervalType[] eventTypes;
+    private int eventCount;
+    private int sampleCount;
+
+    private boolean intervalsKnown;
+    private final double[] intervals;
+    private final int[] lineageCounts;
+    private final IntervalType[] intervalTypes;
+
+    private final double[] terms;
+    private final boolean[] termKnown;
+
+    // the ranges of events (and the intervals either side of them) and terms changed since the last store or restore
+    private int firstChangedEvent = Integer.MAX_VALUE;
+    private int lastChangedEvent = -1;
+    private int firstChangedTerm = Integer.MAX_VALUE;
+    private int lastChangedTerm = -1;
+
+    private final int[] storedEventIds;
+    private final double[] storedEventTimes;
+    private final IntervalType[] storedEventTypes;
+    private int storedEventCount;
+    private int storedSampleCount;
+    private boolean storedIntervalsKnown = false;
+
+    private final double[] storedIntervals;
+    private final int[] storedLineageCounts;
+    private final IntervalType[] storedIntervalTypes;
+
+    private final double[] storedTerms;
+    private final boolean[] storedTermKnown;
+}
@@ -858,6 +858,35 @@ public class NexusImporter extends Importer implements SequenceImporter, TreeImp
         return translationList;
     }
 
+    /**
+     * Reads the translation list of the TREES block in some NEXUS text that stops before the first
+     * TREE command. Used by NexusTreeStream to read the header of a file on its own.
+     *
+     * @return the translation list or null if there is no TREES block
+     */
+    static HashMap<String, Taxon> parseTranslationList(String header, TaxonList taxonList, boolean ignoreMetaComments)
+            throws ImportException, IOException {
+        NexusImporter importer = new NexusImporter(new StringReader(header + "\nend;"), ignoreMetaComments);
+        TaxonList[] aTaxonList = new TaxonList[]{taxonList};
+        if (!importer.startReadingTrees(aTaxonList)) {
+            return null;
+        }
+        return importer.readTranslationList(aTaxonList[0], new String[1]);
+    }
+
+    /**
+     * Reads a single TREE command (including the terminating ';') exactly as readNextTree would in
+     * a file. Each call uses its own importer so trees can be parsed on several threads at once
+     * as long as the translation list is not changed.
+     */
+    static Tree parseTree(String command, HashMap<String, Taxon> translationList, boolean ignoreMetaComments)
+            throws ImportException, IOException {
+        // readNextTree reads the command after the tree so give it one
+        NexusImporter importer = new NexusImporter(new StringReader(command + "\nend;"), ignoreMetaComments);
+        String[] lastToken = new String[]{importer.readToken(";")};
+        return importer.readNextTree(translationList, lastToken, null);
+    }
+
     private Tree readNextTree(HashMap<String, Taxon> translationList, String[] lastToken, TaxonList taxonList) throws ImportException, IOException {
         try {
             Tree tree = null;
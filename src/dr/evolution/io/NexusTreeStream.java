@@ -0,0 +1,492 @@
+/*
+ * NexusTreeStream.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Reads the trees of a NEXUS file (such as a BEAST .trees log) for the post-processing tools. One
+ * thread scans the raw characters of the file for the ';' at the end of each TREE command (which
+ * is much quicker than tokenizing it) and the commands are parsed by a pool of threads. The trees
+ * are returned in the order of the file and only a bounded number are held at once so files of
+ * any length can be read.
+ *
+ * Trees in the burnin (given in trees and/or in the states of STATE_n tree names) and trees thinned
+ * out are skipped without being parsed. The trees are FlexibleTrees, parsed by NexusImporter, so
+ * are the same as those from NexusImporter.importNextTree except that a final tree with no END
+ * command after it is returned rather than dropped.
+ *
+ * Like NexusImporter the trees should be taken by one thread.
+ *
+ * @version $Id$
+ */
+public class NexusTreeStream implements TreeImporter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int QUEUE_SIZE_PER_THREAD = 16;
+
+    public NexusTreeStream(Reader reader) {
+        this(reader, false);
+    }
+
+    public NexusTreeStream(Reader reader, boolean ignoreMetaComments) {
+        this(reader, ignoreMetaComments, Runtime.getRuntime().availableProcessors());
+    }
+
+    public NexusTreeStream(Reader reader, boolean ignoreMetaComments, int threadCount) {
+        this.reader = reader;
+        this.ignoreMetaComments = ignoreMetaComments;
+        this.threadCount = Math.max(threadCount, 1);
+        this.queue = new ArrayBlockingQueue<ParsedTree>(this.threadCount * QUEUE_SIZE_PER_THREAD);
+    }
+
+    /**
+     * Skip the trees before the given tree number and state (taken from tree names of the form
+     * STATE_n). A tree is used only if it is past both. Must be set before reading the trees.
+     */
+    public void setBurnin(int burninTrees, long burninStates) {
+        checkNotStarted();
+        this.burninTrees = burninTrees;
+        this.burninStates = burninStates;
+    }
+
+    /**
+     * Use only every nth tree after the burnin (starting with the first). Must be set before
+     * reading the trees.
+     */
+    public void setThinning(int thinning) {
+        checkNotStarted();
+        if (thinning < 1) {
+            throw new IllegalArgumentException("Thinning should be at least 1");
+        }
+        this.thinning = thinning;
+    }
+
+    /**
+     * return whether another tree is available.
+     */
+    public boolean hasTree() throws IOException, Importer.ImportException {
+        if (nextTree == null && !finished) {
+            start(null);
+
+            ParsedTree parsed;
+            try {
+                parsed = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading trees");
+            }
+
+            if (parsed.tree == null) {
+                // the end of the trees
+                finish();
+                throwError(parsed.error);
+            } else {
+                nextTree = getTree(parsed.tree);
+                nextTreeIndex = parsed.index;
+            }
+        }
+        return nextTree != null;
+    }
+
+    /**
+     * import the next tree.
+     * return the tree or null if no more trees are available
+     */
+    public Tree importNextTree() throws IOException, Importer.ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+
+        Tree tree = nextTree;
+        nextTree = null;
+        lastTreeIndex = nextTreeIndex;
+
+        return tree;
+    }
+
+    /**
+     * import a single tree (the first after any burnin).
+     */
+    public Tree importTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        start(taxonList);
+        Tree tree = importNextTree();
+        if (tree == null && !hasTreesBlock) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        close();
+        return tree;
+    }
+
+    /**
+     * import an array of all trees (after any burnin and thinning).
+     */
+    public Tree[] importTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        start(taxonList);
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        if (!hasTreesBlock) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    /**
+     * @return the position in the file of the last tree returned (starting at 0 and counting the
+     * trees that were skipped)
+     */
+    public int getLastTreeIndex() {
+        return lastTreeIndex;
+    }
+
+    /**
+     * @return the number of TREE commands read so far including those skipped (once all the trees
+     * have been taken this is the number in the file)
+     */
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * Stop reading, for when not all the trees are wanted, and close the reader.
+     */
+    public void close() throws IOException {
+        if (scanner != null) {
+            scanner.interrupt();
+        }
+        finish();
+        reader.close();
+    }
+
+    private void checkNotStarted() {
+        if (scanner != null) {
+            throw new IllegalStateException("The trees are already being read");
+        }
+    }
+
+    private void start(TaxonList taxonList) {
+        if (scanner != null) {
+            return;
+        }
+
+        this.taxonList = taxonList;
+
+        pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NexusTreeStream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        scanner = new Thread(new Runnable() {
+            public void run() {
+                Exception error = null;
+                try {
+                    readStatements();
+                } catch (InterruptedException e) {
+                    // closed before all the trees were read
+                    return;
+                } catch (Exception e) {
+                    error = e;
+                }
+                try {
+                    // mark the end of the trees, passing on any error in its place in the file
+                    queue.put(new ParsedTree(null, -1, error));
+                } catch (InterruptedException e) {
+                    // closed before all the trees were read
+                }
+            }
+        }, "NexusTreeStream scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private void finish() {
+        finished = true;
+        nextTree = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the file into commands at each ';' that isn't in a comment or a quoted label.
+     */
+    private void readStatements() throws IOException, Importer.ImportException, InterruptedException {
+        char[] buffer = new char[BUFFER_SIZE];
+        StringBuilder statement = new StringBuilder();
+
+        char quote = 0;
+        char closedQuote = 0;
+        char previous = ';';
+        int commentDepth = 0;
+
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                char ch = buffer[i];
+                if (quote != 0) {
+                    if (ch == quote) {
+                        closedQuote = ch;
+                        quote = 0;
+                    }
+                } else if (ch == closedQuote) {
+                    // a repeated quote stands for the quote character in a label
+                    quote = ch;
+                    closedQuote = 0;
+                } else {
+                    closedQuote = 0;
+                    if (ch == '[') {
+                        commentDepth++;
+                    } else if (commentDepth > 0) {
+                        if (ch == ']') {
+                            commentDepth--;
+                        }
+                    } else if ((ch == '\'' || ch == '"') && isDelimiter(previous)) {
+                        // as in Importer, only a quote at the start of a token starts a quoted label
+                        quote = ch;
+                    } else if (ch == ';') {
+                        statement.append(buffer, start, i + 1 - start);
+                        start = i + 1;
+                        if (!readStatement(statement)) {
+                            return;
+                        }
+                        statement.setLength(0);
+                    }
+                }
+                previous = ch;
+            }
+            statement.append(buffer, start, n - start);
+        }
+
+        // anything left over is an incomplete command at the end of the file
+        if (translationList == null && header.length() > 0) {
+            hasTreesBlock = NexusImporter.parseTranslationList(header.toString(), taxonList, ignoreMetaComments) != null;
+        }
+    }
+
+    /**
+     * @return false if this was the end of the TREES block
+     */
+    private boolean readStatement(StringBuilder statement) throws Importer.ImportException, IOException, InterruptedException {
+        int start = skipSpaceAndComments(statement, 0);
+        int end = getWordEnd(statement, start);
+        String command = statement.substring(start, end);
+        boolean isTree = command.equalsIgnoreCase("TREE") || command.equalsIgnoreCase("UTREE");
+
+        if (translationList == null) {
+            if (!isTree || !isTreesBlock) {
+                // still in the part of the file before the trees
+                if (command.equalsIgnoreCase("BEGIN")) {
+                    int blockStart = skipSpaceAndComments(statement, end);
+                    String block = statement.substring(blockStart, getWordEnd(statement, blockStart));
+                    isTreesBlock = block.equalsIgnoreCase("TREES");
+                }
+                header.append(statement);
+                return true;
+            }
+
+            translationList = NexusImporter.parseTranslationList(header.toString(), taxonList, ignoreMetaComments);
+            if (translationList == null) {
+                throw new NexusImporter.MissingBlockException("TREES block is missing");
+            }
+            hasTreesBlock = true;
+            header = null;
+        }
+
+        if (isTree) {
+            addTree(statement, end);
+        } else if (command.equalsIgnoreCase("ENDBLOCK") || command.equalsIgnoreCase("END")) {
+            return false;
+        } else {
+            throw new Importer.BadFormatException("Unknown command '" + command + "' in TREES block");
+        }
+        return true;
+    }
+
+    private void addTree(StringBuilder statement, int nameStart) throws InterruptedException {
+        int index = treeCount;
+        treeCount++;
+
+        if (index < burninTrees || (burninStates > 0 && getState(statement, nameStart) < burninStates)) {
+            return;
+        }
+
+        usedTreeCount++;
+        if ((usedTreeCount - 1) % thinning != 0) {
+            return;
+        }
+
+        final String command = statement.toString();
+        final HashMap<String, Taxon> translations = translationList;
+        Future<Tree> tree = pool.submit(new Callable<Tree>() {
+            public Tree call() throws Exception {
+                Tree tree = NexusImporter.parseTree(command, translations, ignoreMetaComments);
+                if (tree == null) {
+                    throw new Importer.BadFormatException("Missing tree definition in TREE command of TREES block");
+                }
+                return tree;
+            }
+        });
+        queue.put(new ParsedTree(tree, index, null));
+    }
+
+    /**
+     * @return the state in a tree name of the form STATE_n or Long.MAX_VALUE if it doesn't have one
+     */
+    private static long getState(StringBuilder statement, int nameStart) {
+        int start = skipSpaceAndComments(statement, nameStart);
+        if (start < statement.length() && statement.charAt(start) == '*') {
+            start = skipSpaceAndComments(statement, start + 1);
+        }
+        if (start < statement.length() && (statement.charAt(start) == '\'' || statement.charAt(start) == '"')) {
+            start++;
+        }
+        int end = getWordEnd(statement, start);
+        while (end < statement.length() && statement.charAt(end) == '_') {
+            end = getWordEnd(statement, end + 1);
+        }
+
+        String name = statement.substring(start, end);
+        if (name.startsWith("STATE_")) {
+            try {
+                return Long.parseLong(name.split("_")[1]);
+            } catch (NumberFormatException e) {
+                // not a state
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int skipSpaceAndComments(CharSequence text, int i) {
+        int depth = 0;
+        while (i < text.length()) {
+            char ch = text.charAt(i);
+            if (ch == '[') {
+                depth++;
+            } else if (depth > 0) {
+                if (ch == ']') {
+                    depth--;
+                }
+            } else if (!Character.isWhitespace(ch)) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int getWordEnd(CharSequence text, int i) {
+        while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDelimiter(char ch) {
+        return Character.isWhitespace(ch) || "(),:=;]".indexOf(ch) >= 0;
+    }
+
+    private Tree getTree(Future<Tree> future) throws IOException, Importer.ImportException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading trees");
+        } catch (ExecutionException e) {
+            finish();
+            throwError(e.getCause());
+            return null;
+        }
+    }
+
+    private static void throwError(Throwable cause) throws IOException, Importer.ImportException {
+        if (cause != null) {
+            if (cause instanceof Importer.ImportException) {
+                throw (Importer.ImportException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static class ParsedTree {
+        ParsedTree(Future<Tree> tree, int index, Exception error) {
+            this.tree = tree;
+            this.index = index;
+            this.error = error;
+        }
+
+        final Future<Tree> tree;
+        final int index;
+        final Exception error;
+    }
+
+    private final Reader reader;
+    private final boolean ignoreMetaComments;
+    private final int threadCount;
+    private final BlockingQueue<ParsedTree> queue;
+
+    private int burninTrees = 0;
+    private long burninStates = 0;
+    private int thinning = 1;
+
+    private TaxonList taxonList = null;
+    private ExecutorService pool = null;
+    private Thread scanner = null;
+
+    // used by the scanner thread
+    private StringBuilder header = new StringBuilder();
+    private boolean isTreesBlock = false;
+    private HashMap<String, Taxon> translationList = null;
+    private int usedTreeCount = 0;
+    private volatile int treeCount = 0;
+    private volatile boolean hasTreesBlock = false;
+
+    // used by the thread taking the trees
+    private Tree nextTree = null;
+    private int nextTreeIndex = -1;
+    private int lastTreeIndex = -1;
+    private boolean finished = false;
+}
@@ -0,0 +1,94 @@
+/*
+ * NexusTreeStreamBenchmark.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A timing harness comparing NexusImporter and NexusTreeStream reading all the trees of a NEXUS
+ * tree file (such as a BEAST .trees log). The trees from the two are checked to be the same.
+ *
+ * Usage: NexusTreeStreamBenchmark treeFileName [threadCount]
+ *
+ * @version $Id$
+ */
+public class NexusTreeStreamBenchmark {
+
+    public static void main(String[] args) throws IOException, Importer.ImportException {
+        if (args.length < 1) {
+            System.err.println("Usage: NexusTreeStreamBenchmark treeFileName [threadCount]");
+            return;
+        }
+        String fileName = args[0];
+        int threadCount = (args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+
+        // warm up
+        read(new NexusImporter(new FileReader(fileName)));
+        read(new NexusTreeStream(new FileReader(fileName), false, threadCount));
+
+        long startTime = System.nanoTime();
+        Reader reader = new FileReader(fileName);
+        int count1 = read(new NexusImporter(reader));
+        reader.close();
+        System.out.println("NexusImporter: " + count1 + " trees in " + milliseconds(startTime) + " ms");
+
+        startTime = System.nanoTime();
+        reader = new FileReader(fileName);
+        int count2 = read(new NexusTreeStream(reader, false, threadCount));
+        reader.close();
+        System.out.println("NexusTreeStream (" + threadCount + " threads): " + count2 + " trees in " +
+                milliseconds(startTime) + " ms");
+
+        TreeImporter importer1 = new NexusImporter(new FileReader(fileName));
+        TreeImporter importer2 = new NexusTreeStream(new FileReader(fileName), false, threadCount);
+        boolean identical = true;
+        while (identical && importer1.hasTree()) {
+            Tree tree1 = importer1.importNextTree();
+            Tree tree2 = importer2.importNextTree();
+            identical = tree2 != null && tree1.getId().equals(tree2.getId()) &&
+                    TreeUtils.newick(tree1).equals(TreeUtils.newick(tree2));
+        }
+        System.out.println("Trees identical: " + identical);
+    }
+
+    private static int read(TreeImporter importer) throws IOException, Importer.ImportException {
+        int count = 0;
+        while (importer.hasTree()) {
+            importer.importNextTree();
+            count++;
+        }
+        return count;
+    }
+
+    private static long milliseconds(long startTime) {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+}
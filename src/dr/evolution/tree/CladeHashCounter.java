@@ -0,0 +1,249 @@
+/*
+ * CladeHashCounter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the clades in a set of trees using a compact 128 bit key for each clade instead of a
+ * BitSet. Each taxon is given two pseudo-random 64 bit numbers (derived from a hash of its name)
+ * and the key of a clade is the sum of the numbers of its taxa, so it is built up from the keys of
+ * the child clades without ever holding the taxa of a clade. Two different clades have the same
+ * key with a probability of about 2^-128 so the counts are, in practice, exact.
+ *
+ * The counts are kept in an open addressing table of primitive arrays which uses about 35 bytes
+ * per clade whatever the number of taxa. Trees can be added from several threads at once.
+ *
+ * @version $Id$
+ */
+public class CladeHashCounter {
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final double MAX_LOAD = 0.6;
+
+    public CladeHashCounter() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Add the clades of the tree (excluding the tips but including the root).
+     */
+    public void add(Tree tree) {
+        int n = tree.getInternalNodeCount();
+        long[] keys1 = new long[n];
+        long[] keys2 = new long[n];
+        long[] key = new long[2];
+        int[] index = new int[1];
+
+        collectKeys(tree, tree.getRoot(), key, keys1, keys2, index);
+
+        synchronized (this) {
+            for (int i = 0; i < index[0]; i++) {
+                increment(keys1[i], keys2[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the clade below this node has been seen
+     */
+    public int getCount(Tree tree, NodeRef node) {
+        long[] key = new long[2];
+        getKey(tree, node, key);
+        return getCount(key[0], key[1]);
+    }
+
+    /**
+     * @return the number of different clades that have been added
+     */
+    public synchronized int getCladeCount() {
+        return size;
+    }
+
+    /**
+     * The sum of the log credibilities of the clades in the tree, with the credibility of a clade
+     * being the number of times it was seen divided by the total number of trees. The sum is taken
+     * in the same order as the recursion over the tree so the same tree always gets the same score.
+     * This doesn't change the table and can be called from several threads once all trees are added.
+     *
+     * @param tree           the tree
+     * @param totalTreesUsed the number of trees that were added
+     * @return the log clade credibility of the tree
+     */
+    public double getLogCladeCredibility(Tree tree, int totalTreesUsed) {
+        long[] key = new long[2];
+        return getLogCladeCredibility(tree, tree.getRoot(), (double) totalTreesUsed, key);
+    }
+
+    private double getLogCladeCredibility(Tree tree, NodeRef node, double totalTreesUsed, long[] key) {
+        double logCladeCredibility = 0.0;
+
+        if (tree.isExternal(node)) {
+            long[] taxonKey = getTaxonKey(tree.getNodeTaxon(node).getId());
+            key[0] = taxonKey[0];
+            key[1] = taxonKey[1];
+        } else {
+            long key1 = 0;
+            long key2 = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                logCladeCredibility += getLogCladeCredibility(tree, tree.getChild(node, i), totalTreesUsed, key);
+                key1 += key[0];
+                key2 += key[1];
+            }
+            key[0] = key1;
+            key[1] = key2;
+
+            // no lock as the table isn't changing
+            logCladeCredibility += Math.log(((double) counts[find(key1, key2)]) / totalTreesUsed);
+        }
+
+        return logCladeCredibility;
+    }
+
+    private void collectKeys(Tree tree, NodeRef node, long[] key, long[] keys1, long[] keys2, int[] index) {
+        if (tree.isExternal(node)) {
+            long[] taxonKey = getTaxonKey(tree.getNodeTaxon(node).getId());
+            key[0] = taxonKey[0];
+            key[1] = taxonKey[1];
+        } else {
+            long key1 = 0;
+            long key2 = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                collectKeys(tree, tree.getChild(node, i), key, keys1, keys2, index);
+                key1 += key[0];
+                key2 += key[1];
+            }
+            key[0] = key1;
+            key[1] = key2;
+
+            keys1[index[0]] = key1;
+            keys2[index[0]] = key2;
+            index[0]++;
+        }
+    }
+
+    private void getKey(Tree tree, NodeRef node, long[] key) {
+        if (tree.isExternal(node)) {
+            long[] taxonKey = getTaxonKey(tree.getNodeTaxon(node).getId());
+            key[0] = taxonKey[0];
+            key[1] = taxonKey[1];
+        } else {
+            long key1 = 0;
+            long key2 = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                getKey(tree, tree.getChild(node, i), key);
+                key1 += key[0];
+                key2 += key[1];
+            }
+            key[0] = key1;
+            key[1] = key2;
+        }
+    }
+
+    private long[] getTaxonKey(String id) {
+        long[] key = taxonKeys.get(id);
+        if (key == null) {
+            // two 64 bit FNV-1a hashes of the name with different starting values
+            key = new long[]{mix(hash(id, 0xcbf29ce484222325L)), mix(hash(id, 0x9e3779b97f4a7c15L))};
+            taxonKeys.put(id, key);
+        }
+        return key;
+    }
+
+    private static long hash(String id, long hash) {
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long z) {
+        // the finalizer of the SplitMix64 generator
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private synchronized int getCount(long key1, long key2) {
+        return counts[find(key1, key2)];
+    }
+
+    private void increment(long key1, long key2) {
+        int i = find(key1, key2);
+        if (counts[i] == 0) {
+            keys1[i] = key1;
+            keys2[i] = key2;
+            size++;
+        }
+        counts[i]++;
+
+        if (size > MAX_LOAD * counts.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return the slot holding this key or the empty slot where it would go
+     */
+    private int find(long key1, long key2) {
+        int mask = counts.length - 1;
+        int i = (int) (key1 ^ (key1 >>> 32)) & mask;
+        while (counts[i] != 0 && (keys1[i] != key1 || keys2[i] != key2)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        long[] oldKeys1 = keys1;
+        long[] oldKeys2 = keys2;
+        int[] oldCounts = counts;
+
+        allocate(oldCounts.length * 2);
+        for (int j = 0; j < oldCounts.length; j++) {
+            if (oldCounts[j] != 0) {
+                int i = find(oldKeys1[j], oldKeys2[j]);
+                keys1[i] = oldKeys1[j];
+                keys2[i] = oldKeys2[j];
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys1 = new long[capacity];
+        keys2 = new long[capacity];
+        counts = new int[capacity];
+    }
+
+    private final ConcurrentHashMap<String, long[]> taxonKeys = new ConcurrentHashMap<String, long[]>();
+
+    private long[] keys1;
+    private long[] keys2;
+    private int[] counts;
+    private int size = 0;
+}
@@ -25,6 +25,7 @@
 
 package dr.evomodel.coalescent;
 
+import dr.evolution.coalescent.IncrementalIntervals;
 import dr.evolution.coalescent.IntervalList;
 import dr.evolution.coalescent.IntervalType;
 import dr.evolution.coalescent.Intervals;
@@ -33,6 +34,7 @@ import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.TaxonList;
 import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeChangedEvent;
 import dr.evomodel.tree.TreeModel;
 import dr.inference.model.*;
 
@@ -81,8 +83,15 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
             addModel((TreeModel) tree);
         }
 
-        intervals = new Intervals(tree.getNodeCount());
-        storedIntervals = new Intervals(tree.getNodeCount());
+        if (tree instanceof TreeModel && includedLeafSet == null && excludedLeafSets.length == 0) {
+            // every node of the tree is an event so the intervals can be updated node by node
+            incrementalIntervals = new IncrementalIntervals(tree.getNodeCount());
+            isNodeChanged = new boolean[tree.getNodeCount()];
+            changedNodes = new int[tree.getNodeCount()];
+        } else {
+            intervals = new Intervals(tree.getNodeCount());
+            storedIntervals = new Intervals(tree.getNodeCount());
+        }
         eventsKnown = false;
 
         this.coalescentEventStatisticValues = new double[getNumberOfCoalescentEvents()];
@@ -98,8 +107,23 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
 
     protected final void handleModelChangedEvent(Model model, Object object, int index) {
         if (model == tree) {
-            // treeModel has changed so recalculate the intervals
+            if (incrementalIntervals != null && object instanceof TreeChangedEvent &&
+                    ((TreeChangedEvent) object).isNodeChanged() && ((TreeChangedEvent) object).getIndex() >= -1) {
+                // only the height of this node may have changed (the events are reused so
+                // just the node number is kept)
+                int number = ((TreeChangedEvent) object).getNode().getNumber();
+                if (!isNodeChanged[number]) {
+                    isNodeChanged[number] = true;
+                    changedNodes[changedNodeCount] = number;
+                    changedNodeCount++;
+                }
+            } else {
+                // treeModel has changed so recalculate the intervals
+                allNodesChanged = true;
+            }
             eventsKnown = false;
+        } else {
+            demographicChanged = true;
         }
 
         likelihoodKnown = false;
@@ -120,8 +144,15 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      * Stores the precalculated state: in this case the intervals
      */
     protected final void storeState() {
-        // copy the intervals into the storedIntervals
-        storedIntervals.copyIntervals(intervals);
+        if (incrementalIntervals != null) {
+            // only copies what has changed since the last store or restore
+            incrementalIntervals.storeState();
+            storedAllNodesChanged = allNodesChanged;
+            storedDemographicChanged = demographicChanged;
+        } else {
+            // copy the intervals into the storedIntervals
+            storedIntervals.copyIntervals(intervals);
+        }
 
         storedEventsKnown = eventsKnown;
         storedLikelihoodKnown = likelihoodKnown;
@@ -132,10 +163,18 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      * Restores the precalculated state: that is the intervals of the tree.
      */
     protected final void restoreState() {
-        // swap the intervals back
-        Intervals tmp = storedIntervals;
-        storedIntervals = intervals;
-        intervals = tmp;
+        if (incrementalIntervals != null) {
+            incrementalIntervals.restoreState();
+            allNodesChanged = storedAllNodesChanged;
+            demographicChanged = storedDemographicChanged;
+            // any nodes still listed as changed are checked against the tree at the next update
+            // (those changed since the store will have been restored to the same heights)
+        } else {
+            // swap the intervals back
+            Intervals tmp = storedIntervals;
+            storedIntervals = intervals;
+            intervals = tmp;
+        }
 
         eventsKnown = storedEventsKnown;
         likelihoodKnown = storedLikelihoodKnown;
@@ -208,18 +247,67 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
     }
 
     public IntervalList getIntervals() {
+        if (incrementalIntervals != null) {
+            return incrementalIntervals;
+        }
         return intervals;
     }
 
     /**
-     * Recalculates all the intervals from the tree model.
+     * @return the intervals that can be updated incrementally or null if the intervals are
+     * collected from the tree each time (because some subtrees are included or excluded).
+     */
+    protected IncrementalIntervals getIncrementalIntervals() {
+        return incrementalIntervals;
+    }
+
+    /**
+     * Returns whether any model other than the tree (e.g., the demographic model) has changed since
+     * the last call of this method and clears it.
+     */
+    protected boolean checkDemographicChanged() {
+        boolean changed = demographicChanged;
+        demographicChanged = false;
+        return changed;
+    }
+
+    /**
+     * Recalculates the intervals from the tree model.
      */
     protected final void setupIntervals() {
 
-        intervals.resetEvents();
-        collectTimes(tree, getIncludedMRCA(tree), getExcludedMRCAs(tree), intervals);
-        // force a calculation of the intervals...
-        intervals.getIntervalCount();
+        if (incrementalIntervals != null) {
+            if (allNodesChanged) {
+                incrementalIntervals.resetEvents();
+                for (int i = 0; i < tree.getNodeCount(); i++) {
+                    NodeRef node = tree.getNode(i);
+                    incrementalIntervals.addEvent(node.getNumber(), tree.getNodeHeight(node),
+                            tree.isExternal(node) ? IntervalType.SAMPLE : IntervalType.COALESCENT);
+                }
+                // force a calculation of the intervals...
+                incrementalIntervals.getIntervalCount();
+                incrementalIntervals.invalidateTerms();
+                allNodesChanged = false;
+            } else {
+                // move just the nodes whose heights have changed
+                for (int i = 0; i < changedNodeCount; i++) {
+                    int number = changedNodes[i];
+                    double height = tree.getNodeHeight(tree.getNode(number));
+                    if (height != incrementalIntervals.getEventTime(number)) {
+                        incrementalIntervals.setEventTime(number, height);
+                    }
+                }
+            }
+            for (int i = 0; i < changedNodeCount; i++) {
+                isNodeChanged[changedNodes[i]] = false;
+            }
+            changedNodeCount = 0;
+        } else {
+            intervals.resetEvents();
+            collectTimes(tree, getIncludedMRCA(tree), getExcludedMRCAs(tree), intervals);
+            // force a calculation of the intervals...
+            intervals.getIntervalCount();
+        }
 
         eventsKnown = true;
         likelihoodKnown = false;
@@ -260,14 +348,14 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getInterval(i);
+        return getIntervals().getInterval(i);
     }
 
     public int getCoalescentIntervalDimension() {
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getIntervalCount();
+        return getIntervals().getIntervalCount();
     }
 
     public int getNumberOfCoalescentEvents() {
@@ -278,14 +366,14 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getLineageCount(i);
+        return getIntervals().getLineageCount(i);
     }
 
     public IntervalType getCoalescentIntervalType(int i) {
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getIntervalType(i);
+        return getIntervals().getIntervalType(i);
     }
 
     public double getCoalescentEventsStatisticValue(int i) {
@@ -353,6 +441,21 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      */
     private Intervals storedIntervals = null;
 
+    /**
+     * The intervals updated node by node (instead of intervals and storedIntervals) when
+     * every node of a TreeModel is included.
+     */
+    private IncrementalIntervals incrementalIntervals = null;
+
+    private boolean[] isNodeChanged;
+    private int[] changedNodes;
+    private int changedNodeCount = 0;
+
+    private boolean allNodesChanged = true;
+    private boolean storedAllNodesChanged = true;
+    private boolean demographicChanged = true;
+    private boolean storedDemographicChanged = true;
+
     private boolean eventsKnown = false;
     private boolean storedEventsKnown = false;
 
@@ -27,6 +27,7 @@ package dr.evomodel.coalescent;
 
 import dr.evolution.coalescent.Coalescent;
 import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.coalescent.IncrementalIntervals;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.TaxonList;
@@ -74,8 +75,21 @@ public final class CoalescentLikelihood extends AbstractCoalescentLikelihood imp
 
 		DemographicFunction demoFunction = demoModel.getDemographicFunction();
 
-		//double lnL =  Coalescent.calculateLogLikelihood(getIntervals(), demoFunction);
-        double lnL =  Coalescent.calculateLogLikelihood(getIntervals(), demoFunction, demoFunction.getThreshold());
+		IncrementalIntervals intervals = getIncrementalIntervals();
+		boolean demographicChanged = checkDemographicChanged();
+
+		double lnL;
+		if (intervals != null && (demoModel instanceof ConstantPopulationModel || demoModel instanceof ExponentialGrowthModel)) {
+			// only the contributions of the intervals that have changed need calculating
+			// unless the demographic model has changed
+			if (demographicChanged) {
+				intervals.invalidateTerms();
+			}
+			lnL = intervals.calculateLogLikelihood(demoFunction, demoFunction.getThreshold());
+		} else {
+			//double lnL =  Coalescent.calculateLogLikelihood(getIntervals(), demoFunction);
+			lnL = Coalescent.calculateLogLikelihood(getIntervals(), demoFunction, demoFunction.getThreshold());
+		}
 
 		if (Double.isNaN(lnL) || Double.isInfinite(lnL)) {
 			Logger.getLogger("warning").severe("CoalescentLikelihood for " + demoModel.getId() + " is " + Double.toString(lnL));
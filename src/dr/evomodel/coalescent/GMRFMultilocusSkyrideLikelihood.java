@@ -34,6 +34,7 @@ import dr.evomodelxml.coalescent.GMRFSkyrideLikelihoodParser;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -711,7 +712,7 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         diag[fieldLength - 1] = diagonalValue - 1.0;
 
 
-        weightMatrix = new SymmTridiagMatrix(diag, offdiag);
+        setWeightMatrix(diag, offdiag);
 
     }
 
@@ -835,7 +836,7 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         public SkygridHelper() {
         }
 
-        protected void updateGammaWithCovariates(DenseVector currentGamma) {
+        protected void updateGammaWithCovariates(double[] currentGamma) {
             // Do nothing
         }
 
@@ -852,17 +853,15 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
                 intervalsKnown = true;
             }
 
-            DenseVector diagonal1 = new DenseVector(fieldLength);
-            DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+            double[] currentGamma = getFieldValues();
 
             updateGammaWithCovariates(currentGamma);
 
             double currentLike = handleMissingValues();
 
-            SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-            currentQ.mult(currentGamma, diagonal1);
+            double quadraticForm = getScaledQuadraticForm(currentGamma, precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
 
-            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * quadraticForm;
             if (lambdaParameter.getParameterValue(0) == 1) {
                 currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
             } else {
@@ -879,14 +878,18 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         }
 
         @Override
-        protected void updateGammaWithCovariates(DenseVector currentGamma) {
+        protected void updateGammaWithCovariates(double[] currentGamma) {
 
             // Handle betaParameter / designMatrix
 
             if (NEW_APPROACH) {
 
-                final int N = currentGamma.size();
-                double[] update = new double[N];
+                final int N = currentGamma.length;
+                if (update == null || update.length != N) {
+                    update = new double[N];
+                } else {
+                    Arrays.fill(update, 0.0);
+                }
 
                 if (dMatrix != null) {
                     final int K = dMatrix.getColumnDimension();
@@ -929,7 +932,7 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
                 }
 
                 for (int i = 0; i < N; ++i) {
-                    currentGamma.set(i, currentGamma.get(i) - update[i]);
+                    currentGamma[i] = currentGamma[i] - update[i];
                 }
 
             } else {
@@ -950,11 +953,13 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
                     for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
                         // System.err.println("j: " + j);
                         // System.err.println("covariates.get(i).getParameterValue(0,j): " + covariates.get(i).getParameterValue(0,j));
-                        currentGamma.set(j, currentGamma.get(j) - covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+                        currentGamma[j] = currentGamma[j] - covariates.get(i).getParameterValue(0, j) * currentBeta.get(i);
                     }
                 }
             }
         }
+
+        private double[] update;
     }
 
     private static final boolean NEW_APPROACH = true;
@@ -968,38 +973,38 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         protected double handleMissingValues() {
 
             int numMissing;
-            DenseVector tempVectMissingCov;
-            SymmTridiagMatrix missingCovQ;
-            DenseVector tempVectMissingCov2;
 
             double currentLike = 0.0;
 
+            if (missingValues == null || missingValues.length != fieldLength) {
+                missingValues = new double[fieldLength];
+                missingProduct = new double[fieldLength];
+                missingDiagonal = new double[fieldLength];
+                missingOffDiagonal = new double[fieldLength];
+            }
+
             for (int i = 0; i < covPrecParameters.size(); i++) {
 
                 numMissing = fieldLength - lastObservedIndex[i];
-                tempVectMissingCov = new DenseVector(numMissing);
-                tempVectMissingCov2 = new DenseVector(numMissing);
 
-                missingCovQ = getScaledWeightMatrixForMissingCov(covPrecParameters.get(i).getParameterValue(0), i,
-                        lastObservedIndex[i]);
+                double precision = covPrecParameters.get(i).getParameterValue(0);
+                scaleWeightMatrix(weightMatricesForMissingCov.get(i), precision, 1.0, missingDiagonal, missingOffDiagonal);
 
                 for (int j = 0; j < numMissing; j++) {
-                    // System.err.println("covariate.get(i).getSize(): " + covariates.get(i).getSize());
-                    // System.err.println("lastObservedIndex: " + lastObservedIndex);
-                    // System.err.println("j: " + j);
-                    // System.err.println("getParameterValue(0, lastObservedIndex-1): " + covariates.get(i).getParameterValue(0,lastObservedIndex-1));
-                    tempVectMissingCov.set(j, covariates.get(i).getParameterValue(0, lastObservedIndex[i] + j) -
-                            covariates.get(i).getParameterValue(0, lastObservedIndex[i] - 1));
+                    missingValues[j] = covariates.get(i).getParameterValue(0, lastObservedIndex[i] + j) -
+                            covariates.get(i).getParameterValue(0, lastObservedIndex[i] - 1);
                 }
 
-                missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
-                // System.err.println("missingCovQ: " + missingCovQ.get(0,0));
-                currentLike += 0.5 * (numMissing) * Math.log(covPrecParameters.get(i).getParameterValue(0))
-                        - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                currentLike += 0.5 * (numMissing) * Math.log(precision)
+                        - 0.5 * TridiagonalCholesky.quadraticForm(missingDiagonal, missingOffDiagonal, missingValues, missingProduct, numMissing);
             }
             return currentLike;
         }
 
+        private double[] missingValues;
+        private double[] missingProduct;
+        private double[] missingDiagonal;
+        private double[] missingOffDiagonal;
     }
 
     @Override
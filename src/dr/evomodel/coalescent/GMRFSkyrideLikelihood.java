@@ -34,10 +34,10 @@ import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.NotConvergedException;
 import no.uib.cipr.matrix.SymmTridiagEVD;
 import no.uib.cipr.matrix.SymmTridiagMatrix;
@@ -84,6 +84,12 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
     protected SymmTridiagMatrix weightMatrix;
     protected SymmTridiagMatrix storedWeightMatrix;
     protected MatrixParameter dMatrix;
+
+    // arrays reused in calculating the field likelihood
+    private double[] scaledDiagonal;
+    private double[] scaledOffDiagonal;
+    private double[] product;
+    private double[] fieldValues;
     protected boolean timeAwareSmoothing = TIME_AWARE_IS_ON_BY_DEFAULT;
     protected boolean rescaleByRootHeight;
 
@@ -310,42 +316,98 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         diag[0] = -offdiag[0];
         diag[fieldLength - 1] = -offdiag[fieldLength - 2];
 
-        weightMatrix = new SymmTridiagMatrix(diag, offdiag);
+        setWeightMatrix(diag, offdiag);
     }
 
+    /**
+     * Sets the weight matrix, copying the values into the current one if it is the same size
+     * rather than allocating a new one.
+     */
+    protected void setWeightMatrix(double[] diag, double[] offdiag) {
+        if (weightMatrix != null && weightMatrix != storedWeightMatrix && weightMatrix.numRows() == diag.length) {
+            System.arraycopy(diag, 0, weightMatrix.getDiagonal(), 0, diag.length);
+            System.arraycopy(offdiag, 0, weightMatrix.getOffDiagonal(), 0, offdiag.length);
+        } else {
+            weightMatrix = new SymmTridiagMatrix(diag, offdiag);
+        }
+    }
 
     public SymmTridiagMatrix getScaledWeightMatrix(double precision) {
-        SymmTridiagMatrix a = weightMatrix.copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(fieldLength - 1, fieldLength - 1, a.get(fieldLength - 1, fieldLength - 1) * precision);
-        return a;
+        return getScaledWeightMatrix(precision, 1.0);
     }
 
     public SymmTridiagMatrix getStoredScaledWeightMatrix(double precision) {
-        SymmTridiagMatrix a = storedWeightMatrix.copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(fieldLength - 1, fieldLength - 1, a.get(fieldLength - 1, fieldLength - 1) * precision);
-        return a;
+        return getStoredScaledWeightMatrix(precision, 1.0);
     }
 
     public SymmTridiagMatrix getScaledWeightMatrix(double precision, double lambda) {
-        if (lambda == 1)
-            return getScaledWeightMatrix(precision);
+        int n = weightMatrix.numRows();
+        double[] diag = new double[n];
+        double[] offdiag = new double[n - 1];
+        scaleWeightMatrix(weightMatrix, precision, lambda, diag, offdiag);
+        return new SymmTridiagMatrix(diag, offdiag);
+    }
+
+    /**
+     * Puts the diagonal and off diagonal of the weight matrix scaled by the precision and lambda
+     * into the given arrays (without allocating a matrix).
+     */
+    public void getScaledWeightMatrix(double precision, double lambda, double[] diag, double[] offdiag) {
+        scaleWeightMatrix(weightMatrix, precision, lambda, diag, offdiag);
+    }
+
+    public void getStoredScaledWeightMatrix(double precision, double lambda, double[] diag, double[] offdiag) {
+        scaleWeightMatrix(storedWeightMatrix, precision, lambda, diag, offdiag);
+    }
+
+    protected static void scaleWeightMatrix(SymmTridiagMatrix matrix, double precision, double lambda,
+                                            double[] diag, double[] offdiag) {
+        final double[] weightDiag = matrix.getDiagonal();
+        final double[] weightOffdiag = matrix.getOffDiagonal();
+        final int n = matrix.numRows();
+
+        if (lambda == 1) {
+            for (int i = 0; i < n - 1; i++) {
+                diag[i] = weightDiag[i] * precision;
+                offdiag[i] = weightOffdiag[i] * precision;
+            }
+            diag[n - 1] = weightDiag[n - 1] * precision;
+        } else {
+            for (int i = 0; i < n - 1; i++) {
+                diag[i] = precision * (1 - lambda + lambda * weightDiag[i]);
+                offdiag[i] = weightOffdiag[i] * precision * lambda;
+            }
+            diag[n - 1] = precision * (1 - lambda + lambda * weightDiag[n - 1]);
+        }
+    }
 
-        SymmTridiagMatrix a = weightMatrix.copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, precision * (1 - lambda + lambda * a.get(i, i)));
-            a.set(i + 1, i, a.get(i + 1, i) * precision * lambda);
+    /**
+     * @return gamma'Qgamma where Q is the weight matrix scaled by the precision and lambda, without
+     * allocating any matrices or vectors (the sums are in the same order as in MTJ).
+     */
+    protected double getScaledQuadraticForm(double[] gamma, double precision, double lambda) {
+        final int n = weightMatrix.numRows();
+        if (scaledDiagonal == null || scaledDiagonal.length != n) {
+            scaledDiagonal = new double[n];
+            scaledOffDiagonal = new double[n - 1];
+            product = new double[n];
         }
+        scaleWeightMatrix(weightMatrix, precision, lambda, scaledDiagonal, scaledOffDiagonal);
+        return TridiagonalCholesky.quadraticForm(scaledDiagonal, scaledOffDiagonal, gamma, product, n);
+    }
 
-        a.set(fieldLength - 1, fieldLength - 1, precision * (1 - lambda + lambda * a.get(fieldLength - 1, fieldLength - 1)));
-        return a;
+    /**
+     * @return the values of the population size parameter in an array that is reused
+     */
+    protected double[] getFieldValues() {
+        final int n = popSizeParameter.getDimension();
+        if (fieldValues == null || fieldValues.length != n) {
+            fieldValues = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            fieldValues[i] = popSizeParameter.getParameterValue(i);
+        }
+        return fieldValues;
     }
 
     private void makeIntervalsKnown() {
@@ -399,17 +461,11 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
     }
 
     public SymmTridiagMatrix getStoredScaledWeightMatrix(double precision, double lambda) {
-        if (lambda == 1)
-            return getStoredScaledWeightMatrix(precision);
-
-        SymmTridiagMatrix a = storedWeightMatrix.copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, precision * (1 - lambda + lambda * a.get(i, i)));
-            a.set(i + 1, i, a.get(i + 1, i) * precision * lambda);
-        }
-
-        a.set(fieldLength - 1, fieldLength - 1, precision * (1 - lambda + lambda * a.get(fieldLength - 1, fieldLength - 1)));
-        return a;
+        int n = storedWeightMatrix.numRows();
+        double[] diag = new double[n];
+        double[] offdiag = new double[n - 1];
+        scaleWeightMatrix(storedWeightMatrix, precision, lambda, diag, offdiag);
+        return new SymmTridiagMatrix(diag, offdiag);
     }
 
 
@@ -417,7 +473,14 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         super.storeState();
         System.arraycopy(coalescentIntervals, 0, storedCoalescentIntervals, 0, coalescentIntervals.length);
         System.arraycopy(sufficientStatistics, 0, storedSufficientStatistics, 0, sufficientStatistics.length);
-        storedWeightMatrix = weightMatrix.copy();
+        if (storedWeightMatrix != null && storedWeightMatrix != weightMatrix &&
+                storedWeightMatrix.numRows() == weightMatrix.numRows()) {
+            // reuse the stored matrix
+            System.arraycopy(weightMatrix.getDiagonal(), 0, storedWeightMatrix.getDiagonal(), 0, weightMatrix.numRows());
+            System.arraycopy(weightMatrix.getOffDiagonal(), 0, storedWeightMatrix.getOffDiagonal(), 0, weightMatrix.numRows() - 1);
+        } else {
+            storedWeightMatrix = weightMatrix.copy();
+        }
         storedLogFieldLikelihood = logFieldLikelihood;
     }
 
@@ -427,7 +490,9 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         // TODO Just swap pointers
         System.arraycopy(storedCoalescentIntervals, 0, coalescentIntervals, 0, storedCoalescentIntervals.length);
         System.arraycopy(storedSufficientStatistics, 0, sufficientStatistics, 0, storedSufficientStatistics.length);
+        SymmTridiagMatrix tmp = weightMatrix;
         weightMatrix = storedWeightMatrix;
+        storedWeightMatrix = tmp;
         logFieldLikelihood = storedLogFieldLikelihood;
     }
 
@@ -461,15 +526,13 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         makeIntervalsKnown();
 
         double currentLike = 0;
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+        double[] currentGamma = getFieldValues();
 
-        SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-        currentQ.mult(currentGamma, diagonal1);
+        double quadraticForm = getScaledQuadraticForm(currentGamma, precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
 
 //        currentLike += 0.5 * logGeneralizedDeterminant(currentQ) - 0.5 * currentGamma.dot(diagonal1);
 
-        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * quadraticForm;
         if (lambdaParameter.getParameterValue(0) == 1) {
             currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
         } else {
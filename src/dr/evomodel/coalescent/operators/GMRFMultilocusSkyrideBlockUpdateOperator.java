@@ -31,8 +31,10 @@ import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
 import no.uib.cipr.matrix.*;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -62,7 +64,31 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
 
     GMRFMultilocusSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    // the arrays used by the operation, allocated once
+    private final double[] currentGamma;
+    private final double[] proposedGamma;
+    private final double[] currentQDiagonal;
+    private final double[] currentQOffDiagonal;
+    private final double[] proposedQDiagonal;
+    private final double[] proposedQOffDiagonal;
+    private final double[] zBeta;
+    private final double[] qZBetaCurrent;
+    private final double[] qZBetaProposed;
+    private final double[] forwardQWDiagonal;
+    private final double[] backwardQWDiagonal;
+    private final double[] fieldMode;
+    private final double[] canonical;
+    private final double[] forwardMean;
+    private final double[] backwardMean;
+    private final double[] standNorm;
+    private final double[] difference;
+    private final double[] product;
+    private final double[] gradient;
+    private final double[] jacobianDiagonal;
+    private final double[] step;
+
+    private final TridiagonalCholesky forwardCholesky;
+    private final TridiagonalCholesky backwardCholesky;
 
     public GMRFMultilocusSkyrideBlockUpdateOperator(GMRFMultilocusSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -83,7 +109,30 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        currentQDiagonal = new double[fieldLength];
+        currentQOffDiagonal = new double[fieldLength - 1];
+        proposedQDiagonal = new double[fieldLength];
+        proposedQOffDiagonal = new double[fieldLength - 1];
+        zBeta = new double[fieldLength];
+        qZBetaCurrent = new double[fieldLength];
+        qZBetaProposed = new double[fieldLength];
+        forwardQWDiagonal = new double[fieldLength];
+        backwardQWDiagonal = new double[fieldLength];
+        fieldMode = new double[fieldLength];
+        canonical = new double[fieldLength];
+        forwardMean = new double[fieldLength];
+        backwardMean = new double[fieldLength];
+        standNorm = new double[fieldLength];
+        difference = new double[fieldLength];
+        product = new double[fieldLength];
+        gradient = new double[fieldLength];
+        jacobianDiagonal = new double[fieldLength];
+        step = new double[fieldLength];
+
+        forwardCholesky = new TridiagonalCholesky(fieldLength);
+        backwardCholesky = new TridiagonalCholesky(fieldLength);
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -113,44 +162,6 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
     public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
         int length = Mean.size();
         DenseVector tempValue = new DenseVector(length);
@@ -171,84 +182,79 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
     }
 
 
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
+    public static double logGeneralizedDeterminant(TridiagonalCholesky cholesky) {
         double returnValue = 0;
 
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
+        for (int i = 0; i < cholesky.getDimension(); i++) {
+            if (cholesky.getFactorDiagonal(i) > 0.0000001) {
+                returnValue += Math.log(cholesky.getFactorDiagonal(i));
             }
         }
 
         return returnValue;
     }
 
-    public DenseVector getZBeta(List<MatrixParameter> covariates, List<Parameter> beta){
+    /**
+     * Puts the covariate effects into zBeta (zero if there are no covariates).
+     */
+    public void getZBeta(List<MatrixParameter> covariates, List<Parameter> beta, double[] zBeta) {
 
-        DenseVector temporaryVect = new DenseVector(fieldLength);
+        Arrays.fill(zBeta, 0.0);
 
         // TODO: Update for covariateMatrix block as well !!!
 
-        if(covariates != null) {
-           // DenseVector currentBeta = new DenseVector(beta.getParameterValues());
-            DenseVector currentBeta = new DenseVector(beta.size());
-            for(int i =0; i < beta.size(); i++){
-                currentBeta.set(i, beta.get(i).getParameterValue(0));
-            }
-
+        if (covariates != null) {
             for (int i = 0; i < covariates.size(); i++) {
                 for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
-                    temporaryVect.set(j, covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+                    zBeta[j] = covariates.get(i).getParameterValue(0, j) * beta.get(i).getParameterValue(0);
                 }
             }
-            return temporaryVect;
-        }else{
-            return temporaryVect.zero();
         }
     }
 
-    public DenseVector newtonRaphson(double[] data1, double[] data2, DenseVector currentGamma,
-                                     SymmTridiagMatrix proposedQ, DenseVector ZBeta) {
-        return newNewtonRaphson(data1, data2, currentGamma, proposedQ, maxIterations, stopValue, ZBeta);
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
     }
 
-    public static DenseVector newNewtonRaphson(double[] data1, double[] data2, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue, DenseVector ZBeta) {
-
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
+    /**
+     * Finds the mode of the full conditional of the field by Newton-Raphson, starting from
+     * currentGamma and putting it in mode.
+     *
+     * @return false if it failed to converge
+     */
+    private boolean newtonRaphson(double[] data1, double[] data2, double[] currentGamma,
+                                  double[] qDiagonal, double[] qOffDiagonal, double[] qZBeta, double[] mode) {
+        System.arraycopy(currentGamma, 0, mode, 0, fieldLength);
 
         int numberIterations = 0;
 
-
-        while (gradient(data1, data2, iterateGamma, proposedQ, ZBeta).norm(Vector.Norm.Two) > stopValue) {
-           try {
-                jacobian(data2, iterateGamma, proposedQ).solve(gradient(data1, data2, iterateGamma, proposedQ, ZBeta), tempValue);
-           } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-               if (FAIL_SILENTLY) {
-                   // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                   return null;
-               }
-               Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-               throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                       "Try starting BEAST with a more accurate initial tree.");
-           } catch (no.uib.cipr.matrix.MatrixSingularException e) {
-               if (FAIL_SILENTLY) {
-                   // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                   return null;
-               }
-               Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-               throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                       "Try starting BEAST with a more accurate initial tree.");
+        while (gradient(data1, data2, mode, qDiagonal, qOffDiagonal, qZBeta, gradient) > stopValue) {
+            // the jacobian
+            for (int i = 0; i < fieldLength; i++) {
+                jacobianDiagonal[i] = qDiagonal[i] + Math.exp(-mode[i]) * data2[i];
+            }
+            if (!forwardCholesky.solveOnce(jacobianDiagonal, qOffDiagonal, gradient, step)) {
+                if (FAIL_SILENTLY) {
+                    // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
+                    return false;
+                }
+                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
+                throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
+                        "Try starting BEAST with a more accurate initial tree.");
+            }
+            for (int i = 0; i < fieldLength; i++) {
+                mode[i] += step[i];
             }
-
-            iterateGamma.add(tempValue);
             numberIterations++;
 
             if (numberIterations > maxIterations) {
                 if (FAIL_SILENTLY) {
                     // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                    return null;
+                    return false;
                 }
                 Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
                 throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
@@ -257,31 +263,46 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         }
 
         Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
+        return true;
     }
 
-    private static DenseVector gradient(double[] data1, double[] data2, DenseVector value,
-                                        SymmTridiagMatrix Q, DenseVector ZBeta) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        DenseVector returnValueCov = new DenseVector(ZBeta.size());
-        Q.mult(value, returnValue);
-        //check this
-        Q.mult(ZBeta, returnValueCov);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) +returnValueCov.get(i) - data1[i] + data2[i] * Math.exp(-value.get(i)));
+    /**
+     * Puts the gradient at value into gradient.
+     *
+     * @return the Euclidean norm of the gradient
+     */
+    private static double gradient(double[] data1, double[] data2, double[] value,
+                                   double[] qDiagonal, double[] qOffDiagonal, double[] qZBeta, double[] gradient) {
+        TridiagonalCholesky.multiply(qDiagonal, qOffDiagonal, value, gradient, value.length);
+        double norm = 0.0;
+        for (int i = 0; i < value.length; i++) {
+            gradient[i] = -gradient[i] + qZBeta[i] - data1[i] + data2[i] * Math.exp(-value[i]);
+            norm += gradient[i] * gradient[i];
         }
-        return returnValue;
+        return Math.sqrt(norm);
     }
 
+    /**
+     * Sets up the Gaussian approximation to the full conditional of the field at the mode: adds
+     * the curvature of the coalescent likelihood to the diagonal of Q, factorizes it and solves for
+     * the mean.
+     */
+    private void approximateAtMode(double[] data1, double[] data2, double[] mode, double[] qDiagonal,
+                                   double[] qOffDiagonal, double[] qZBeta, double[] qwDiagonal,
+                                   TridiagonalCholesky cholesky, double[] mean) {
+        for (int i = 0; i < fieldLength; i++) {
+            double d1 = data2[i] * Math.exp(-mode[i]);
+            double d2 = mode[i] + 1;
+
+            qwDiagonal[i] = d1 + qDiagonal[i];
+            canonical[i] = qZBeta[i] + d1 * d2 - data1[i];
+        }
 
-    private static SPDTridiagMatrix jacobian(double[] data2, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data2[i]);
+        if (!cholesky.factor(qwDiagonal, qOffDiagonal)) {
+            throw new MatrixNotSPDException();
         }
-        return jacobian;
+
+        cholesky.solve(canonical, mean);
     }
 
     public double doOperation() {
@@ -295,110 +316,64 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
 
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda, currentQDiagonal, currentQOffDiagonal);
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda, proposedQDiagonal, proposedQOffDiagonal);
 
         double[] wNative = gmrfField.getSufficientStatistics();
         double[] numCoalEv = gmrfField.getNumCoalEvents();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
+        getZBeta(covariates, betaParameter, zBeta);
+        TridiagonalCholesky.multiply(proposedQDiagonal, proposedQOffDiagonal, zBeta, qZBetaProposed, fieldLength);
+        TridiagonalCholesky.multiply(currentQDiagonal, currentQOffDiagonal, zBeta, qZBetaCurrent, fieldLength);
 
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-        DenseVector ZBetaVector = getZBeta(covariates, betaParameter);
-        DenseVector QZBetaProp = new DenseVector(fieldLength);
-        DenseVector QZBetaCurrent = new DenseVector(fieldLength);
-        forwardQW.mult(ZBetaVector, QZBetaProp);
-        backwardQW.mult(ZBetaVector, QZBetaCurrent);
-
-        DenseVector modeForward = newtonRaphson(numCoalEv, wNative, currentGamma, proposedQ.copy(), ZBetaVector);
-
-        if (modeForward == null) {
+        if (!newtonRaphson(numCoalEv, wNative, currentGamma, proposedQDiagonal, proposedQOffDiagonal, qZBetaProposed, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
+        approximateAtMode(numCoalEv, wNative, fieldMode, proposedQDiagonal, proposedQOffDiagonal, qZBetaProposed,
+                forwardQWDiagonal, forwardCholesky, forwardMean);
 
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaProp.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
+        for (int i = 0; i < fieldLength; i++)
+            standNorm[i] = MathUtils.nextGaussian();
 
-        /*
-        double hRatio = 0;
+        // x = mean + U^-1 z
+        forwardCholesky.solveUpper(standNorm, proposedGamma);
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, proposedGamma.get(i) - forwardMean.get(i));
+            proposedGamma[i] += forwardMean[i];
         }
-        diagonal3.zero();
-        forwardQW.mult(diagonal1, diagonal3);
-
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * diagonal1.dot(diagonal3);
-        */
 
         for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
 
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(numCoalEv, wNative, proposedGamma, currentQ.copy(), ZBetaVector);
-
-        if (modeBackward == null) {
+        if (!newtonRaphson(numCoalEv, wNative, proposedGamma, currentQDiagonal, currentQOffDiagonal, qZBetaCurrent, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaCurrent.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+        approximateAtMode(numCoalEv, wNative, fieldMode, currentQDiagonal, currentQOffDiagonal, qZBetaCurrent,
+                backwardQWDiagonal, backwardCholesky, backwardMean);
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
+            difference[i] = currentGamma[i] - backwardMean[i];
         }
 
-        backwardQW.mult(diagonal1, diagonal3);
+        TridiagonalCholesky.multiply(backwardQWDiagonal, currentQOffDiagonal, difference, product, fieldLength);
+
+        hRatio += logGeneralizedDeterminant(backwardCholesky) - 0.5 * dot(difference, product);
+        hRatio -= logGeneralizedDeterminant(forwardCholesky) - 0.5 * dot(standNorm, standNorm);
 
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
 
-       return hRatio;
+        return hRatio;
     }
 
     //MCMCOperator INTERFACE
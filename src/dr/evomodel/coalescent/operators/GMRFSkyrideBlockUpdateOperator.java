@@ -30,6 +30,7 @@ import dr.evomodelxml.coalescent.operators.GMRFSkyrideBlockUpdateOperatorParser;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
 import no.uib.cipr.matrix.*;
 
 import java.util.logging.Logger;
@@ -57,7 +58,28 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
 
     GMRFSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    // the arrays used by the operation, allocated once
+    private final double[] currentGamma;
+    private final double[] proposedGamma;
+    private final double[] currentQDiagonal;
+    private final double[] currentQOffDiagonal;
+    private final double[] proposedQDiagonal;
+    private final double[] proposedQOffDiagonal;
+    private final double[] forwardQWDiagonal;
+    private final double[] backwardQWDiagonal;
+    private final double[] fieldMode;
+    private final double[] canonical;
+    private final double[] forwardMean;
+    private final double[] backwardMean;
+    private final double[] standNorm;
+    private final double[] difference;
+    private final double[] product;
+    private final double[] gradient;
+    private final double[] jacobianDiagonal;
+    private final double[] step;
+
+    private final TridiagonalCholesky forwardCholesky;
+    private final TridiagonalCholesky backwardCholesky;
 
     public GMRFSkyrideBlockUpdateOperator(GMRFSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -76,7 +98,27 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        currentQDiagonal = new double[fieldLength];
+        currentQOffDiagonal = new double[fieldLength - 1];
+        proposedQDiagonal = new double[fieldLength];
+        proposedQOffDiagonal = new double[fieldLength - 1];
+        forwardQWDiagonal = new double[fieldLength];
+        backwardQWDiagonal = new double[fieldLength];
+        fieldMode = new double[fieldLength];
+        canonical = new double[fieldLength];
+        forwardMean = new double[fieldLength];
+        backwardMean = new double[fieldLength];
+        standNorm = new double[fieldLength];
+        difference = new double[fieldLength];
+        product = new double[fieldLength];
+        gradient = new double[fieldLength];
+        jacobianDiagonal = new double[fieldLength];
+        step = new double[fieldLength];
+
+        forwardCholesky = new TridiagonalCholesky(fieldLength);
+        backwardCholesky = new TridiagonalCholesky(fieldLength);
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -106,44 +148,6 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
     public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
         int length = Mean.size();
         DenseVector tempValue = new DenseVector(length);
@@ -164,52 +168,58 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
     }
 
 
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
+    public static double logGeneralizedDeterminant(TridiagonalCholesky cholesky) {
         double returnValue = 0;
 
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
+        for (int i = 0; i < cholesky.getDimension(); i++) {
+            if (cholesky.getFactorDiagonal(i) > 0.0000001) {
+                returnValue += Math.log(cholesky.getFactorDiagonal(i));
             }
         }
 
         return returnValue;
     }
 
-    public DenseVector newtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ) {
-        return newNewtonRaphson(data, currentGamma, proposedQ, maxIterations, stopValue);
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
     }
 
-    public static DenseVector newNewtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue) {
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
+    /**
+     * Finds the mode of the full conditional of the field by Newton-Raphson, starting from
+     * currentGamma and putting it in mode.
+     *
+     * @return false if it failed to converge
+     */
+    private boolean newtonRaphson(double[] data, double[] currentGamma, double[] qDiagonal, double[] qOffDiagonal,
+                                  double[] mode) {
+        System.arraycopy(currentGamma, 0, mode, 0, fieldLength);
 
         int numberIterations = 0;
 
-
-        while (gradient(data, iterateGamma, proposedQ).norm(Vector.Norm.Two) > stopValue) {
-            try {
-                jacobian(data, iterateGamma, proposedQ).solve(gradient(data, iterateGamma, proposedQ), tempValue);
-            } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-                if (FAIL_SILENTLY) {
-                    return null;
-                }
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new RuntimeException("Newton-Raphson F.");
-            } catch (no.uib.cipr.matrix.MatrixSingularException e) {
+        while (gradient(data, mode, qDiagonal, qOffDiagonal, gradient) > stopValue) {
+            // the jacobian
+            for (int i = 0; i < fieldLength; i++) {
+                jacobianDiagonal[i] = qDiagonal[i] + Math.exp(-mode[i]) * data[i];
+            }
+            if (!forwardCholesky.solveOnce(jacobianDiagonal, qOffDiagonal, gradient, step)) {
                 if (FAIL_SILENTLY) {
-                    return null;
+                    return false;
                 }
                 Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
                 throw new RuntimeException("Newton-Raphson F.");
             }
-            iterateGamma.add(tempValue);
+            for (int i = 0; i < fieldLength; i++) {
+                mode[i] += step[i];
+            }
             numberIterations++;
 
             if (numberIterations > maxIterations) {
                 if (FAIL_SILENTLY) {
-                    return null;
+                    return false;
                 }
                 Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
                 throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
@@ -218,27 +228,45 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         }
 
         Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
+        return true;
     }
 
-    private static DenseVector gradient(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        Q.mult(value, returnValue);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) - 1 + data[i] * Math.exp(-value.get(i)));
+    /**
+     * Puts the gradient at value into gradient.
+     *
+     * @return the Euclidean norm of the gradient
+     */
+    private static double gradient(double[] data, double[] value, double[] qDiagonal, double[] qOffDiagonal,
+                                   double[] gradient) {
+        TridiagonalCholesky.multiply(qDiagonal, qOffDiagonal, value, gradient, value.length);
+        double norm = 0.0;
+        for (int i = 0; i < value.length; i++) {
+            gradient[i] = -gradient[i] - 1 + data[i] * Math.exp(-value[i]);
+            norm += gradient[i] * gradient[i];
         }
-        return returnValue;
+        return Math.sqrt(norm);
     }
 
+    /**
+     * Sets up the Gaussian approximation to the full conditional of the field at the mode: adds
+     * the curvature of the coalescent likelihood to the diagonal of Q, factorizes it and solves for
+     * the mean.
+     */
+    private void approximateAtMode(double[] data, double[] mode, double[] qDiagonal, double[] qOffDiagonal,
+                                   double[] qwDiagonal, TridiagonalCholesky cholesky, double[] mean) {
+        for (int i = 0; i < fieldLength; i++) {
+            double d1 = data[i] * Math.exp(-mode[i]);
+            double d2 = mode[i] + 1;
+
+            qwDiagonal[i] = d1 + qDiagonal[i];
+            canonical[i] = d1 * d2 - 1;
+        }
 
-    private static SPDTridiagMatrix jacobian(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data[i]);
+        if (!cholesky.factor(qwDiagonal, qOffDiagonal)) {
+            throw new MatrixNotSPDException();
         }
-        return jacobian;
+
+        cholesky.solve(canonical, mean);
     }
 
     public double doOperation() {
@@ -252,92 +280,57 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
-
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
 
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda, currentQDiagonal, currentQOffDiagonal);
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda, proposedQDiagonal, proposedQOffDiagonal);
 
         double[] wNative = gmrfField.getSufficientStatistics();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-
-        DenseVector modeForward = newtonRaphson(wNative, currentGamma, proposedQ.copy());
-
-        if (modeForward == null) {
+        if (!newtonRaphson(wNative, currentGamma, proposedQDiagonal, proposedQOffDiagonal, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
+        approximateAtMode(wNative, fieldMode, proposedQDiagonal, proposedQOffDiagonal, forwardQWDiagonal,
+                forwardCholesky, forwardMean);
 
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
+        for (int i = 0; i < fieldLength; i++)
+            standNorm[i] = MathUtils.nextGaussian();
 
+        // x = mean + U^-1 z
+        forwardCholesky.solveUpper(standNorm, proposedGamma);
+        for (int i = 0; i < fieldLength; i++) {
+            proposedGamma[i] += forwardMean[i];
+        }
 
         for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
 
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(wNative, proposedGamma, currentQ.copy());
-
-        if (modeBackward == null) {
+        if (!newtonRaphson(wNative, proposedGamma, currentQDiagonal, currentQOffDiagonal, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+        approximateAtMode(wNative, fieldMode, currentQDiagonal, currentQOffDiagonal, backwardQWDiagonal,
+                backwardCholesky, backwardMean);
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
+            difference[i] = currentGamma[i] - backwardMean[i];
         }
 
-        backwardQW.mult(diagonal1, diagonal3);
+        TridiagonalCholesky.multiply(backwardQWDiagonal, currentQOffDiagonal, difference, product, fieldLength);
 
         // Removed 0.5 * 2
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
+        hRatio += logGeneralizedDeterminant(backwardCholesky) - 0.5 * dot(difference, product);
+        hRatio -= logGeneralizedDeterminant(forwardCholesky) - 0.5 * dot(standNorm, standNorm);
 
 
         return hRatio;
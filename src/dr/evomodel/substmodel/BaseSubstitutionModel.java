@@ -170,6 +170,9 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         storedEigenDecomposition = eigenDecomposition;
         eigenDecomposition = tmp;
 
+        if (eigenCache != null) {
+            eigenCache.setCurrent(eigenDecomposition);
+        }
     }
 
     protected void acceptState() {
@@ -208,6 +211,11 @@ public abstract class BaseSubstitutionModel extends AbstractModel
             return;
         }
 
+        EigenDecompositionCache cache = eigenCache;
+        if (cache != null && cache.getMatrix(eigen, distance, matrix)) {
+            return;
+        }
+
         double[] Evec = eigen.getEigenVectors();
         double[] Ievc = eigen.getInverseEigenVectors();
         double[] Eval = eigen.getEigenValues();
@@ -234,6 +242,10 @@ public abstract class BaseSubstitutionModel extends AbstractModel
                 u++;
             }
         }
+
+        if (cache != null) {
+            cache.putMatrix(eigen, distance, matrix);
+        }
     }
 
     /**
@@ -269,10 +281,36 @@ public abstract class BaseSubstitutionModel extends AbstractModel
 
         double normalization = setupMatrix();
 
-        eigenDecomposition = eigenSystem.decomposeMatrix(q);
+        if (!isEigenCacheCreated) {
+            // created here, rather than in the constructor, so the id has been set
+            eigenCache = EigenDecompositionCache.create(getId() != null ? getId() : getModelName(), stateCount);
+            isEigenCacheCreated = true;
+        }
+
+        Object key = null;
+        EigenDecomposition cached = null;
+        if (eigenCache != null) {
+            key = eigenCache.getKey(q, normalization);
+            cached = eigenCache.get(key);
+        }
 
-        if (eigenDecomposition != null)
-            eigenDecomposition.normalizeEigenValues(normalization);
+        if (cached != null) {
+            eigenDecomposition = cached;
+        } else {
+            eigenDecomposition = eigenSystem.decomposeMatrix(q);
+
+            if (eigenDecomposition != null) {
+                eigenDecomposition.normalizeEigenValues(normalization);
+
+                if (eigenCache != null) {
+                    eigenCache.put(key, eigenDecomposition);
+                }
+            }
+        }
+
+        if (eigenCache != null) {
+            eigenCache.setCurrent(eigenDecomposition);
+        }
 
         updateMatrix = false;
     }
@@ -411,4 +449,7 @@ public abstract class BaseSubstitutionModel extends AbstractModel
     protected EigenDecomposition eigenDecomposition;
     private EigenDecomposition storedEigenDecomposition;
 
+    private volatile EigenDecompositionCache eigenCache = null;
+    private boolean isEigenCacheCreated = false;
+
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+/*
+ * EigenDecompositionCache.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.substmodel;
+
+import dr.inference.markovchain.Profiler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the eigen decompositions of a substitution model, keyed on the
+ * exact values of the rate matrix and its normalization, so a decomposition is only reused for
+ * exactly the same matrix. This pays off when the parameters move back and forth between a few
+ * values (e.g., the indicators of a BSSVS model) or the model is told it has changed when it
+ * hasn't. The cache is limited to a number of megabytes given by the system property
+ * "substmodel.cache.mb" (default 0, i.e., off).
+ *
+ * It can also keep the transition probability matrices calculated from the current decomposition,
+ * keyed on the branch length, up to the number given by "substmodel.cache.matrices" (default 0,
+ * i.e., off). These are dropped whenever the decomposition changes.
+ *
+ * The hits and misses are counted by the Profiler if its report has been asked for.
+ *
+ * @version $Id$
+ */
+class EigenDecompositionCache {
+
+    private static final String SIZE_PROPERTY = "substmodel.cache.mb";
+    private static final String MATRIX_COUNT_PROPERTY = "substmodel.cache.matrices";
+
+    private static final int DEFAULT_SIZE = 0;
+    private static final int DEFAULT_MATRIX_COUNT = 0;
+
+    // a rough allowance for the objects and map entry around the arrays of each decomposition
+    private static final long ENTRY_OVERHEAD = 128;
+
+    /**
+     * @return a cache for a model with this name or null if caching is turned off
+     */
+    static EigenDecompositionCache create(String name, int stateCount) {
+        long maxBytes = (long) Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE) * 1024 * 1024;
+        if (maxBytes <= 0) {
+            return null;
+        }
+        return new EigenDecompositionCache(name, stateCount, maxBytes,
+                Integer.getInteger(MATRIX_COUNT_PROPERTY, DEFAULT_MATRIX_COUNT));
+    }
+
+    EigenDecompositionCache(String name, int stateCount, long maxBytes, int maxMatrixCount) {
+        this.stateCount = stateCount;
+        this.maxBytes = maxBytes;
+        this.maxMatrixCount = maxMatrixCount;
+        this.isCounted = Profiler.isReportEnabled();
+
+        hitName = name + ".eigenCache.hits";
+        missName = name + ".eigenCache.misses";
+        matrixHitName = name + ".matrixCache.hits";
+        matrixMissName = name + ".matrixCache.misses";
+
+        decompositions = new LinkedHashMap<MatrixKey, EigenDecomposition>(16, 0.75f, true);
+        matrices = new LinkedHashMap<Double, double[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Double, double[]> eldest) {
+                return size() > EigenDecompositionCache.this.maxMatrixCount;
+            }
+        };
+    }
+
+    /**
+     * @return the key for a rate matrix (which must not be changed while it is used as a key)
+     */
+    Object getKey(double[][] q, double normalization) {
+        double[] values = new double[stateCount * stateCount + 1];
+        int k = 0;
+        for (int i = 0; i < stateCount; i++) {
+            System.arraycopy(q[i], 0, values, k, stateCount);
+            k += stateCount;
+        }
+        values[k] = normalization;
+        return new MatrixKey(values);
+    }
+
+    /**
+     * @return a copy of the decomposition for this key or null if it isn't in the cache
+     */
+    synchronized EigenDecomposition get(Object key) {
+        EigenDecomposition eigen = decompositions.get(key);
+        if (eigen == null) {
+            if (isCounted) {
+                Profiler.count(missName, 1);
+            }
+            return null;
+        }
+        if (isCounted) {
+            Profiler.count(hitName, 1);
+        }
+        return eigen.copy();
+    }
+
+    /**
+     * Store a copy of a decomposition, dropping the least recently used ones if the cache is full.
+     */
+    synchronized void put(Object key, EigenDecomposition eigen) {
+        long size = getSize(eigen);
+        if (size > maxBytes) {
+            return;
+        }
+        if (decompositions.put((MatrixKey) key, eigen.copy()) == null) {
+            bytes += size;
+        }
+
+        Iterator<Map.Entry<MatrixKey, EigenDecomposition>> iter = decompositions.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= getSize(iter.next().getValue());
+            iter.remove();
+        }
+    }
+
+    /**
+     * Set the decomposition that the transition probability matrices are for, dropping any
+     * matrices of the previous one.
+     */
+    synchronized void setCurrent(EigenDecomposition eigen) {
+        if (eigen != current) {
+            current = eigen;
+            matrices.clear();
+        }
+    }
+
+    /**
+     * @return true if the matrix for this distance from this decomposition was in the cache (and
+     * has been copied into matrix)
+     */
+    synchronized boolean getMatrix(EigenDecomposition eigen, double distance, double[] matrix) {
+        if (maxMatrixCount <= 0 || eigen != current) {
+            return false;
+        }
+        double[] cached = matrices.get(distance);
+        if (cached == null) {
+            if (isCounted) {
+                Profiler.count(matrixMissName, 1);
+            }
+            return false;
+        }
+        if (isCounted) {
+            Profiler.count(matrixHitName, 1);
+        }
+        System.arraycopy(cached, 0, matrix, 0, cached.length);
+        return true;
+    }
+
+    synchronized void putMatrix(EigenDecomposition eigen, double distance, double[] matrix) {
+        if (maxMatrixCount > 0 && eigen == current) {
+            matrices.put(distance, matrix.clone());
+        }
+    }
+
+    private long getSize(EigenDecomposition eigen) {
+        long values = (long) stateCount * stateCount + 1 + eigen.getEigenVectors().length +
+                eigen.getInverseEigenVectors().length + eigen.getEigenValues().length;
+        return values * 8 + ENTRY_OVERHEAD;
+    }
+
+    private static class MatrixKey {
+        MatrixKey(double[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        public boolean equals(Object o) {
+            // Arrays.equals compares the bits of the doubles so only an identical matrix matches
+            return o instanceof MatrixKey && hashCode == ((MatrixKey) o).hashCode &&
+                    Arrays.equals(values, ((MatrixKey) o).values);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        private final double[] values;
+        private final int hashCode;
+    }
+
+    private final int stateCount;
+    private final long maxBytes;
+    private final boolean isCounted;
+    private final int maxMatrixCount;
+
+    private final String hitName;
+    private final String missName;
+    private final String matrixHitName;
+    private final String matrixMissName;
+
+    private final LinkedHashMap<MatrixKey, EigenDecomposition> decompositions;
+    private final LinkedHashMap<Double, double[]> matrices;
+    private long bytes = 0;
+    private EigenDecomposition current = null;
+}
@@ -146,13 +146,35 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
         }
 
         regRateChanged = false;
+        version++;
     }
 
-    public double getMarginalRate() {
-
+    private void checkRateRegistration() {
+        // some models (e.g. BaseSubstitutionModel on restore) swap in another eigen decomposition
+        // while others (e.g. HKY, TN93) update theirs in place, which is caught by the model
+        // changed event or by restoreState
+        EigenDecomposition current = substModel.getEigenDecomposition();
+        if (current != eigenDecomposition) {
+            eigenDecomposition = current;
+            regRateChanged = true;
+        }
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
+    }
+
+    /**
+     * @return a number that changes whenever the rates, eigen decomposition or registration
+     * change (and so the expectations for a given time may change)
+     */
+    public int getVersion() {
+        checkRateRegistration();
+        return version;
+    }
+
+    public double getMarginalRate() {
+
+        checkRateRegistration();
 
         FrequencyModel freqModel = substModel.getFrequencyModel();
         double rate = 0;
@@ -189,9 +211,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
                                            double[] transitionProbs,
                                            double[] countMatrix) {
 
-        if (regRateChanged) {
-            makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
-        }
+        checkRateRegistration();
 
         double[] evec = eigenDecomposition.getEigenVectors();
         double[] ievc = eigenDecomposition.getInverseEigenVectors();
@@ -205,12 +225,35 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
         }
     }
 
+    /**
+     * Computes only the given entries (from * stateCount + to) of the conditional expectations
+     * for the transition probabilities starting at probabilityOffset. The whole matrix is computed
+     * if many entries are needed.
+     */
+    public void computeCondStatMarkovJumps(double time,
+                                           double[] transitionProbs,
+                                           int probabilityOffset,
+                                           int[] entries,
+                                           int entryCount,
+                                           double[] countMatrix) {
+
+        if (!PRECOMPUTE || entryCount > 2 * stateCount) {
+            System.arraycopy(transitionProbs, probabilityOffset, this.transitionProbs, 0, stateCount * stateCount);
+            computeCondStatMarkovJumps(time, this.transitionProbs, countMatrix);
+            return;
+        }
+
+        checkRateRegistration();
+
+        markovJumpsCore.computeCondStatMarkovJumpsPrecompute(eigenDecomposition.getEigenVectors(),
+                eigenDecomposition.getInverseEigenVectors(), eigenDecomposition.getEigenValues(),
+                ievcRateRegEvec, time, transitionProbs, probabilityOffset, entries, entryCount, countMatrix);
+    }
+
     public void computeJointStatMarkovJumps(double time,
                                             double[] countMatrix) {
 
-        if (regRateChanged) {
-            makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
-        }
+        checkRateRegistration();
 
         double[] evec = eigenDecomposition.getEigenVectors();
         double[] ievc = eigenDecomposition.getInverseEigenVectors();
@@ -242,7 +285,8 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     }
 
     protected void restoreState() {
-        // Do nothing
+        // the substitution model may have restored its eigen decomposition in place
+        regRateChanged = true;
     }
 
     protected void acceptState() {
@@ -263,6 +307,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     private MarkovJumpsCore markovJumpsCore;
 
     private boolean regRateChanged = true;
+    private int version = 0;
 
     protected MarkovJumpsType type;
     protected DataType dataType;
@@ -131,6 +131,10 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
             }
         } while (node != root);
 
+        isNodeChanged = new boolean[nodeCount];
+        changedNodes = new int[nodeCount];
+        allNodesChanged = true;
+
         // must be done here to allow programmatic running of BEAST
         setupHeightBounds();
     }
@@ -155,21 +159,29 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent() {
-        pushTreeChangedEvent(new TreeChangedEvent());
+        pushTreeChangedEvent(null, null, -1);
     }
 
     /**
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent(NodeRef nodeRef) {
-        pushTreeChangedEvent(new TreeChangedEvent((Node) nodeRef));
+        Node node = (Node) nodeRef;
+        if (inEdit && node != null && isNodeEventPending != null) {
+            // the listeners only need to hear once that a node has changed in a transaction
+            if (isNodeEventPending[node.number]) {
+                return;
+            }
+            isNodeEventPending[node.number] = true;
+        }
+        pushTreeChangedEvent(node, null, -1);
     }
 
     /**
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent(Node node, Parameter parameter, int index) {
-        pushTreeChangedEvent(new TreeChangedEvent(node, parameter, index));
+        pushTreeChangedEvent(obtainEvent(node, parameter, index));
     }
 
     /**
@@ -180,7 +192,11 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         if (!isTreeRandom) throw new IllegalStateException("Attempting state change in fixed tree");
 
         if (inEdit) {
-            treeChangedEvents.add(event);
+            if (pendingEventCount == pendingEvents.length) {
+                pendingEvents = Arrays.copyOf(pendingEvents, pendingEvents.length * 2);
+            }
+            pendingEvents[pendingEventCount] = event;
+            pendingEventCount++;
         } else {
             listenerHelper.fireModelChanged(this, event);
         }
@@ -198,14 +214,61 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         final Node node = getNodeOfParameter((Parameter) variable);
         if (type == Parameter.ChangeType.ALL_VALUES_CHANGED) {
             //this signals events where values in all dimensions of a parameter is changed.
-            pushTreeChangedEvent(new TreeChangedEvent(node, (Parameter) variable, TreeChangedEvent.CHANGE_IN_ALL_INTERNAL_NODES));
+            pushTreeChangedEvent(node, (Parameter) variable, TreeChangedEvent.CHANGE_IN_ALL_INTERNAL_NODES);
         } else {
             pushTreeChangedEvent(node, (Parameter) variable, index);
         }
     }
 
 
-    private final List<dr.evomodel.tree.TreeChangedEvent> treeChangedEvents = new ArrayList<dr.evomodel.tree.TreeChangedEvent>();
+    /**
+     * Returns an event from the pool of reusable events. The events of an edit transaction are
+     * taken in turn from the pool and it is reset when they have been fired at the end of the
+     * transaction (or of the outermost one if a listener starts a transaction of its own). Events
+     * fired outside a transaction go round a ring of RING_SIZE events so one isn't reused while a
+     * listener can still be handling it (unless the events nest that deep).
+     * Listeners must not keep hold of the events after handling them.
+     */
+    private TreeChangedEvent obtainEvent(Node node, Parameter parameter, int index) {
+        TreeChangedEvent event;
+        if (inEdit) {
+            if (editEventCount == editEvents.length) {
+                editEvents = Arrays.copyOf(editEvents, editEvents.length * 2);
+            }
+            event = editEvents[editEventCount];
+            if (event == null) {
+                event = new TreeChangedEvent();
+                editEvents[editEventCount] = event;
+            }
+            editEventCount++;
+        } else {
+            event = ringEvents[ringEventIndex];
+            ringEventIndex = (ringEventIndex + 1) % RING_SIZE;
+        }
+        event.set(node, parameter, index);
+        return event;
+    }
+
+    private static final int RING_SIZE = 64;
+
+    private dr.evomodel.tree.TreeChangedEvent[] pendingEvents = new dr.evomodel.tree.TreeChangedEvent[RING_SIZE];
+    private int pendingEventCount = 0;
+    private dr.evomodel.tree.TreeChangedEvent[] spareEvents = new dr.evomodel.tree.TreeChangedEvent[RING_SIZE];
+    private int firingDepth = 0;
+
+    private TreeChangedEvent[] editEvents = new TreeChangedEvent[RING_SIZE];
+    private int editEventCount = 0;
+
+    private final TreeChangedEvent[] ringEvents = createEvents(RING_SIZE);
+    private int ringEventIndex = 0;
+
+    private TreeChangedEvent[] createEvents(int count) {
+        TreeChangedEvent[] events = new TreeChangedEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = new TreeChangedEvent();
+        }
+        return events;
+    }
 
     public boolean hasRates() {
         return hasRates;
@@ -218,9 +281,9 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
     public class TreeChangedEvent implements dr.evomodel.tree.TreeChangedEvent {
         static final int CHANGE_IN_ALL_INTERNAL_NODES = -2;
 
-        final Node node;
-        final Parameter parameter;
-        final int index;
+        Node node;
+        Parameter parameter;
+        int index;
 
         public TreeChangedEvent() {
             this(null, null, -1);
@@ -231,6 +294,10 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         }
 
         public TreeChangedEvent(Node node, Parameter parameter, int index) {
+            set(node, parameter, index);
+        }
+
+        void set(Node node, Parameter parameter, int index) {
             this.node = node;
             this.parameter = parameter;
             this.index = index;
@@ -525,6 +592,10 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
 
         oldRoot = root;
 
+        if (isNodeEventPending == null && nodeCount > 0) {
+            isNodeEventPending = new boolean[nodeCount];
+        }
+
         inEdit = true;
 
         return false;
@@ -547,10 +618,37 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
             }
         }
 
-        for (dr.evomodel.tree.TreeChangedEvent treeChangedEvent : treeChangedEvents) {
-            listenerHelper.fireModelChanged(this, treeChangedEvent);
+        for (int i = 0; i < pendingEventCount; i++) {
+            dr.evomodel.tree.TreeChangedEvent event = pendingEvents[i];
+            if (isNodeEventPending != null && event.isNodeChanged() && !event.isNodeParameterChanged()) {
+                isNodeEventPending[event.getNode().getNumber()] = false;
+            }
+        }
+
+        // A listener may start and end another transaction while these events are being fired so
+        // they are fired from their own array and that transaction collects its events in the other.
+        // Its events are taken from the pool after these ones and the pool is only reset once the
+        // outermost transaction has fired all of its events.
+        final dr.evomodel.tree.TreeChangedEvent[] events = pendingEvents;
+        final int eventCount = pendingEventCount;
+        pendingEvents = (spareEvents != null ? spareEvents : new dr.evomodel.tree.TreeChangedEvent[RING_SIZE]);
+        spareEvents = null;
+        pendingEventCount = 0;
+
+        firingDepth++;
+        try {
+            for (int i = 0; i < eventCount; i++) {
+                listenerHelper.fireModelChanged(this, events[i]);
+            }
+        } finally {
+            firingDepth--;
+        }
+
+        Arrays.fill(events, 0, eventCount, null);
+        spareEvents = events;
+        if (firingDepth == 0) {
+            editEventCount = 0;
         }
-        treeChangedEvents.clear();
     }
 
     public void checkTreeIsValid() throws MutableTree.InvalidTreeException {
@@ -599,7 +697,20 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     protected void storeState() {
 
-        copyNodeStructure(storedNodes);
+        if (allNodesChanged) {
+            copyNodeStructure(storedNodes);
+            allNodesChanged = false;
+        } else {
+            // only the nodes changed since the last store can differ from their stored copies
+            // whether the last proposal was accepted or restored (which swaps the arrays).
+            for (int i = 0; i < changedNodeCount; i++) {
+                copyNode(nodes[changedNodes[i]], storedNodes[changedNodes[i]]);
+            }
+        }
+        for (int i = 0; i < changedNodeCount; i++) {
+            isNodeChanged[changedNodes[i]] = false;
+        }
+        changedNodeCount = 0;
         storedRootNumber = root.getNumber();
 
     }
@@ -635,32 +746,45 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         }
 
         for (int i = 0, n = nodes.length; i < n; i++) {
-            Node node0 = nodes[i];
-            Node node1 = destination[i];
+            copyNode(nodes[i], destination[i]);
+        }
+    }
 
-            // the parameter values are automatically stored and restored
-            // just need to keep the links
-            node1.heightParameter = node0.heightParameter;
-            node1.rateParameter = node0.rateParameter;
-            node1.traitParameters = node0.traitParameters;
+    private void copyNode(Node node0, Node node1) {
+        // the parameter values are automatically stored and restored
+        // just need to keep the links
+        node1.heightParameter = node0.heightParameter;
+        node1.rateParameter = node0.rateParameter;
+        node1.traitParameters = node0.traitParameters;
 
-            if (node0.parent != null) {
-                node1.parent = storedNodes[node0.parent.getNumber()];
-            } else {
-                node1.parent = null;
-            }
+        if (node0.parent != null) {
+            node1.parent = storedNodes[node0.parent.getNumber()];
+        } else {
+            node1.parent = null;
+        }
 
-            if (node0.leftChild != null) {
-                node1.leftChild = storedNodes[node0.leftChild.getNumber()];
-            } else {
-                node1.leftChild = null;
-            }
+        if (node0.leftChild != null) {
+            node1.leftChild = storedNodes[node0.leftChild.getNumber()];
+        } else {
+            node1.leftChild = null;
+        }
 
-            if (node0.rightChild != null) {
-                node1.rightChild = storedNodes[node0.rightChild.getNumber()];
-            } else {
-                node1.rightChild = null;
-            }
+        if (node0.rightChild != null) {
+            node1.rightChild = storedNodes[node0.rightChild.getNumber()];
+        } else {
+            node1.rightChild = null;
+        }
+    }
+
+    /**
+     * Record that the links of a node (to its parent, children or parameters) have changed
+     * so it is copied at the next store.
+     */
+    private void markNodeChanged(Node node) {
+        if (isNodeChanged != null && !isNodeChanged[node.number]) {
+            isNodeChanged[node.number] = true;
+            changedNodes[changedNodeCount] = node.number;
+            changedNodeCount++;
         }
     }
 
@@ -1306,6 +1430,9 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     private void swapParameterObjects(Node n1, Node n2) {
 
+        markNodeChanged(n1);
+        markNodeChanged(n2);
+
         double height1 = n1.getHeight();
         double height2 = n2.getHeight();
 
@@ -1412,6 +1539,7 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
                 setParameterId("rate", rateParameter);
                 rateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
                 addVariable(rateParameter);
+                markNodeChanged(this);
             }
         }
 
@@ -1554,6 +1682,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = this;
+            markNodeChanged(this);
+            markNodeChanged(node);
         }
 
         /**
@@ -1570,6 +1700,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
                 throw new IllegalArgumentException("Unknown child node");
             }
             node.parent = null;
+            markNodeChanged(this);
+            markNodeChanged(node);
             return node;
         }
 
@@ -1590,6 +1722,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = null;
+            markNodeChanged(this);
+            markNodeChanged(node);
             return node;
         }
 
@@ -1685,6 +1819,19 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
     private Node[] nodes = null;
     private Node[] storedNodes = null;
 
+    /**
+     * the nodes whose links have changed since the last store (if allNodesChanged is false)
+     */
+    private boolean[] isNodeChanged = null;
+    private int[] changedNodes = null;
+    private int changedNodeCount = 0;
+    private boolean allNodesChanged = true;
+
+    /**
+     * the nodes with a change event waiting for the end of the current edit transaction
+     */
+    private boolean[] isNodeEventPending = null;
+
     /**
      * number of nodes (including root and tips)
      */
@@ -0,0 +1,155 @@
+/*
+ * TreeModelEventBenchmark.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.tree;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.operators.WilsonBalding;
+import dr.inference.model.Model;
+import dr.inference.model.ModelListener;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.MCMCOperator;
+import dr.math.MathUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Logger;
+
+/**
+ * A timing harness for the store / operate / fire events / accept or restore cycle of a TreeModel
+ * under the subtree slide, exchange and Wilson-Balding moves. No likelihood is attached, only a
+ * listener that counts the events, so the times are those of the tree itself. Where the JVM
+ * supports it the bytes allocated per move are also reported.
+ *
+ * Usage: TreeModelEventBenchmark [iterationCount] [taxonCount...]
+ *
+ * @version $Id$
+ */
+public class TreeModelEventBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 200000;
+    private static final int[] DEFAULT_TAXON_COUNTS = {1000, 5000, 10000};
+
+    public static void main(String[] args) {
+
+        // turn off logging to avoid screen noise...
+        Logger logger = Logger.getLogger("dr");
+        logger.setUseParentHandlers(false);
+
+        int iterationCount = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS);
+        int[] taxonCounts = DEFAULT_TAXON_COUNTS;
+        if (args.length > 1) {
+            taxonCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                taxonCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        MathUtils.setSeed(666);
+
+        for (int taxonCount : taxonCounts) {
+            Taxa taxa = new Taxa();
+            for (int i = 0; i < taxonCount; i++) {
+                taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+            }
+
+            ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+            constant.setN0(1.0);
+            TreeModel treeModel = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+
+            final long[] eventCount = {0};
+            treeModel.addModelListener(new ModelListener() {
+                public void modelChangedEvent(Model model, Object object, int index) {
+                    eventCount[0]++;
+                }
+
+                public void modelRestored(Model model) {
+                }
+            });
+
+            System.out.println("\nTaxa: " + taxonCount + ", iterations: " + iterationCount);
+
+            benchmark("subtreeSlide", new SubtreeSlideOperator(treeModel, 1.0, 0.1, true,
+                    false, false, false, CoercionMode.COERCION_OFF), treeModel, iterationCount, eventCount);
+            benchmark("narrowExchange", new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                    treeModel, iterationCount, eventCount);
+            benchmark("wideExchange", new ExchangeOperator(ExchangeOperator.WIDE, treeModel, 1.0),
+                    treeModel, iterationCount, eventCount);
+            benchmark("wilsonBalding", new WilsonBalding(treeModel, 1.0),
+                    treeModel, iterationCount, eventCount);
+        }
+    }
+
+    private static void benchmark(String name, MCMCOperator operator, TreeModel treeModel, int iterationCount,
+                                  long[] eventCount) {
+        // warm up
+        run(operator, treeModel, iterationCount / 10);
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = null;
+        if (threadBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        }
+        long threadId = Thread.currentThread().getId();
+
+        eventCount[0] = 0;
+        long startBytes = (allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0);
+        long startTime = System.nanoTime();
+
+        run(operator, treeModel, iterationCount);
+
+        long endTime = System.nanoTime();
+        long endBytes = (allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0);
+
+        double nanoseconds = (double) (endTime - startTime) / iterationCount;
+        String message = "  " + name + ": " + String.format("%.0f", nanoseconds) + " ns/move, " +
+                String.format("%.1f", (double) eventCount[0] / iterationCount) + " events/move";
+        if (allocationBean != null) {
+            message += ", " + String.format("%.1f", (double) (endBytes - startBytes) / iterationCount) + " bytes/move";
+        }
+        System.out.println(message);
+    }
+
+    private static void run(MCMCOperator operator, TreeModel treeModel, int iterationCount) {
+        for (int i = 0; i < iterationCount; i++) {
+            treeModel.storeModelState();
+            double hastingsRatio = operator.operate();
+            if (hastingsRatio != Double.NEGATIVE_INFINITY && MathUtils.nextBoolean()) {
+                operator.accept(0.0);
+                treeModel.acceptModelState();
+            } else {
+                operator.reject();
+                treeModel.restoreModelState();
+            }
+        }
+    }
+}
@@ -718,48 +718,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             }
         }
 
-        int operationCount = nodeOperations.size();
-        int k = 0;
-        for (NodeOperation op : nodeOperations) {
-            int nodeNum = op.getNodeNumber();
-
-            operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
-
-            if (useScaleFactors) {
-                // get the index of this scaling buffer
-                int n = nodeNum - tipCount;
-
-                if (recomputeScaleFactors) {
-                    // flip the indicator: can take either n or (internalNodeCount + 1) - n
-                    scaleBufferHelper.flipOffset(n);
-
-                    // store the index
-                    scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
-
-                    operations[k + 1] = scaleBufferIndices[n]; // Write new scaleFactor
-                    operations[k + 2] = Beagle.NONE;
-
-                } else {
-                    operations[k + 1] = Beagle.NONE;
-                    operations[k + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
-                }
-
-            } else {
-
-                if (useAutoScaling) {
-                    scaleBufferIndices[nodeNum - tipCount] = partialBufferHelper.getOffsetIndex(nodeNum);
-                }
-                operations[k + 1] = Beagle.NONE; // Not using scaleFactors
-                operations[k + 2] = Beagle.NONE;
-            }
-
-            operations[k + 3] = partialBufferHelper.getOffsetIndex(op.getLeftChild()); // source node 1
-            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(op.getLeftChild()); // source matrix 1
-            operations[k + 5] = partialBufferHelper.getOffsetIndex(op.getRightChild()); // source node 2
-            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(op.getRightChild()); // source matrix 2
-
-            k += Beagle.OPERATION_TUPLE_SIZE;
-        }
+        int operationCount = vectorizeNodeOperations(nodeOperations, operations);
 
         beagle.updatePartials(operations, operationCount, Beagle.NONE);
 
@@ -868,6 +827,17 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         return logL;
     }
 
+    /**
+     * @return the log likelihoods of each pattern from the last evaluation
+     */
+    public double[] getSiteLogLikelihoods() {
+        if (patternLogLikelihoods == null) {
+            patternLogLikelihoods = new double[patternCount];
+        }
+        beagle.getSiteLogLikelihoods(patternLogLikelihoods);
+        return patternLogLikelihoods;
+    }
+
     public void getPartials(int number, double[] partials) {
         int cumulativeBufferIndex = Beagle.NONE;
         /* No need to rescale partials */
@@ -946,7 +916,49 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
     @Override
     public int vectorizeNodeOperations(List<ProcessOnTreeDelegate.NodeOperation> nodeOperations, int[] operations) {
-        throw new RuntimeException("Not yet implemented");
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            int nodeNum = op.getNodeNumber();
+
+            operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
+
+            if (useScaleFactors) {
+                // get the index of this scaling buffer
+                int n = nodeNum - tipCount;
+
+                if (recomputeScaleFactors) {
+                    // flip the indicator: can take either n or (internalNodeCount + 1) - n
+                    scaleBufferHelper.flipOffset(n);
+
+                    // store the index
+                    scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
+
+                    operations[k + 1] = scaleBufferIndices[n]; // Write new scaleFactor
+                    operations[k + 2] = Beagle.NONE;
+
+                } else {
+                    operations[k + 1] = Beagle.NONE;
+                    operations[k + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
+                }
+
+            } else {
+
+                if (useAutoScaling) {
+                    scaleBufferIndices[nodeNum - tipCount] = partialBufferHelper.getOffsetIndex(nodeNum);
+                }
+                operations[k + 1] = Beagle.NONE; // Not using scaleFactors
+                operations[k + 2] = Beagle.NONE;
+            }
+
+            operations[k + 3] = partialBufferHelper.getOffsetIndex(op.getLeftChild()); // source node 1
+            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(op.getLeftChild()); // source matrix 1
+            operations[k + 5] = partialBufferHelper.getOffsetIndex(op.getRightChild()); // source node 2
+            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(op.getRightChild()); // source matrix 2
+
+            k += Beagle.OPERATION_TUPLE_SIZE;
+        }
+
+        return nodeOperations.size();
     }
 
     @Override
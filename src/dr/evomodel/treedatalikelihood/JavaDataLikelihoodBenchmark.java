@@ -0,0 +1,186 @@
+/*
+ * JavaDataLikelihoodBenchmark.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.datatype.AminoAcids;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.aminoacid.EmpiricalAminoAcidModel;
+import dr.evomodel.substmodel.aminoacid.WAG;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.oldevomodel.sitemodel.GammaSiteModel;
+import dr.oldevomodel.treelikelihood.TreeLikelihood;
+
+import java.util.logging.Logger;
+
+/**
+ * A simple timing harness comparing the JavaDataLikelihoodDelegate against the old Java
+ * likelihood cores (NucleotideLikelihoodCore and GeneralLikelihoodCore) on random data.
+ *
+ * Usage: JavaDataLikelihoodBenchmark [taxonCount] [siteCount] [iterationCount] [threadCount]
+ *
+ * @version $Id$
+ */
+public class JavaDataLikelihoodBenchmark {
+
+    private static final int WARM_UP_ITERATIONS = 20;
+
+    public static void main(String[] args) {
+
+        // turn off logging to avoid screen noise...
+        Logger logger = Logger.getLogger("dr");
+        logger.setUseParentHandlers(false);
+
+        int taxonCount = (args.length > 0 ? Integer.parseInt(args[0]) : 100);
+        int siteCount = (args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+        int iterationCount = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+        int threadCount = (args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors());
+
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < taxonCount; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(0.1);
+        TreeModel treeModel = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+
+        System.out.println("Taxa: " + taxonCount + ", sites: " + siteCount + ", iterations: " + iterationCount);
+
+        DataType[] dataTypes = new DataType[]{Nucleotides.INSTANCE, AminoAcids.INSTANCE};
+        for (DataType dataType : dataTypes) {
+            SitePatterns patterns = new SitePatterns(createRandomAlignment(taxa, dataType, siteCount), null, 0, -1, 1, true);
+            System.out.println("\n" + dataType.getDescription() + " (" + patterns.getPatternCount() + " patterns)");
+
+            double[] frequencies = new double[dataType.getStateCount()];
+            java.util.Arrays.fill(frequencies, 1.0 / frequencies.length);
+
+            Likelihood oldLikelihood = createOldTreeLikelihood(treeModel, patterns, dataType, frequencies);
+            benchmark("Old Java likelihood core", oldLikelihood, iterationCount);
+
+            benchmark("JavaDataLikelihoodDelegate (1 thread)",
+                    createTreeDataLikelihood(treeModel, patterns, dataType, frequencies, 1), iterationCount);
+
+            if (threadCount > 1) {
+                TreeDataLikelihood likelihood = createTreeDataLikelihood(treeModel, patterns, dataType, frequencies, threadCount);
+                benchmark("JavaDataLikelihoodDelegate (" + threadCount + " threads)", likelihood, iterationCount);
+                ((JavaDataLikelihoodDelegate) likelihood.getDataLikelihoodDelegate()).shutdown();
+            }
+        }
+    }
+
+    private static void benchmark(String name, Likelihood likelihood, int iterationCount) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            likelihood.makeDirty();
+            likelihood.getLogLikelihood();
+        }
+
+        long startTime = System.nanoTime();
+        double logL = 0.0;
+        for (int i = 0; i < iterationCount; i++) {
+            likelihood.makeDirty();
+            logL = likelihood.getLogLikelihood();
+        }
+        long endTime = System.nanoTime();
+
+        double milliseconds = (endTime - startTime) * 1E-6 / iterationCount;
+        System.out.println("  " + name + ": " + String.format("%.3f", milliseconds) + " ms/evaluation (logL = " + logL + ")");
+    }
+
+    private static TreeDataLikelihood createTreeDataLikelihood(TreeModel treeModel, SitePatterns patterns, DataType dataType,
+                                                               double[] frequencies, int threadCount) {
+        FrequencyModel f = new FrequencyModel(dataType, new Parameter.Default(frequencies));
+        SubstitutionModel substitutionModel;
+        if (dataType == Nucleotides.INSTANCE) {
+            substitutionModel = new HKY(new Parameter.Default(2.0), f);
+        } else {
+            substitutionModel = new EmpiricalAminoAcidModel(WAG.INSTANCE, f);
+        }
+
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+
+        JavaDataLikelihoodDelegate delegate = new JavaDataLikelihoodDelegate(treeModel, patterns,
+                new HomogeneousBranchModel(substitutionModel), siteRateModel, false, threadCount);
+
+        return new TreeDataLikelihood(delegate, treeModel, new DefaultBranchRateModel());
+    }
+
+    private static Likelihood createOldTreeLikelihood(TreeModel treeModel, SitePatterns patterns, DataType dataType,
+                                                      double[] frequencies) {
+        dr.oldevomodel.substmodel.FrequencyModel f =
+                new dr.oldevomodel.substmodel.FrequencyModel(dataType, new Parameter.Default(frequencies));
+        dr.oldevomodel.substmodel.SubstitutionModel substitutionModel;
+        if (dataType == Nucleotides.INSTANCE) {
+            substitutionModel = new dr.oldevomodel.substmodel.HKY(new Parameter.Default(2.0), f);
+        } else {
+            substitutionModel = new dr.oldevomodel.substmodel.EmpiricalAminoAcidModel(
+                    dr.oldevomodel.substmodel.WAG.INSTANCE, f);
+        }
+
+        GammaSiteModel siteModel = new GammaSiteModel(substitutionModel,
+                new Parameter.Default(1.0), new Parameter.Default(0.5), 4, null);
+
+        return new TreeLikelihood(patterns, treeModel, siteModel, null, null,
+                false, false, true, false, false);
+    }
+
+    private static SimpleAlignment createRandomAlignment(Taxa taxa, DataType dataType, int siteCount) {
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(dataType);
+
+        int stateCount = dataType.getStateCount();
+        for (int i = 0; i < taxa.getTaxonCount(); i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < siteCount; j++) {
+                sb.append(dataType.getChar(MathUtils.nextInt(stateCount)));
+            }
+            Sequence sequence = new Sequence(sb.toString());
+            sequence.setTaxon(taxa.getTaxon(i));
+            sequence.setDataType(dataType);
+            alignment.addSequence(sequence);
+        }
+        return alignment;
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * JavaDataLikelihoodDelegate.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.UncertainSiteList;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.siteratemodel.SiteRateModel;
+import dr.inference.model.AbstractModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * JavaDataLikelihoodDelegate
+ *
+ * A DataLikelihoodDelegate that does the computation in Java (using ThreadedJavaBeagleImpl)
+ * for when the BEAGLE library is not available. The patterns are split into blocks which
+ * are computed on separate threads.
+ *
+ * Scaling is off until the first underflow after which partials are rescaled at every
+ * evaluation (equivalent to BEAGLE's 'delayed' scheme).
+ *
+ * @version $Id$
+ */
+public class JavaDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate {
+
+    private static final String THREAD_COUNT_PROPERTY = "java.thread.count";
+
+    private static final boolean DEBUG = false;
+
+    /**
+     * @param tree Used for configuration - shouldn't be watched for changes
+     * @param patternList List of patterns
+     * @param branchModel Specifies substitution model for each branch
+     * @param siteRateModel Specifies rates per site
+     * @param useAmbiguities Whether to respect state ambiguities in data
+     * @param threadCount the number of pattern blocks/threads (0 or less for the number of processors)
+     */
+    public JavaDataLikelihoodDelegate(Tree tree,
+                                      PatternList patternList,
+                                      BranchModel branchModel,
+                                      SiteRateModel siteRateModel,
+                                      boolean useAmbiguities,
+                                      int threadCount) {
+
+        super("JavaDataLikelihoodDelegate");
+        final Logger logger = Logger.getLogger("dr.evomodel");
+
+        logger.info("\nUsing Java DataLikelihood Delegate");
+        setId(patternList.getId());
+
+        this.dataType = patternList.getDataType();
+        this.patternList = patternList;
+        patternCount = patternList.getPatternCount();
+        stateCount = dataType.getStateCount();
+
+        // Check for matching state counts
+        int stateCount2 = branchModel.getRootFrequencyModel().getFrequencyCount();
+        if (stateCount != stateCount2) {
+            throw new IllegalArgumentException("Pattern state count (" + stateCount
+                    + ") does not match substitution model state count (" + stateCount2 + ")");
+        }
+
+        if (branchModel.getSubstitutionModels().size() > 1) {
+            throw new IllegalArgumentException("Branch models with more than one substitution model are not " +
+                    "supported by the Java DataLikelihood Delegate");
+        }
+
+        this.branchModel = branchModel;
+        addModel(this.branchModel);
+
+        this.siteRateModel = siteRateModel;
+        addModel(this.siteRateModel);
+
+        this.categoryCount = this.siteRateModel.getCategoryCount();
+
+        nodeCount = tree.getNodeCount();
+        tipCount = tree.getExternalNodeCount();
+        internalNodeCount = nodeCount - tipCount;
+
+        branchUpdateIndices = new int[nodeCount];
+        branchLengths = new double[nodeCount];
+        scaleBufferIndices = new int[internalNodeCount];
+        storedScaleBufferIndices = new int[internalNodeCount];
+
+        operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+
+        if (patternList instanceof UncertainSiteList) {
+            useAmbiguities = true;
+        }
+
+        String t = System.getProperty(THREAD_COUNT_PROPERTY);
+        if (t != null) {
+            threadCount = Integer.parseInt(t.trim());
+        }
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+
+        try {
+            // one partials buffer for each tip and two for each internal node (for store restore)
+            partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
+
+            // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
+            scaleBufferHelper = new BufferIndexHelper(internalNodeCount + 1, 0);
+
+            evolutionaryProcessDelegate = new HomogenousSubstitutionModelDelegate(tree, branchModel);
+
+            if (evolutionaryProcessDelegate.canReturnComplexDiagonalization()) {
+                throw new IllegalArgumentException("Substitution models with complex eigen decompositions are not " +
+                        "supported by the Java DataLikelihood Delegate");
+            }
+
+            core = new ThreadedJavaBeagleImpl(
+                    tipCount,
+                    partialBufferHelper.getBufferCount(),
+                    (useAmbiguities ? 0 : tipCount),
+                    stateCount,
+                    patternCount,
+                    evolutionaryProcessDelegate.getEigenBufferCount(),
+                    evolutionaryProcessDelegate.getMatrixBufferCount(),
+                    categoryCount,
+                    scaleBufferHelper.getBufferCount(),
+                    threadCount);
+
+            logger.info("  Using " + core.getBlockCount() + " pattern block" + (core.getBlockCount() > 1 ? "s" : "") +
+                    " (" + threadCount + " thread" + (threadCount > 1 ? "s" : "") + " requested)");
+            logger.info("  " + (useAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
+            logger.info("  With " + patternCount + " unique site patterns.");
+
+            if (patternList.areUncertain() && !useAmbiguities) {
+                logger.info("  WARNING: Uncertain site patterns will be ignored.");
+            }
+
+            for (int i = 0; i < tipCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = tree.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + tree.getId() +
+                            ", is not found in patternList, " + patternList.getId());
+                } else {
+                    if (useAmbiguities) {
+                        setPartials(patternList, index, i);
+                    } else {
+                        setStates(patternList, index, i);
+                    }
+                }
+            }
+
+            core.setPatternWeights(patternList.getPatternWeights());
+
+            updateSubstitutionModel = true;
+            updateSiteModel = true;
+
+        } catch (TaxonList.MissingTaxonException mte) {
+            throw new RuntimeException(mte.toString());
+        }
+    }
+
+    @Override
+    public String getReport() {
+        return null;
+    }
+
+    @Override
+    public TreeTraversal.TraversalType getOptimalTraversalType() {
+        return TreeTraversal.TraversalType.POST_ORDER;
+    }
+
+    @Override
+    public int getTraitCount() {
+        return 1;
+    }
+
+    @Override
+    public int getTraitDim() {
+        return patternCount;
+    }
+
+    @Override
+    public RateRescalingScheme getRateRescalingScheme() {
+        return RateRescalingScheme.NONE;
+    }
+
+    public PatternList getPatternList() {
+        return this.patternList;
+    }
+
+    /**
+     * Sets the partials from a sequence in an alignment.
+     */
+    private void setPartials(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        double[] partials = new double[patternCount * stateCount];
+
+        int v = 0;
+        for (int i = 0; i < patternCount; i++) {
+
+            if (patternList instanceof UncertainSiteList) {
+                ((UncertainSiteList) patternList).fillPartials(sequenceIndex, i, partials, v);
+                v += stateCount;
+            } else if (patternList.areUncertain()) {
+
+                double[] prob = patternList.getUncertainPatternState(sequenceIndex, i);
+                System.arraycopy(prob, 0, partials, v, stateCount);
+                v += stateCount;
+
+            } else {
+                int state = patternList.getPatternState(sequenceIndex, i);
+                boolean[] stateSet = dataType.getStateSet(state);
+
+                for (int j = 0; j < stateCount; j++) {
+                    partials[v] = (stateSet[j] ? 1.0 : 0.0);
+                    v++;
+                }
+            }
+        }
+
+        core.setTipPartials(nodeIndex, partials);
+    }
+
+    /**
+     * Sets the states from a sequence in an alignment.
+     */
+    private void setStates(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        int[] states = new int[patternCount];
+
+        for (int i = 0; i < patternCount; i++) {
+            states[i] = patternList.getPatternState(sequenceIndex, i);
+        }
+
+        core.setTipStates(nodeIndex, states);
+    }
+
+    /**
+     * Calculate the log likelihood of the current state.
+     *
+     * @return the log likelihood.
+     */
+    @Override
+    public double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations, int rootNodeNumber) throws LikelihoodException {
+
+        int branchUpdateCount = 0;
+        for (BranchOperation op : branchOperations) {
+            branchUpdateIndices[branchUpdateCount] = op.getBranchNumber();
+            branchLengths[branchUpdateCount] = op.getBranchLength();
+            branchUpdateCount ++;
+        }
+
+        if (updateSubstitutionModel) {
+            evolutionaryProcessDelegate.updateSubstitutionModels(core, flip);
+        }
+
+        if (updateSiteModel) {
+            double[] categoryRates = this.siteRateModel.getCategoryRates();
+            if (categoryRates == null) {
+                // If this returns null then there was a numerical error calculating the category rates
+                // (probably a very small alpha) so reject the move.
+                return Double.NEGATIVE_INFINITY;
+            }
+            core.setCategoryRates(categoryRates);
+        }
+
+        if (branchUpdateCount > 0) {
+            evolutionaryProcessDelegate.updateTransitionMatrices(
+                    core,
+                    branchUpdateIndices,
+                    branchLengths,
+                    branchUpdateCount,
+                    flip);
+        }
+
+        if (flip) {
+            // Flip all the buffers to be written to first...
+            for (NodeOperation op : nodeOperations) {
+                partialBufferHelper.flipOffset(op.getNodeNumber());
+            }
+        }
+
+        int operationCount = vectorizeNodeOperations(nodeOperations, operations);
+
+        core.updatePartials(operations, operationCount, Beagle.NONE);
+
+        int rootIndex = partialBufferHelper.getOffsetIndex(rootNodeNumber);
+
+        int cumulateScaleBufferIndex = Beagle.NONE;
+        if (useScaleFactors) {
+            scaleBufferHelper.flipOffset(internalNodeCount);
+            cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+            core.resetScaleFactors(cumulateScaleBufferIndex);
+            core.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, cumulateScaleBufferIndex);
+        }
+
+        core.setCategoryWeights(0, siteRateModel.getCategoryProportions());
+        core.setStateFrequencies(0, evolutionaryProcessDelegate.getRootStateFrequencies());
+
+        core.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
+                new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+
+        double logL = sumLogLikelihoods[0];
+
+        if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+
+            if (DEBUG) {
+                System.out.println("Double.isNaN(logL) || Double.isInfinite(logL) (" + getId() + ")");
+            }
+
+            if (!useScaleFactors) {
+                Logger.getLogger("dr.evomodel").info("Underflow calculating likelihood. Switching on rescaling... (" + getId() + ")");
+                useScaleFactors = true;
+            } else {
+                // already scaling so nothing more can be done - the likelihood will be rejected
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            // turn off double buffer flipping so the next call overwrites the
+            // underflowed buffers. Flip will be turned on again in storeState for
+            // next step
+            flip = false;
+            throw new LikelihoodUnderflowException();
+        }
+
+        flip = true;
+        updateSubstitutionModel = false;
+        updateSiteModel = false;
+
+        return logL;
+    }
+
+    /**
+     * @return the log likelihoods of each pattern from the last evaluation
+     */
+    public double[] getSiteLogLikelihoods() {
+        if (patternLogLikelihoods == null) {
+            patternLogLikelihoods = new double[patternCount];
+        }
+        core.getSiteLogLikelihoods(patternLogLikelihoods);
+        return patternLogLikelihoods;
+    }
+
+    public void getPartials(int number, double[] partials) {
+        core.getPartials(partialBufferHelper.getOffsetIndex(number), Beagle.NONE, partials);
+    }
+
+    /**
+     * Stops the threads used by the computational core.
+     */
+    public void shutdown() {
+        core.shutdown();
+    }
+
+    @Override
+    public void makeDirty() {
+        updateSiteModel = true;
+        updateSubstitutionModel = true;
+    }
+
+    @Override
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == siteRateModel) {
+            updateSiteModel = true;
+        } else if (model == branchModel) {
+            updateSubstitutionModel = true;
+        }
+
+        // Tell TreeDataLikelihood to update all nodes
+        fireModelChanged();
+    }
+
+    @Override
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+
+    }
+
+    /**
+     * Stores the additional state other than model components
+     */
+    @Override
+    public void storeState() {
+        partialBufferHelper.storeState();
+        evolutionaryProcessDelegate.storeState();
+
+        if (useScaleFactors) { // Only store when actually used
+            scaleBufferHelper.storeState();
+            System.arraycopy(scaleBufferIndices, 0, storedScaleBufferIndices, 0, scaleBufferIndices.length);
+        }
+
+        // turn on double buffering flipping (may have been turned off to enable a rescale)
+        flip = true;
+    }
+
+    /**
+     * Restore the additional stored state
+     */
+    @Override
+    public void restoreState() {
+        updateSiteModel = true; // this is required to upload the categoryRates after the restore
+
+        partialBufferHelper.restoreState();
+        evolutionaryProcessDelegate.restoreState();
+
+        if (useScaleFactors) {
+            scaleBufferHelper.restoreState();
+            int[] tmp = storedScaleBufferIndices;
+            storedScaleBufferIndices = scaleBufferIndices;
+            scaleBufferIndices = tmp;
+        }
+    }
+
+    @Override
+    public void setCallback(TreeDataLikelihood treeDataLikelihood) {
+        // Callback not necessary
+    }
+
+    /**
+     * Fills in the BEAGLE operation for each node (with a new scale buffer for each when scaling
+     * is in use). The buffers written to should already have been flipped.
+     *
+     * @return the number of operations
+     */
+    @Override
+    public int vectorizeNodeOperations(List<ProcessOnTreeDelegate.NodeOperation> nodeOperations, int[] operations) {
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            int nodeNum = op.getNodeNumber();
+
+            operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
+
+            if (useScaleFactors) {
+                int n = nodeNum - tipCount;
+
+                // always recompute the scale factors once scaling is in use
+                scaleBufferHelper.flipOffset(n);
+                scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
+
+                operations[k + 1] = scaleBufferIndices[n]; // Write new scaleFactor
+            } else {
+                operations[k + 1] = Beagle.NONE; // Not using scaleFactors
+            }
+            operations[k + 2] = Beagle.NONE;
+
+            operations[k + 3] = partialBufferHelper.getOffsetIndex(op.getLeftChild()); // source node 1
+            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(op.getLeftChild()); // source matrix 1
+            operations[k + 5] = partialBufferHelper.getOffsetIndex(op.getRightChild()); // source node 2
+            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(op.getRightChild()); // source matrix 2
+
+            k += Beagle.OPERATION_TUPLE_SIZE;
+        }
+
+        return nodeOperations.size();
+    }
+
+    @Override
+    protected void acceptState() {
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    private final int nodeCount;
+    private final int tipCount;
+    private final int internalNodeCount;
+
+    private final int[] branchUpdateIndices;
+    private final double[] branchLengths;
+
+    private int[] scaleBufferIndices;
+    private int[] storedScaleBufferIndices;
+
+    private final int[] operations;
+    private final double[] sumLogLikelihoods = new double[1];
+
+    private boolean flip = true;
+    private final BufferIndexHelper partialBufferHelper;
+    private final BufferIndexHelper scaleBufferHelper;
+
+    private boolean useScaleFactors = false;
+
+    /**
+     * the patternList
+     */
+    private final PatternList patternList;
+
+    /**
+     * the data type
+     */
+    private final DataType dataType;
+
+    /**
+     * the number of patterns
+     */
+    private final int patternCount;
+
+    /**
+     * the number of states in the data
+     */
+    private final int stateCount;
+
+    /**
+     * the branch-site model for these sites
+     */
+    private final BranchModel branchModel;
+
+    /**
+     * A delegate to handle substitution models on branches
+     */
+    private final EvolutionaryProcessDelegate evolutionaryProcessDelegate;
+
+    /**
+     * the site model for these sites
+     */
+    private final SiteRateModel siteRateModel;
+
+    /**
+     * the pattern likelihoods
+     */
+    private double[] patternLogLikelihoods = null;
+
+    /**
+     * the number of rate categories
+     */
+    private final int categoryCount;
+
+    /**
+     * the Java computational core
+     */
+    private final ThreadedJavaBeagleImpl core;
+
+    /**
+     * Flag to specify that the substitution model has changed
+     */
+    private boolean updateSubstitutionModel;
+
+    /**
+     * Flag to specify that the site model has changed
+     */
+    private boolean updateSiteModel;
+}
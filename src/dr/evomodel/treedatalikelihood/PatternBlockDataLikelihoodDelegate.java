@@ -0,0 +1,322 @@
+/*
+ * PatternBlockDataLikelihoodDelegate.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.siteratemodel.SiteRateModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.inference.model.AbstractModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * PatternBlockDataLikelihoodDelegate
+ *
+ * A DataLikelihoodDelegate that holds a separate delegate (and so a separate BEAGLE or
+ * Java instance) for each contiguous block of patterns of a single partition and
+ * evaluates them concurrently. The total log likelihood is the sum over the blocks and the
+ * site log likelihoods are merged back into the original pattern order.
+ *
+ * Each block has its own scale buffers and rescales its partials independently. The scale
+ * factors are already included in each block's log likelihood and site log likelihoods so
+ * they are not merged separately (the per-node factors of the blocks are not combined).
+ *
+ * The block delegates are sub-models of this one so they are stored and restored together
+ * by the model framework.
+ *
+ * @version $Id$
+ */
+public class PatternBlockDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate {
+
+    /**
+     * @param branchModel the branch model shared by the block delegates
+     * @param siteRateModel the site rate model shared by the block delegates
+     * @param blockDelegates a delegate for each block of patterns
+     * @param blockStarts the first pattern of each block with the total pattern count appended
+     * @param threadCount the number of threads to use (1 or less to evaluate the blocks in turn)
+     */
+    public PatternBlockDataLikelihoodDelegate(BranchModel branchModel,
+                                              SiteRateModel siteRateModel,
+                                              List<DataLikelihoodDelegate> blockDelegates,
+                                              int[] blockStarts,
+                                              int threadCount) {
+
+        super("PatternBlockDataLikelihoodDelegate");
+
+        if (blockStarts.length != blockDelegates.size() + 1) {
+            throw new IllegalArgumentException("The number of block starts doesn't match the number of block delegates");
+        }
+        for (DataLikelihoodDelegate delegate : blockDelegates) {
+            // the site log likelihoods are merged from the blocks so they must be available
+            if (!(delegate instanceof BeagleDataLikelihoodDelegate) && !(delegate instanceof JavaDataLikelihoodDelegate)) {
+                throw new IllegalArgumentException("Pattern blocks can't use a " + delegate.getClass().getSimpleName());
+            }
+        }
+
+        this.branchModel = branchModel;
+        this.siteRateModel = siteRateModel;
+        this.blockDelegates = blockDelegates;
+        this.blockStarts = blockStarts;
+        this.patternCount = blockStarts[blockStarts.length - 1];
+
+        for (DataLikelihoodDelegate delegate : blockDelegates) {
+            addModel(delegate);
+        }
+
+        threadCount = Math.min(threadCount, blockDelegates.size());
+        if (threadCount > 1) {
+            pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PatternBlockDataLikelihoodDelegate");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            pool = null;
+        }
+
+        Logger.getLogger("dr.evomodel").info("\nUsing " + blockDelegates.size() + " pattern blocks, evaluated " +
+                (pool != null ? "on " + threadCount + " threads" : "serially"));
+    }
+
+    public int getBlockCount() {
+        return blockDelegates.size();
+    }
+
+    public DataLikelihoodDelegate getBlockDelegate(int block) {
+        return blockDelegates.get(block);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(blockDelegates.size()).append(" pattern blocks of ").append(patternCount).append(" patterns");
+        for (int i = 0; i < blockDelegates.size(); i++) {
+            sb.append("\n  block ").append(i + 1).append(": patterns ").append(blockStarts[i] + 1)
+                    .append(" to ").append(blockStarts[i + 1]);
+            String report = blockDelegates.get(i).getReport();
+            if (report != null) {
+                sb.append("\n").append(report);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public TreeTraversal.TraversalType getOptimalTraversalType() {
+        return blockDelegates.get(0).getOptimalTraversalType();
+    }
+
+    @Override
+    public int getTraitCount() {
+        return 1;
+    }
+
+    @Override
+    public int getTraitDim() {
+        return patternCount;
+    }
+
+    @Override
+    public RateRescalingScheme getRateRescalingScheme() {
+        return RateRescalingScheme.NONE;
+    }
+
+    @Override
+    public double calculateLikelihood(final List<BranchOperation> branchOperations,
+                                      final List<NodeOperation> nodeOperations,
+                                      final int rootNodeNumber) throws LikelihoodException {
+
+        // The models are shared between the blocks and compute their values lazily so make
+        // sure this is done here, on one thread, before the blocks read them concurrently.
+        for (SubstitutionModel substitutionModel : branchModel.getSubstitutionModels()) {
+            substitutionModel.getEigenDecomposition();
+            substitutionModel.getFrequencyModel().getFrequencies();
+        }
+        siteRateModel.getCategoryRates();
+        siteRateModel.getCategoryProportions();
+
+        final int blockCount = blockDelegates.size();
+        LikelihoodException exception = null;
+        double logL = 0.0;
+
+        if (pool == null) {
+            for (DataLikelihoodDelegate delegate : blockDelegates) {
+                try {
+                    logL += delegate.calculateLikelihood(branchOperations, nodeOperations, rootNodeNumber);
+                } catch (LikelihoodException le) {
+                    // carry on so that all the blocks have done the same operations
+                    exception = le;
+                }
+            }
+        } else {
+            List<Callable<Double>> callers = new ArrayList<Callable<Double>>(blockCount);
+            for (final DataLikelihoodDelegate delegate : blockDelegates) {
+                callers.add(new Callable<Double>() {
+                    public Double call() throws Exception {
+                        return delegate.calculateLikelihood(branchOperations, nodeOperations, rootNodeNumber);
+                    }
+                });
+            }
+
+            try {
+                List<Future<Double>> results = pool.invokeAll(callers);
+
+                // sum in block order so the result is the same whatever order the threads finish in
+                for (Future<Double> result : results) {
+                    try {
+                        logL += result.get();
+                    } catch (ExecutionException ee) {
+                        if (ee.getCause() instanceof LikelihoodException) {
+                            exception = (LikelihoodException) ee.getCause();
+                        } else if (ee.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException) ee.getCause();
+                        } else {
+                            throw new RuntimeException(ee.getCause());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (exception != null) {
+            // TreeDataLikelihood will update all nodes and call again for every block
+            throw exception;
+        }
+
+        return logL;
+    }
+
+    /**
+     * @return the log likelihoods of each pattern, in the original order, from the last evaluation
+     */
+    public double[] getSiteLogLikelihoods() {
+        if (siteLogLikelihoods == null) {
+            siteLogLikelihoods = new double[patternCount];
+        }
+
+        for (int i = 0; i < blockDelegates.size(); i++) {
+            DataLikelihoodDelegate delegate = blockDelegates.get(i);
+            double[] blockLogLikelihoods;
+            if (delegate instanceof BeagleDataLikelihoodDelegate) {
+                blockLogLikelihoods = ((BeagleDataLikelihoodDelegate) delegate).getSiteLogLikelihoods();
+            } else {
+                // the constructor only accepts these two
+                blockLogLikelihoods = ((JavaDataLikelihoodDelegate) delegate).getSiteLogLikelihoods();
+            }
+            System.arraycopy(blockLogLikelihoods, 0, siteLogLikelihoods, blockStarts[i], blockStarts[i + 1] - blockStarts[i]);
+        }
+        return siteLogLikelihoods;
+    }
+
+    @Override
+    public void makeDirty() {
+        for (DataLikelihoodDelegate delegate : blockDelegates) {
+            delegate.makeDirty();
+        }
+    }
+
+    @Override
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        // pass on changes in the blocks to TreeDataLikelihood
+        fireModelChanged(object, index);
+    }
+
+    @Override
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+
+    }
+
+    /**
+     * Nothing to do here - the block delegates are sub-models so are stored by storeModelState()
+     */
+    @Override
+    public void storeState() {
+    }
+
+    /**
+     * Nothing to do here - the block delegates are sub-models so are restored by restoreModelState()
+     */
+    @Override
+    public void restoreState() {
+    }
+
+    @Override
+    protected void acceptState() {
+    }
+
+    @Override
+    public void setCallback(TreeDataLikelihood treeDataLikelihood) {
+        for (DataLikelihoodDelegate delegate : blockDelegates) {
+            delegate.setCallback(treeDataLikelihood);
+        }
+    }
+
+    /**
+     * Fills in the operations of each block in turn (as each block has its own buffers) so the
+     * array needs room for the operations of all the blocks.
+     *
+     * @return the total number of operations
+     */
+    @Override
+    public int vectorizeNodeOperations(List<ProcessOnTreeDelegate.NodeOperation> nodeOperations, int[] operations) {
+        int operationCount = 0;
+        int[] blockOperations = new int[nodeOperations.size() * Beagle.OPERATION_TUPLE_SIZE];
+        for (DataLikelihoodDelegate delegate : blockDelegates) {
+            int count = delegate.vectorizeNodeOperations(nodeOperations, blockOperations);
+            System.arraycopy(blockOperations, 0, operations, operationCount * Beagle.OPERATION_TUPLE_SIZE,
+                    count * Beagle.OPERATION_TUPLE_SIZE);
+            operationCount += count;
+        }
+        return operationCount;
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    private final BranchModel branchModel;
+    private final SiteRateModel siteRateModel;
+
+    private final List<DataLikelihoodDelegate> blockDelegates;
+    private final int[] blockStarts;
+    private final int patternCount;
+
+    private double[] siteLogLikelihoods = null;
+
+    private final ExecutorService pool;
+}
@@ -0,0 +1,809 @@
+/*
+ * ThreadedJavaBeagleImpl.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import beagle.InstanceDetails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * ThreadedJavaBeagleImpl - a pure Java implementation of the BEAGLE API for use when the
+ * native library is not available.
+ *
+ * All buffers are held as flat primitive arrays (partials are stored [category][pattern][state]
+ * as in BEAGLE). The patterns are split into contiguous blocks and, as the patterns are
+ * independent, each block is carried through a whole set of operations by its own thread.
+ * Nucleotide data has hand unrolled inner loops; other state counts use the general loops.
+ *
+ * Transition matrices are stored with an extra column of 1.0s so that ambiguous tip states
+ * (state == stateCount) can be looked up directly.
+ *
+ * Only the subset of the API used by the single partition delegates is supported.
+ *
+ * @version $Id$
+ */
+public class ThreadedJavaBeagleImpl implements Beagle {
+
+    // the minimum number of patterns worth giving a thread of its own
+    private static final int MIN_PATTERNS_PER_BLOCK = 256;
+
+    // shared so the pool's threads don't hold on to the instance and it can be finalized
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ThreadedJavaBeagleImpl");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    public ThreadedJavaBeagleImpl(final int tipCount,
+                                  final int partialsBufferCount,
+                                  final int compactBufferCount,
+                                  final int stateCount,
+                                  final int patternCount,
+                                  final int eigenBufferCount,
+                                  final int matrixBufferCount,
+                                  final int categoryCount,
+                                  final int scaleBufferCount,
+                                  final int threadCount) {
+
+        this.tipCount = tipCount;
+        this.partialsBufferCount = partialsBufferCount;
+        this.compactBufferCount = compactBufferCount;
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.eigenBufferCount = eigenBufferCount;
+        this.matrixBufferCount = matrixBufferCount;
+        this.categoryCount = categoryCount;
+        this.scaleBufferCount = scaleBufferCount;
+
+        partialsSize = patternCount * stateCount * categoryCount;
+        matrixRowSize = stateCount + 1;
+        matrixSize = stateCount * matrixRowSize;
+
+        cMatrices = new double[eigenBufferCount][];
+        eigenValues = new double[eigenBufferCount][];
+        stateFrequencies = new double[eigenBufferCount][];
+        categoryWeights = new double[eigenBufferCount][];
+        categoryRates = new double[categoryCount];
+        patternWeights = new double[patternCount];
+        Arrays.fill(patternWeights, 1.0);
+
+        partials = new double[partialsBufferCount][];
+        tipStates = new int[partialsBufferCount][];
+        matrices = new double[matrixBufferCount][categoryCount * matrixSize];
+        scaleFactors = new double[scaleBufferCount][patternCount];
+        siteLogLikelihoods = new double[patternCount];
+
+        int blocks = Math.max(1, Math.min(threadCount, patternCount / MIN_PATTERNS_PER_BLOCK));
+        blockCount = blocks;
+        blockStarts = new int[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            blockStarts[i] = (int) (((long) patternCount * i) / blockCount);
+        }
+        blockSums = new double[blockCount];
+        expEigenValues = new double[stateCount];
+
+        if (blockCount > 1) {
+            pool = Executors.newFixedThreadPool(blockCount, THREAD_FACTORY);
+        } else {
+            pool = null;
+        }
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Stops the threads of the pool. They are daemon threads so this only needs calling if
+     * the instance is discarded before the end of the run.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Disposes of the instance (as for the other Beagle implementations) by stopping the threads.
+     */
+    @Override
+    public void finalize() throws Throwable {
+        shutdown();
+        super.finalize();
+    }
+
+    public void setPatternWeights(final double[] patternWeights) {
+        System.arraycopy(patternWeights, 0, this.patternWeights, 0, this.patternCount);
+    }
+
+    public void setPatternPartitions(int partitionCount, int[] patternPartitions) {
+        throw new UnsupportedOperationException("setPatternPartitions not supported by " + getClass().getSimpleName());
+    }
+
+    public void setTipStates(int tipIndex, int[] inStates) {
+        assert (tipIndex >= 0 && tipIndex < tipCount);
+
+        int[] states = new int[patternCount];
+        for (int k = 0; k < patternCount; k++) {
+            // any state outside the range is treated as completely ambiguous
+            states[k] = (inStates[k] < stateCount && inStates[k] >= 0 ? inStates[k] : stateCount);
+        }
+        tipStates[tipIndex] = states;
+        partials[tipIndex] = null;
+    }
+
+    public void getTipStates(int tipIndex, int[] outStates) {
+        System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+    }
+
+    public void setTipPartials(int tipIndex, double[] inPartials) {
+        assert (tipIndex >= 0 && tipIndex < tipCount);
+
+        double[] tipPartials = getPartialsBuffer(tipIndex);
+        int n = patternCount * stateCount;
+        for (int l = 0; l < categoryCount; l++) {
+            System.arraycopy(inPartials, 0, tipPartials, l * n, n);
+        }
+        tipStates[tipIndex] = null;
+    }
+
+    public void setPartials(int bufferIndex, double[] inPartials) {
+        System.arraycopy(inPartials, 0, getPartialsBuffer(bufferIndex), 0, partialsSize);
+        tipStates[bufferIndex] = null;
+    }
+
+    public void getPartials(int bufferIndex, int scaleIndex, double[] outPartials) {
+        if (tipStates[bufferIndex] != null) {
+            int[] states = tipStates[bufferIndex];
+            int v = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int k = 0; k < patternCount; k++) {
+                    for (int i = 0; i < stateCount; i++) {
+                        outPartials[v++] = (states[k] == stateCount || states[k] == i ? 1.0 : 0.0);
+                    }
+                }
+            }
+            return;
+        }
+
+        System.arraycopy(partials[bufferIndex], 0, outPartials, 0, partialsSize);
+
+        if (scaleIndex != Beagle.NONE) {
+            double[] scale = scaleFactors[scaleIndex];
+            int v = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int k = 0; k < patternCount; k++) {
+                    double factor = Math.exp(scale[k]);
+                    for (int i = 0; i < stateCount; i++) {
+                        outPartials[v++] *= factor;
+                    }
+                }
+            }
+        }
+    }
+
+    public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+        System.arraycopy(scaleFactors[scaleIndex], 0, outFactors, 0, patternCount);
+    }
+
+    public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors, double[] inInverseEigenVectors, double[] inEigenValues) {
+
+        if (cMatrices[eigenIndex] == null) {
+            cMatrices[eigenIndex] = new double[stateCount * stateCount * stateCount];
+            eigenValues[eigenIndex] = new double[stateCount];
+        }
+
+        // pre-multiply the eigenvectors into Cijk so that P(t) is a single sum over k
+        double[] cijk = cMatrices[eigenIndex];
+        int l = 0;
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                for (int k = 0; k < stateCount; k++) {
+                    cijk[l++] = inEigenVectors[(i * stateCount) + k] * inInverseEigenVectors[(k * stateCount) + j];
+                }
+            }
+        }
+
+        System.arraycopy(inEigenValues, 0, eigenValues[eigenIndex], 0, stateCount);
+    }
+
+    public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+        if (stateFrequencies[stateFrequenciesIndex] == null) {
+            stateFrequencies[stateFrequenciesIndex] = new double[stateCount];
+        }
+        System.arraycopy(inStateFrequencies, 0, stateFrequencies[stateFrequenciesIndex], 0, stateCount);
+    }
+
+    public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+        if (categoryWeights[categoryWeightsIndex] == null) {
+            categoryWeights[categoryWeightsIndex] = new double[categoryCount];
+        }
+        System.arraycopy(inCategoryWeights, 0, categoryWeights[categoryWeightsIndex], 0, categoryCount);
+    }
+
+    public void setCategoryRates(double[] inCategoryRates) {
+        System.arraycopy(inCategoryRates, 0, categoryRates, 0, categoryCount);
+    }
+
+    public void setCategoryRatesWithIndex(int categoryRatesIndex, double[] inCategoryRates) {
+        if (categoryRatesIndex != 0) {
+            throw new UnsupportedOperationException("Multiple category rate buffers not supported by " + getClass().getSimpleName());
+        }
+        setCategoryRates(inCategoryRates);
+    }
+
+    public void convolveTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            double[] first = matrices[firstIndices[u]];
+            double[] second = matrices[secondIndices[u]];
+            double[] result = matrices[resultIndices[u]];
+
+            if (result == first || result == second) {
+                throw new IllegalArgumentException("Cannot convolve transition matrices in place");
+            }
+
+            for (int l = 0; l < categoryCount; l++) {
+                int offset = l * matrixSize;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        double sum = 0.0;
+                        for (int k = 0; k < stateCount; k++) {
+                            sum += first[offset + i * matrixRowSize + k] * second[offset + k * matrixRowSize + j];
+                        }
+                        result[offset + i * matrixRowSize + j] = sum;
+                    }
+                    result[offset + i * matrixRowSize + stateCount] = 1.0;
+                }
+            }
+        }
+    }
+
+    public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices, int[] firstDerivativeIndices,
+                                         int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+
+        if (firstDerivativeIndices != null || secondDerivativeIndices != null) {
+            throw new UnsupportedOperationException("Derivative matrices not supported by " + getClass().getSimpleName());
+        }
+
+        final double[] cijk = cMatrices[eigenIndex];
+        final double[] evals = eigenValues[eigenIndex];
+        final double[] tmp = expEigenValues;
+
+        for (int u = 0; u < count; u++) {
+            final double[] matrix = matrices[probabilityIndices[u]];
+
+            int n = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                final double t = edgeLengths[u] * categoryRates[l];
+                for (int k = 0; k < stateCount; k++) {
+                    tmp[k] = Math.exp(evals[k] * t);
+                }
+
+                int m = 0;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        double sum = 0.0;
+                        for (int k = 0; k < stateCount; k++) {
+                            sum += cijk[m++] * tmp[k];
+                        }
+                        // small negative values can occur through rounding error
+                        matrix[n++] = (sum > 0.0 ? sum : 0.0);
+                    }
+                    matrix[n++] = 1.0;
+                }
+            }
+        }
+    }
+
+    public void updateTransitionMatricesWithMultipleModels(int[] eigenIndices, int[] categoryRateIndices,
+                                                           int[] probabilityIndices, int[] firstDerivativeIndices,
+                                                           int[] secondDerivativeIndices, double[] edgeLengths,
+                                                           int count) {
+        throw new UnsupportedOperationException("updateTransitionMatricesWithMultipleModels not supported by " + getClass().getSimpleName());
+    }
+
+    public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+        double[] matrix = matrices[matrixIndex];
+        int replicates = (inMatrix.length >= categoryCount * stateCount * stateCount ? categoryCount : 1);
+        int u = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            if (replicates == 1) {
+                u = 0;
+            }
+            int offset = l * matrixSize;
+            for (int i = 0; i < stateCount; i++) {
+                for (int j = 0; j < stateCount; j++) {
+                    matrix[offset + i * matrixRowSize + j] = inMatrix[u++];
+                }
+                matrix[offset + i * matrixRowSize + stateCount] = paddedValue;
+            }
+        }
+    }
+
+    public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+        double[] matrix = matrices[matrixIndex];
+        int u = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            int offset = l * matrixSize;
+            for (int i = 0; i < stateCount; i++) {
+                System.arraycopy(matrix, offset + i * matrixRowSize, outMatrix, u, stateCount);
+                u += stateCount;
+            }
+        }
+    }
+
+    public void updatePartials(final int[] operations, final int operationCount, final int cumulativeScaleIndex) {
+
+        // allocate any destination buffers up front so the workers only read the buffer tables
+        for (int op = 0; op < operationCount; op++) {
+            int x = op * Beagle.OPERATION_TUPLE_SIZE;
+            getPartialsBuffer(operations[x]);
+            tipStates[operations[x]] = null;
+        }
+
+        forEachBlock(new BlockOperation() {
+            public void apply(int block, int start, int end) {
+                updatePartialsBlock(operations, operationCount, cumulativeScaleIndex, start, end);
+            }
+        });
+    }
+
+    public void updatePartialsByPartition(int[] operations, int operationCount) {
+        throw new UnsupportedOperationException("updatePartialsByPartition not supported by " + getClass().getSimpleName());
+    }
+
+    public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        if (cumulativeScaleIndex == Beagle.NONE) {
+            return;
+        }
+        double[] cumulative = scaleFactors[cumulativeScaleIndex];
+        for (int i = 0; i < count; i++) {
+            double[] scale = scaleFactors[scaleIndices[i]];
+            for (int k = 0; k < patternCount; k++) {
+                cumulative[k] += scale[k];
+            }
+        }
+    }
+
+    public void accumulateScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("accumulateScaleFactorsByPartition not supported by " + getClass().getSimpleName());
+    }
+
+    public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        double[] cumulative = scaleFactors[cumulativeScaleIndex];
+        for (int i = 0; i < count; i++) {
+            double[] scale = scaleFactors[scaleIndices[i]];
+            for (int k = 0; k < patternCount; k++) {
+                cumulative[k] -= scale[k];
+            }
+        }
+    }
+
+    public void removeScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("removeScaleFactorsByPartition not supported by " + getClass().getSimpleName());
+    }
+
+    public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+        System.arraycopy(scaleFactors[srcScalingIndex], 0, scaleFactors[destScalingIndex], 0, patternCount);
+    }
+
+    public void resetScaleFactors(int cumulativeScaleIndex) {
+        Arrays.fill(scaleFactors[cumulativeScaleIndex], 0.0);
+    }
+
+    public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("resetScaleFactorsByPartition not supported by " + getClass().getSimpleName());
+    }
+
+    public void calculateRootLogLikelihoods(final int[] bufferIndices, final int[] categoryWeightsIndices,
+                                            final int[] stateFrequenciesIndices, final int[] cumulativeScaleIndices,
+                                            final int count, final double[] outSumLogLikelihood) {
+        if (count != 1) {
+            throw new UnsupportedOperationException("Multiple root buffers not supported by " + getClass().getSimpleName());
+        }
+
+        forEachBlock(new BlockOperation() {
+            public void apply(int block, int start, int end) {
+                blockSums[block] = calculateRootLogLikelihoodsBlock(bufferIndices[0], categoryWeightsIndices[0],
+                        stateFrequenciesIndices[0], cumulativeScaleIndices[0], start, end);
+            }
+        });
+
+        // sum the blocks in a fixed order so the result doesn't depend on thread timing
+        double sum = 0.0;
+        for (int b = 0; b < blockCount; b++) {
+            sum += blockSums[b];
+        }
+        outSumLogLikelihood[0] = sum;
+    }
+
+    public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+                                                       int[] stateFrequenciesIndices, int[] cumulativeScaleIndices,
+                                                       int[] partitionIndices, int partitionCount, int count,
+                                                       double[] outSumLogLikelihoodByPartition,
+                                                       double[] outSumLogLikelihood) {
+        throw new UnsupportedOperationException("calculateRootLogLikelihoodsByPartition not supported by " + getClass().getSimpleName());
+    }
+
+    public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+        System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+    }
+
+    public InstanceDetails getDetails() {
+        // not a BEAGLE resource so there are no details to report
+        return null;
+    }
+
+    // **************************************************************
+    // Block computations - each of these touches patterns [start, end) only
+    // **************************************************************
+
+    private void updatePartialsBlock(int[] operations, int operationCount, int cumulativeScaleIndex, int start, int end) {
+
+        for (int op = 0; op < operationCount; op++) {
+            final int x = op * Beagle.OPERATION_TUPLE_SIZE;
+            final int destinationIndex = operations[x];
+            final int writeScalingIndex = operations[x + 1];
+            final int readScalingIndex = operations[x + 2];
+            final int child1Index = operations[x + 3];
+            final int child1TransMatIndex = operations[x + 4];
+            final int child2Index = operations[x + 5];
+            final int child2TransMatIndex = operations[x + 6];
+
+            final double[] destination = partials[destinationIndex];
+            final double[] matrices1 = matrices[child1TransMatIndex];
+            final double[] matrices2 = matrices[child2TransMatIndex];
+
+            if (tipStates[child1Index] != null) {
+                if (tipStates[child2Index] != null) {
+                    updateStatesStates(tipStates[child1Index], matrices1, tipStates[child2Index], matrices2,
+                            destination, start, end);
+                } else if (stateCount == 4) {
+                    updateNucleotideStatesPartials(tipStates[child1Index], matrices1, partials[child2Index], matrices2,
+                            destination, start, end);
+                } else {
+                    updateStatesPartials(tipStates[child1Index], matrices1, partials[child2Index], matrices2,
+                            destination, start, end);
+                }
+            } else {
+                if (tipStates[child2Index] != null) {
+                    if (stateCount == 4) {
+                        updateNucleotideStatesPartials(tipStates[child2Index], matrices2, partials[child1Index], matrices1,
+                                destination, start, end);
+                    } else {
+                        updateStatesPartials(tipStates[child2Index], matrices2, partials[child1Index], matrices1,
+                                destination, start, end);
+                    }
+                } else if (stateCount == 4) {
+                    updateNucleotidePartialsPartials(partials[child1Index], matrices1, partials[child2Index], matrices2,
+                            destination, start, end);
+                } else {
+                    updatePartialsPartials(partials[child1Index], matrices1, partials[child2Index], matrices2,
+                            destination, start, end);
+                }
+            }
+
+            if (writeScalingIndex != Beagle.NONE) {
+                scalePartials(destination, scaleFactors[writeScalingIndex], start, end);
+                if (cumulativeScaleIndex != Beagle.NONE) {
+                    double[] cumulative = scaleFactors[cumulativeScaleIndex];
+                    double[] scale = scaleFactors[writeScalingIndex];
+                    for (int k = start; k < end; k++) {
+                        cumulative[k] += scale[k];
+                    }
+                }
+            } else if (readScalingIndex != Beagle.NONE) {
+                rescalePartials(destination, scaleFactors[readScalingIndex], start, end);
+            }
+        }
+    }
+
+    private void updateStatesStates(int[] states1, double[] matrices1, int[] states2, double[] matrices2,
+                                    double[] destination, int start, int end) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            int v = (l * patternCount + start) * stateCount;
+            for (int k = start; k < end; k++) {
+                final int s1 = states1[k];
+                final int s2 = states2[k];
+                int u = w;
+                for (int i = 0; i < stateCount; i++) {
+                    destination[v++] = matrices1[u + s1] * matrices2[u + s2];
+                    u += matrixRowSize;
+                }
+            }
+        }
+    }
+
+    private void updateStatesPartials(int[] states1, double[] matrices1, double[] partials2, double[] matrices2,
+                                      double[] destination, int start, int end) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            int v = (l * patternCount + start) * stateCount;
+            for (int k = start; k < end; k++) {
+                final int s1 = states1[k];
+                int u = w;
+                for (int i = 0; i < stateCount; i++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < stateCount; j++) {
+                        sum += matrices2[u + j] * partials2[v + j];
+                    }
+                    destination[v + i] = matrices1[u + s1] * sum;
+                    u += matrixRowSize;
+                }
+                v += stateCount;
+            }
+        }
+    }
+
+    private void updatePartialsPartials(double[] partials1, double[] matrices1, double[] partials2, double[] matrices2,
+                                        double[] destination, int start, int end) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            int v = (l * patternCount + start) * stateCount;
+            for (int k = start; k < end; k++) {
+                int u = w;
+                for (int i = 0; i < stateCount; i++) {
+                    double sum1 = 0.0;
+                    double sum2 = 0.0;
+                    for (int j = 0; j < stateCount; j++) {
+                        sum1 += matrices1[u + j] * partials1[v + j];
+                        sum2 += matrices2[u + j] * partials2[v + j];
+                    }
+                    destination[v + i] = sum1 * sum2;
+                    u += matrixRowSize;
+                }
+                v += stateCount;
+            }
+        }
+    }
+
+    private void updateNucleotidePartialsPartials(double[] partials1, double[] matrices1, double[] partials2, double[] matrices2,
+                                                  double[] destination, int start, int end) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            int v = (l * patternCount + start) * 4;
+            for (int k = start; k < end; k++) {
+                final double p10 = partials1[v];
+                final double p11 = partials1[v + 1];
+                final double p12 = partials1[v + 2];
+                final double p13 = partials1[v + 3];
+                final double p20 = partials2[v];
+                final double p21 = partials2[v + 1];
+                final double p22 = partials2[v + 2];
+                final double p23 = partials2[v + 3];
+
+                // rows are 5 wide because of the padding column for ambiguous states
+                destination[v] =
+                        (matrices1[w] * p10 + matrices1[w + 1] * p11 + matrices1[w + 2] * p12 + matrices1[w + 3] * p13) *
+                        (matrices2[w] * p20 + matrices2[w + 1] * p21 + matrices2[w + 2] * p22 + matrices2[w + 3] * p23);
+                destination[v + 1] =
+                        (matrices1[w + 5] * p10 + matrices1[w + 6] * p11 + matrices1[w + 7] * p12 + matrices1[w + 8] * p13) *
+                        (matrices2[w + 5] * p20 + matrices2[w + 6] * p21 + matrices2[w + 7] * p22 + matrices2[w + 8] * p23);
+                destination[v + 2] =
+                        (matrices1[w + 10] * p10 + matrices1[w + 11] * p11 + matrices1[w + 12] * p12 + matrices1[w + 13] * p13) *
+                        (matrices2[w + 10] * p20 + matrices2[w + 11] * p21 + matrices2[w + 12] * p22 + matrices2[w + 13] * p23);
+                destination[v + 3] =
+                        (matrices1[w + 15] * p10 + matrices1[w + 16] * p11 + matrices1[w + 17] * p12 + matrices1[w + 18] * p13) *
+                        (matrices2[w + 15] * p20 + matrices2[w + 16] * p21 + matrices2[w + 17] * p22 + matrices2[w + 18] * p23);
+                v += 4;
+            }
+        }
+    }
+
+    private void updateNucleotideStatesPartials(int[] states1, double[] matrices1, double[] partials2, double[] matrices2,
+                                                double[] destination, int start, int end) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            int v = (l * patternCount + start) * 4;
+            for (int k = start; k < end; k++) {
+                final int s1 = w + states1[k];
+                final double p20 = partials2[v];
+                final double p21 = partials2[v + 1];
+                final double p22 = partials2[v + 2];
+                final double p23 = partials2[v + 3];
+
+                destination[v] = matrices1[s1] *
+                        (matrices2[w] * p20 + matrices2[w + 1] * p21 + matrices2[w + 2] * p22 + matrices2[w + 3] * p23);
+                destination[v + 1] = matrices1[s1 + 5] *
+                        (matrices2[w + 5] * p20 + matrices2[w + 6] * p21 + matrices2[w + 7] * p22 + matrices2[w + 8] * p23);
+                destination[v + 2] = matrices1[s1 + 10] *
+                        (matrices2[w + 10] * p20 + matrices2[w + 11] * p21 + matrices2[w + 12] * p22 + matrices2[w + 13] * p23);
+                destination[v + 3] = matrices1[s1 + 15] *
+                        (matrices2[w + 15] * p20 + matrices2[w + 16] * p21 + matrices2[w + 17] * p22 + matrices2[w + 18] * p23);
+                v += 4;
+            }
+        }
+    }
+
+    private void scalePartials(double[] destination, double[] scale, int start, int end) {
+        final int categoryStride = patternCount * stateCount;
+        for (int k = start; k < end; k++) {
+            double max = 0.0;
+            int v = k * stateCount;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < stateCount; i++) {
+                    if (destination[v + i] > max) {
+                        max = destination[v + i];
+                    }
+                }
+                v += categoryStride;
+            }
+
+            if (max > 0.0) {
+                v = k * stateCount;
+                for (int l = 0; l < categoryCount; l++) {
+                    for (int i = 0; i < stateCount; i++) {
+                        destination[v + i] /= max;
+                    }
+                    v += categoryStride;
+                }
+                scale[k] = Math.log(max);
+            } else {
+                scale[k] = 0.0;
+            }
+        }
+    }
+
+    private void rescalePartials(double[] destination, double[] scale, int start, int end) {
+        final int categoryStride = patternCount * stateCount;
+        for (int k = start; k < end; k++) {
+            final double factor = Math.exp(-scale[k]);
+            int v = k * stateCount;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < stateCount; i++) {
+                    destination[v + i] *= factor;
+                }
+                v += categoryStride;
+            }
+        }
+    }
+
+    private double calculateRootLogLikelihoodsBlock(int bufferIndex, int categoryWeightsIndex,
+                                                    int stateFrequenciesIndex, int cumulativeScaleIndex,
+                                                    int start, int end) {
+        final double[] rootPartials = partials[bufferIndex];
+        final double[] weights = categoryWeights[categoryWeightsIndex];
+        final double[] frequencies = stateFrequencies[stateFrequenciesIndex];
+        final double[] cumulative = (cumulativeScaleIndex != Beagle.NONE ? scaleFactors[cumulativeScaleIndex] : null);
+        final int categoryStride = patternCount * stateCount;
+
+        double sum = 0.0;
+        for (int k = start; k < end; k++) {
+            double siteLikelihood = 0.0;
+            int v = k * stateCount;
+            for (int l = 0; l < categoryCount; l++) {
+                double categoryLikelihood = 0.0;
+                for (int i = 0; i < stateCount; i++) {
+                    categoryLikelihood += frequencies[i] * rootPartials[v + i];
+                }
+                siteLikelihood += weights[l] * categoryLikelihood;
+                v += categoryStride;
+            }
+
+            double logL = Math.log(siteLikelihood);
+            if (cumulative != null) {
+                logL += cumulative[k];
+            }
+            siteLogLikelihoods[k] = logL;
+            sum += logL * patternWeights[k];
+        }
+        return sum;
+    }
+
+    // **************************************************************
+    // Threading
+    // **************************************************************
+
+    private interface BlockOperation {
+        void apply(int block, int start, int end);
+    }
+
+    private void forEachBlock(final BlockOperation operation) {
+        if (pool == null) {
+            operation.apply(0, 0, patternCount);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(blockCount);
+        for (int b = 0; b < blockCount; b++) {
+            final int block = b;
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    operation.apply(block, blockStarts[block], blockStarts[block + 1]);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private double[] getPartialsBuffer(int bufferIndex) {
+        if (partials[bufferIndex] == null) {
+            partials[bufferIndex] = new double[partialsSize];
+        }
+        return partials[bufferIndex];
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    private final int tipCount;
+    private final int partialsBufferCount;
+    private final int compactBufferCount;
+    private final int stateCount;
+    private final int patternCount;
+    private final int eigenBufferCount;
+    private final int matrixBufferCount;
+    private final int categoryCount;
+    private final int scaleBufferCount;
+
+    private final int partialsSize;
+    private final int matrixRowSize;
+    private final int matrixSize;
+
+    private final double[][] cMatrices;
+    private final double[][] eigenValues;
+    private final double[][] stateFrequencies;
+    private final double[][] categoryWeights;
+    private final double[] categoryRates;
+    private final double[] patternWeights;
+
+    private final double[][] partials;
+    private final int[][] tipStates;
+    private final double[][] matrices;
+    private final double[][] scaleFactors;
+    private final double[] siteLogLikelihoods;
+
+    private final int blockCount;
+    private final int[] blockStarts;
+    private final double[] blockSums;
+    private final ExecutorService pool;
+
+    // workspace for updateTransitionMatrices
+    private final double[] expEigenValues;
+}
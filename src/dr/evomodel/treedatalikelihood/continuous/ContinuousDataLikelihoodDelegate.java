@@ -80,6 +80,9 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
 
     private boolean allowSingular = false;
 
+    // the number of threads to update the partials with (if 0 or less, the number of processors)
+    private static final String THREAD_COUNT_PROPERTY = "continuous.thread.count";
+
     private TreeDataLikelihood callbackLikelihood = null;
 
     public ContinuousDataLikelihoodDelegate(Tree tree,
@@ -164,13 +167,26 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
             ContinuousDiffusionIntegrator base;
             if (precisionType == PrecisionType.SCALAR) {
 
-                base = new ContinuousDiffusionIntegrator.Basic(
-                        precisionType,
-                        numTraits,
-                        dimTrait,
-                        partialBufferCount,
-                        matrixBufferCount
-                );
+                final int threadCount = getThreadCount();
+                if (threadCount > 1) {
+                    base = new ThreadedBasicIntegrator(
+                            precisionType,
+                            numTraits,
+                            dimTrait,
+                            partialBufferCount,
+                            matrixBufferCount,
+                            threadCount
+                    );
+                    logger.info("  Using " + threadCount + " threads for the post-order and pre-order partials");
+                } else {
+                    base = new ContinuousDiffusionIntegrator.Basic(
+                            precisionType,
+                            numTraits,
+                            dimTrait,
+                            partialBufferCount,
+                            matrixBufferCount
+                    );
+                }
 
             } else if (precisionType == PrecisionType.FULL) {
 
@@ -184,13 +200,26 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
                     );
                 } else {
                     if (allowSingular) {
-                        base = new SafeMultivariateIntegrator(
-                                precisionType,
-                                numTraits,
-                                dimTrait,
-                                partialBufferCount,
-                                matrixBufferCount
-                        );
+                        final int threadCount = getThreadCount();
+                        if (threadCount > 1) {
+                            base = new ThreadedSafeMultivariateIntegrator(
+                                    precisionType,
+                                    numTraits,
+                                    dimTrait,
+                                    partialBufferCount,
+                                    matrixBufferCount,
+                                    threadCount
+                            );
+                            logger.info("  Using " + threadCount + " threads for the post-order partials");
+                        } else {
+                            base = new SafeMultivariateIntegrator(
+                                    precisionType,
+                                    numTraits,
+                                    dimTrait,
+                                    partialBufferCount,
+                                    matrixBufferCount
+                            );
+                        }
                     } else {
                         base = new MultivariateIntegrator(
                                 precisionType,
@@ -886,4 +915,16 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
                 false,
                 likelihoodDelegate.allowSingular);
     }
+
+    private static int getThreadCount() {
+        String t = System.getProperty(THREAD_COUNT_PROPERTY);
+        if (t == null) {
+            return 1;
+        }
+        int threadCount = Integer.parseInt(t.trim());
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        return threadCount;
+    }
 }
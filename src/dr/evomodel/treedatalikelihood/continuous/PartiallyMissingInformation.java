@@ -157,7 +157,9 @@ public class PartiallyMissingInformation {
 
         @Override
         public boolean equals(Object obj) {
-            if (obj instanceof int[]) {
+            if (obj instanceof HashedIntArray) {
+                return Arrays.equals(array, ((HashedIntArray) obj).array);
+            } else if (obj instanceof int[]) {
                 return Arrays.equals(array, (int[]) obj);
             } else {
                 return false;
@@ -120,11 +120,16 @@ public class TreeTipGradient implements GradientWrtParameterProvider, Reportable
 
         double[] gradient = new double[nTaxa  * dimTrait * nTraits];
 
+        final int dimTaxon = dimTrait * nTraits;
+
         int offsetOutput = 0;
         for (int taxon = 0; taxon < nTaxa; ++taxon) {
-            double[] taxonGradient = (double[]) treeTraitProvider.getTrait(tree, tree.getExternalNode(taxon));
-            System.arraycopy(taxonGradient, 0, gradient, offsetOutput, taxonGradient.length);
-            offsetOutput += taxonGradient.length;
+            // only the requested (unmasked) tips need their full conditionals
+            if (maskParameter == null || !isMasked(offsetOutput, dimTaxon)) {
+                double[] taxonGradient = (double[]) treeTraitProvider.getTrait(tree, tree.getExternalNode(taxon));
+                System.arraycopy(taxonGradient, 0, gradient, offsetOutput, taxonGradient.length);
+            }
+            offsetOutput += dimTaxon;
         }
 
         if (maskParameter != null) {
@@ -138,6 +143,15 @@ public class TreeTipGradient implements GradientWrtParameterProvider, Reportable
         return gradient;
     }
 
+    private boolean isMasked(final int offset, final int dim) {
+        for (int i = offset; i < offset + dim; ++i) {
+            if (maskParameter.getParameterValue(i) != 0.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String getReport() {
         return (new dr.math.matrixAlgebra.Vector(getGradientLogDensity())).toString();
@@ -308,8 +308,23 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
                 System.err.println("Pre-order operations:");
             }
 
+            int offset = 0;
+            for (int op = 0; op < operationCount; ++op) {
+
+                if (DEBUG) {
+                    System.err.println("\t" + getOperationString(operations, offset));
+                }
+
+                updatePreOrderPartial(
+                        operations[offset    ],
+                        operations[offset + 1],
+                        operations[offset + 2],
+                        operations[offset + 3],
+                        operations[offset + 4]
+                );
 
-            throw new RuntimeException("Not yet implemented");
+                offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+            }
         }
 
         @Override
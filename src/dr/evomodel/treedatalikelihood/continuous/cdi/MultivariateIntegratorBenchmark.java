@@ -0,0 +1,191 @@
+/*
+ * MultivariateIntegratorBenchmark.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.continuous.cdi;
+
+import dr.math.MathUtils;
+
+import java.util.Arrays;
+
+/**
+ * A timing harness comparing the post-order integration of the SafeMultivariateIntegrator with the
+ * ThreadedSafeMultivariateIntegrator for a random tree with partially missing multivariate traits.
+ * The log likelihoods of the two are checked to be identical.
+ *
+ * Usage: MultivariateIntegratorBenchmark [taxonCount] [dimTrait] [numTraits] [threadCount] [repeats]
+ *
+ * @version $Id$
+ */
+public class MultivariateIntegratorBenchmark {
+
+    public static void main(String[] args) {
+        int taxonCount = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        int dimTrait = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+        int numTraits = (args.length > 2 ? Integer.parseInt(args[2]) : 1);
+        int threadCount = (args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors());
+        int repeats = (args.length > 4 ? Integer.parseInt(args[4]) : 5);
+
+        MathUtils.setSeed(666);
+
+        System.out.println("Taxa: " + taxonCount + ", trait dimension: " + dimTrait + ", traits: " + numTraits +
+                ", threads: " + threadCount);
+
+        int[] operations = createOperations(taxonCount);
+        double[] branchLengths = createBranchLengths(taxonCount);
+        double[][] tipPartials = createTipPartials(taxonCount, dimTrait, numTraits, 0.1);
+        double[] precision = createDiffusionPrecision(dimTrait);
+
+        ContinuousDiffusionIntegrator safe = new SafeMultivariateIntegrator(PrecisionType.FULL,
+                numTraits, dimTrait, 2 * taxonCount, 1);
+        ContinuousDiffusionIntegrator threaded = new ThreadedSafeMultivariateIntegrator(PrecisionType.FULL,
+                numTraits, dimTrait, 2 * taxonCount, 1, threadCount);
+
+        double[] safeLogLikelihoods = new double[numTraits];
+        double[] threadedLogLikelihoods = new double[numTraits];
+
+        for (int r = 0; r < repeats; r++) {
+            long safeTime = time(safe, operations, taxonCount, dimTrait, branchLengths, tipPartials, precision, safeLogLikelihoods);
+            long threadedTime = time(threaded, operations, taxonCount, dimTrait, branchLengths, tipPartials, precision, threadedLogLikelihoods);
+
+            boolean same = Arrays.equals(safeLogLikelihoods, threadedLogLikelihoods);
+
+            System.out.println("  Safe: " + (safeTime / 1000000) + " ms, threaded: " + (threadedTime / 1000000) +
+                    " ms, log likelihoods: " + Arrays.toString(safeLogLikelihoods) +
+                    (same ? "" : " (DIFFERENT: " + Arrays.toString(threadedLogLikelihoods) + ")"));
+        }
+    }
+
+    private static long time(ContinuousDiffusionIntegrator cdi, int[] operations, int taxonCount, int dimTrait,
+                             double[] branchLengths, double[][] tipPartials, double[] precision,
+                             double[] logLikelihoods) {
+        long startTime = System.nanoTime();
+        calculateLogLikelihoods(cdi, operations, taxonCount, dimTrait, branchLengths, tipPartials, precision,
+                logLikelihoods);
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Sets up the integrator and calculates the log likelihood of each trait. The buffers are the
+     * tips, then the internal nodes (with the root last) and then the root prior.
+     */
+    public static void calculateLogLikelihoods(ContinuousDiffusionIntegrator cdi, int[] operations, int taxonCount,
+                                               int dimTrait, double[] branchLengths, double[][] tipPartials, double[] precision,
+                                               double[] logLikelihoods) {
+        final int nodeCount = 2 * taxonCount - 1;
+        final int numTraits = logLikelihoods.length;
+
+        cdi.setDiffusionPrecision(0, precision, 0.0);
+
+        for (int i = 0; i < taxonCount; i++) {
+            cdi.setPostOrderPartial(i, tipPartials[i]);
+        }
+
+        int[] indices = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            indices[i] = i;
+        }
+        cdi.updateBrownianDiffusionMatrices(0, indices, branchLengths, null, nodeCount);
+
+        // the root prior
+        int priorDim = dimTrait + PrecisionType.FULL.getMatrixLength(dimTrait);
+        double[] prior = new double[numTraits * priorDim];
+        for (int t = 0; t < numTraits; t++) {
+            for (int i = 0; i < dimTrait; i++) {
+                PrecisionType.FULL.fillPrecisionInPartials(prior, t * priorDim, i, 0.1, dimTrait);
+            }
+        }
+        cdi.setPostOrderPartial(nodeCount, prior);
+
+        cdi.updatePostOrderPartials(operations, taxonCount - 1, false);
+        cdi.calculateRootLogLikelihood(nodeCount - 1, nodeCount, logLikelihoods, false);
+    }
+
+    /**
+     * @return the post-order operations for a random tree
+     */
+    public static int[] createOperations(int taxonCount) {
+        int[] operations = new int[(taxonCount - 1) * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE];
+        int[] nodes = new int[taxonCount];
+        for (int i = 0; i < taxonCount; i++) {
+            nodes[i] = i;
+        }
+        int count = taxonCount;
+        int offset = 0;
+        for (int k = taxonCount; k < 2 * taxonCount - 1; k++) {
+            int a = MathUtils.nextInt(count);
+            int i = nodes[a];
+            nodes[a] = nodes[--count];
+            int b = MathUtils.nextInt(count);
+            int j = nodes[b];
+            nodes[b] = k;
+
+            operations[offset] = k;
+            operations[offset + 1] = i;
+            operations[offset + 2] = i;
+            operations[offset + 3] = j;
+            operations[offset + 4] = j;
+            offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+        }
+        return operations;
+    }
+
+    public static double[] createBranchLengths(int taxonCount) {
+        double[] branchLengths = new double[2 * taxonCount - 1];
+        for (int i = 0; i < branchLengths.length; i++) {
+            branchLengths[i] = 0.01 + MathUtils.nextExponential(10.0);
+        }
+        return branchLengths;
+    }
+
+    /**
+     * @return the tip partials with each value missing with the given probability
+     */
+    public static double[][] createTipPartials(int taxonCount, int dimTrait, int numTraits, double missingProbability) {
+        int dimPartialForTrait = dimTrait + PrecisionType.FULL.getMatrixLength(dimTrait);
+        double[][] partials = new double[taxonCount][numTraits * dimPartialForTrait];
+        for (int n = 0; n < taxonCount; n++) {
+            for (int t = 0; t < numTraits; t++) {
+                int offset = t * dimPartialForTrait;
+                for (int i = 0; i < dimTrait; i++) {
+                    boolean missing = MathUtils.nextDouble() < missingProbability;
+                    partials[n][offset + i] = missing ? 0.0 : MathUtils.nextGaussian();
+                    PrecisionType.FULL.fillPrecisionInPartials(partials[n], offset, i,
+                            PrecisionType.getObservedPrecisionValue(missing), dimTrait);
+                }
+            }
+        }
+        return partials;
+    }
+
+    public static double[] createDiffusionPrecision(int dimTrait) {
+        double[] precision = new double[dimTrait * dimTrait];
+        for (int i = 0; i < dimTrait; i++) {
+            for (int j = 0; j < dimTrait; j++) {
+                precision[i * dimTrait + j] = (i == j ? 1.0 : 0.1);
+            }
+        }
+        return precision;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * OperationLevelScheduler.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.continuous.cdi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a list of post-order or pre-order operations on a number of threads. The operations are put
+ * into levels so that the nodes in a level only depend on nodes in earlier levels (for the
+ * post-order these are the roots of independent subtrees, for the pre-order the nodes at the same
+ * depth). Each operation is divided into a number of units (e.g., one for each trait) and the
+ * units of a level are split into contiguous blocks, one for each thread. The block number is
+ * passed to the updater so it can use its own workspace.
+ *
+ * @version $Id$
+ */
+class OperationLevelScheduler {
+
+    interface UnitUpdater {
+        /**
+         * Does the work for one unit of an operation.
+         *
+         * @param operation the index of the operation in the list
+         * @param unit      the unit of the operation (0 to unitsPerOperation - 1)
+         * @param block     the block (0 to threadCount - 1) that this unit is in
+         */
+        void update(int operation, int unit, int block);
+    }
+
+    OperationLevelScheduler(final String name, final int threadCount, final int bufferCount) {
+        this.threadCount = Math.max(1, threadCount);
+
+        bufferLevels = new int[bufferCount];
+
+        if (this.threadCount > 1) {
+            pool = Executors.newFixedThreadPool(this.threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            pool = null;
+        }
+    }
+
+    int getThreadCount() {
+        return threadCount;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs post-order operations (k, i, iMatrix, j, jMatrix) where k depends on i and j.
+     */
+    void updatePostOrder(final int[] operations, final int operationCount, final int unitsPerOperation,
+                         final UnitUpdater updater) {
+        if (operationCount == 0) {
+            return;
+        }
+
+        allocateLevels(operationCount);
+
+        int levelCount = 0;
+        int offset = 0;
+        for (int op = 0; op < operationCount; ++op) {
+            final int level = Math.max(
+                    bufferLevels[operations[offset + 1]],
+                    bufferLevels[operations[offset + 3]]) + 1;
+            bufferLevels[operations[offset]] = level;
+            operationLevels[op] = level;
+            levelCount = Math.max(levelCount, level);
+            offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+        }
+
+        updateLevels(operationCount, levelCount, unitsPerOperation, updater);
+    }
+
+    /**
+     * Runs pre-order operations (k, i, iMatrix, j, jMatrix) where i depends on its parent k (and on
+     * the post-order partial of its sibling j, which isn't changed).
+     */
+    void updatePreOrder(final int[] operations, final int operationCount, final int unitsPerOperation,
+                        final UnitUpdater updater) {
+        if (operationCount == 0) {
+            return;
+        }
+
+        allocateLevels(operationCount);
+
+        int levelCount = 0;
+        int offset = 0;
+        for (int op = 0; op < operationCount; ++op) {
+            final int level = bufferLevels[operations[offset]] + 1;
+            bufferLevels[operations[offset + 1]] = level;
+            operationLevels[op] = level;
+            levelCount = Math.max(levelCount, level);
+            offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+        }
+
+        updateLevels(operationCount, levelCount, unitsPerOperation, updater);
+    }
+
+    private void allocateLevels(final int operationCount) {
+        if (operationLevels == null || operationLevels.length < operationCount) {
+            operationLevels = new int[operationCount];
+            levelOrder = new int[operationCount];
+        }
+        Arrays.fill(bufferLevels, 0);
+    }
+
+    private void updateLevels(final int operationCount, final int levelCount, final int unitsPerOperation,
+                              final UnitUpdater updater) {
+
+        // a counting sort of the operations by level
+        if (levelStarts == null || levelStarts.length < levelCount + 2) {
+            levelStarts = new int[levelCount + 2];
+        }
+        Arrays.fill(levelStarts, 0, levelCount + 2, 0);
+        for (int op = 0; op < operationCount; ++op) {
+            levelStarts[operationLevels[op] + 1]++;
+        }
+        for (int level = 1; level <= levelCount + 1; ++level) {
+            levelStarts[level] += levelStarts[level - 1];
+        }
+        for (int op = 0; op < operationCount; ++op) {
+            levelOrder[levelStarts[operationLevels[op]]++] = op;
+        }
+        // the increments above have moved each start to the start of the next level
+        for (int level = levelCount + 1; level > 0; --level) {
+            levelStarts[level] = levelStarts[level - 1];
+        }
+        levelStarts[0] = 0;
+
+        for (int level = 1; level <= levelCount; ++level) {
+            updateLevel(levelStarts[level], levelStarts[level + 1], unitsPerOperation, updater);
+        }
+    }
+
+    /**
+     * Updates the operations levelOrder[start] to levelOrder[end - 1], which are independent of
+     * each other.
+     */
+    private void updateLevel(final int start, final int end, final int unitsPerOperation,
+                             final UnitUpdater updater) {
+        final int unitCount = (end - start) * unitsPerOperation;
+        final int blockCount = Math.min(threadCount, unitCount);
+
+        if (blockCount <= 1) {
+            updateUnits(start, 0, unitCount, unitsPerOperation, 0, updater);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(blockCount);
+        for (int b = 0; b < blockCount; b++) {
+            final int first = (int) (((long) unitCount * b) / blockCount);
+            final int last = (int) (((long) unitCount * (b + 1)) / blockCount);
+            final int block = b;
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    updateUnits(start, first, last, unitsPerOperation, block, updater);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void updateUnits(final int start, final int first, final int last, final int unitsPerOperation,
+                             final int block, final UnitUpdater updater) {
+        for (int unit = first; unit < last; ++unit) {
+            updater.update(levelOrder[start + unit / unitsPerOperation], unit % unitsPerOperation, block);
+        }
+    }
+
+    private final int threadCount;
+    private final ExecutorService pool;
+
+    // the level of the operation that last wrote each buffer (0 if none did)
+    private final int[] bufferLevels;
+    private int[] operationLevels;
+    private int[] levelOrder;
+    private int[] levelStarts;
+}
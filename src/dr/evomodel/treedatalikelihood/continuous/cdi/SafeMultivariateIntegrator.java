@@ -226,10 +226,40 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             startTime("total");
         }
 
+        if (workspace == null) {
+            workspace = new PartialsWorkspace(dimTrait);
+        }
+        workspace.setDiffusion(diffusions, inverseDiffusions, precisionOffset);
+
+        // For each trait
+        for (int trait = 0; trait < numTraits; ++trait) {
+            updatePartialForTrait(kBuffer, iBuffer, iMatrix, jBuffer, jMatrix, trait, workspace);
+        }
+
+        if (TIMING) {
+            endTime("total");
+        }
+    }
+
+    /**
+     * Updates the partial of a single trait at node k from those of its children i and j, using
+     * the matrices and vectors in the workspace, so different traits (or different nodes whose
+     * children are up to date) can be updated at the same time using different workspaces.
+     */
+    void updatePartialForTrait(
+            final int kBuffer,
+            final int iBuffer,
+            final int iMatrix,
+            final int jBuffer,
+            final int jMatrix,
+            final int trait,
+            final PartialsWorkspace workspace
+    ) {
+
         // Determine buffer offsets
-        int kbo = dimPartial * kBuffer;
-        int ibo = dimPartial * iBuffer;
-        int jbo = dimPartial * jBuffer;
+        final int kbo = dimPartial * kBuffer + dimPartialForTrait * trait;
+        final int ibo = dimPartial * iBuffer + dimPartialForTrait * trait;
+        final int jbo = dimPartial * jBuffer + dimPartialForTrait * trait;
 
         // Determine matrix offsets
         final int imo = dimMatrix * iMatrix;
@@ -239,8 +269,8 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         final double vi = branchLengths[imo];
         final double vj = branchLengths[jmo];
 
-        final DenseMatrix64F Vd = wrap(inverseDiffusions, precisionOffset, dimTrait, dimTrait);
-        final DenseMatrix64F Pd = wrap(diffusions, precisionOffset, dimTrait, dimTrait);
+        final DenseMatrix64F Vd = workspace.Vd;
+        final DenseMatrix64F Pd = workspace.Pd;
 
         if (DEBUG) {
             System.err.println("variance diffusion: " + Vd);
@@ -248,343 +278,254 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             System.err.println("precisionOffset = " + precisionOffset);
         }
 
-        // For each trait // TODO in parallel
-        for (int trait = 0; trait < numTraits; ++trait) {
+        // Layout, offset, dim
+        // trait, 0, dT
+        // precision, dT, dT * dT
+        // variance, dT + dT * dT, dT * dT
+        // scalar, dT + 2 * dT * dT, 1
 
-            // Layout, offset, dim
-            // trait, 0, dT
-            // precision, dT, dT * dT
-            // variance, dT + dT * dT, dT * dT
-            // scalar, dT + 2 * dT * dT, 1
+        // Increase variance along the branches i -> k and j -> k
 
-            if (TIMING) {
-                startTime("peel1");
-            }
+        // A. Get current precision of i and j
+        final double lpi = partials[ibo + dimTrait + 2 * dimTrait * dimTrait];
+        final double lpj = partials[jbo + dimTrait + 2 * dimTrait * dimTrait];
 
-            // Increase variance along the branches i -> k and j -> k
+        final DenseMatrix64F Pi = workspace.copy(partials, ibo + dimTrait, workspace.Pi);
+        final DenseMatrix64F Pj = workspace.copy(partials, jbo + dimTrait, workspace.Pj);
 
-            // A. Get current precision of i and j
-            final double lpi = partials[ibo + dimTrait + 2 * dimTrait * dimTrait];
-            final double lpj = partials[jbo + dimTrait + 2 * dimTrait * dimTrait];
+        // B. Integrate along branch using two matrix inversions
+        final double lpip = Double.isInfinite(lpi) ?
+                1.0 / vi : lpi / (1.0 + lpi * vi);
+        final double lpjp = Double.isInfinite(lpj) ?
+                1.0 / vj : lpj / (1.0 + lpj * vj);
 
-            final DenseMatrix64F Pi = wrap(partials, ibo + dimTrait, dimTrait, dimTrait);
-            final DenseMatrix64F Pj = wrap(partials, jbo + dimTrait, dimTrait, dimTrait);
+        InversionResult ci;
+        InversionResult cj;
 
-            if (TIMING) {
-                endTime("peel1");
-                startTime("peel2");
-            }
-
-            // B. Integrate along branch using two matrix inversions
-            final double lpip = Double.isInfinite(lpi) ?
-                    1.0 / vi : lpi / (1.0 + lpi * vi);
-            final double lpjp = Double.isInfinite(lpj) ?
-                    1.0 / vj : lpj / (1.0 + lpj * vj);
-
-            InversionResult ci;
-            InversionResult cj;
+        final DenseMatrix64F Pip = workspace.matrix2;
+        final DenseMatrix64F Pjp = workspace.matrix3;
 
-            final DenseMatrix64F Pip = matrix2;
-            final DenseMatrix64F Pjp = matrix3;
+        final boolean useVariancei = anyDiagonalInfinities(Pi);
+        final boolean useVariancej = anyDiagonalInfinities(Pj);
 
-//            boolean useVariance = anyDiagonalInfinities(Pi) || anyDiagonalInfinities(Pj);
-            final boolean useVariancei = anyDiagonalInfinities(Pi);
-            final boolean useVariancej = anyDiagonalInfinities(Pj);
+        if (useVariancei) {
 
-            if (useVariancei) {
+            final DenseMatrix64F Vip = workspace.matrix0;
+            final DenseMatrix64F Vi = workspace.copy(partials, ibo + dimTrait + dimTrait * dimTrait, workspace.V);
+            CommonOps.add(Vi, vi, Vd, Vip);
+            ci = safeInvert(Vip, Pip, true);
 
-                final DenseMatrix64F Vip = matrix0;
-                final DenseMatrix64F Vi = wrap(partials, ibo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
-                CommonOps.add(Vi, vi, Vd, Vip);
-                ci = safeInvert(Vip, Pip, true);
+        } else {
 
-            } else {
+            final DenseMatrix64F PiPlusPd = workspace.matrix0;
+            CommonOps.add(Pi, 1.0 / vi, Pd, PiPlusPd);
+            final DenseMatrix64F PiPlusPdInv = workspace.matrix5;
+            safeInvert(PiPlusPd, PiPlusPdInv, false);
+            CommonOps.mult(PiPlusPdInv, Pi, Pip);
+            CommonOps.mult(Pi, Pip, PiPlusPdInv);
+            CommonOps.add(Pi, -1, PiPlusPdInv, Pip);
+            ci = safeDeterminant(Pip, false);
+        }
 
-                final DenseMatrix64F PiPlusPd = matrix0;
-                CommonOps.add(Pi, 1.0 / vi, Pd, PiPlusPd);
-                final DenseMatrix64F PiPlusPdInv = new DenseMatrix64F(dimTrait, dimTrait);
-                safeInvert(PiPlusPd, PiPlusPdInv, false);
-                CommonOps.mult(PiPlusPdInv, Pi, Pip);
-                CommonOps.mult(Pi, Pip, PiPlusPdInv);
-                CommonOps.add(Pi, -1, PiPlusPdInv, Pip);
-                ci = safeDeterminant(Pip, false);
-            }
+        if (useVariancej) {
 
-            if (useVariancej) {
+            final DenseMatrix64F Vjp = workspace.matrix1;
+            final DenseMatrix64F Vj = workspace.copy(partials, jbo + dimTrait + dimTrait * dimTrait, workspace.V);
+            CommonOps.add(Vj, vj, Vd, Vjp);
+            cj = safeInvert(Vjp, Pjp, true);
 
-                final DenseMatrix64F Vjp = matrix1;
-                final DenseMatrix64F Vj = wrap(partials, jbo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
-                CommonOps.add(Vj, vj, Vd, Vjp);
-                cj = safeInvert(Vjp, Pjp, true);
+        } else {
 
-            } else {
+            final DenseMatrix64F PjPlusPd = workspace.matrix1;
+            CommonOps.add(Pj, 1.0 / vj, Pd, PjPlusPd);
+            final DenseMatrix64F PjPlusPdInv = workspace.matrix6;
+            safeInvert(PjPlusPd, PjPlusPdInv, false);
+            CommonOps.mult(PjPlusPdInv, Pj, Pjp);
+            CommonOps.mult(Pj, Pjp, PjPlusPdInv);
+            CommonOps.add(Pj, -1, PjPlusPdInv, Pjp);
+            cj = safeDeterminant(Pjp, false);
+        }
 
-                final DenseMatrix64F PjPlusPd = matrix1;
-                CommonOps.add(Pj, 1.0 / vj, Pd, PjPlusPd);
-                final DenseMatrix64F PjPlusPdInv = new DenseMatrix64F(dimTrait, dimTrait);
-                safeInvert(PjPlusPd, PjPlusPdInv, false);
-                CommonOps.mult(PjPlusPdInv, Pj, Pjp);
-                CommonOps.mult(Pj, Pjp, PjPlusPdInv);
-                CommonOps.add(Pj, -1, PjPlusPdInv, Pjp);
-                cj = safeDeterminant(Pjp, false);
-            }
+        // Compute partial mean and precision at node k
 
-//            if (useVariance) {
-//
-//                final DenseMatrix64F Vip = matrix0;
-//                final DenseMatrix64F Vjp = matrix1;
-//
-//                final DenseMatrix64F Vi = wrap(partials, ibo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
-//                final DenseMatrix64F Vj = wrap(partials, jbo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
-//
-//                CommonOps.add(Vi, vi, Vd, Vip);
-//                CommonOps.add(Vj, vj, Vd, Vjp);
-//
-//                ci = safeInvert(Vip, Pip, true);
-//                cj = safeInvert(Vjp, Pjp, true);
-//            } else {
-//
-//                final DenseMatrix64F PiPlusPd = matrix0;
-//                final DenseMatrix64F PjPlusPd = matrix1;
-//
-//                CommonOps.add(Pi, 1.0 / vi, Pd, PiPlusPd);
-//                CommonOps.add(Pj, 1.0 / vj, Pd, PjPlusPd);
-//
-//                final DenseMatrix64F PiPlusPdInv = new DenseMatrix64F(dimTrait, dimTrait);
-//                final DenseMatrix64F PjPlusPdInv = new DenseMatrix64F(dimTrait, dimTrait);
-//
-//                safeInvert(PiPlusPd, PiPlusPdInv, false);
-//                safeInvert(PjPlusPd, PjPlusPdInv, false);
-//
-//                CommonOps.mult(PiPlusPdInv, Pi, Pip);
-//                CommonOps.mult(PjPlusPdInv, Pj, Pjp);
-//
-//                CommonOps.mult(Pi, Pip, PiPlusPdInv);
-//                CommonOps.mult(Pj, Pjp, PjPlusPdInv);
-//
-//                CommonOps.add(Pi, -1, PiPlusPdInv, Pip);
-//                CommonOps.add(Pj, -1, PjPlusPdInv, Pjp);
-//
-//                ci = safeDeterminant(Pip, false);
-//                cj = safeDeterminant(Pjp, false);
-//            }
+        // A. Partial precision
+        final double lpk = lpip + lpjp;
 
-            if (TIMING) {
-                endTime("peel2");
-                startTime("peel2a");
-            }
+        final DenseMatrix64F Pk = workspace.matrix4;
+        CommonOps.add(Pip, Pjp, Pk);
 
-            
-            if (TIMING) {
-                endTime("peel2a");
-                startTime("peel3");
+        // B. Partial mean
+        final double[] tmp = workspace.vector0;
+        for (int g = 0; g < dimTrait; ++g) {
+            double sum = 0.0;
+            for (int h = 0; h < dimTrait; ++h) {
+                sum += Pip.unsafe_get(g, h) * partials[ibo + h];
+                sum += Pjp.unsafe_get(g, h) * partials[jbo + h];
             }
+            tmp[g] = sum;
+        }
 
-            // Compute partial mean and precision at node k
-
-            // A. Partial precision and variance (for later use) using one matrix inversion
-            final double lpk = lpip + lpjp;
-
-//                final DenseMatrix64F Pk = new DenseMatrix64F(dimTrait, dimTrait);
-            final DenseMatrix64F Pk = matrix4;
-            CommonOps.add(Pip, Pjp, Pk);
-
-//                final DenseMatrix64F Vk = new DenseMatrix64F(dimTrait, dimTrait);
-//            final DenseMatrix64F Vk = matrix5;
-
-//            if (useVariance) {
-////            InversionResult ck =
-//                    safeInvert(Pk, Vk, true);
-//            }
-//            InversionResult ck = safeDeterminant(Pk, true);
+        final DenseMatrix64F mean = workspace.mean;
+        InversionResult ck = safeSolve(Pk, workspace.weightedSum, mean, true);
+        for (int g = 0; g < dimTrait; ++g) {
+            partials[kbo + g] = mean.unsafe_get(g, 0);
+        }
 
-//            System.err.println(ck);
-//            System.err.println(ck2);
-//            System.exit(-1);
+        // C. Store precision
+        partials[kbo + dimTrait + 2 * dimTrait * dimTrait] = lpk;
 
-            // B. Partial mean
+        unwrap(Pk, partials, kbo + dimTrait);
 
-            if (TIMING) {
-                endTime("peel3");
-                startTime("peel4");
+        if (DEBUG) {
+            System.err.println("\ttrait: " + trait);
+            System.err.println("Pi: " + Pi);
+            System.err.println("Pj: " + Pj);
+            System.err.println("Pk: " + Pk);
+            System.err.print("\t\tmean i:");
+            for (int e = 0; e < dimTrait; ++e) {
+                System.err.print(" " + partials[ibo + e]);
             }
-
-//                final double[] tmp = new double[dimTrait];
-            final double[] tmp = vector0;
-            for (int g = 0; g < dimTrait; ++g) {
-                double sum = 0.0;
-                for (int h = 0; h < dimTrait; ++h) {
-                    sum += Pip.unsafe_get(g, h) * partials[ibo + h];
-                    sum += Pjp.unsafe_get(g, h) * partials[jbo + h];
-                }
-                tmp[g] = sum;
+            System.err.print("\t\tmean j:");
+            for (int e = 0; e < dimTrait; ++e) {
+                System.err.print(" " + partials[jbo + e]);
             }
+            System.err.print("\t\tmean k:");
+            for (int e = 0; e < dimTrait; ++e) {
+                System.err.print(" " + partials[kbo + e]);
+            }
+            System.err.println("");
+        }
 
-//            for (int g = 0; g < dimTrait; ++g) {
-//                double sum = 0.0;
-//                for (int h = 0; h < dimTrait; ++h) {
-//                    sum += Vk.unsafe_get(g, h) * tmp[h];
-//                }
-//                partials[kbo + g] = sum;
-//            }
+        // Computer remainder at node k
+        double remainder = 0.0;
 
-            final WrappedVector kPartials = new WrappedVector.Raw(partials, kbo, dimTrait);
-            final WrappedVector wrapTmp = new WrappedVector.Raw(tmp, 0, dimTrait);
+        if (DEBUG) {
+            System.err.println("i status: " + ci);
+            System.err.println("j status: " + cj);
+            System.err.println("k status: " + ck);
+            System.err.println("Pip: " + Pip);
+            System.err.println("Pjp: " + Pjp);
+        }
 
-//            System.err.println(kPartials);
-//            System.err.println(ck.getDeterminant());
+        if (!(ci.getReturnCode() == NOT_OBSERVED || cj.getReturnCode() == NOT_OBSERVED)) {
+            // TODO Fix for partially observed
 
-            InversionResult ck = safeSolve(Pk, wrapTmp, kPartials, true);
+            // Inner products
+            double SSk = 0;
+            double SSj = 0;
+            double SSi = 0;
 
-//            System.err.println(kPartials);
-//            System.err.println(ck.getDeterminant());
-//            System.exit(-1);
+            // vector-matrix-vector
+            for (int g = 0; g < dimTrait; ++g) {
+                final double ig = partials[ibo + g];
+                final double jg = partials[jbo + g];
+                final double kg = partials[kbo + g];
 
-            // TODO Use safeSolve just above
+                for (int h = 0; h < dimTrait; ++h) {
+                    final double ih = partials[ibo + h];
+                    final double jh = partials[jbo + h];
+                    final double kh = partials[kbo + h];
 
-            if (TIMING) {
-                endTime("peel4");
-                startTime("peel5");
+                    SSi += ig * Pip.unsafe_get(g, h) * ih;
+                    SSj += jg * Pjp.unsafe_get(g, h) * jh;
+                    SSk += kg * Pk .unsafe_get(g, h) * kh;
+                }
             }
 
-            // C. Store precision
-            partials[kbo + dimTrait + 2 * dimTrait * dimTrait] = lpk;
-
-            unwrap(Pk, partials, kbo + dimTrait);
-
-//            if (useVariance) {
-//                unwrap(Vk, partials, kbo + dimTrait + dimTrait * dimTrait);
-//            }
-
-            if (TIMING) {
-                endTime("peel5");
-            }
+            int dimensionChange = ci.getEffectiveDimension() + cj.getEffectiveDimension()
+                    - ck.getEffectiveDimension();
 
-            if (DEBUG) {
-                System.err.println("\ttrait: " + trait);
-                System.err.println("Pi: " + Pi);
-                System.err.println("Pj: " + Pj);
-                System.err.println("Pk: " + Pk);
-                System.err.print("\t\tmean i:");
-                for (int e = 0; e < dimTrait; ++e) {
-                    System.err.print(" " + partials[ibo + e]);
-                }
-                System.err.print("\t\tmean j:");
-                for (int e = 0; e < dimTrait; ++e) {
-                    System.err.print(" " + partials[jbo + e]);
-                }
-                System.err.print("\t\tmean k:");
-                for (int e = 0; e < dimTrait; ++e) {
-                    System.err.print(" " + partials[kbo + e]);
-                }
-                System.err.println("");
-            }
+            remainder += -dimensionChange * LOG_SQRT_2_PI - 0.5 *
+                    (Math.log(ci.getDeterminant()) + Math.log(cj.getDeterminant()) + Math.log(ck.getDeterminant()))
+                    - 0.5 * (SSi + SSj - SSk);
 
-            // Computer remainder at node k
-            double remainder = 0.0;
+            // TODO Can get SSi + SSj - SSk from inner product w.r.t Pt (see outer-products below)?
 
             if (DEBUG) {
-                System.err.println("i status: " + ci);
-                System.err.println("j status: " + cj);
-                System.err.println("k status: " + ck);
-                System.err.println("Pip: " + Pip);
-//                System.err.println("Vip: " + Vip);
-                System.err.println("Pjp: " + Pjp);
-//                System.err.println("Vjp: " + Vjp);
+                System.err.println("\t\t\tSSi = " + (SSi));
+                System.err.println("\t\t\tSSj = " + (SSj));
+                System.err.println("\t\t\tSSk = " + (SSk));
+                System.err.println("\t\t\tdeti = " + Math.log(ci.getDeterminant()));
+                System.err.println("\t\t\tdetj = " + Math.log(ci.getDeterminant()));
+                System.err.println("\t\t\tdetk = " + Math.log(ci.getDeterminant()));
+                System.err.println("\t\tremainder: " + remainder);
             }
 
-            if (!(ci.getReturnCode() == NOT_OBSERVED || cj.getReturnCode() == NOT_OBSERVED)) {
-//                if (ci == InversionReturnCode.FULLY_OBSERVED && cj == InversionReturnCode.FULLY_OBSERVED) {
-                // TODO Fix for partially observed
-//                if (pi != 0 && pj != 0) {
-//
-                if (TIMING) {
-                    startTime("remain");
-                }
-
-                // Inner products
-                double SSk = 0;
-                double SSj = 0;
-                double SSi = 0;
-
-                // vector-matrix-vector TODO in parallel
-                for (int g = 0; g < dimTrait; ++g) {
-                    final double ig = partials[ibo + g];
-                    final double jg = partials[jbo + g];
-                    final double kg = partials[kbo + g];
-
-                    for (int h = 0; h < dimTrait; ++h) {
-                        final double ih = partials[ibo + h];
-                        final double jh = partials[jbo + h];
-                        final double kh = partials[kbo + h];
-
-                        SSi += ig * Pip.unsafe_get(g, h) * ih;
-                        SSj += jg * Pjp.unsafe_get(g, h) * jh;
-                        SSk += kg * Pk .unsafe_get(g, h) * kh;
-                    }
-                }
-
-//                    final DenseMatrix64F Vt = new DenseMatrix64F(dimTrait, dimTrait);
-//                final DenseMatrix64F Vt = matrix6;
-//                CommonOps.add(Vip, Vjp, Vt);
-
-//                if (DEBUG) {
-//                    System.err.println("Vt: " + Vt);
-//                }
-
-                int dimensionChange = ci.getEffectiveDimension() + cj.getEffectiveDimension()
-                        - ck.getEffectiveDimension();
-
-//                    System.err.println(ci.getDeterminant());
-//                    System.err.println(CommonOps.det(Vip));
-//
-//                    System.err.println(cj.getDeterminant());
-//                    System.err.println(CommonOps.det(Vjp));
-//
-//                    System.err.println(1.0 / ck.getDeterminant());
-//                    System.err.println(CommonOps.det(Vk));
+        } // End if remainder
 
-                remainder += -dimensionChange * LOG_SQRT_2_PI - 0.5 *
-//                            (Math.log(CommonOps.det(Vip)) + Math.log(CommonOps.det(Vjp)) - Math.log(CommonOps.det(Vk)))
-                        (Math.log(ci.getDeterminant()) + Math.log(cj.getDeterminant()) + Math.log(ck.getDeterminant()))
-                        - 0.5 * (SSi + SSj - SSk);
+        // Accumulate remainder up tree and store
 
-                // TODO Can get SSi + SSj - SSk from inner product w.r.t Pt (see outer-products below)?
-
-                if (DEBUG) {
-                    System.err.println("\t\t\tSSi = " + (SSi));
-                    System.err.println("\t\t\tSSj = " + (SSj));
-                    System.err.println("\t\t\tSSk = " + (SSk));
-                    System.err.println("\t\t\tdeti = " + Math.log(ci.getDeterminant()));
-                    System.err.println("\t\t\tdetj = " + Math.log(ci.getDeterminant()));
-                    System.err.println("\t\t\tdetk = " + Math.log(ci.getDeterminant()));
-                    System.err.println("\t\tremainder: " + remainder);
-//                        System.exit(-1);
-                }
-
-                if (TIMING) {
-                    endTime("remain");
-                }
-
-            } // End if remainder
-
-            // Accumulate remainder up tree and store
-
-            remainders[kBuffer * numTraits + trait] = remainder
-                    + remainders[iBuffer * numTraits + trait] + remainders[jBuffer * numTraits + trait];
+        remainders[kBuffer * numTraits + trait] = remainder
+                + remainders[iBuffer * numTraits + trait] + remainders[jBuffer * numTraits + trait];
+    }
 
-            // Get ready for next trait
-            kbo += dimPartialForTrait;
-            ibo += dimPartialForTrait;
-            jbo += dimPartialForTrait;
+    /**
+     * The matrices and vectors used to update the partial of one trait at a time. These are
+     * allocated once (rather than on every update) and each thread updating partials needs its own.
+     */
+    static class PartialsWorkspace {
+
+        PartialsWorkspace(int dimTrait) {
+            this.dimTrait = dimTrait;
+
+            Pd = new DenseMatrix64F(dimTrait, dimTrait);
+            Vd = new DenseMatrix64F(dimTrait, dimTrait);
+            Pi = new DenseMatrix64F(dimTrait, dimTrait);
+            Pj = new DenseMatrix64F(dimTrait, dimTrait);
+            V = new DenseMatrix64F(dimTrait, dimTrait);
+
+            matrix0 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix1 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix2 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix3 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix4 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix5 = new DenseMatrix64F(dimTrait, dimTrait);
+            matrix6 = new DenseMatrix64F(dimTrait, dimTrait);
+
+            vector0 = new double[dimTrait];
+            weightedSum = DenseMatrix64F.wrap(dimTrait, 1, vector0);
+            mean = new DenseMatrix64F(dimTrait, 1);
+        }
 
+        /**
+         * Copies the diffusion precision and variance at this offset.
+         */
+        void setDiffusion(final double[] diffusions, final double[] inverseDiffusions, final int offset) {
+            copy(diffusions, offset, Pd);
+            copy(inverseDiffusions, offset, Vd);
         }
 
-        if (TIMING) {
-            endTime("total");
+        /**
+         * Copies a square matrix from a flat buffer into a matrix of the workspace.
+         */
+        DenseMatrix64F copy(final double[] source, final int offset, final DenseMatrix64F destination) {
+            System.arraycopy(source, offset, destination.getData(), 0, dimTrait * dimTrait);
+            return destination;
         }
+
+        private final int dimTrait;
+
+        final DenseMatrix64F Pd;
+        final DenseMatrix64F Vd;
+        final DenseMatrix64F Pi;
+        final DenseMatrix64F Pj;
+        final DenseMatrix64F V;
+
+        final DenseMatrix64F matrix0;
+        final DenseMatrix64F matrix1;
+        final DenseMatrix64F matrix2;
+        final DenseMatrix64F matrix3;
+        final DenseMatrix64F matrix4;
+        final DenseMatrix64F matrix5;
+        final DenseMatrix64F matrix6;
+
+        final double[] vector0;
+        final DenseMatrix64F weightedSum;
+        final DenseMatrix64F mean;
     }
 
+    private PartialsWorkspace workspace = null;
+
 //    private final Map<String, Long> startTimes = new HashMap<String, Long>();
 //
 //    private void startTime(String key) {
@@ -0,0 +1,101 @@
+/*
+ * ThreadedBasicIntegrator.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.continuous.cdi;
+
+/**
+ * A ContinuousDiffusionIntegrator.Basic (for SCALAR precisions) that updates the post-order and
+ * pre-order partials on a number of threads. The operations are put into levels of independent
+ * nodes by an OperationLevelScheduler and the nodes in each level are divided between the threads.
+ * The Basic updates only read and write the buffers of the nodes involved, so no workspaces are
+ * needed and the results are exactly those of the Basic integrator. Post-order updates that
+ * increment the outer-products are done serially.
+ *
+ * @version $Id$
+ */
+public class ThreadedBasicIntegrator extends ContinuousDiffusionIntegrator.Basic {
+
+    public ThreadedBasicIntegrator(PrecisionType precisionType, int numTraits, int dimTrait,
+                                   int bufferCount, int diffusionCount, int threadCount) {
+        super(precisionType, numTraits, dimTrait, bufferCount, diffusionCount);
+
+        scheduler = new OperationLevelScheduler("ThreadedBasicIntegrator", threadCount, bufferCount);
+    }
+
+    public int getThreadCount() {
+        return scheduler.getThreadCount();
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        scheduler.shutdown();
+        super.finalize();
+    }
+
+    @Override
+    public void updatePostOrderPartials(final int[] operations, int operationCount, boolean incrementOuterProducts) {
+
+        if (incrementOuterProducts) {
+            // the outer-products are accumulated over all the nodes
+            super.updatePostOrderPartials(operations, operationCount, true);
+            return;
+        }
+
+        scheduler.updatePostOrder(operations, operationCount, 1, new OperationLevelScheduler.UnitUpdater() {
+            public void update(int operation, int unit, int block) {
+                final int offset = operation * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+
+                updatePartial(
+                        operations[offset],
+                        operations[offset + 1],
+                        operations[offset + 2],
+                        operations[offset + 3],
+                        operations[offset + 4],
+                        false
+                );
+            }
+        });
+    }
+
+    @Override
+    public void updatePreOrderPartials(final int[] operations, int operationCount) {
+
+        scheduler.updatePreOrder(operations, operationCount, 1, new OperationLevelScheduler.UnitUpdater() {
+            public void update(int operation, int unit, int block) {
+                final int offset = operation * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+
+                updatePreOrderPartial(
+                        operations[offset],
+                        operations[offset + 1],
+                        operations[offset + 2],
+                        operations[offset + 3],
+                        operations[offset + 4]
+                );
+            }
+        });
+    }
+
+    private final OperationLevelScheduler scheduler;
+}
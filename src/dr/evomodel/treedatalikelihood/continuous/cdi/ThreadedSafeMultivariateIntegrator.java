@@ -0,0 +1,92 @@
+/*
+ * ThreadedSafeMultivariateIntegrator.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.continuous.cdi;
+
+/**
+ * A SafeMultivariateIntegrator that updates the post-order partials on a number of threads. The
+ * operations are put into levels so that the nodes in a level only depend on nodes in lower levels
+ * (i.e., they are the roots of independent subtrees). The partials of every trait of every node in
+ * a level are then independent of each other and are divided between the threads, each with its
+ * own workspace. The arithmetic for each trait is exactly that of SafeMultivariateIntegrator so the
+ * results are the same.
+ *
+ * @version $Id$
+ */
+public class ThreadedSafeMultivariateIntegrator extends SafeMultivariateIntegrator {
+
+    public ThreadedSafeMultivariateIntegrator(PrecisionType precisionType, int numTraits, int dimTrait,
+                                              int bufferCount, int diffusionCount, int threadCount) {
+        super(precisionType, numTraits, dimTrait, bufferCount, diffusionCount);
+
+        scheduler = new OperationLevelScheduler("ThreadedSafeMultivariateIntegrator", threadCount, bufferCount);
+
+        workspaces = new PartialsWorkspace[scheduler.getThreadCount()];
+        for (int i = 0; i < workspaces.length; i++) {
+            workspaces[i] = new PartialsWorkspace(dimTrait);
+        }
+    }
+
+    public int getThreadCount() {
+        return scheduler.getThreadCount();
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        scheduler.shutdown();
+        super.finalize();
+    }
+
+    @Override
+    public void updatePostOrderPartials(final int[] operations, int operationCount, boolean incrementOuterProducts) {
+
+        if (incrementOuterProducts) {
+            throw new RuntimeException("Outer-products are not supported.");
+        }
+
+        for (PartialsWorkspace workspace : workspaces) {
+            workspace.setDiffusion(diffusions, inverseDiffusions, precisionOffset);
+        }
+
+        scheduler.updatePostOrder(operations, operationCount, numTraits, new OperationLevelScheduler.UnitUpdater() {
+            public void update(int operation, int trait, int block) {
+                final int offset = operation * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+
+                updatePartialForTrait(
+                        operations[offset],
+                        operations[offset + 1],
+                        operations[offset + 2],
+                        operations[offset + 3],
+                        operations[offset + 4],
+                        trait,
+                        workspaces[block]
+                );
+            }
+        });
+    }
+
+    private final OperationLevelScheduler scheduler;
+    private final PartialsWorkspace[] workspaces;
+}
@@ -9,6 +9,8 @@ import dr.math.matrixAlgebra.WrappedVector;
 import org.ejml.data.DenseMatrix64F;
 import org.ejml.ops.CommonOps;
 
+import java.util.HashMap;
+
 import static dr.math.matrixAlgebra.missingData.MissingOps.*;
 
 /**
@@ -167,13 +169,8 @@ public class MultivariateConditionalOnTipsRealizedDelegate extends ConditionalOn
                     final int[] observed = indices.getComplement();
                     final int[] missing = indices.getArray();
 
-                    final DenseMatrix64F V1 = new DenseMatrix64F(dimTrait, dimTrait);
-                    CommonOps.scale(1.0 / branchPrecision, Vd, V1);
-
-                    ConditionalVarianceAndTransform2 transform =
-                            new ConditionalVarianceAndTransform2(
-                                    V1, missing, observed
-                            ); // TODO Cache (via delegated function)
+                    // The branch only scales the conditional variance, so the transform for Vd is cached
+                    final ConditionalVarianceAndTransform2 transform = getConditionalVarianceAndTransform(indices);
 
                     final DenseMatrix64F cP0 = new DenseMatrix64F(missing.length, missing.length);
                     gatherRowsAndColumns(P0, cP0, missing, missing);
@@ -182,7 +179,8 @@ public class MultivariateConditionalOnTipsRealizedDelegate extends ConditionalOn
                             partialNodeBuffer, offsetPartial, // Tip value
                             sample, offsetParent); // Parent value
 
-                    final DenseMatrix64F cP1 = transform.getConditionalPrecision();
+                    final DenseMatrix64F cP1 = new DenseMatrix64F(missing.length, missing.length);
+                    CommonOps.scale(branchPrecision, transform.getConditionalPrecision(), cP1);
 
                     final DenseMatrix64F cP2 = new DenseMatrix64F(missing.length, missing.length);
                     final DenseMatrix64F cV2 = new DenseMatrix64F(missing.length, missing.length);
@@ -231,6 +229,22 @@ public class MultivariateConditionalOnTipsRealizedDelegate extends ConditionalOn
         }
     }
 
+    private ConditionalVarianceAndTransform2 getConditionalVarianceAndTransform(
+            final PartiallyMissingInformation.HashedIntArray indices) {
+
+        if (conditionalMap == null) {
+            conditionalMap = new HashMap<PartiallyMissingInformation.HashedIntArray,
+                    ConditionalVarianceAndTransform2>();
+        }
+
+        ConditionalVarianceAndTransform2 transform = conditionalMap.get(indices);
+        if (transform == null) {
+            transform = new ConditionalVarianceAndTransform2(Vd, indices.getArray(), indices.getComplement());
+            conditionalMap.put(indices, transform);
+        }
+        return transform;
+    }
+
     private WrappedVector getMeanWithDrift(double[] mean, int offsetMean, double[] drift, int dim) {
         for (int i = 0;i < dim; ++i) {
             tmpDrift[i] = mean[offsetMean + i] + drift[i];
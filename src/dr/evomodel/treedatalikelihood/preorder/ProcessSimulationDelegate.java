@@ -166,7 +166,7 @@ public interface ProcessSimulationDelegate extends ProcessOnTreeDelegate, TreeTr
 
         double[][] cholesky;
         Map<PartiallyMissingInformation.HashedIntArray,
-                ConditionalVarianceAndTransform> conditionalMap;
+                ConditionalVarianceAndTransform2> conditionalMap;
 
         AbstractContinuousTraitDelegate(String name,
                                         Tree tree,
@@ -212,7 +212,10 @@ public interface ProcessSimulationDelegate extends ProcessOnTreeDelegate, TreeTr
 
         @Override
         public void modelRestored(Model model) {
-
+            // a restored parameter doesn't fire a change event, so the cached values could be stale
+            if (model == diffusionModel) {
+                clearCache();
+            }
         }
 
         @Override
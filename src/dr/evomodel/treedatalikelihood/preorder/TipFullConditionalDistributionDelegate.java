@@ -156,6 +156,22 @@ public class TipFullConditionalDistributionDelegate extends ProcessSimulationDel
         }
     }
 
+    @Override
+    public void simulate(final int[] operations, final int operationCount,
+                         final int rootNodeNumber) {
+
+        setupStatistics();
+
+        simulateRoot(rootNodeNumber);
+
+        // Pass the whole traversal to the integrator, which can update independent nodes in parallel
+        cdi.updatePreOrderPartials(operations, operationCount);
+
+        if (DEBUG) {
+            System.err.println("END OF PRE-ORDER");
+        }
+    }
+
 //    @Override
 //    protected void simulateNode(BranchNodeOperation operation, double branchNormalization) {
 //        throw new RuntimeException("Not implemented");
@@ -46,7 +46,7 @@ public class TipGradientViaFullConditionalDelegate extends TipFullConditionalDis
         final double[] postOrderPartial = new double[dimPartial * numTraits];
         cdi.getPostOrderPartial(likelihoodDelegate.getActiveNodeIndex(node.getNumber()), postOrderPartial);
 
-        final MatrixParameterInterface precision = diffusionModel.getPrecisionParameter();
+        final double[] precision = getPrecisionValues();
 
         final double[] gradient = new double[dimTrait * numTraits];
 
@@ -61,7 +61,7 @@ public class TipGradientViaFullConditionalDelegate extends TipFullConditionalDis
             double sum = 0.0;
             for (int j = 0; j < dimTrait; ++j) {
                 sum += (fullConditionalPartial[j] - postOrderPartial[j]) * scale *
-                        precision.getParameterValue(i * dimTrait + j);
+                        precision[i * dimTrait + j];
             }
 
             gradient[i] = sum;
@@ -69,4 +69,24 @@ public class TipGradientViaFullConditionalDelegate extends TipFullConditionalDis
 
         return gradient;
     }
+
+    private double[] getPrecisionValues() {
+        if (precisionValues == null) {
+            final MatrixParameterInterface precision = diffusionModel.getPrecisionParameter();
+            precisionValues = new double[dimTrait * dimTrait];
+            for (int i = 0; i < precisionValues.length; ++i) {
+                precisionValues[i] = precision.getParameterValue(i);
+            }
+        }
+        return precisionValues;
+    }
+
+    @Override
+    void clearCache() {
+        super.clearCache();
+        precisionValues = null;
+    }
+
+    // the diffusion precision, kept until the diffusion model changes
+    private double[] precisionValues;
 }
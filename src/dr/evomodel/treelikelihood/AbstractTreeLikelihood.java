@@ -41,7 +41,7 @@ import dr.xml.Reportable;
  */
 
 @Deprecated // Switching to TreeDataLikelihood
-public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood implements Reportable {
+public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood implements ThreadAwareLikelihood, Reportable {
 
     protected static final boolean COUNT_TOTAL_OPERATIONS = true;
 
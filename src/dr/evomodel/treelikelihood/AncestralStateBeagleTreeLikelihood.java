@@ -42,9 +42,18 @@ import dr.evomodel.tipstatesmodel.TipStatesModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.math.MathUtils;
+import org.apache.commons.math.random.MersenneTwister;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author Marc Suchard
@@ -87,6 +96,8 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
 
         probabilities = new double[stateCount * stateCount * categoryCount];
         partials = new double[stateCount * patternCount * categoryCount];
+        conditionalProbabilities = new double[stateCount];
+        posteriorWeightedCategory = new double[categoryCount];
 //        rootPartials = new double[stateCount*patternCount];
 //        cumulativeScaleBuffers = new int[nodeCount][];
 //        scaleBufferIndex = getScaleBufferCount() - 1;
@@ -222,7 +233,7 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
         return internalNodeCount + 2;
     }
 
-    private int drawChoice(double[] measure) {
+    private int drawChoice(double[] measure, MersenneTwister random) {
         if (useMAP) {
             double max = measure[0];
             int choice = 0;
@@ -233,8 +244,23 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
                 }
             }
             return choice;
-        } else {
+        } else if (random == null) {
             return MathUtils.randomChoicePDF(measure);
+        } else {
+            // as MathUtils.randomChoicePDF but with the given generator
+            double total = 0;
+            for (double value : measure) {
+                total += value;
+            }
+            double U = random.nextDouble() * total;
+            for (int i = 0; i < measure.length; i++) {
+                U -= measure[i];
+                if (U < 0.0) {
+                    return i;
+                }
+            }
+            throw new Error("randomChoicePDF falls through -- negative, infinite or NaN components in input " +
+                    "distribution, or all zeroes?");
         }
     }
 
@@ -244,9 +270,19 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
     }
 
     public void redrawAncestralStates() {
+        if (samplingBlocks != null) {
+            for (SamplingBlock block : samplingBlocks) {
+                block.random.setSeed(MathUtils.nextInt());
+            }
+        }
+
         // Sample states
         jointLogLikelihood = 0;
-        traverseSample(treeModel, treeModel.getRoot(), null, null);
+        if (samplingBlocks != null) {
+            sampleInBlocks(treeModel);
+        } else {
+            traverseSample(treeModel, treeModel.getRoot(), null, null);
+        }
         areStatesRedrawn = true;
     }
 
@@ -377,6 +413,42 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
         jointLogLikelihood = storedJointLogLikelihood;
     }
 
+    /**
+     * Sets the number of threads used to sample the states of the patterns. With more than one,
+     * the patterns are split into contiguous blocks that are each sampled using their own random
+     * number generator (seeded from the main one each time the states are drawn) and the blocks
+     * work through batches of nodes between barriers (see sampleInBlocks).
+     */
+    public void setSamplingThreadCount(int threadCount) {
+        if (samplingPool != null) {
+            samplingPool.shutdownNow();
+            samplingPool = null;
+            samplingBlocks = null;
+            batchNodes = null;
+            batchTypes = null;
+            batchPartials = null;
+            batchMatrices = null;
+        }
+
+        int blockCount = Math.min(threadCount, patternCount);
+        if (blockCount > 1) {
+            samplingBlocks = new SamplingBlock[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                samplingBlocks[i] = new SamplingBlock(
+                        (int) ((long) patternCount * i / blockCount),
+                        (int) ((long) patternCount * (i + 1) / blockCount),
+                        new MersenneTwister());
+            }
+            samplingPool = Executors.newFixedThreadPool(blockCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ancestral-state-sampling");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
     public void traverseSample(TreeModel tree, NodeRef node, int[] parentState, int[] rateCategory) {
 
         int nodeNum = node.getNumber();
@@ -386,64 +458,29 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
         // This function assumes that all partial likelihoods have already been calculated
         // If the node is internal, then sample its state given the state of its parent (pre-order traversal).
 
-        double[] conditionalProbabilities = new double[stateCount];
-        int[] state = new int[patternCount];
+        // The states of each node are drawn straight into its reconstructedStates buffer
+        int[] state = reconstructedStates[nodeNum];
 
         if (!tree.isExternal(node)) {
 
+            // The partials of the node are only needed until its states have been sampled
+            getPartials(nodeNum, partials);
+
             if (parent == null) {
 
                 // This is the root node
-                getPartials(nodeNum, partials);
-
-                boolean sampleCategory = categoryCount > 1;
-                double[] posteriorWeightedCategory = null;
-                double[] priorWeightedCategory = null;
-
-                if (sampleCategory) {
-                    rateCategory = new int[patternCount];
-                    posteriorWeightedCategory = new double[categoryCount];
-                    priorWeightedCategory = siteRateModel.getCategoryProportions();
-                }
-
-                for (int j = 0; j < patternCount; j++) {
-
-                    // Sample across-site-rate-variation, if it exists
-                    if (sampleCategory) {
-                        for (int r = 0; r < categoryCount; r++) {
-                            posteriorWeightedCategory[r] = 0;
-                            for (int k = 0; k < stateCount; k++) {
-                                posteriorWeightedCategory[r] += partials[r * stateCount * patternCount +
-                                        j * stateCount + k];
-                            }
-                            posteriorWeightedCategory[r] *= priorWeightedCategory[r];
-                        }
-                        rateCategory[j] = drawChoice(posteriorWeightedCategory);
-                    }
-
-                    // Sample root character state
-                    int partialsIndex = (rateCategory == null ? 0 : rateCategory[j]) * stateCount * patternCount;
-                    System.arraycopy(partials, partialsIndex + j * stateCount, conditionalProbabilities, 0, stateCount);
-
-                    double[] frequencies = substitutionModelDelegate.getRootStateFrequencies(); // TODO May have more than one set of frequencies
-                    for (int i = 0; i < stateCount; i++) {
-                        conditionalProbabilities[i] *= frequencies[i];
-                    }
-                    try {
-                        state[j] = drawChoice(conditionalProbabilities);
-                    } catch (Error e) {
-                        System.err.println(e.toString());
-                        System.err.println("Please report error to Marc");
-                        state[j] = 0;
-                    }
-                    reconstructedStates[nodeNum][j] = state[j];
-
-                    if (!returnMarginalLogLikelihood) {
-                        jointLogLikelihood += Math.log(frequencies[state[j]]);
+                if (categoryCount > 1) {
+                    if (sampledRateCategory == null) {
+                        sampledRateCategory = new int[patternCount];
                     }
+                    rateCategory = sampledRateCategory;
+                    categoryProportions = siteRateModel.getCategoryProportions();
                 }
+                rootFrequencies = substitutionModelDelegate.getRootStateFrequencies(); // TODO May have more than one set of frequencies
 
-                if (sampleCategory) {
+                sampleNode(ROOT_NODE, nodeNum, null, rateCategory);
+
+                if (categoryCount > 1) {
                     if (this.rateCategory == null) {
                         this.rateCategory = new int[patternCount];
                     }
@@ -453,36 +490,13 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
             } else {
 
                 // This is an internal node, but not the root
-                double[] partialLikelihood = new double[stateCount * patternCount * categoryCount];
-                getPartials(nodeNum, partialLikelihood);
-
                 // Sibon says that this actually works now
 //                if (categoryCount > 1)
 //                    throw new RuntimeException("Reconstruction not implemented for multiple categories yet.");
 
                 getMatrix(nodeNum, probabilities);
 
-                for (int j = 0; j < patternCount; j++) {
-
-                    int parentIndex = parentState[j] * stateCount;
-                    int childIndex = j * stateCount;
-
-                    int category = rateCategory == null ? 0 : rateCategory[j];
-                    int matrixIndex = category * stateCount * stateCount;
-                    int partialIndex = category * stateCount * patternCount;
-
-                    for (int i = 0; i < stateCount; i++)
-                        conditionalProbabilities[i] = partialLikelihood[partialIndex + childIndex + i]
-                                * probabilities[matrixIndex + parentIndex + i];
-
-                    state[j] = drawChoice(conditionalProbabilities);
-                    reconstructedStates[nodeNum][j] = state[j];
-
-                    if (!returnMarginalLogLikelihood) {
-                        double contrib = probabilities[parentIndex + state[j]];
-                        jointLogLikelihood += Math.log(contrib);
-                    }
-                }
+                sampleNode(INTERNAL_NODE, nodeNum, parentState, rateCategory);
 
                 hookCalculation(tree, parent, node, parentState, state, probabilities, rateCategory);
             }
@@ -500,69 +514,350 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
             if (useAmbiguities()) {
 
                 getMatrix(nodeNum, probabilities);
-                double[] partials = tipPartials[nodeNum];
+                sampleNode(TIP_PARTIALS_NODE, nodeNum, parentState, rateCategory);
 
-                for (int j = 0; j < patternCount; j++) {
-                    final int parentIndex = parentState[j] * stateCount;
-                    int category = rateCategory == null ? 0 : rateCategory[j];
-                    int matrixIndex = category * stateCount * stateCount;
+            } else {
 
-                    System.arraycopy(probabilities, parentIndex + matrixIndex, conditionalProbabilities, 0, stateCount);
-                    for (int k = 0; k < stateCount; ++k) {
-                        conditionalProbabilities[k] *= partials[j * stateCount + k];
-                    }
-                    reconstructedStates[nodeNum][j] = drawChoice(conditionalProbabilities);
+                getTipStates(nodeNum, state);
 
-                    if (!returnMarginalLogLikelihood) {
-                        double contrib = probabilities[parentIndex + reconstructedStates[nodeNum][j]];
-                        jointLogLikelihood += Math.log(contrib);
-                    }
+                // The matrix is only needed to sample ambiguity codes or for the joint density
+                boolean needsMatrix = !returnMarginalLogLikelihood;
+                for (int j = 0; j < patternCount && !needsMatrix; j++) {
+                    needsMatrix = dataType.isAmbiguousState(state[j]);
+                }
+                if (needsMatrix) {
+                    getMatrix(nodeNum, probabilities);
+                    sampleNode(TIP_STATES_NODE, nodeNum, parentState, rateCategory);
+                }
+            }
+
+            hookCalculation(tree, parent, node, parentState, state, null, rateCategory);
+        }
+    }
+
+    /**
+     * Samples the states of all the patterns at a node (the partials and/or transition matrix for
+     * the node must already have been fetched).
+     */
+    private void sampleNode(int nodeType, int nodeNum, int[] parentState, int[] rateCategory) {
+        jointLogLikelihood += sampleNodePatterns(nodeType, nodeNum, parentState, rateCategory, partials, probabilities,
+                0, patternCount, null, conditionalProbabilities, posteriorWeightedCategory);
+    }
+
+    /**
+     * Samples the states as traverseSample does but with the patterns split into blocks that are
+     * sampled on the thread pool. The nodes are visited in pre-order and their partials and
+     * matrices fetched into a batch of buffers. Each block then samples its patterns at all the
+     * nodes of the batch in turn (the patterns are independent so a block only needs the states
+     * it has drawn itself) so there is one barrier for each batch rather than for each node. A
+     * batch holds the whole tree unless the partials are large.
+     */
+    private void sampleInBlocks(TreeModel tree) {
+        int[] rateCategory = null;
+        if (categoryCount > 1) {
+            if (sampledRateCategory == null) {
+                sampledRateCategory = new int[patternCount];
+            }
+            rateCategory = sampledRateCategory;
+            categoryProportions = siteRateModel.getCategoryProportions();
+        }
+        rootFrequencies = substitutionModelDelegate.getRootStateFrequencies();
+
+        if (batchNodes == null) {
+            int capacity = Math.max(1, MAX_BATCH_SIZE / (partials.length + probabilities.length));
+            capacity = Math.min(capacity, tree.getNodeCount());
+            batchNodes = new NodeRef[capacity];
+            batchTypes = new int[capacity];
+            batchPartials = new double[capacity][];
+            batchMatrices = new double[capacity][];
+        }
+
+        // an explicit stack so the nodes come off in the same pre-order as traverseSample
+        List<NodeRef> stack = new ArrayList<NodeRef>();
+        stack.add(tree.getRoot());
+        int count = 0;
+        while (!stack.isEmpty()) {
+            NodeRef node = stack.remove(stack.size() - 1);
+            int nodeNum = node.getNumber();
+            int nodeType;
+
+            if (!tree.isExternal(node)) {
+                if (batchPartials[count] == null) {
+                    batchPartials[count] = new double[partials.length];
                 }
+                getPartials(nodeNum, batchPartials[count]);
 
+                if (tree.isRoot(node)) {
+                    nodeType = ROOT_NODE;
+                } else {
+                    nodeType = INTERNAL_NODE;
+                    getMatrix(nodeNum, getBatchMatrix(count));
+                }
+
+                stack.add(tree.getChild(node, 1));
+                stack.add(tree.getChild(node, 0));
+            } else if (useAmbiguities()) {
+                nodeType = TIP_PARTIALS_NODE;
+                getMatrix(nodeNum, getBatchMatrix(count));
             } else {
+                int[] state = reconstructedStates[nodeNum];
+                getTipStates(nodeNum, state);
+
+                // The matrix is only needed to sample ambiguity codes or for the joint density
+                boolean needsMatrix = !returnMarginalLogLikelihood;
+                for (int j = 0; j < patternCount && !needsMatrix; j++) {
+                    needsMatrix = dataType.isAmbiguousState(state[j]);
+                }
+                if (needsMatrix) {
+                    nodeType = TIP_STATES_NODE;
+                    getMatrix(nodeNum, getBatchMatrix(count));
+                } else {
+                    nodeType = NO_SAMPLING_NODE;
+                }
+            }
+
+            batchNodes[count] = node;
+            batchTypes[count] = nodeType;
+            count++;
 
-                getTipStates(nodeNum, reconstructedStates[nodeNum]);
+            if (count == batchNodes.length) {
+                sampleBatch(tree, count, rateCategory);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            sampleBatch(tree, count, rateCategory);
+        }
+    }
 
-                // Check for ambiguity codes and sample them
+    private double[] getBatchMatrix(int index) {
+        if (batchMatrices[index] == null) {
+            batchMatrices[index] = new double[probabilities.length];
+        }
+        return batchMatrices[index];
+    }
 
-                for (int j = 0; j < patternCount; j++) {
+    /**
+     * Samples the states of the nodes of a batch, with each block of patterns on its own thread,
+     * and then calls hookCalculation for the nodes in order.
+     */
+    private void sampleBatch(final TreeModel tree, final int count, final int[] rateCategory) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(samplingBlocks.length);
+        for (final SamplingBlock block : samplingBlocks) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    block.logLikelihood = 0.0;
+                    for (int i = 0; i < count; i++) {
+                        if (batchTypes[i] != NO_SAMPLING_NODE) {
+                            NodeRef parent = tree.getParent(batchNodes[i]);
+                            block.logLikelihood += sampleNodePatterns(batchTypes[i], batchNodes[i].getNumber(),
+                                    (parent == null ? null : reconstructedStates[parent.getNumber()]),
+                                    rateCategory, batchPartials[i], batchMatrices[i], block.start, block.end,
+                                    block.random, block.conditionalProbabilities, block.posteriorWeightedCategory);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
 
-                    final int thisState = reconstructedStates[nodeNum][j];
+        try {
+            List<Future<Object>> results = samplingPool.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // rethrown as they would be when sampling on this thread (drawChoice throws an Error)
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
 
-                    if (dataType.isAmbiguousState(thisState)) {
+        for (SamplingBlock block : samplingBlocks) {
+            jointLogLikelihood += block.logLikelihood;
+        }
 
-                        final int parentIndex = parentState[j] * stateCount;
-                        int category = rateCategory == null ? 0 : rateCategory[j];
-                        int matrixIndex = category * stateCount * stateCount;
+        for (int i = 0; i < count; i++) {
+            NodeRef node = batchNodes[i];
+            if (batchTypes[i] == ROOT_NODE) {
+                if (rateCategory != null) {
+                    if (this.rateCategory == null) {
+                        this.rateCategory = new int[patternCount];
+                    }
+                    System.arraycopy(rateCategory, 0, this.rateCategory, 0, patternCount);
+                }
+            } else {
+                NodeRef parent = tree.getParent(node);
+                hookCalculation(tree, parent, node, reconstructedStates[parent.getNumber()],
+                        reconstructedStates[node.getNumber()], (tree.isExternal(node) ? null : batchMatrices[i]),
+                        rateCategory);
+            }
+        }
+    }
 
-                        getMatrix(nodeNum, probabilities);
-                        System.arraycopy(probabilities, parentIndex + matrixIndex, conditionalProbabilities, 0, stateCount);
+    /**
+     * Samples the states of the patterns from start to end at a node.
+     *
+     * @param partials the partials of the node (for the root and internal nodes)
+     * @param probabilities the transition matrix of the node's branch
+     * @param random the generator to use or null to use MathUtils
+     * @return the contribution of these patterns to the joint log likelihood
+     */
+    private double sampleNodePatterns(int nodeType, int nodeNum, int[] parentState, int[] rateCategory,
+                                      double[] partials, double[] probabilities,
+                                      int start, int end, MersenneTwister random,
+                                      double[] conditionalProbabilities, double[] posteriorWeightedCategory) {
 
-                        if (useAmbiguities && !dataType.isUnknownState(thisState)) { // Not completely unknown
-                            boolean[] stateSet = dataType.getStateSet(thisState);
+        final int[] state = reconstructedStates[nodeNum];
+        double logLikelihood = 0;
 
-                            for (int k = 0; k < stateCount; k++) {
-                                if (!stateSet[k]) {
-                                    conditionalProbabilities[k] = 0.0;
-                                }
-                            }
+        if (nodeType == ROOT_NODE) {
+
+            final boolean sampleCategory = categoryCount > 1;
+            final double[] priorWeightedCategory = categoryProportions;
+            final double[] frequencies = rootFrequencies;
+
+            for (int j = start; j < end; j++) {
+
+                // Sample across-site-rate-variation, if it exists
+                if (sampleCategory) {
+                    for (int r = 0; r < categoryCount; r++) {
+                        posteriorWeightedCategory[r] = 0;
+                        for (int k = 0; k < stateCount; k++) {
+                            posteriorWeightedCategory[r] += partials[r * stateCount * patternCount +
+                                    j * stateCount + k];
                         }
-                        reconstructedStates[nodeNum][j] = drawChoice(conditionalProbabilities);
+                        posteriorWeightedCategory[r] *= priorWeightedCategory[r];
                     }
+                    rateCategory[j] = drawChoice(posteriorWeightedCategory, random);
+                }
+
+                // Sample root character state
+                int partialsIndex = (rateCategory == null ? 0 : rateCategory[j]) * stateCount * patternCount;
+                for (int i = 0; i < stateCount; i++) {
+                    conditionalProbabilities[i] = partials[partialsIndex + j * stateCount + i] * frequencies[i];
+                }
+                try {
+                    state[j] = drawChoice(conditionalProbabilities, random);
+                } catch (Error e) {
+                    System.err.println(e.toString());
+                    System.err.println("Please report error to Marc");
+                    state[j] = 0;
+                }
+
+                if (!returnMarginalLogLikelihood) {
+                    logLikelihood += Math.log(frequencies[state[j]]);
+                }
+            }
+
+        } else if (nodeType == INTERNAL_NODE) {
 
-                    if (!returnMarginalLogLikelihood) {
-                        final int parentIndex = parentState[j] * stateCount;
-                        getMatrix(nodeNum, probabilities);
-                        if (!returnMarginalLogLikelihood) {
-                            double contrib = probabilities[parentIndex + reconstructedStates[nodeNum][j]];
-                            jointLogLikelihood += Math.log(contrib);
+            for (int j = start; j < end; j++) {
+
+                int parentIndex = parentState[j] * stateCount;
+                int childIndex = j * stateCount;
+
+                int category = rateCategory == null ? 0 : rateCategory[j];
+                int matrixIndex = category * stateCount * stateCount;
+                int partialIndex = category * stateCount * patternCount;
+
+                for (int i = 0; i < stateCount; i++)
+                    conditionalProbabilities[i] = partials[partialIndex + childIndex + i]
+                            * probabilities[matrixIndex + parentIndex + i];
+
+                state[j] = drawChoice(conditionalProbabilities, random);
+
+                if (!returnMarginalLogLikelihood) {
+                    double contrib = probabilities[parentIndex + state[j]];
+                    logLikelihood += Math.log(contrib);
+                }
+            }
+
+        } else if (nodeType == TIP_PARTIALS_NODE) {
+
+            final double[] tipPartials = this.tipPartials[nodeNum];
+
+            for (int j = start; j < end; j++) {
+                final int parentIndex = parentState[j] * stateCount;
+                int category = rateCategory == null ? 0 : rateCategory[j];
+                int matrixIndex = category * stateCount * stateCount;
+
+                System.arraycopy(probabilities, parentIndex + matrixIndex, conditionalProbabilities, 0, stateCount);
+                for (int k = 0; k < stateCount; ++k) {
+                    conditionalProbabilities[k] *= tipPartials[j * stateCount + k];
+                }
+                state[j] = drawChoice(conditionalProbabilities, random);
+
+                if (!returnMarginalLogLikelihood) {
+                    double contrib = probabilities[parentIndex + state[j]];
+                    logLikelihood += Math.log(contrib);
+                }
+            }
+
+        } else {
+
+            // Check for ambiguity codes and sample them
+            for (int j = start; j < end; j++) {
+
+                final int thisState = state[j];
+
+                if (dataType.isAmbiguousState(thisState)) {
+
+                    final int parentIndex = parentState[j] * stateCount;
+                    int category = rateCategory == null ? 0 : rateCategory[j];
+                    int matrixIndex = category * stateCount * stateCount;
+
+                    System.arraycopy(probabilities, parentIndex + matrixIndex, conditionalProbabilities, 0, stateCount);
+
+                    if (useAmbiguities && !dataType.isUnknownState(thisState)) { // Not completely unknown
+                        boolean[] stateSet = dataType.getStateSet(thisState);
+
+                        for (int k = 0; k < stateCount; k++) {
+                            if (!stateSet[k]) {
+                                conditionalProbabilities[k] = 0.0;
+                            }
                         }
                     }
+                    state[j] = drawChoice(conditionalProbabilities, random);
+                }
+
+                if (!returnMarginalLogLikelihood) {
+                    final int parentIndex = parentState[j] * stateCount;
+                    double contrib = probabilities[parentIndex + state[j]];
+                    logLikelihood += Math.log(contrib);
                 }
             }
+        }
+
+        return logLikelihood;
+    }
 
-            hookCalculation(tree, parent, node, parentState, reconstructedStates[nodeNum], null, rateCategory);
+    /**
+     * The patterns from start to end and the generator and buffers used to sample them.
+     */
+    private class SamplingBlock {
+
+        SamplingBlock(int start, int end, MersenneTwister random) {
+            this.start = start;
+            this.end = end;
+            this.random = random;
+            conditionalProbabilities = new double[stateCount];
+            posteriorWeightedCategory = new double[categoryCount];
         }
+
+        final int start;
+        final int end;
+        final MersenneTwister random;
+        final double[] conditionalProbabilities;
+        final double[] posteriorWeightedCategory;
+        double logLikelihood;
     }
 
     protected void hookCalculation(Tree tree, NodeRef parentNode, NodeRef childNode,
@@ -590,6 +885,28 @@ public class AncestralStateBeagleTreeLikelihood extends BeagleTreeLikelihood imp
 
     private double[] probabilities;
     private double[] partials;
+    private final double[] conditionalProbabilities;
+    private final double[] posteriorWeightedCategory;
+    private int[] sampledRateCategory = null;
+    private double[] rootFrequencies;
+    private double[] categoryProportions;
+
+    private static final int ROOT_NODE = 0;
+    private static final int INTERNAL_NODE = 1;
+    private static final int TIP_PARTIALS_NODE = 2;
+    private static final int TIP_STATES_NODE = 3;
+    private static final int NO_SAMPLING_NODE = 4;
+
+    // the most doubles held in the partials and matrices of a batch of nodes
+    private static final int MAX_BATCH_SIZE = 1 << 22;
+
+    private SamplingBlock[] samplingBlocks = null;
+    private ExecutorService samplingPool = null;
+
+    private NodeRef[] batchNodes = null;
+    private int[] batchTypes = null;
+    private double[][] batchPartials = null;
+    private double[][] batchMatrices = null;
 
     protected int[] rateCategory = null;
 //    private double[] rootPartials;
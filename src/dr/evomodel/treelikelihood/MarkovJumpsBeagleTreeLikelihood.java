@@ -94,6 +94,11 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 
         tmpProbabilities = new double[stateCount * stateCount * categoryCount];
         condJumps = new double[categoryCount][stateCount * stateCount];
+        categoryRates = new double[categoryCount];
+        entries = new int[categoryCount][stateCount * stateCount];
+        entryCounts = new int[categoryCount];
+        entryStamps = new int[categoryCount][stateCount * stateCount];
+        branchCaches = new ArrayList<BranchCache>();
     }
 
     public void addRegister(Parameter addRegisterParameter,
@@ -140,6 +145,7 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
             jumpTag.add(traitName);
 
             expectedJumps.add(new double[treeModel.getNodeCount()][patternCount]);
+            branchCaches.add(new BranchCache(treeModel.getNodeCount(), patternCount, categoryCount));
 //        storedExpectedJumps.add(new double[treeModel.getNodeCount()][patternCount]);
 
             boolean[] oldScaleByTime = this.scaleByTime;
@@ -403,12 +409,14 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
                             expectedJumps.get(r), rateCategory, r == historyRegisterNumber);
                 } else {
                     computeIntegratedMarkovJumpsForBranch(thisMarkovJumps, substTime, branchRate, childNum, parentStates,
-                            childStates, probabilities, condJumps, scaleByTime[r], expectedJumps.get(r), rateCategory);
+                            childStates, probabilities, condJumps, scaleByTime[r], expectedJumps.get(r), rateCategory,
+                            branchCaches.get(r));
                 }
             } else {
                 // Fill with zeros
                 double[] result = expectedJumps.get(r)[childNum];
                 Arrays.fill(result, 0.0);
+                branchCaches.get(r).invalidate(childNum);
             }
         }
     }
@@ -450,6 +458,12 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         }
     }
 
+    /**
+     * Computes the conditional expected counts for each pattern on a branch. Only the entries of
+     * the count matrices for the pairs of parent and child states that are present are computed and
+     * the values of a branch are kept for as long as its length, rates, the parent and child states and
+     * rate categories of the patterns and the substitution model are unchanged.
+     */
     private void computeIntegratedMarkovJumpsForBranch(MarkovJumpsSubstitutionModel thisMarkovJumps,
                                                        double substTime,
                                                        double branchRate,
@@ -460,34 +474,51 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
                                                        double[][] condJumps,
                                                        boolean scaleByTime,
                                                        double[][] thisExpectedJumps,
-                                                       int[] rateCategory) {
+                                                       int[] rateCategory,
+                                                       BranchCache cache) {
 
-        // Fill condJumps with conditional mean values for this branch
         for (int i = 0; i < categoryCount; i++) {
+            categoryRates[i] = siteRateModel.getRateForCategory(i);
+        }
 
-            double rate = siteRateModel.getRateForCategory(i);
-            if (rate > 0) {
+        final int version = thisMarkovJumps.getVersion();
+        final boolean isCached = cache.isValid(childNum, version, substTime, branchRate, categoryRates);
 
-                if (categoryCount == 1) {
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            probabilities,
-                            condJumps[i]);
-                } else {
+        // Find the entries of each category's count matrix that are needed
+        stamp++;
+        Arrays.fill(entryCounts, 0);
+        for (int j = 0; j < patternCount; j++) {
+            final int category = rateCategory == null ? 0 : rateCategory[j];
+            if (!isCached || !cache.isPatternValid(childNum, j, parentStates[j], childStates[j], category)) {
+                final int entry = parentStates[j] * stateCount + childStates[j];
+                if (entryStamps[category][entry] != stamp) {
+                    entryStamps[category][entry] = stamp;
+                    entries[category][entryCounts[category]] = entry;
+                    entryCounts[category]++;
+                }
+            }
+        }
 
-                    System.arraycopy(probabilities, i * stateCount * stateCount, tmpProbabilities, 0,
-                            stateCount * stateCount);
+        // Fill condJumps with conditional mean values for this branch
+        for (int i = 0; i < categoryCount; i++) {
 
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            tmpProbabilities,
-                            condJumps[i]);
-                }
+            if (entryCounts[i] == 0) {
+                continue;
+            }
+
+            double rate = categoryRates[i];
+            if (rate > 0) {
+
+                thisMarkovJumps.computeCondStatMarkovJumps(
+                        substTime * branchRate * rate,
+                        probabilities, i * stateCount * stateCount,
+                        entries[i], entryCounts[i],
+                        condJumps[i]);
 
                 if (scaleByTime) {
                     double scalar = branchRate * rate;
-                    for (int j = 0; j < condJumps[i].length; j++) {
-                        condJumps[i][j] /= scalar;
+                    for (int k = 0; k < entryCounts[i]; k++) {
+                        condJumps[i][entries[i][k]] /= scalar;
                     }
                 }
             } else {
@@ -501,9 +532,79 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         }
 
         for (int j = 0; j < patternCount; j++) { // Pick out values given parent and child states
-            int category = rateCategory == null ? 0 : rateCategory[j];
-            thisExpectedJumps[childNum][j] = condJumps[category][parentStates[j] * stateCount + childStates[j]];
+            final int category = rateCategory == null ? 0 : rateCategory[j];
+            final int entry = parentStates[j] * stateCount + childStates[j];
+            if (entryStamps[category][entry] == stamp) {
+                thisExpectedJumps[childNum][j] = condJumps[category][entry];
+            }
         }
+
+        cache.set(childNum, version, substTime, branchRate, categoryRates, parentStates, childStates, rateCategory);
+    }
+
+    /**
+     * The branch length, rates, substitution model version and the states and rate categories of
+     * the patterns for which the expected counts of each branch were last computed.
+     */
+    public static class BranchCache {
+
+        public BranchCache(int nodeCount, int patternCount, int categoryCount) {
+            version = new int[nodeCount];
+            Arrays.fill(version, -1);
+            substTime = new double[nodeCount];
+            branchRate = new double[nodeCount];
+            categoryRates = new double[nodeCount][categoryCount];
+            parentStates = new int[nodeCount][patternCount];
+            childStates = new int[nodeCount][patternCount];
+            categories = new int[nodeCount][patternCount];
+        }
+
+        /**
+         * @return true if the counts of the branch were computed with the same model and times
+         */
+        public boolean isValid(int node, int version, double substTime, double branchRate, double[] categoryRates) {
+            return this.version[node] == version && this.substTime[node] == substTime &&
+                    this.branchRate[node] == branchRate && Arrays.equals(this.categoryRates[node], categoryRates);
+        }
+
+        /**
+         * @return true if the count of a pattern of a valid branch was computed for the same states
+         * and rate category
+         */
+        public boolean isPatternValid(int node, int pattern, int parentState, int childState, int category) {
+            return parentStates[node][pattern] == parentState && childStates[node][pattern] == childState &&
+                    categories[node][pattern] == category;
+        }
+
+        /**
+         * @param rateCategory the rate category of each pattern or null if there is only one
+         */
+        public void set(int node, int version, double substTime, double branchRate, double[] categoryRates,
+                        int[] parentStates, int[] childStates, int[] rateCategory) {
+            this.version[node] = version;
+            this.substTime[node] = substTime;
+            this.branchRate[node] = branchRate;
+            System.arraycopy(categoryRates, 0, this.categoryRates[node], 0, categoryRates.length);
+            System.arraycopy(parentStates, 0, this.parentStates[node], 0, parentStates.length);
+            System.arraycopy(childStates, 0, this.childStates[node], 0, childStates.length);
+            if (rateCategory == null) {
+                Arrays.fill(categories[node], 0);
+            } else {
+                System.arraycopy(rateCategory, 0, categories[node], 0, rateCategory.length);
+            }
+        }
+
+        public void invalidate(int node) {
+            version[node] = -1;
+        }
+
+        private final int[] version;
+        private final double[] substTime;
+        private final double[] branchRate;
+        private final double[][] categoryRates;
+        private final int[][] parentStates;
+        private final int[][] childStates;
+        private final int[][] categories;
     }
 
 //    public void storeState() {
@@ -653,6 +754,12 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
     private boolean[] scaleByTime;
     private double[] tmpProbabilities;
     private double[][] condJumps;
+    private double[] categoryRates;
+    private int[][] entries;
+    private int[] entryCounts;
+    private int[][] entryStamps;
+    private int stamp = 0;
+    private List<BranchCache> branchCaches;
     private int numRegisters;
     private int historyRegisterNumber = -1;
     private final boolean useUniformization;
@@ -25,7 +25,10 @@
 
 package dr.evomodelxml.treedatalikelihood;
 
+import beagle.BeagleFactory;
+import dr.evolution.alignment.PatternBlock;
 import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.UncertainSiteList;
 import dr.evolution.util.Taxon;
 import dr.evomodel.branchmodel.BranchModel;
 import dr.evomodel.branchmodel.HomogeneousBranchModel;
@@ -39,7 +42,9 @@ import dr.evomodel.tipstatesmodel.TipStatesModel;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.MultiPartitionDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.PatternBlockDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
 import dr.evomodel.treelikelihood.PartialsRescalingScheme;
 import dr.inference.model.CompoundLikelihood;
@@ -48,6 +53,7 @@ import dr.xml.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * @author Andrew Rambaut
@@ -57,12 +63,15 @@ import java.util.List;
 public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
     public static final String BEAGLE_INSTANCE_COUNT = "beagle.instance.count";
+    // selects the multi-threaded Java delegate instead of BEAGLE
+    public static final String JAVA_DELEGATE = "treedatalikelihood.java.delegate";
 
     public static final String TREE_DATA_LIKELIHOOD = "treeDataLikelihood";
     public static final String USE_AMBIGUITIES = "useAmbiguities";
     public static final String INSTANCE_COUNT = "instanceCount";
     public static final String SCALING_SCHEME = "scalingScheme";
     public static final String DELAY_SCALING = "delayScaling";
+    public static final String THREADS = "threads";
 
     public static final String PARTITION = "partition";
 
@@ -78,7 +87,9 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
                                                   TipStatesModel tipStatesModel,
                                                   boolean useAmbiguities,
                                                   PartialsRescalingScheme scalingScheme,
-                                                  boolean delayRescalingUntilUnderflow) throws XMLParseException {
+                                                  boolean delayRescalingUntilUnderflow,
+                                                  int instanceCount,
+                                                  int threadCount) throws XMLParseException {
 
         if (tipStatesModel != null) {
             throw new XMLParseException("Tip State Error models are not supported yet with TreeDataLikelihood");
@@ -106,8 +117,14 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
         boolean useBeagle3 = Boolean.parseBoolean(System.getProperty("USE_BEAGLE3", "true"));
         boolean useJava = Boolean.parseBoolean(System.getProperty("java.only", "false"));
+        boolean useJavaDelegate = Boolean.parseBoolean(System.getProperty(JAVA_DELEGATE, "false"));
+        if (!useJava && !useJavaDelegate && !isBeagleAvailable()) {
+            Logger.getLogger("dr.evomodel").info("No BEAGLE resources are available so the Java data likelihood delegate will be used");
+            useJavaDelegate = true;
+        }
+        useJava |= useJavaDelegate;
 
-        if ( useBeagle3 && MultiPartitionDataLikelihoodDelegate.IS_MULTI_PARTITION_COMPATIBLE() && !useJava) {
+        if ( useBeagle3 && MultiPartitionDataLikelihoodDelegate.IS_MULTI_PARTITION_COMPATIBLE() && !useJava && instanceCount == 1) {
             DataLikelihoodDelegate dataLikelihoodDelegate = new MultiPartitionDataLikelihoodDelegate(
                     treeModel,
                     patternLists,
@@ -127,14 +144,58 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
             for (int i = 0; i < patternLists.size(); i++) {
 
-                DataLikelihoodDelegate dataLikelihoodDelegate = new BeagleDataLikelihoodDelegate(
-                        treeModel,
-                        patternLists.get(i),
-                        branchModels.get(i),
-                        siteRateModels.get(i),
-                        useAmbiguities,
-                        scalingScheme,
-                        delayRescalingUntilUnderflow);
+                PatternList patternList = patternLists.get(i);
+                DataLikelihoodDelegate dataLikelihoodDelegate;
+
+                boolean useBlocks = instanceCount > 1;
+                if (useBlocks && (patternList.areUncertain() || patternList instanceof UncertainSiteList)) {
+                    // the delegates get the tip partials of an UncertainSiteList from the list itself
+                    // (it doesn't report areUncertain()) so a block of one would lose the uncertainty
+                    Logger.getLogger("dr.evomodel").info("Partition " + (i + 1) + " has uncertain patterns so it " +
+                            "will not be split into " + instanceCount + " pattern blocks");
+                    useBlocks = false;
+                } else if (useBlocks && patternList.getPatternCount() < instanceCount) {
+                    Logger.getLogger("dr.evomodel").info("Partition " + (i + 1) + " has fewer than " + instanceCount +
+                            " patterns so it will not be split into pattern blocks");
+                    useBlocks = false;
+                }
+
+                if (useBlocks) {
+                    // split the patterns into contiguous blocks, each with its own instance, and evaluate
+                    // them concurrently
+                    int[] blockStarts = PatternBlock.getBlockStarts(patternList, instanceCount);
+                    List<DataLikelihoodDelegate> blockDelegates = new ArrayList<DataLikelihoodDelegate>();
+                    for (int j = 0; j < instanceCount; j++) {
+                        blockDelegates.add(createDataLikelihoodDelegate(
+                                treeModel,
+                                new PatternBlock(patternList, blockStarts[j], blockStarts[j + 1]),
+                                branchModels.get(i),
+                                siteRateModels.get(i),
+                                useAmbiguities,
+                                scalingScheme,
+                                delayRescalingUntilUnderflow,
+                                useJavaDelegate,
+                                1));
+                    }
+
+                    dataLikelihoodDelegate = new PatternBlockDataLikelihoodDelegate(
+                            branchModels.get(i),
+                            siteRateModels.get(i),
+                            blockDelegates,
+                            blockStarts,
+                            threadCount > 0 ? threadCount : instanceCount);
+                } else {
+                    dataLikelihoodDelegate = createDataLikelihoodDelegate(
+                            treeModel,
+                            patternList,
+                            branchModels.get(i),
+                            siteRateModels.get(i),
+                            useAmbiguities,
+                            scalingScheme,
+                            delayRescalingUntilUnderflow,
+                            useJavaDelegate,
+                            threadCount);
+                }
 
                 treeDataLikelihoods.add(
                         new TreeDataLikelihood(
@@ -152,20 +213,74 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
         }
     }
 
+    private DataLikelihoodDelegate createDataLikelihoodDelegate(TreeModel treeModel,
+                                                                PatternList patternList,
+                                                                BranchModel branchModel,
+                                                                SiteRateModel siteRateModel,
+                                                                boolean useAmbiguities,
+                                                                PartialsRescalingScheme scalingScheme,
+                                                                boolean delayRescalingUntilUnderflow,
+                                                                boolean useJavaDelegate,
+                                                                int threadCount) throws XMLParseException {
+        if (useJavaDelegate) {
+            checkJavaDelegate(branchModel, scalingScheme, delayRescalingUntilUnderflow);
+            return new JavaDataLikelihoodDelegate(
+                    treeModel,
+                    patternList,
+                    branchModel,
+                    siteRateModel,
+                    useAmbiguities,
+                    threadCount);
+        }
+        return new BeagleDataLikelihoodDelegate(
+                treeModel,
+                patternList,
+                branchModel,
+                siteRateModel,
+                useAmbiguities,
+                scalingScheme,
+                delayRescalingUntilUnderflow);
+    }
+
+    /**
+     * Rejects the models that the Java delegate can't compute and logs that the rescaling options
+     * are ignored (it always rescales at every evaluation once an underflow has occurred).
+     */
+    private static void checkJavaDelegate(BranchModel branchModel,
+                                          PartialsRescalingScheme scalingScheme,
+                                          boolean delayRescalingUntilUnderflow) throws XMLParseException {
+        if (branchModel.getSubstitutionModels().size() > 1) {
+            throw new XMLParseException("The Java data likelihood delegate only supports a single substitution " +
+                    "model for all branches (the BEAGLE library is needed for branch model " + branchModel.getId() + ")");
+        }
+        for (SubstitutionModel substitutionModel : branchModel.getSubstitutionModels()) {
+            if (substitutionModel.canReturnComplexDiagonalization()) {
+                throw new XMLParseException("The Java data likelihood delegate doesn't support substitution models " +
+                        "with complex eigen decompositions (the BEAGLE library is needed for " +
+                        substitutionModel.getId() + ")");
+            }
+        }
+        if (scalingScheme != PartialsRescalingScheme.DEFAULT || !delayRescalingUntilUnderflow) {
+            Logger.getLogger("dr.evomodel").info("The " + SCALING_SCHEME + " and " + DELAY_SCALING +
+                    " options are ignored by the Java data likelihood delegate (partials are rescaled at every " +
+                    "evaluation after the first underflow)");
+        }
+    }
+
     public Object parseXMLObject(XMLObject xo) throws XMLParseException {
 
         boolean useAmbiguities = xo.getAttribute(USE_AMBIGUITIES, false);
 
-        // TreeDataLikelihood doesn't currently support Instances defined from the command line
-//        int instanceCount = xo.getAttribute(INSTANCE_COUNT, 1);
-//        if (instanceCount < 1) {
-//            instanceCount = 1;
-//        }
-//
-//        String ic = System.getProperty(BEAGLE_INSTANCE_COUNT);
-//        if (ic != null && ic.length() > 0) {
-//            instanceCount = Integer.parseInt(ic);
-//        }
+        // each partition's patterns can be split across this many instances
+        int instanceCount = xo.getAttribute(INSTANCE_COUNT, 1);
+        if (instanceCount < 1) {
+            instanceCount = 1;
+        }
+
+        String ic = System.getProperty(BEAGLE_INSTANCE_COUNT);
+        if (ic != null && ic.length() > 0) {
+            instanceCount = Integer.parseInt(ic);
+        }
 
         List<PatternList> patternLists = new ArrayList<PatternList>();
         List<SiteRateModel> siteRateModels = new ArrayList<SiteRateModel>();
@@ -265,6 +380,9 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
             throw new XMLParseException("BEAGLE_INSTANCES option cannot be used with a TipStateModel (i.e., a sequence error model).");
         }
 
+        // the threads used by the Java delegate (set with JAVA_DELEGATE) or across pattern blocks
+        int threadCount = xo.getAttribute(THREADS, -1);
+
         return createTreeDataLikelihood(
                 patternLists,
                 branchModels,
@@ -274,9 +392,24 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
                 null,
                 useAmbiguities,
                 scalingScheme,
-                delayScaling);
+                delayScaling,
+                instanceCount,
+                threadCount);
     }
 
+    /**
+     * @return true if the native BEAGLE library is loaded and has at least one resource
+     */
+    private static boolean isBeagleAvailable() {
+        if (beagleAvailable == null) {
+            List<?> resources = BeagleFactory.getResourceDetails();
+            beagleAvailable = (resources != null && resources.size() > 0);
+        }
+        return beagleAvailable;
+    }
+
+    private static Boolean beagleAvailable = null;
+
     //************************************************************************
     // AbstractXMLObjectParser implementation
     //************************************************************************
@@ -292,6 +425,8 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
     public static final XMLSyntaxRule[] rules = {
             AttributeRule.newBooleanRule(USE_AMBIGUITIES, true),
             AttributeRule.newStringRule(SCALING_SCHEME,true),
+            AttributeRule.newIntegerRule(INSTANCE_COUNT, true),
+            AttributeRule.newIntegerRule(THREADS, true),
 
             // really it should be this set of elements or the PARTITION elements
             new OrRule(new AndRule(new XMLSyntaxRule[]{
@@ -57,6 +57,7 @@ public class AncestralStateTreeLikelihoodParser extends BeagleTreeLikelihoodPars
     public static final String RECONSTRUCTION_TAG_NAME = "stateTagName";
     public static final String MAP_RECONSTRUCTION = "useMAP";
     public static final String MARGINAL_LIKELIHOOD = "useMarginalLikelihood";
+    public static final String SAMPLING_THREADS = "samplingThreads";
 
     public String getParserName() {
         return RECONSTRUCTING_TREE_LIKELIHOOD;
@@ -92,7 +93,7 @@ public class AncestralStateTreeLikelihoodParser extends BeagleTreeLikelihoodPars
             throw new XMLParseException("Ancestral state reconstruction cannot be used with compressed (unique) patterns.");
         }
 
-        return new AncestralStateBeagleTreeLikelihood(  // Current just returns a OldBeagleTreeLikelihood
+        AncestralStateBeagleTreeLikelihood treeLikelihood = new AncestralStateBeagleTreeLikelihood(  // Current just returns a OldBeagleTreeLikelihood
                 patternList,
                 treeModel,
                 branchModel,
@@ -108,12 +109,17 @@ public class AncestralStateTreeLikelihoodParser extends BeagleTreeLikelihoodPars
                 useMAP,
                 useMarginalLogLikelihood
         );
+
+        treeLikelihood.setSamplingThreadCount(xo.getAttribute(SAMPLING_THREADS, 1));
+
+        return treeLikelihood;
     }
 
     public XMLSyntaxRule[] getSyntaxRules() {
         return new XMLSyntaxRule[] {
                 AttributeRule.newBooleanRule(BeagleTreeLikelihoodParser.USE_AMBIGUITIES, true),
                 AttributeRule.newStringRule(RECONSTRUCTION_TAG_NAME, true),
+                AttributeRule.newIntegerRule(SAMPLING_THREADS, true),
                 new ElementRule(PatternList.class),
                 new ElementRule(TreeModel.class),
                 new ElementRule(GammaSiteRateModel.class),
@@ -118,6 +118,8 @@ public class MarkovJumpsTreeLikelihoodParser extends AncestralStateTreeLikelihoo
                 nSimulants
         );
 
+        treeLikelihood.setSamplingThreadCount(xo.getAttribute(SAMPLING_THREADS, 1));
+
         int registersFound = parseAllChildren(xo, treeLikelihood, dataType.getStateCount(), jumpTag,
                 MarkovJumpsType.COUNTS, false); // For backwards compatibility
 
@@ -222,6 +224,7 @@ public class MarkovJumpsTreeLikelihoodParser extends AncestralStateTreeLikelihoo
                     AttributeRule.newBooleanRule(USE_UNIFORMIZATION,true),
                     AttributeRule.newBooleanRule(REPORT_UNCONDITIONED_COLUMNS, true),
                     AttributeRule.newIntegerRule(NUMBER_OF_SIMULANTS,true),
+                    AttributeRule.newIntegerRule(SAMPLING_THREADS, true),
                     AttributeRule.newBooleanRule(SAVE_HISTORY, true),
                     AttributeRule.newBooleanRule(LOG_HISTORY, true),
                     AttributeRule.newBooleanRule(COMPACT_HISTORY, true),
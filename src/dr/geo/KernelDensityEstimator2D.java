@@ -80,6 +80,13 @@ public class KernelDensityEstimator2D implements ContourMaker {
     }
 
     public KernelDensityEstimator2D(final double[] x, final double[] y, final double[] h, final int n, final double[] lims, boolean bandwdithLimited) {
+        this(x, y, h, n, lims, bandwdithLimited, false);
+    }
+
+    /*
+     * @param binned approximate the estimate by binning the observations onto the grid
+     */
+    public KernelDensityEstimator2D(final double[] x, final double[] y, final double[] h, final int n, final double[] lims, boolean bandwdithLimited, boolean binned) {
         this.x = x;
         this.y = y;
         if (x.length != y.length)
@@ -102,6 +109,7 @@ public class KernelDensityEstimator2D implements ContourMaker {
         else
             setupH();
 
+        this.binned = binned;
         doKDE2D();
     }
     
@@ -109,6 +117,10 @@ public class KernelDensityEstimator2D implements ContourMaker {
         this(x,y,null,50,null,limitBandwidth);
     }
 
+    public KernelDensityEstimator2D(final double[] x, final double[] y, boolean limitBandwidth, boolean binned) {
+        this(x,y,null,50,null,limitBandwidth,binned);
+    }
+
     public KernelDensityEstimator2D(final double[] x, final double[] y) {
         this(x,y,null,50,null);
     }
@@ -120,6 +132,10 @@ public class KernelDensityEstimator2D implements ContourMaker {
     public void doKDE2D() {
         gx = makeSequence(lims[0], lims[1], n);
         gy = makeSequence(lims[2], lims[3], n);
+        if (binned) {
+            doBinnedKDE2D();
+            return;
+        }
         double[][] ax = outerMinusScaled(gx, x, h[0]);
         double[][] ay = outerMinusScaled(gy, y, h[1]);
         normalize(ax);
@@ -137,6 +153,66 @@ public class KernelDensityEstimator2D implements ContourMaker {
         }
     }
 
+    /*
+     * Linearly bins the observations onto the grid and then convolves the bin weights with the
+     * normal kernel along each axis in turn (Wand 1994, J Comp Graph Stat 3:433-445). The kernel is
+     * only evaluated at the grid spacings so this takes time in proportion to the number of
+     * observations plus the cube of the grid size rather than their product.
+     */
+    private void doBinnedKDE2D() {
+        final double dx = gx[1] - gx[0];
+        final double dy = gy[1] - gy[0];
+
+        double[][] counts = new double[n][n];
+        for (int k = 0; k < nx; k++) {
+            final double fx = (x[k] - gx[0]) / dx;
+            final double fy = (y[k] - gy[0]) / dy;
+            final int i = (int) Math.floor(fx);
+            final int j = (int) Math.floor(fy);
+            final double wx = fx - i;
+            final double wy = fy - j;
+            addToBin(counts, i, j, (1.0 - wx) * (1.0 - wy));
+            addToBin(counts, i + 1, j, wx * (1.0 - wy));
+            addToBin(counts, i, j + 1, (1.0 - wx) * wy);
+            addToBin(counts, i + 1, j + 1, wx * wy);
+        }
+
+        final double[] kx = new double[n];
+        final double[] ky = new double[n];
+        for (int l = 0; l < n; l++) {
+            kx[l] = NormalDistribution.pdf(l * dx / h[0], 0, 1);
+            ky[l] = NormalDistribution.pdf(l * dy / h[1], 0, 1);
+        }
+
+        double[][] cx = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int m = 0; m < n; m++) {
+                final double weight = kx[Math.abs(i - m)];
+                for (int j = 0; j < n; j++) {
+                    cx[i][j] += weight * counts[m][j];
+                }
+            }
+        }
+
+        z = new double[n][n];
+        final double scale = nx * h[0] * h[1];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double value = 0;
+                for (int m = 0; m < n; m++) {
+                    value += ky[Math.abs(j - m)] * cx[i][m];
+                }
+                z[i][j] = value / scale;
+            }
+        }
+    }
+
+    private void addToBin(double[][] counts, int i, int j, double weight) {
+        if (i >= 0 && i < n && j >= 0 && j < n) {
+            counts[i][j] += weight;
+        }
+    }
+
     public double findLevelCorrespondingToMass(double probabilityMass) {
         double level = 0;
         double[] sz = new double[n*n];
@@ -299,5 +375,6 @@ public class KernelDensityEstimator2D implements ContourMaker {
     private double[][] z; // KDE estimate;
 
     private final boolean limitBandwidth;
+    private final boolean binned; // bin the observations onto the grid
 
 }
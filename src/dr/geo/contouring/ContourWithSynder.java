@@ -44,6 +44,10 @@ public class ContourWithSynder extends KernelDensityEstimator2D  {
         super(x, y, bandwidthLimit);
     }
 
+    public ContourWithSynder(final double[] x, final double[] y, boolean bandwidthLimit, boolean binned) {
+        super(x, y, bandwidthLimit, binned);
+    }
+
     public ContourWithSynder(final double[] x, final double[] y) {
         super(x, y);
     }
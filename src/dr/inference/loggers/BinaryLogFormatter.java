@@ -0,0 +1,259 @@
+/*
+ * BinaryLogFormatter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class that writes a log in a chunked, columnar binary format that can be memory mapped
+ * by dr.inference.trace.BinaryLogTraces. Rows are collected into chunks of about a megabyte
+ * and each chunk is written column by column so a single column can be read without touching
+ * the others.
+ *
+ * Layout (big-endian, as written by DataOutputStream):
+ * <pre>
+ * header:  MAGIC, int version, int headingCount, UTF heading..., int columnCount, UTF label...
+ * chunk:   int byteCount (of the rest of the chunk), int rowCount, long state[rowCount],
+ *          byte type[columnCount], double value[columnCount][rowCount],
+ *          int newLabelCount, (int column, UTF label)...
+ * </pre>
+ * The column labels exclude the state column. The type of a column in a chunk is one of
+ * INTEGER, REAL or CATEGORICAL and can only move up that list from one chunk to the next.
+ * Categorical values are stored as an index into a list of labels for that column that grows
+ * as new labels are added at the end of each chunk. A chunk is only written once it is complete
+ * so a log that is being written, or whose run was killed, can be read up to the last complete
+ * chunk.
+ *
+ * @version $Id$
+ */
+public class BinaryLogFormatter implements LogFormatter {
+
+    public static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'L', 'O', 'G'};
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".blog";
+
+    public static final byte INTEGER = 0;
+    public static final byte REAL = 1;
+    public static final byte CATEGORICAL = 2;
+
+    private static final int MAX_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_ROWS = 1024;
+
+    public BinaryLogFormatter(OutputStream stream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    }
+
+    /**
+     * @param fileName the name of a tab-delimited log
+     * @return the name for a binary log written alongside it
+     */
+    public static String getBinaryFileName(String fileName) {
+        if (fileName.endsWith(".log")) {
+            return fileName.substring(0, fileName.length() - 4) + FILE_EXTENSION;
+        }
+        return fileName + FILE_EXTENSION;
+    }
+
+    public void startLogging(String title) {
+        // DO NOTHING
+    }
+
+    public void logHeading(String heading) {
+        if (heading != null) {
+            for (String line : heading.split("[\r\n]")) {
+                headings.add(line);
+            }
+        }
+    }
+
+    public void logLine(String line) {
+        if (columnCount < 0) {
+            headings.add(line);
+        }
+        // lines after the labels can't be represented in the columns
+    }
+
+    public void logLabels(String[] labels) {
+        if (columnCount >= 0) {
+            throw new IllegalStateException("Labels have already been written");
+        }
+
+        // the first label is the state
+        columnCount = labels.length - 1;
+
+        chunkRows = Math.max(1, Math.min(MAX_CHUNK_ROWS, MAX_CHUNK_BYTES / (8 * Math.max(columnCount, 1))));
+        states = new long[chunkRows];
+        values = new double[columnCount][chunkRows];
+        types = new byte[columnCount];
+        isCategorical = new boolean[columnCount];
+        numbers = new double[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            categoryIndices.add(new HashMap<String, Integer>());
+        }
+
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headings.size());
+            for (String heading : headings) {
+                out.writeUTF(heading);
+            }
+            out.writeInt(columnCount);
+            for (int i = 1; i < labels.length; i++) {
+                out.writeUTF(labels[i]);
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write binary log: " + ioe.getMessage());
+        }
+    }
+
+    public void logValues(String[] values) {
+        if (columnCount < 0) {
+            throw new IllegalStateException("Labels must be written before values");
+        }
+
+        // MCLogger may append a performance column to screen logs so only take the labelled columns
+        boolean becameCategorical = false;
+        for (int i = 0; i < columnCount; i++) {
+            if (!isCategorical[i]) {
+                try {
+                    numbers[i] = Double.parseDouble(values[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    // once categorical, always categorical
+                    isCategorical[i] = true;
+                    becameCategorical = true;
+                }
+            }
+        }
+
+        if (becameCategorical && rowCount > 0) {
+            // the type is per chunk so the rows so far are written with their numeric type
+            writeChunk();
+        }
+
+        states[rowCount] = Long.parseLong(values[0]);
+        for (int i = 0; i < columnCount; i++) {
+            this.values[i][rowCount] = (isCategorical[i] ? getCategoryIndex(i, values[i + 1]) :
+                    getNumber(i, values[i + 1], numbers[i]));
+        }
+
+        rowCount++;
+        if (rowCount == chunkRows) {
+            writeChunk();
+        }
+    }
+
+    public void stopLogging() {
+        if (rowCount > 0) {
+            writeChunk();
+        }
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write binary log: " + ioe.getMessage());
+        }
+    }
+
+    private double getNumber(int column, String value, double x) {
+        if (types[column] == INTEGER && (value.indexOf('.') >= 0 || value.indexOf('E') >= 0 ||
+                value.indexOf('e') >= 0 || Double.isNaN(x) || Double.isInfinite(x))) {
+            types[column] = REAL;
+        }
+        return x;
+    }
+
+    private double getCategoryIndex(int column, String value) {
+        types[column] = CATEGORICAL;
+        Map<String, Integer> indices = categoryIndices.get(column);
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = indices.size();
+            indices.put(value, index);
+            newLabelColumns.add(column);
+            newLabels.add(value);
+        }
+        return index;
+    }
+
+    private void writeChunk() {
+        try {
+            int byteCount = 4 + (8 * rowCount) + columnCount + (8 * rowCount * columnCount) + 4;
+            ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+            DataOutputStream labelOut = new DataOutputStream(labelBytes);
+            for (int i = 0; i < newLabels.size(); i++) {
+                labelOut.writeInt(newLabelColumns.get(i));
+                labelOut.writeUTF(newLabels.get(i));
+            }
+            labelOut.flush();
+            byteCount += labelBytes.size();
+
+            out.writeInt(byteCount);
+            out.writeInt(rowCount);
+            for (int j = 0; j < rowCount; j++) {
+                out.writeLong(states[j]);
+            }
+            out.write(types);
+            for (int i = 0; i < columnCount; i++) {
+                double[] column = values[i];
+                for (int j = 0; j < rowCount; j++) {
+                    out.writeDouble(column[j]);
+                }
+            }
+            out.writeInt(newLabels.size());
+            labelBytes.writeTo(out);
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write binary log: " + ioe.getMessage());
+        }
+
+        rowCount = 0;
+        newLabels.clear();
+        newLabelColumns.clear();
+    }
+
+    private final DataOutputStream out;
+
+    private final List<String> headings = new ArrayList<String>();
+    private int columnCount = -1;
+
+    private int chunkRows;
+    private int rowCount = 0;
+    private long[] states;
+    private double[][] values;
+    private byte[] types;
+
+    private boolean[] isCategorical;
+    private double[] numbers;
+    private final List<Map<String, Integer>> categoryIndices = new ArrayList<Map<String, Integer>>();
+    private final List<Integer> newLabelColumns = new ArrayList<Integer>();
+    private final List<String> newLabels = new ArrayList<String>();
+}
@@ -0,0 +1,358 @@
+/*
+ * ChainMetrics.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Timings of the parts of each step of the chain (the proposals of each operator, the
+ * evaluations of each likelihood, storing and restoring the models and writing the logs). These
+ * are always collected in histograms that can be updated from any thread without locking. They
+ * can be written to a file (JSON, or CSV if the file name ends in .csv) at an interval and at the
+ * end of the run and can be read through JMX. The file, the interval (in seconds) and whether to
+ * register with JMX are set with system properties (see the -metrics options of BeastMain).
+ *
+ * @version $Id$
+ */
+public class ChainMetrics {
+
+    public static final String METRICS_FILE = "mcmc.metrics.file";
+    public static final String METRICS_EVERY = "mcmc.metrics.every";
+    public static final String METRICS_JMX = "mcmc.metrics.jmx";
+
+    public static final String JMX_NAME = "dr.inference:type=ChainMetrics";
+
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private static ScheduledExecutorService reporter = null;
+    private static int runCount = 0;
+    private static boolean registered = false;
+
+    /**
+     * @return the histogram with this name, which is created if it doesn't exist
+     */
+    public static Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Zeros all the histograms (they are kept as they may be held by the chain).
+     */
+    public static void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Called when a run starts. This starts writing the report at the interval given by the
+     * system properties and registers with JMX if requested.
+     */
+    public static synchronized void startRun() {
+        runCount++;
+
+        if (Boolean.parseBoolean(System.getProperty(METRICS_JMX)) && !registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(JMX_NAME));
+                registered = true;
+            } catch (Exception e) {
+                Logger.getLogger("dr.inference").warning("Unable to register the chain metrics with JMX: " + e.getMessage());
+            }
+        }
+
+        final String fileName = System.getProperty(METRICS_FILE);
+        final long every = Long.parseLong(System.getProperty(METRICS_EVERY, "0"));
+        if (fileName != null && every > 0 && reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "chain-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            reporter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    writeReport(fileName);
+                }
+            }, every, every, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Called when a run finishes. The report is written and, once all the runs have finished,
+     * the periodic reporting is stopped.
+     */
+    public static synchronized void finishRun() {
+        runCount--;
+        if (runCount <= 0 && reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+
+        final String fileName = System.getProperty(METRICS_FILE);
+        if (fileName != null) {
+            writeReport(fileName);
+        }
+    }
+
+    /**
+     * Writes the report to a temporary file which then replaces the named one so that the file
+     * can be read at any time.
+     */
+    public static synchronized void writeReport(String fileName) {
+        File file = new File(fileName);
+        File tempFile = new File(fileName + ".tmp");
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(tempFile));
+            if (fileName.toLowerCase().endsWith(".csv")) {
+                writeCSV(writer);
+            } else {
+                writeJSON(writer);
+            }
+            writer.close();
+            if (!tempFile.renameTo(file)) {
+                // renaming doesn't replace an existing file on some platforms
+                file.delete();
+                tempFile.renameTo(file);
+            }
+        } catch (IOException e) {
+            Logger.getLogger("dr.inference").warning("Unable to write the chain metrics to " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    public static void writeJSON(PrintWriter writer) {
+        Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+        writer.println("{");
+        writer.println("  \"time\": " + System.currentTimeMillis() + ",");
+        writer.println("  \"unit\": \"ns\",");
+        writer.print("  \"metrics\": {");
+        boolean first = true;
+        for (String name : sorted.keySet()) {
+            Histogram histogram = sorted.get(name);
+            writer.println(first ? "" : ",");
+            writer.print("    \"" + escape(name) + "\": {");
+            writer.print("\"count\": " + histogram.getCount());
+            writer.print(", \"total\": " + histogram.getTotal());
+            writer.print(", \"mean\": " + Math.round(histogram.getMean()));
+            writer.print(", \"p50\": " + histogram.getPercentile(0.5));
+            writer.print(", \"p90\": " + histogram.getPercentile(0.9));
+            writer.print(", \"p99\": " + histogram.getPercentile(0.99));
+            writer.print(", \"max\": " + histogram.getMax());
+            writer.print(", \"buckets\": [");
+            long[] counts = histogram.getBucketCounts();
+            int last = counts.length - 1;
+            while (last > 0 && counts[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                writer.print((i > 0 ? ", " : "") + counts[i]);
+            }
+            writer.print("]}");
+            first = false;
+        }
+        writer.println();
+        writer.println("  }");
+        writer.println("}");
+    }
+
+    public static void writeCSV(PrintWriter writer) {
+        Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+        writer.println("name,count,total_ns,mean_ns,p50_ns,p90_ns,p99_ns,max_ns");
+        for (String name : sorted.keySet()) {
+            Histogram histogram = sorted.get(name);
+            writer.println("\"" + name.replace("\"", "\"\"") + "\"," +
+                    histogram.getCount() + "," +
+                    histogram.getTotal() + "," +
+                    Math.round(histogram.getMean()) + "," +
+                    histogram.getPercentile(0.5) + "," +
+                    histogram.getPercentile(0.9) + "," +
+                    histogram.getPercentile(0.99) + "," +
+                    histogram.getMax());
+        }
+    }
+
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * A histogram of times in nanoseconds. Bucket i holds the times below 2^i that are not in a
+     * lower bucket so the percentiles are given to within a factor of two.
+     */
+    public static class Histogram {
+
+        public static final int BUCKET_COUNT = 64;
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            final long n = count.get();
+            return (n > 0 ? (double) total.get() / n : 0.0);
+        }
+
+        /**
+         * @return the upper bound of the bucket that holds the given quantile
+         */
+        public long getPercentile(double quantile) {
+            long[] counts = getBucketCounts();
+            long n = 0;
+            for (long c : counts) {
+                n += c;
+            }
+            if (n == 0) {
+                return 0;
+            }
+            final long target = (long) Math.ceil(quantile * n);
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target && counts[i] > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+
+        public long[] getBucketCounts() {
+            long[] counts = new long[BUCKET_COUNT + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+    }
+
+    public interface MetricsMXBean {
+
+        String[] getNames();
+
+        long getCount(String name);
+
+        double getMeanTime(String name);
+
+        String getJSONReport();
+
+        String getCSVReport();
+
+        void reset();
+    }
+
+    private static class Metrics implements MetricsMXBean {
+
+        public String[] getNames() {
+            return new TreeMap<String, Histogram>(histograms).keySet().toArray(new String[0]);
+        }
+
+        public long getCount(String name) {
+            Histogram histogram = histograms.get(name);
+            return (histogram != null ? histogram.getCount() : 0);
+        }
+
+        public double getMeanTime(String name) {
+            Histogram histogram = histograms.get(name);
+            return (histogram != null ? histogram.getMean() : 0.0);
+        }
+
+        public String getJSONReport() {
+            StringWriter writer = new StringWriter();
+            writeJSON(new PrintWriter(writer));
+            return writer.toString();
+        }
+
+        public String getCSVReport() {
+            StringWriter writer = new StringWriter();
+            writeCSV(new PrintWriter(writer));
+            return writer.toString();
+        }
+
+        public void reset() {
+            ChainMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * ChainReplicas.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Independent copies of a markov chain (each parsed from the same XML) that are used to evaluate
+ * a number of proposals at the same time. The first chain is the one that is being run and is
+ * always in the current state. The others are only brought up to date when they next make a
+ * proposal. The likelihoods of the chains are evaluated on a thread pool.
+ *
+ * @version $Id$
+ */
+public class ChainReplicas {
+
+    /**
+     * @param chains      the chains with the one being run first
+     * @param threadCount the number of threads (0 or less to use one for each chain)
+     */
+    public ChainReplicas(MarkovChain[] chains, int threadCount) {
+        if (chains.length < 2) {
+            throw new IllegalArgumentException("At least two chains are needed");
+        }
+
+        this.chains = chains;
+        this.states = new ChainState[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            states[i] = new ChainState(chains[i]);
+            if (i > 0) {
+                states[i].checkMatches(states[0]);
+                if (chains[i].getSchedule().getOperatorCount() != chains[0].getSchedule().getOperatorCount()) {
+                    throw new IllegalArgumentException("Chains have different numbers of operators");
+                }
+            }
+        }
+
+        isOutOfDate = new boolean[chains.length];
+        scores = new double[chains.length];
+        times = new long[chains.length];
+
+        if (threadCount <= 0) {
+            threadCount = chains.length;
+        }
+        pool = Executors.newFixedThreadPool(Math.min(threadCount, chains.length), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chain-replicas");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getChainCount() {
+        return chains.length;
+    }
+
+    public MarkovChain getChain(int index) {
+        return chains[index];
+    }
+
+    /**
+     * Evaluates the likelihoods of the given chains (those for which evaluate is true) in
+     * parallel.
+     *
+     * @param chainIndices the index of the chain of each proposal
+     * @param count        the number of proposals
+     * @return the log likelihood of each proposal (NaN for those not evaluated)
+     */
+    public double[] evaluate(final int[] chainIndices, final int count, final boolean[] evaluate) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(count);
+        for (int i = 0; i < count; i++) {
+            scores[i] = Double.NaN;
+            times[i] = 0;
+            if (evaluate[i]) {
+                final int index = i;
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        long startTime = System.currentTimeMillis();
+                        scores[index] = chains[chainIndices[index]].evaluate();
+                        times[index] = System.currentTimeMillis() - startTime;
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(tasks);
+        return scores;
+    }
+
+    /**
+     * @return the time in milliseconds each of the last evaluations took (by proposal)
+     */
+    public long[] getEvaluationTimes() {
+        return times;
+    }
+
+    /**
+     * Sets all the other chains to the state of the given one and evaluates them (as is needed
+     * before the first step as the chains may start in different states). The state of each is
+     * stored before it is changed and accepted after it has been evaluated.
+     */
+    public void synchronizeAll(final int source) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chains.length - 1);
+        for (int i = 0; i < chains.length; i++) {
+            isOutOfDate[i] = false;
+            if (i != source) {
+                final int index = i;
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        copyState(index, source);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Sets the first chain to the state of the given one (the chain whose proposal has been
+     * accepted) and evaluates it. The other chains are marked as out of date rather than being
+     * evaluated now as most of them won't make a proposal before the state changes again.
+     */
+    public void synchronize(int source) {
+        if (source != 0) {
+            copyState(0, source);
+        }
+        for (int i = 1; i < chains.length; i++) {
+            isOutOfDate[i] = (i != source);
+        }
+    }
+
+    /**
+     * Copies the current state (that of the first chain) into the given chain if it is out of
+     * date. This is called after the chain's model has been stored and before its proposal is
+     * made so the changes are evaluated with the proposal and undone with it if it is rejected
+     * (in which case the chain is still out of date).
+     */
+    public void copyCurrentState(int index) {
+        if (isOutOfDate[index]) {
+            states[index].copyFrom(states[0]);
+        }
+    }
+
+    /**
+     * Brings the given chain up to date and evaluates it so its model can be restored to the
+     * current state (as is needed while the evaluation is being tested).
+     */
+    public void update(int index) {
+        if (isOutOfDate[index]) {
+            copyState(index, 0);
+            isOutOfDate[index] = false;
+        }
+    }
+
+    private void copyState(int index, int source) {
+        chains[index].getModel().storeModelState();
+        states[index].copyFrom(states[source]);
+        chains[index].evaluate();
+        chains[index].getModel().acceptModelState();
+    }
+
+    private void invokeAll(List<Callable<Object>> tasks) {
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private final MarkovChain[] chains;
+    private final ChainState[] states;
+    private final boolean[] isOutOfDate;
+    private final double[] scores;
+    private final long[] times;
+    private final ExecutorService pool;
+}
@@ -0,0 +1,257 @@
+/*
+ * ChainState.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parameters and trees of the models of a likelihood (the same things that are saved in a
+ * checkpoint). These are found in the same order for copies of a chain parsed from the same XML so
+ * the state of one copy can be copied into another. Only the values that differ are changed so
+ * the models are notified of the changes in the usual way and only recalculate what is needed.
+ *
+ * @version $Id$
+ */
+public class ChainState {
+
+    public ChainState(MarkovChain markovChain) {
+        Map<Model, Model> visited = new IdentityHashMap<Model, Model>();
+        Map<Parameter, Parameter> visitedParameters = new IdentityHashMap<Parameter, Parameter>();
+        addModel(markovChain.getModel(), visited, visitedParameters);
+    }
+
+    private void addModel(Model model, Map<Model, Model> visited, Map<Parameter, Parameter> visitedParameters) {
+        if (model == null || visited.containsKey(model)) {
+            return;
+        }
+        visited.put(model, model);
+
+        if (model instanceof TreeModel) {
+            // the node heights are copied with the tree structure and the other node parameters
+            // (rates and traits) node by node as their order changes with the tree
+            trees.add((TreeModel) model);
+        } else {
+            for (int i = 0; i < model.getVariableCount(); i++) {
+                Variable variable = model.getVariable(i);
+                if (variable instanceof Parameter && !visitedParameters.containsKey(variable)) {
+                    visitedParameters.put((Parameter) variable, (Parameter) variable);
+                    parameters.add((Parameter) variable);
+                }
+            }
+        }
+
+        for (int i = 0; i < model.getModelCount(); i++) {
+            addModel(model.getModel(i), visited, visitedParameters);
+        }
+    }
+
+    /**
+     * Checks that the source was built from the same model, throwing an IllegalArgumentException
+     * if not.
+     */
+    public void checkMatches(ChainState source) {
+        if (source.parameters.size() != parameters.size() || source.trees.size() != trees.size()) {
+            throw new IllegalArgumentException("Chain states have different numbers of parameters or trees");
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            Parameter sourceParameter = source.parameters.get(i);
+            if (parameter.getDimension() != sourceParameter.getDimension() ||
+                    !parameter.getParameterName().equals(sourceParameter.getParameterName())) {
+                throw new IllegalArgumentException("Unable to match state parameter: " + parameter.getParameterName());
+            }
+        }
+        for (int i = 0; i < trees.size(); i++) {
+            if (trees.get(i).getNodeCount() != source.trees.get(i).getNodeCount()) {
+                throw new IllegalArgumentException("Unable to match tree: " + trees.get(i).getId());
+            }
+        }
+    }
+
+    /**
+     * Sets this state to be the same as the source state. The models should be stored first
+     * so they can be restored or accepted afterwards.
+     */
+    public void copyFrom(ChainState source) {
+        for (int i = 0; i < parameters.size(); i++) {
+            copyValues(source.parameters.get(i), parameters.get(i));
+        }
+
+        for (int i = 0; i < trees.size(); i++) {
+            copyTree(source.trees.get(i), trees.get(i));
+            copyNodeParameters(source.trees.get(i), trees.get(i));
+        }
+    }
+
+    /**
+     * Copies the topology and node heights of the source tree into another copy of it. The tips
+     * are matched by taxon and the internal nodes by number. The children of each node that has
+     * different children are removed and then put back in the order of the source tree.
+     */
+    private void copyTree(TreeModel source, TreeModel tree) {
+        final int nodeCount = tree.getNodeCount();
+
+        int[] nodeMap = nodeMaps.get(source);
+        if (nodeMap == null) {
+            nodeMap = createNodeMap(source, tree);
+            nodeMaps.put(source, nodeMap);
+        }
+
+        boolean[] changedChildren = new boolean[nodeCount];
+        boolean isChanged = tree.getRoot().getNumber() != nodeMap[source.getRoot().getNumber()];
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef sourceNode = source.getNode(i);
+            NodeRef node = tree.getNode(nodeMap[i]);
+            if (tree.getChildCount(node) != source.getChildCount(sourceNode)) {
+                changedChildren[i] = true;
+            } else {
+                for (int j = 0; j < tree.getChildCount(node); j++) {
+                    if (tree.getChild(node, j).getNumber() != nodeMap[source.getChild(sourceNode, j).getNumber()]) {
+                        changedChildren[i] = true;
+                    }
+                }
+            }
+            isChanged |= changedChildren[i] || tree.getNodeHeight(node) != source.getNodeHeight(sourceNode);
+        }
+
+        if (!isChanged) {
+            return;
+        }
+
+        tree.beginTreeEdit();
+
+        for (int i = 0; i < nodeCount; i++) {
+            if (changedChildren[i]) {
+                NodeRef node = tree.getNode(nodeMap[i]);
+                while (tree.getChildCount(node) > 0) {
+                    tree.removeChild(node, tree.getChild(node, tree.getChildCount(node) - 1));
+                }
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (changedChildren[i]) {
+                NodeRef sourceNode = source.getNode(i);
+                for (int j = 0; j < source.getChildCount(sourceNode); j++) {
+                    tree.addChild(tree.getNode(nodeMap[i]),
+                            tree.getNode(nodeMap[source.getChild(sourceNode, j).getNumber()]));
+                }
+            }
+        }
+        if (tree.getRoot().getNumber() != nodeMap[source.getRoot().getNumber()]) {
+            tree.setRoot(tree.getNode(nodeMap[source.getRoot().getNumber()]));
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = tree.getNode(nodeMap[i]);
+            double height = source.getNodeHeight(source.getNode(i));
+            if (tree.getNodeHeight(node) != height) {
+                tree.setNodeHeight(node, height);
+            }
+        }
+
+        tree.endTreeEdit();
+    }
+
+    /**
+     * Copies the rates and traits of the nodes of the source tree (once its structure has been
+     * copied) into the matching nodes of the tree.
+     */
+    private void copyNodeParameters(TreeModel source, TreeModel tree) {
+        if (!tree.hasRates() && !tree.hasNodeTraits()) {
+            return;
+        }
+
+        final int[] nodeMap = nodeMaps.get(source);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef sourceNode = source.getNode(i);
+            NodeRef node = tree.getNode(nodeMap[i]);
+
+            if (tree.hasRates()) {
+                double rate = source.getNodeRate(sourceNode);
+                if (tree.getNodeRate(node) != rate) {
+                    tree.setNodeRate(node, rate);
+                }
+            }
+
+            if (tree.hasNodeTraits()) {
+                for (Map.Entry<String, Parameter> entry : tree.getTraitMap(node).entrySet()) {
+                    copyValues(source.getNodeTraitParameter(sourceNode, entry.getKey()), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static void copyValues(Parameter source, Parameter parameter) {
+        for (int dim = 0; dim < parameter.getDimension(); dim++) {
+            double value = source.getParameterValue(dim);
+            if (parameter.getParameterValue(dim) != value) {
+                parameter.setParameterValue(dim, value);
+            }
+        }
+    }
+
+    /**
+     * @return the number of the node in the tree for each node number in the source
+     */
+    private static int[] createNodeMap(TreeModel source, TreeModel tree) {
+        Map<String, Integer> tipNumbers = new HashMap<String, Integer>();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            tipNumbers.put(tree.getNodeTaxon(node).getId(), node.getNumber());
+        }
+
+        int[] nodeMap = new int[source.getNodeCount()];
+        for (int i = 0; i < nodeMap.length; i++) {
+            NodeRef node = source.getNode(i);
+            if (source.isExternal(node)) {
+                Integer number = tipNumbers.get(source.getNodeTaxon(node).getId());
+                if (number == null) {
+                    throw new IllegalArgumentException("Unable to match taxon: " + source.getNodeTaxon(node).getId());
+                }
+                nodeMap[i] = number;
+            } else {
+                nodeMap[i] = i;
+            }
+        }
+        return nodeMap;
+    }
+
+    private final List<Parameter> parameters = new ArrayList<Parameter>();
+    private final List<TreeModel> trees = new ArrayList<TreeModel>();
+
+    // the node maps from each source tree to this copy of it
+    private final Map<TreeModel, int[]> nodeMaps = new IdentityHashMap<TreeModel, int[]>();
+}
@@ -34,6 +34,7 @@ import dr.inference.operators.*;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -70,6 +71,12 @@ public final class MarkovChain implements Serializable {
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    private Likelihood surrogateLikelihood = null;
+    private long[] screenedCounts = null;
+    private long[] earlyRejectionCounts = null;
+
+    private ChainReplicas replicas = null;
+
 
     public MarkovChain(Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
@@ -86,6 +93,11 @@ public final class MarkovChain implements Serializable {
         this.minOperatorCountForFullEvaluation = minOperatorCountForFullEvaluation;
         this.evaluationTestThreshold = evaluationTestThreshold;
 
+        // a schedule that adapts as the chain goes on needs to know the state it has reached
+        if (schedule instanceof MarkovChainListener) {
+            addMarkovChainListener((MarkovChainListener) schedule);
+        }
+
         Likelihood.CONNECTED_LIKELIHOOD_SET.add(likelihood);
         Likelihood.CONNECTED_LIKELIHOOD_SET.addAll(likelihood.getLikelihoodSet());
 
@@ -98,6 +110,81 @@ public final class MarkovChain implements Serializable {
         currentScore = evaluate(likelihood);
     }
 
+    /**
+     * Use delayed acceptance (Christen & Fox 2005): each proposal is first accepted or rejected using
+     * the surrogate likelihood and only the proposals that pass this are evaluated with the full
+     * likelihood. They are then accepted with the ratio of the full to the surrogate acceptance ratio,
+     * so the chain has the same stationary distribution as without the surrogate. The surrogate should
+     * be cheap to calculate and approximate the full likelihood (e.g., the priors or the tree likelihood
+     * of a subset of the patterns) and must not be zero where the full likelihood is not.
+     *
+     * Proposals are not screened during the full evaluation test phase or for Gibbs operators.
+     *
+     * @param surrogateLikelihood the surrogate or null to turn off delayed acceptance
+     */
+    public void setSurrogateLikelihood(Likelihood surrogateLikelihood) {
+        this.surrogateLikelihood = surrogateLikelihood;
+        if (surrogateLikelihood != null) {
+            screenedCounts = new long[schedule.getOperatorCount()];
+            earlyRejectionCounts = new long[schedule.getOperatorCount()];
+        } else {
+            screenedCounts = null;
+            earlyRejectionCounts = null;
+        }
+    }
+
+    public Likelihood getSurrogateLikelihood() {
+        return surrogateLikelihood;
+    }
+
+    /**
+     * @return the number of proposals made by each operator that were screened with the
+     * surrogate likelihood (or null if there is no surrogate)
+     */
+    public long[] getScreenedCounts() {
+        return screenedCounts;
+    }
+
+    /**
+     * @return the number of proposals made by each operator that were rejected using only
+     * the surrogate likelihood (or null if there is no surrogate)
+     */
+    public long[] getEarlyRejectionCounts() {
+        return earlyRejectionCounts;
+    }
+
+    /**
+     * Evaluate a number of proposals at the same time (speculative moves; Byrd, Jarvis & Bhalerao
+     * 2008). From the current state, each replica of the chain makes a proposal using an operator
+     * drawn from the schedule and their likelihoods are evaluated in parallel. The proposals are
+     * then accepted or rejected in turn until one is accepted. This is the same as the proposals
+     * having been made one after another as each one before the accepted one was rejected so the
+     * chain has the same stationary distribution. The remaining proposals are discarded and this
+     * chain is set to the state of the accepted one (the other replicas are brought up to date
+     * when they next make a proposal).
+     *
+     * Each operator always makes its proposals on the same replica so its tuning and any other
+     * state it adapts stay with one copy of it, and an operator is drawn at most once at each step
+     * (an operator whose replica already has a proposal is kept for the next step). The operators
+     * of this chain only make the first proposal of a step so this chain is still in the previous
+     * state when the states of the rejected proposals before the accepted one are logged. The
+     * counts and tuning are copied to the operators of this chain so they are reported as usual.
+     * While the evaluation is being tested (fullEvaluationCount) one proposal is made at a time.
+     * Delayed acceptance is not used in this mode.
+     *
+     * @param replicas the replicas with this chain first or null to make one proposal at a time
+     */
+    public void setReplicas(ChainReplicas replicas) {
+        if (replicas != null && replicas.getChain(0) != this) {
+            throw new IllegalArgumentException("The first replica should be this chain");
+        }
+        this.replicas = replicas;
+    }
+
+    public ChainReplicas getReplicas() {
+        return replicas;
+    }
+
     /**
      * Resets the markov chain
      */
@@ -160,10 +247,33 @@ public final class MarkovChain implements Serializable {
         pleaseStop = false;
         isStopped = false;
 
+        if (replicas != null) {
+            if (surrogateLikelihood != null) {
+                throw new IllegalArgumentException("Delayed acceptance can't be used with multiple proposals");
+            }
+            currentLength = runMultipleProposalChain(currentState, currentModel, length, disableCoerce);
+            return currentLength;
+        }
+
         //int otfcounter = onTheFlyOperatorWeights > 0 ? onTheFlyOperatorWeights : 0;
 
         double[] logr = {0.0};
 
+        final Model surrogateModel = (surrogateLikelihood != null ? surrogateLikelihood.getModel() : null);
+        double currentSurrogateScore = Double.NaN;
+        double[] surrogateLogr = {0.0};
+        if (surrogateLikelihood != null) {
+            // the surrogate is fully evaluated before its state is first stored
+            surrogateLikelihood.makeDirty();
+            currentSurrogateScore = evaluateSurrogate(currentState);
+        }
+
+        final ChainMetrics.Histogram[] operateTimes = getOperatorHistograms();
+        final ChainMetrics.Histogram storeTime = ChainMetrics.getHistogram("store");
+        final ChainMetrics.Histogram evaluateTime = ChainMetrics.getHistogram("evaluate");
+        final ChainMetrics.Histogram acceptTime = ChainMetrics.getHistogram("accept");
+        final ChainMetrics.Histogram restoreTime = ChainMetrics.getHistogram("restore");
+
         boolean usingFullEvaluation = true;
         // set ops count in mcmc element instead
         if (fullEvaluationCount == 0) // Temporary solution until full code review
@@ -192,15 +302,27 @@ public final class MarkovChain implements Serializable {
                         ((CompoundLikelihood) likelihood).getDiagnosis() : "";
             }
 
+            final boolean screening = surrogateLikelihood != null && !usingFullEvaluation &&
+                    !(mcmcOperator instanceof GibbsOperator);
             // assert Profiler.startProfile("Store");
 
+            long metricsTime = System.nanoTime();
+
             // The current model is stored here in case the proposal fails
             if (currentModel != null) {
                 currentModel.storeModelState();
             }
+            if (surrogateModel != null) {
+                // store any parts of the surrogate that are not in the full model
+                surrogateModel.storeModelState();
+            }
 
             // assert Profiler.stopProfile("Store");
 
+            long metricsEndTime = System.nanoTime();
+            storeTime.record(metricsEndTime - metricsTime);
+            metricsTime = metricsEndTime;
+
             boolean operatorSucceeded = true;
             double hastingsRatio = 1.0;
             boolean accept = false;
@@ -226,6 +348,8 @@ public final class MarkovChain implements Serializable {
                 hastingsRatio = mcmcOperator.operate();
             }
 
+            operateTimes[op].record(System.nanoTime() - metricsTime);
+
             // assert Profiler.stopProfile("Operate");
             if (hastingsRatio == Double.NEGATIVE_INFINITY) {
                 // Should the evaluation be short-cutted?
@@ -244,6 +368,31 @@ public final class MarkovChain implements Serializable {
 
             double score = Double.NaN;
             double deviation = Double.NaN;
+            double surrogateScore = Double.NaN;
+
+            if (operatorSucceeded && screening) {
+                // first stage of delayed acceptance using the surrogate likelihood
+                long elapsedTime = 0;
+                if (PROFILE) {
+                    elapsedTime = System.currentTimeMillis();
+                }
+
+                surrogateScore = evaluate(surrogateLikelihood);
+                if (surrogateScore == Double.POSITIVE_INFINITY) {
+                    surrogateScore = Double.NEGATIVE_INFINITY;
+                }
+
+                if (PROFILE) {
+                    mcmcOperator.addEvaluationTime(System.currentTimeMillis() - elapsedTime);
+                }
+
+                screenedCounts[op]++;
+                if (!acceptor.accept(currentSurrogateScore, surrogateScore, hastingsRatio, surrogateLogr)) {
+                    earlyRejectionCounts[op]++;
+                    operatorSucceeded = false;
+                    logr[0] = surrogateLogr[0];
+                }
+            }
 
             //    System.err.print("" + currentState + ": ");
             if (operatorSucceeded) {
@@ -261,7 +410,9 @@ public final class MarkovChain implements Serializable {
                 }
 
                 // The new model is evaluated
+                metricsTime = System.nanoTime();
                 score = evaluate(likelihood);
+                evaluateTime.record(System.nanoTime() - metricsTime);
 
                 if (PROFILE) {
                     long duration = System.currentTimeMillis() - elapsedTime;
@@ -362,7 +513,14 @@ public final class MarkovChain implements Serializable {
                     fireBestModel(currentState, currentModel);
                 }
 
-                accept = mcmcOperator instanceof GibbsOperator || acceptor.accept(oldScore, score, hastingsRatio, logr);
+                if (screening) {
+                    // second stage: the surrogate ratio (and the hastings ratio) have already been
+                    // accounted for so only the ratio of the full to the surrogate likelihood remains
+                    accept = acceptor.accept(oldScore - currentSurrogateScore, score - surrogateScore, 0.0, logr);
+                    logr[0] += Math.min(surrogateLogr[0], 0.0);
+                } else {
+                    accept = mcmcOperator instanceof GibbsOperator || acceptor.accept(oldScore, score, hastingsRatio, logr);
+                }
 
                 deviation = score - oldScore;
             }
@@ -375,9 +533,19 @@ public final class MarkovChain implements Serializable {
                 }
 
                 mcmcOperator.accept(deviation);
+                metricsTime = System.nanoTime();
                 currentModel.acceptModelState();
+                acceptTime.record(System.nanoTime() - metricsTime);
                 currentScore = score;
 
+                if (surrogateLikelihood != null) {
+                    if (surrogateModel != null) {
+                        surrogateModel.acceptModelState();
+                    }
+                    // if the proposal wasn't screened the surrogate is brought up to date before the next store
+                    currentSurrogateScore = (screening ? surrogateScore : evaluateSurrogate(currentState));
+                }
+
             } else {
                 if (DEBUG) {
                     System.out.println("** Move rejected: new score = " + score
@@ -388,7 +556,13 @@ public final class MarkovChain implements Serializable {
 
                 // assert Profiler.startProfile("Restore");
 
+                metricsTime = System.nanoTime();
                 currentModel.restoreModelState();
+                restoreTime.record(System.nanoTime() - metricsTime);
+
+                if (surrogateModel != null) {
+                    surrogateModel.restoreModelState();
+                }
 
                 if (usingFullEvaluation) {
                     // This is a test that the state is correctly restored. The
@@ -451,10 +625,282 @@ public final class MarkovChain implements Serializable {
         return currentLength;
     }
 
+    /**
+     * The chain loop used with replicas, see setReplicas.
+     */
+    private long runMultipleProposalChain(long currentState, final Model currentModel, long length,
+                                          boolean disableCoerce) {
+        final int chainCount = replicas.getChainCount();
+        final int[] ops = new int[chainCount];
+        final int[] homes = new int[chainCount];
+        final boolean[] isHomeUsed = new boolean[chainCount];
+        final double[] hastingsRatios = new double[chainCount];
+        final boolean[] succeeded = new boolean[chainCount];
+        double[] logr = {0.0};
+
+        final ChainMetrics.Histogram[] operateTimes = getOperatorHistograms();
+        final ChainMetrics.Histogram evaluateTime = ChainMetrics.getHistogram("evaluate");
+
+        boolean usingFullEvaluation = fullEvaluationCount > 0;
+        boolean fullEvaluationError = false;
+
+        // an operator that has been drawn but whose chain already had a proposal
+        int nextOp = -1;
+
+        // the replicas start from the current state and operators of this chain
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            final MCMCOperator operator = getHomeOperator(i);
+            copyOperatorCounts(schedule.getOperator(i), operator);
+            copyOperatorTuning(schedule.getOperator(i), operator);
+        }
+        replicas.synchronizeAll(0);
+
+        while (!pleaseStop && (currentState < (currentLength + length))) {
+
+            fireCurrentModel(currentState, currentModel);
+
+            if (pleaseStop) {
+                isStopped = true;
+                break;
+            }
+
+            // The operators are drawn until one is drawn whose chain already has a proposal (it is
+            // kept for the next step), or one of this chain's operators is drawn after the first
+            // proposal. Only one proposal is made while the evaluation is tested and none past the
+            // end of the chain.
+            final int maxProposalCount = (usingFullEvaluation ? 1 :
+                    (int) Math.min(chainCount, currentLength + length - currentState));
+            Arrays.fill(isHomeUsed, false);
+            int proposalCount = 0;
+            while (proposalCount < maxProposalCount) {
+                final int op = (nextOp >= 0 ? nextOp : schedule.getNextOperatorIndex());
+                nextOp = -1;
+                final int home = getHomeChainIndex(op);
+                if (isHomeUsed[home] || (home == 0 && proposalCount > 0)) {
+                    nextOp = op;
+                    break;
+                }
+                isHomeUsed[home] = true;
+                ops[proposalCount] = op;
+                homes[proposalCount] = home;
+                proposalCount++;
+            }
+
+            // The replicas that are out of date are set to the current state (before this chain
+            // makes its proposal) with the changes being made part of their proposals
+            for (int k = 0; k < proposalCount; k++) {
+                if (usingFullEvaluation) {
+                    // so the restored state can be checked against the current one
+                    replicas.update(homes[k]);
+                }
+                replicas.getChain(homes[k]).getModel().storeModelState();
+                replicas.copyCurrentState(homes[k]);
+            }
+
+            // The new models are proposed (in turn so the random numbers are drawn in a fixed order)
+            for (int k = 0; k < proposalCount; k++) {
+                final MarkovChain chain = replicas.getChain(homes[k]);
+                final MCMCOperator mcmcOperator = chain.schedule.getOperator(ops[k]);
+
+                long elapsedTime = 0;
+                if (PROFILE) {
+                    elapsedTime = System.currentTimeMillis();
+                }
+                final long metricsTime = System.nanoTime();
+
+                if (mcmcOperator instanceof GeneralOperator) {
+                    hastingsRatios[k] = ((GeneralOperator) mcmcOperator).operate(chain.likelihood);
+                } else {
+                    hastingsRatios[k] = mcmcOperator.operate();
+                }
+                operateTimes[ops[k]].record(System.nanoTime() - metricsTime);
+                succeeded[k] = hastingsRatios[k] != Double.NEGATIVE_INFINITY;
+
+                if (PROFILE) {
+                    schedule.getOperator(ops[k]).addEvaluationTime(System.currentTimeMillis() - elapsedTime);
+                }
+            }
+
+            // The new models are evaluated
+            final long metricsTime = System.nanoTime();
+            final double[] scores = replicas.evaluate(homes, proposalCount, succeeded);
+            evaluateTime.record(System.nanoTime() - metricsTime);
+
+            if (PROFILE) {
+                final long[] times = replicas.getEvaluationTimes();
+                for (int k = 0; k < proposalCount; k++) {
+                    schedule.getOperator(ops[k]).addEvaluationTime(times[k]);
+                }
+            }
+
+            // The proposals are accepted or rejected in order until one is accepted
+            int accepted = -1;
+            for (int k = 0; k < proposalCount; k++) {
+                final MarkovChain chain = replicas.getChain(homes[k]);
+                final MCMCOperator mcmcOperator = chain.schedule.getOperator(ops[k]);
+
+                if (accepted >= 0) {
+                    // a discarded proposal is rejected so the operator can tidy up but isn't counted
+                    final long acceptCount = mcmcOperator.getAcceptCount();
+                    final long rejectCount = mcmcOperator.getRejectCount();
+                    mcmcOperator.reject();
+                    mcmcOperator.setAcceptCount(acceptCount);
+                    mcmcOperator.setRejectCount(rejectCount);
+                    chain.getModel().restoreModelState();
+                    continue;
+                }
+
+                double score = scores[k];
+                if (score == Double.POSITIVE_INFINITY || Double.isNaN(score)) {
+                    if (succeeded[k]) {
+                        Logger.getLogger("error").severe("State " + (currentState + k) +
+                                ": A likelihood returned with a numerical error.");
+                    }
+                    score = Double.NEGATIVE_INFINITY;
+                }
+
+                if (usingFullEvaluation && succeeded[k]) {
+                    // the test that the state was correctly evaluated, as in runChain
+                    chain.likelihood.makeDirty();
+                    final double testScore = chain.evaluate();
+                    if (Math.abs(testScore - score) > evaluationTestThreshold) {
+                        Logger.getLogger("error").severe(
+                                "State " + currentState + ": State was not correctly calculated after an operator move.\n"
+                                        + "Likelihood evaluation: " + score
+                                        + "\nFull Likelihood evaluation: " + testScore
+                                        + "\n" + "Operator: " + mcmcOperator
+                                        + " " + mcmcOperator.getOperatorName() + "\n\n");
+                        fullEvaluationError = true;
+                    }
+                }
+
+                logr[0] = -Double.MAX_VALUE;
+                boolean accept = false;
+                if (succeeded[k]) {
+                    accept = mcmcOperator instanceof GibbsOperator ||
+                            acceptor.accept(currentScore, score, hastingsRatios[k], logr);
+                }
+
+                if (accept) {
+                    mcmcOperator.accept(score - currentScore);
+                    chain.getModel().acceptModelState();
+                    accepted = k;
+                } else {
+                    mcmcOperator.reject();
+                    chain.getModel().restoreModelState();
+
+                    if (usingFullEvaluation) {
+                        // the test that the state was correctly restored, as in runChain
+                        chain.likelihood.makeDirty();
+                        final double testScore = chain.evaluate();
+                        if (Math.abs(testScore - currentScore) > evaluationTestThreshold) {
+                            Logger.getLogger("error").severe(
+                                    "State " + currentState + ": State was not correctly restored after reject step.\n"
+                                            + "Likelihood before: " + currentScore
+                                            + " Likelihood after: " + testScore
+                                            + "\n" + "Operator: " + mcmcOperator
+                                            + " " + mcmcOperator.getOperatorName() + "\n\n");
+                            fullEvaluationError = true;
+                        }
+                    }
+                }
+
+                if (!disableCoerce && mcmcOperator instanceof CoercableMCMCOperator) {
+                    coerceAcceptanceProbability((CoercableMCMCOperator) mcmcOperator, logr[0]);
+                }
+
+                // this chain's operators show the counts and tuning of the replicas' ones
+                copyOperatorCounts(mcmcOperator, schedule.getOperator(ops[k]));
+                copyOperatorTuning(mcmcOperator, schedule.getOperator(ops[k]));
+            }
+
+            // the states of the rejected proposals before the accepted one (or of all of them),
+            // which this chain is still in as any proposal it made was the first one
+            final int stepCount = (accepted >= 0 ? accepted + 1 : proposalCount);
+            for (int k = 1; k < stepCount; k++) {
+                fireEndCurrentIteration(currentState);
+                currentState += 1;
+                fireCurrentModel(currentState, currentModel);
+            }
+
+            if (accepted >= 0) {
+                replicas.synchronize(homes[accepted]);
+                currentScore = scores[accepted];
+
+                if (currentScore > bestScore) {
+                    bestScore = currentScore;
+                    fireBestModel(currentState, currentModel);
+                }
+            }
+
+            if (usingFullEvaluation) {
+                if (schedule.getMinimumAcceptAndRejectCount() >= minOperatorCountForFullEvaluation &&
+                        currentState >= fullEvaluationCount) {
+                    usingFullEvaluation = false;
+                    if (fullEvaluationError) {
+                        throw new RuntimeException(
+                                "One or more evaluation errors occurred during the test phase of this\n" +
+                                        "run. These errors imply critical errors which may produce incorrect\n" +
+                                        "results.");
+                    }
+                }
+            }
+
+            fireEndCurrentIteration(currentState);
+
+            currentState += 1;
+        }
+
+        return currentState;
+    }
+
+    /**
+     * Each operator always makes its proposals on the same replica so any state it adapts as the
+     * chain runs is kept in one place. This means an operator makes at most one of the proposals
+     * at each step.
+     *
+     * @return the index of the replica that makes the proposals of this operator
+     */
+    private int getHomeChainIndex(int operatorIndex) {
+        return operatorIndex % replicas.getChainCount();
+    }
+
+    private MCMCOperator getHomeOperator(int operatorIndex) {
+        return replicas.getChain(getHomeChainIndex(operatorIndex)).schedule.getOperator(operatorIndex);
+    }
+
+    /**
+     * @return the histograms for the proposal times of each operator (operators with the same
+     * name share one)
+     */
+    private ChainMetrics.Histogram[] getOperatorHistograms() {
+        ChainMetrics.Histogram[] histograms = new ChainMetrics.Histogram[schedule.getOperatorCount()];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = ChainMetrics.getHistogram("operate." + schedule.getOperator(i).getOperatorName());
+        }
+        return histograms;
+    }
+
+    private static void copyOperatorCounts(MCMCOperator source, MCMCOperator destination) {
+        if (source != destination) {
+            destination.setAcceptCount(source.getAcceptCount());
+            destination.setRejectCount(source.getRejectCount());
+        }
+    }
+
+    private static void copyOperatorTuning(MCMCOperator source, MCMCOperator destination) {
+        if (source != destination && source instanceof CoercableMCMCOperator) {
+            ((CoercableMCMCOperator) destination).setCoercableParameter(
+                    ((CoercableMCMCOperator) source).getCoercableParameter());
+        }
+    }
+
     public void terminateChain() {
         fireFinished(currentLength);
 
-        // Profiler.report();
+        if (Profiler.isReportEnabled()) {
+            Profiler.report();
+        }
     }
 
     public Likelihood getLikelihood() {
@@ -505,6 +951,15 @@ public final class MarkovChain implements Serializable {
         return evaluate(likelihood);
     }
 
+    private double evaluateSurrogate(long state) {
+        double score = evaluate(surrogateLikelihood);
+        if (score == Double.NEGATIVE_INFINITY || score == Double.POSITIVE_INFINITY || Double.isNaN(score)) {
+            throw new IllegalArgumentException("The surrogate likelihood, " + surrogateLikelihood.getId() +
+                    ", is not finite at state " + state + " where the full likelihood is " + currentScore);
+        }
+        return score;
+    }
+
     protected double evaluate(Likelihood likelihood) {
 
         double logPosterior = 0.0;
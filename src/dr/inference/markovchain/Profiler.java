@@ -28,6 +28,9 @@ package dr.inference.markovchain;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Andrew Rambaut
@@ -36,9 +39,16 @@ import java.util.Map;
  */
 public class Profiler {
 
+    /**
+     * The system property that turns on the report at the end of the chain.
+     */
+    public static final String REPORT_PROPERTY = "mcmc.profile";
+
     private static boolean profilerAvailable = true;
 
     private static Map<String, Profile> profiles = new HashMap<String, Profile>();
+    private static final Map<String, String> schedules = new TreeMap<String, String>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
     //private static String currentProfile = null;
     private static long startTime;
 
@@ -72,7 +82,59 @@ public class Profiler {
         return true;
     }
 
+    /**
+     * Record how the work of a component (e.g., a compound likelihood) is currently divided between
+     * threads. This is reported whether or not the native profiler is available.
+     */
+    public static void setSchedule(String name, String schedule) {
+        synchronized (schedules) {
+            schedules.put(name, schedule);
+        }
+    }
+
+    public static String getSchedule(String name) {
+        synchronized (schedules) {
+            return schedules.get(name);
+        }
+    }
+
+    /**
+     * Add to a named event counter (e.g., the hits and misses of a cache). Like the schedules
+     * these are reported whether or not the native profiler is available.
+     */
+    public static void count(String name, long increment) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(increment);
+    }
+
+    public static long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return (counter != null ? counter.get() : 0);
+    }
+
+    /**
+     * @return true if the report has been asked for with the REPORT_PROPERTY system property
+     */
+    public static boolean isReportEnabled() {
+        return Boolean.getBoolean(REPORT_PROPERTY);
+    }
+
     public static void report() {
+        synchronized (schedules) {
+            for (String name : schedules.keySet()) {
+                System.err.println("SCHEDULE: " + name + " [" + schedules.get(name) + "]");
+            }
+        }
+        for (String name : new TreeMap<String, AtomicLong>(counters).keySet()) {
+            System.err.println("COUNT: " + name + " [" + counters.get(name).get() + "]");
+        }
         if (profilerAvailable) {
             Iterator<String> iter = profiles.keySet().iterator();
             while (iter.hasNext()) {
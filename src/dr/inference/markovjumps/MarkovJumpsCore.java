@@ -126,6 +126,51 @@ public class MarkovJumpsCore {
         }
     }
 
+    /**
+     * Computes only the given entries (from * stateCount + to) of the conditional expectations.
+     * Each entry takes time in proportion to stateCount^2 rather than the stateCount^3 of the
+     * whole matrix so this is quicker when only a few entries are needed. The transition
+     * probabilities are read from the given offset and only the given entries of countMatrix are set.
+     */
+    public void computeCondStatMarkovJumpsPrecompute(double[] evec,
+                                                     double[] ievc,
+                                                     double[] eval,
+                                                     double[] ievcRateRegEvc,
+                                                     double   time,
+                                                     double[] transitionProbs,
+                                                     int      probabilityOffset,
+                                                     int[]    entries,
+                                                     int      entryCount,
+                                                     double[] countMatrix) {
+        // Equation (37) from Minin and Suchard
+        populateAuxInt(eval,time,auxInt);
+
+        // Take int.matrix*(rate.eigen$invvectors%*%rate.reg%*%rate.eigen$vectors)
+        for (int i = 0; i < stateCount2; i++) {
+            tmp2[i] = auxInt[i] * ievcRateRegEvc[i];
+        }
+
+        for (int e = 0; e < entryCount; e++) {
+            final int entry = entries[e];
+            final int from = entry / stateCount;
+            final int to = entry % stateCount;
+
+            // Take row from of rate.eigen$vectors%*%tmp2%*%rate.eigen$invvectors at column to
+            double value = 0;
+            for (int k = 0; k < stateCount; k++) {
+                final double evecFromK = evec[from * stateCount + k];
+                if (evecFromK != 0) {
+                    double sum = 0;
+                    for (int l = 0; l < stateCount; l++) {
+                        sum += tmp2[k * stateCount + l] * ievc[l * stateCount + to];
+                    }
+                    value += evecFromK * sum;
+                }
+            }
+            countMatrix[entry] = value / transitionProbs[probabilityOffset + entry];
+        }
+    }
+
 //joint.mean.markov.jumps = function(rate.eigen, regist.matrix, interval.len){
 //
 //  if (!("eigen" %in% class(rate.eigen)))
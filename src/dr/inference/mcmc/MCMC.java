@@ -30,6 +30,8 @@ import dr.inference.state.StateLoader;
 import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.Loggable;
 import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.ChainMetrics;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
 import dr.inference.model.Likelihood;
@@ -147,11 +149,15 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
         timer.start();
 
         if (loggers != null) {
-            for (Logger logger : loggers) {
-                logger.startLogging();
+            loggerTimes = new ChainMetrics.Histogram[loggers.length];
+            for (int i = 0; i < loggers.length; i++) {
+                loggers[i].startLogging();
+                loggerTimes[i] = ChainMetrics.getHistogram("log." + (i + 1) + "." + loggers[i].getClass().getSimpleName());
             }
         }
 
+        ChainMetrics.startRun();
+
         if (!stopping) {
 
             long loadedState = 0;
@@ -205,6 +211,8 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
 
         }
         timer.stop();
+
+        ChainMetrics.finishRun();
     }
 
     @Override
@@ -250,8 +258,15 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
             currentState = state;
 
             if (loggers != null) {
-                for (Logger logger : loggers) {
-                    logger.log(state);
+                for (int i = 0; i < loggers.length; i++) {
+                    // only the states at which a logger writes are timed
+                    final boolean isLogged = !(loggers[i] instanceof MCLogger) ||
+                            (((MCLogger) loggers[i]).getLogEvery() > 0 && state % ((MCLogger) loggers[i]).getLogEvery() == 0);
+                    final long time = (isLogged ? System.nanoTime() : 0);
+                    loggers[i].log(state);
+                    if (isLogged) {
+                        loggerTimes[i].record(System.nanoTime() - time);
+                    }
                 }
             }
         }
@@ -278,12 +293,20 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
             // OperatorAnalysisPrinter class can do the job now
             if (showOperatorAnalysis) {
                 OperatorAnalysisPrinter.showOperatorAnalysis(System.out, getOperatorSchedule(), options.useCoercion());
+                if (mc.getSurrogateLikelihood() != null) {
+                    OperatorAnalysisPrinter.showDelayedAcceptanceAnalysis(System.out, getOperatorSchedule(),
+                            mc.getScreenedCounts(), mc.getEarlyRejectionCounts());
+                }
             }
 
             if (operatorAnalysisFile != null) {
                 try {
                     PrintStream out = new PrintStream(new FileOutputStream(operatorAnalysisFile));
                     OperatorAnalysisPrinter.showOperatorAnalysis(out, getOperatorSchedule(), options.useCoercion());
+                    if (mc.getSurrogateLikelihood() != null) {
+                        OperatorAnalysisPrinter.showDelayedAcceptanceAnalysis(out, getOperatorSchedule(),
+                                mc.getScreenedCounts(), mc.getEarlyRejectionCounts());
+                    }
                     out.flush();
                     out.close();
                 } catch (IOException e) {
@@ -426,6 +449,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
     protected MCMCOptions options;
 
     protected Logger[] loggers;
+    private ChainMetrics.Histogram[] loggerTimes;
     protected OperatorSchedule schedule;
 
     private String id = null;
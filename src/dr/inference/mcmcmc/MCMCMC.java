@@ -44,10 +44,19 @@ import dr.util.NumberFormatter;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
  *
+ * The chains are run in segments of swapChainsEvery states on a fixed size pool of threads (so there
+ * can be more chains than processors) and a Phaser is used to wait for all of them to finish a segment.
+ * Swaps of adjacent temperatures are then proposed and, optionally, the gaps between the temperatures
+ * are tuned towards a target swap acceptance rate with an adaptation that diminishes over time.
+ *
  * @author Andrew Rambaut
  * @version $Id: ParallelMCMC.java,v 1.12 2005/01/10 10:56:59 rambaut Exp $
  */
@@ -55,6 +64,10 @@ public class MCMCMC implements Runnable {
 
     public final static boolean DEBUG = false;
 
+    // the gaps in the temperature ladder are adapted with a step size of 1 / (n + 1)^ADAPTATION_EXPONENT
+    private final static double ADAPTATION_EXPONENT = 0.6;
+    private final static double MINIMUM_TEMPERATURE_GAP = 1.0E-6;
+
     public MCMCMC(MCMC[] mcmcs, MCMCMCOptions mcmcmcOptions) {
 
         this.mcmcmcOptions = mcmcmcOptions;
@@ -98,6 +111,38 @@ public class MCMCMC implements Runnable {
             acceptor.setTemperature(mcmcmcOptions.getChainTemperatures()[i]);
         }
 
+        if (mcmcmcOptions.getThreadCount() > 0) {
+            threadCount = Math.min(mcmcmcOptions.getThreadCount(), chains.length);
+        } else {
+            threadCount = Math.min(Runtime.getRuntime().availableProcessors(), chains.length);
+        }
+
+        // rank the chains from cold to hot - swaps are only proposed between adjacent ranks
+        chainAtRank = new int[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            chainAtRank[i] = i;
+        }
+        double[] temperatures = mcmcmcOptions.getChainTemperatures();
+        for (int i = 1; i < chains.length; i++) {
+            for (int j = i; j > 1 && temperatures[chainAtRank[j]] > temperatures[chainAtRank[j - 1]]; j--) {
+                int tmp = chainAtRank[j];
+                chainAtRank[j] = chainAtRank[j - 1];
+                chainAtRank[j - 1] = tmp;
+            }
+        }
+
+        // the ladder is parameterized by the log of the differences between the reciprocals of
+        // successive temperatures (with 1 / (1 + delta * i) these are all log(delta)).
+        logTemperatureGaps = new double[Math.max(chains.length - 1, 0)];
+        for (int i = 0; i < logTemperatureGaps.length; i++) {
+            double gap = (1.0 / temperatures[chainAtRank[i + 1]]) - (1.0 / temperatures[chainAtRank[i]]);
+            logTemperatureGaps[i] = Math.log(Math.max(gap, MINIMUM_TEMPERATURE_GAP));
+        }
+
+        swapAttempts = new long[logTemperatureGaps.length];
+        swapAccepts = new long[logTemperatureGaps.length];
+        chainStates = new long[chains.length];
+        chainTimes = new long[chains.length];
     }
 
     public void run() {
@@ -139,63 +184,66 @@ public class MCMCMC implements Runnable {
 
         chains[coldChain].addMarkovChainListener(chainListener);
 
-        MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
-        for (int i = 0; i < chains.length; i++) {
-            threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false);
-            threads[i].start();
-        }
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MCMCMC chain");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
-        while (chains[coldChain].getCurrentLength() < getChainLength()) {
+        // the phaser has this thread as a party and one party per chain for each segment
+        Phaser phaser = new Phaser(1);
 
-            // wait for all the threads to complete their alloted chain length
-            boolean allDone;
-            do {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    //
-                }
+        try {
+            while (!stopRequested && chains[coldChain].getCurrentLength() < getChainLength()) {
+
+                long length = Math.min(mcmcmcOptions.getSwapChainsEvery(),
+                        getChainLength() - chains[coldChain].getCurrentLength());
 
-                allDone = true;
+                phaser.bulkRegister(chains.length);
                 for (int i = 0; i < chains.length; i++) {
-                    if (!threads[i].isChainDone()) {
-                        allDone = false;
-                    }
+                    pool.execute(new ChainSegment(i, length, phaser));
                 }
-            } while (!allDone);
 
-            if (chains[coldChain].getCurrentLength() < getChainLength()) {
-                int oldColdChain = coldChain;
+                // wait for all the chains to complete their alloted chain length
+                phaser.arriveAndAwaitAdvance();
 
-                // attempt to swap two chains' temperatures
-                coldChain = swapChainTemperatures();
+                if (segmentError != null) {
+                    throw new RuntimeException("A chain failed: " + segmentError.getMessage(), segmentError);
+                }
 
-                // if the cold chain was involved in a swap then we need to change the
-                // listener that does the logging and the destinations for the coldChainLoggers.
-                if (coldChain != oldColdChain) {
+                if (!stopRequested && chains[coldChain].getCurrentLength() < getChainLength()) {
+                    int oldColdChain = coldChain;
 
-                    chains[oldColdChain].removeMarkovChainListener(chainListener);
+                    // attempt to swap adjacent chains' temperatures
+                    coldChain = swapChainTemperatures();
 
-                    // Set the new cold chain's loggers with the formatters (destinations) of
-                    // the original cold chain
-                    for (int i = 0; i < mcLoggers[coldChain].length; i++) {
-                        mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
-                    }
+                    // if the cold chain was involved in a swap then we need to change the
+                    // listener that does the logging and the destinations for the coldChainLoggers.
+                    if (coldChain != oldColdChain) {
 
-                    // Set the old cold chain to have null log formatters...
-                    for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
-                        mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
-                    }
+                        chains[oldColdChain].removeMarkovChainListener(chainListener);
 
-                    chains[coldChain].addMarkovChainListener(chainListener);
+                        // Set the new cold chain's loggers with the formatters (destinations) of
+                        // the original cold chain
+                        for (int i = 0; i < mcLoggers[coldChain].length; i++) {
+                            mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
+                        }
 
-                }
+                        // Set the old cold chain to have null log formatters...
+                        for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
+                            mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
+                        }
 
-                for (int i = 0; i < chains.length; i++) {
-                    threads[i].continueChain();
+                        chains[coldChain].addMarkovChainListener(chainListener);
+
+                    }
                 }
-            }
 
+            }
+        } finally {
+            pool.shutdown();
         }
 
         finish();
@@ -242,66 +290,129 @@ public class MCMCMC implements Runnable {
             System.out.println();
         }
 
-        int newColdChain = coldChain;
+        for (int k = 0; k < mcmcmcOptions.getSwapCount() && chains.length > 1; k++) {
 
-        int index1 = MathUtils.nextInt(chains.length);
-        int index2 = MathUtils.nextInt(chains.length);
-        while (index1 == index2) {
-            index2 = MathUtils.nextInt(chains.length);
-        }
+            // pick a pair of adjacent temperatures
+            int rank = MathUtils.nextInt(chains.length - 1);
+            int index1 = chainAtRank[rank];
+            int index2 = chainAtRank[rank + 1];
 
-        double score1 = chains[index1].getCurrentScore();
-        MCMCCriterion acceptor1 = ((MCMCCriterion) chains[index1].getAcceptor());
-        double temperature1 = acceptor1.getTemperature();
-        double score2 = chains[index2].getCurrentScore();
-        MCMCCriterion acceptor2 = ((MCMCCriterion) chains[index2].getAcceptor());
-        double temperature2 = acceptor2.getTemperature();
+            double score1 = chains[index1].getCurrentScore();
+            MCMCCriterion acceptor1 = ((MCMCCriterion) chains[index1].getAcceptor());
+            double temperature1 = acceptor1.getTemperature();
+            double score2 = chains[index2].getCurrentScore();
+            MCMCCriterion acceptor2 = ((MCMCCriterion) chains[index2].getAcceptor());
+            double temperature2 = acceptor2.getTemperature();
 
-        double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
-        boolean swap = (Math.log(MathUtils.nextDouble()) < logRatio);
+            double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
+            boolean swap = (Math.log(MathUtils.nextDouble()) < logRatio);
 
-        if (swap) {
-            if(DEBUG){
-                System.out.println("Swapping chain "+index1+" and chain "+index2);
-            }
+            swapAttempts[rank]++;
 
-            acceptor1.setTemperature(temperature2);
-            acceptor2.setTemperature(temperature1);
-
-            OperatorSchedule schedule1 = schedules[index1];
-            OperatorSchedule schedule2 = schedules[index2];
+            if (swap) {
+                if (DEBUG) {
+                    System.out.println("Swapping chain " + index1 + " and chain " + index2);
+                }
 
-            for (int i = 0; i < schedule1.getOperatorCount(); i++) {
-                MCMCOperator operator1 = schedule1.getOperator(i);
-                MCMCOperator operator2 = schedule2.getOperator(i);
+                acceptor1.setTemperature(temperature2);
+                acceptor2.setTemperature(temperature1);
 
-                long tmp = operator1.getAcceptCount();
-                operator1.setAcceptCount(operator2.getAcceptCount());
-                operator2.setAcceptCount(tmp);
+                swapOperatorTuning(schedules[index1], schedules[index2]);
 
-                tmp = operator1.getRejectCount();
-                operator1.setRejectCount(operator2.getRejectCount());
-                operator2.setRejectCount(tmp);
+                chainAtRank[rank] = index2;
+                chainAtRank[rank + 1] = index1;
 
-                double tmp2 = operator1.getSumDeviation();
-                operator1.setSumDeviation(operator2.getSumDeviation());
-                operator2.setSumDeviation(tmp2);
+                swapAccepts[rank]++;
+            }
 
-                if (operator1 instanceof CoercableMCMCOperator) {
-                    tmp2 = ((CoercableMCMCOperator) operator1).getCoercableParameter();
-                    ((CoercableMCMCOperator) operator1).setCoercableParameter(((CoercableMCMCOperator) operator2).getCoercableParameter());
-                    ((CoercableMCMCOperator) operator2).setCoercableParameter(tmp2);
-                }
+            if (mcmcmcOptions.isAdaptingTemperatures()) {
+                adaptTemperatures(rank, Math.min(1.0, Math.exp(logRatio)));
             }
+        }
 
-            if (index1 == coldChain) {
-                newColdChain = index2;
-            } else if (index2 == coldChain) {
-                newColdChain = index1;
+        // the cold chain is always at the top of the ladder
+        return chainAtRank[0];
+    }
+
+    /**
+     * Swap the acceptance counts and tuning of the operators of two chains along with their temperatures.
+     */
+    private void swapOperatorTuning(OperatorSchedule schedule1, OperatorSchedule schedule2) {
+        for (int i = 0; i < schedule1.getOperatorCount(); i++) {
+            MCMCOperator operator1 = schedule1.getOperator(i);
+            MCMCOperator operator2 = schedule2.getOperator(i);
+
+            long tmp = operator1.getAcceptCount();
+            operator1.setAcceptCount(operator2.getAcceptCount());
+            operator2.setAcceptCount(tmp);
+
+            tmp = operator1.getRejectCount();
+            operator1.setRejectCount(operator2.getRejectCount());
+            operator2.setRejectCount(tmp);
+
+            double tmp2 = operator1.getSumDeviation();
+            operator1.setSumDeviation(operator2.getSumDeviation());
+            operator2.setSumDeviation(tmp2);
+
+            if (operator1 instanceof CoercableMCMCOperator) {
+                tmp2 = ((CoercableMCMCOperator) operator1).getCoercableParameter();
+                ((CoercableMCMCOperator) operator1).setCoercableParameter(((CoercableMCMCOperator) operator2).getCoercableParameter());
+                ((CoercableMCMCOperator) operator2).setCoercableParameter(tmp2);
             }
         }
+    }
+
+    /**
+     * Move the gap between the temperatures at rank and rank + 1 so that the probability of accepting
+     * a swap between them approaches the target (a higher acceptance widens the gap). The step size
+     * decreases with the number of adaptations so the temperatures settle down.
+     *
+     * @param rank       the rank of the colder of the two temperatures
+     * @param acceptance the acceptance probability of the last swap proposed between them
+     */
+    private void adaptTemperatures(int rank, double acceptance) {
+        double stepSize = 1.0 / Math.pow(swapAttempts[rank] + 1, ADAPTATION_EXPONENT);
+        logTemperatureGaps[rank] += stepSize * (acceptance - mcmcmcOptions.getTargetSwapAcceptance());
+
+        // the cold chain stays at 1.0
+        double reciprocal = 1.0;
+        for (int i = 1; i < chains.length; i++) {
+            reciprocal += Math.exp(logTemperatureGaps[i - 1]);
+            ((MCMCCriterion) chains[chainAtRank[i]].getAcceptor()).setTemperature(1.0 / reciprocal);
+        }
+    }
+
+    /**
+     * @return the current temperatures from coldest to hottest.
+     */
+    public double[] getTemperatureLadder() {
+        double[] temperatures = new double[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            temperatures[i] = ((MCMCCriterion) chains[chainAtRank[i]].getAcceptor()).getTemperature();
+        }
+        return temperatures;
+    }
+
+    /**
+     * @return the proportion of proposed swaps accepted between each pair of adjacent temperatures
+     */
+    public double[] getSwapAcceptanceRates() {
+        double[] rates = new double[swapAttempts.length];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = (swapAttempts[i] > 0 ? (double) swapAccepts[i] / swapAttempts[i] : 0.0);
+        }
+        return rates;
+    }
 
-        return newColdChain;
+    /**
+     * @return the number of states per second each chain has run at while it had a thread
+     */
+    public double[] getChainThroughputs() {
+        double[] throughputs = new double[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            throughputs[i] = (chainTimes[i] > 0 ? chainStates[i] / (chainTimes[i] / 1.0E9) : 0.0);
+        }
+        return throughputs;
     }
 
     private void resetChains() {
@@ -373,6 +484,85 @@ public class MCMCMC implements Runnable {
             }
             System.out.println();
         }
+
+        reportChainPerformance(formatter);
+    }
+
+    private void reportChainPerformance(NumberFormatter formatter) {
+        System.out.println("Chain performance (" + chains.length + " chains on " + threadCount + " threads)");
+        System.out.println(
+                formatter.formatToFieldWidth("Chain", 8) +
+                        formatter.formatToFieldWidth("Temperature", 14) +
+                        formatter.formatToFieldWidth("States", 12) +
+                        formatter.formatToFieldWidth("Time", 12) +
+                        formatter.formatToFieldWidth("States/sec", 12));
+        double[] throughputs = getChainThroughputs();
+        long totalTime = 0;
+        for (int i = 0; i < chains.length; i++) {
+            totalTime += chainTimes[i];
+            System.out.println(
+                    formatter.formatToFieldWidth(Integer.toString(i) + (i == coldChain ? "*" : ""), 8) +
+                            formatter.formatToFieldWidth(formatter.formatDecimal(((MCMCCriterion) chains[i].getAcceptor()).getTemperature(), 4), 14) +
+                            formatter.formatToFieldWidth(Long.toString(chainStates[i]), 12) +
+                            formatter.formatToFieldWidth(formatter.formatDecimal(chainTimes[i] / 1.0E9, 2), 12) +
+                            formatter.formatToFieldWidth(formatter.formatDecimal(throughputs[i], 1), 12));
+        }
+        // the proportion of the time the threads were running a chain (rather than waiting for
+        // the slowest chain to finish a segment)
+        double busy = (totalTime / 1.0E9) / (timer.toSeconds() * threadCount);
+        System.out.println("Threads busy for " + formatter.formatDecimal(busy * 100.0, 1) + "% of the time");
+        System.out.println();
+
+        System.out.println("Swap analysis" + (mcmcmcOptions.isAdaptingTemperatures() ?
+                " (temperatures tuned towards a swap acceptance of " + mcmcmcOptions.getTargetSwapAcceptance() + ")" : ""));
+        System.out.println(
+                formatter.formatToFieldWidth("Temperatures", 24) +
+                        formatter.formatToFieldWidth("Attempts", 12) +
+                        formatter.formatToFieldWidth("Accepted", 12) +
+                        formatter.formatToFieldWidth("Pr(accept)", 11));
+        double[] temperatures = getTemperatureLadder();
+        double[] rates = getSwapAcceptanceRates();
+        for (int i = 0; i < rates.length; i++) {
+            System.out.println(
+                    formatter.formatToFieldWidth(formatter.formatDecimal(temperatures[i], 4) + " <-> " +
+                            formatter.formatDecimal(temperatures[i + 1], 4), 24) +
+                            formatter.formatToFieldWidth(Long.toString(swapAttempts[i]), 12) +
+                            formatter.formatToFieldWidth(Long.toString(swapAccepts[i]), 12) +
+                            formatter.formatToFieldWidth(formatter.formatDecimal(rates[i], 4), 11));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Runs a chain for a segment and then arrives at the phaser.
+     */
+    private class ChainSegment implements Runnable {
+
+        ChainSegment(int index, long length, Phaser phaser) {
+            this.index = index;
+            this.length = length;
+            this.phaser = phaser;
+        }
+
+        public void run() {
+            try {
+                long startState = chains[index].getCurrentLength();
+                long startTime = System.nanoTime();
+
+                chains[index].runChain(length, false);
+
+                chainTimes[index] += System.nanoTime() - startTime;
+                chainStates[index] += chains[index].getCurrentLength() - startState;
+            } catch (Throwable t) {
+                segmentError = t;
+            } finally {
+                phaser.arriveAndDeregister();
+            }
+        }
+
+        private final int index;
+        private final long length;
+        private final Phaser phaser;
     }
 
     private final MarkovChainListener chainListener = new MarkovChainListener() {
@@ -472,6 +662,7 @@ public class MCMCMC implements Runnable {
      * Requests that the MCMC chain stop prematurely.
      */
     public void pleaseStop() {
+        stopRequested = true;
         for (MarkovChain chain : chains) {
             chain.pleaseStop();
         }
@@ -494,5 +685,16 @@ public class MCMCMC implements Runnable {
     private final MCLogger[][] mcLoggers;
     private final OperatorSchedule[] schedules;
     private int coldChain;
+
+    private final int threadCount;
+    private final int[] chainAtRank;
+    private final double[] logTemperatureGaps;
+    private final long[] swapAttempts;
+    private final long[] swapAccepts;
+    private final long[] chainStates;
+    private final long[] chainTimes;
+
+    private volatile boolean stopRequested = false;
+    private volatile Throwable segmentError = null;
 }
 
@@ -39,8 +39,24 @@ package dr.inference.mcmcmc;
 public class MCMCMCOptions {
 
     public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery) {
+        this(temperatures, swapChainsEvery, 1, 0, 0.0);
+    }
+
+    /**
+     * @param temperatures         the initial temperature of each chain (the first should be 1.0)
+     * @param swapChainsEvery      the number of states between rounds of swap proposals
+     * @param swapCount            the number of swaps of adjacent temperatures proposed in each round
+     * @param threadCount          the number of threads to run the chains on (0 for one per processor)
+     * @param targetSwapAcceptance the swap acceptance rate to tune the temperatures towards (0 to keep
+     *                             the temperatures fixed)
+     */
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery, final int swapCount,
+                         final int threadCount, final double targetSwapAcceptance) {
         this.temperatures = temperatures;
         this.swapChainsEvery = swapChainsEvery;
+        this.swapCount = swapCount;
+        this.threadCount = threadCount;
+        this.targetSwapAcceptance = targetSwapAcceptance;
     }
 
 
@@ -52,6 +68,25 @@ public class MCMCMCOptions {
         return swapChainsEvery;
     }
 
+    public int getSwapCount() {
+        return swapCount;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public double getTargetSwapAcceptance() {
+        return targetSwapAcceptance;
+    }
+
+    public boolean isAdaptingTemperatures() {
+        return targetSwapAcceptance > 0.0;
+    }
+
     private final double[] temperatures;
     private final int swapChainsEvery;
+    private final int swapCount;
+    private final int threadCount;
+    private final double targetSwapAcceptance;
 }
@@ -25,6 +25,8 @@
 
 package dr.inference.model;
 
+import dr.inference.markovchain.ChainMetrics;
+import dr.inference.markovchain.Profiler;
 import dr.util.Keywordable;
 import dr.util.NumberFormatter;
 import dr.xml.Reportable;
@@ -35,6 +37,12 @@ import java.util.concurrent.*;
 /**
  * A likelihood function which is simply the product of a set of likelihood functions.
  *
+ * If threads are requested the component likelihoods are scheduled according to their cost which is
+ * measured as the chain runs. Likelihoods that need recalculating and which take longer than
+ * DISPATCH_THRESHOLD are forked as tasks of a work-stealing ForkJoinPool, the remaining ones are
+ * evaluated inline by the thread that does the most expensive one. If fewer than two expensive
+ * likelihoods need recalculating then everything is evaluated in the calling thread.
+ *
  * @author Alexei Drummond
  * @author Andrew Rambaut
  * @version $Id: CompoundLikelihood.java,v 1.19 2005/05/25 09:14:36 rambaut Exp $
@@ -44,6 +52,16 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
     public final static boolean UNROLL_COMPOUND = true;
 
     public final static boolean EVALUATION_TIMERS = true;
+
+    /**
+     * the expected evaluation time (in nanoseconds) above which a likelihood is worth
+     * dispatching to another thread.
+     */
+    public final static long DISPATCH_THRESHOLD = 100000;
+
+    // the weight given to each new evaluation time in the running average of the cost
+    private final static double COST_SMOOTHING = 0.1;
+
     public final long[] evaluationTimes;
     public final int[] evaluationCounts;
 
@@ -57,8 +75,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
 
         if (threads < 0 && this.likelihoods.size() > 1) {
             // asking for an automatic threadpool size and there is more than one likelihood to compute
-            threadCount = this.likelihoods.size();  // create a threadpool the size of the number of likelihoods
-//            threadCount = -1; // use cached thread pool
+            // so use a pool with a thread per processor (shared by all the compound likelihoods)
+            threadCount = Math.min(this.likelihoods.size(), Runtime.getRuntime().availableProcessors());
         } else if (threads > 0) {
             threadCount = threads; // use a thread pool of a specified size
         } else {
@@ -66,11 +84,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
             threadCount = 0;
         }
 
-        if (threadCount > 0) {
-            pool = Executors.newFixedThreadPool(threadCount);
-        } else if (threadCount < 0) {
-            // create a cached thread pool which should create one thread per likelihood...
-            pool = Executors.newCachedThreadPool();
+        if (threadCount > 1 && likelihoodCallers.size() > 1) {
+            pool = getPool(threadCount);
         } else {
             // don't use a threadpool (i.e., compute serially)
             pool = null;
@@ -83,6 +98,13 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
             evaluationTimes = null;
             evaluationCounts = null;
         }
+
+        costs = new double[this.likelihoods.size()];
+        dispatchCounts = new int[this.likelihoods.size()];
+        expensive = new boolean[this.likelihoods.size()];
+        logLikelihoods = new double[this.likelihoods.size()];
+        isDispatched = new boolean[this.likelihoods.size()];
+        dispatched = new LikelihoodCaller[this.likelihoods.size()];
     }
 
     public CompoundLikelihood(Collection<Likelihood> likelihoods) {
@@ -103,6 +125,13 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
             evaluationTimes = null;
             evaluationCounts = null;
         }
+
+        costs = null;
+        dispatchCounts = null;
+        expensive = null;
+        logLikelihoods = null;
+        isDispatched = null;
+        dispatched = null;
     }
 
 //    public CompoundLikelihood(BeagleBranchLikelihoods bbl) {
@@ -127,6 +156,10 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
         	
             if (!likelihoods.contains(likelihood)) {
 
+                // the timers are indexed by the position in the list of likelihoods rather than by
+                // the index passed in (which unrolled likelihoods share with their compound)
+                LikelihoodCaller caller = new LikelihoodCaller(likelihood, likelihoods.size());
+
                 likelihoods.add(likelihood);
                 if (likelihood.getModel() != null) {
                     compoundModel.addModel(likelihood.getModel());
@@ -134,15 +167,15 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
 
                 if (likelihood.evaluateEarly()) {
                 	
-                    earlyLikelihoods.add(likelihood);
+                    earlyLikelihoods.add(caller);
                     
                 } else {
                 	
                     // late likelihood list is used to evaluate them if the thread pool is not being used...
-                    lateLikelihoods.add(likelihood);
+                    lateLikelihoods.add(caller);
 
                     if (addToPool) {
-                        likelihoodCallers.add(new LikelihoodCaller(likelihood, index));
+                        likelihoodCallers.add(caller);
                     }
                 }
 
@@ -176,7 +209,7 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
     }
 
     public List<Callable<Double>> getLikelihoodCallers() {
-        return likelihoodCallers;
+        return new ArrayList<Callable<Double>>(likelihoodCallers);
     }
 
     // **************************************************************
@@ -198,23 +231,16 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
             return Double.NEGATIVE_INFINITY;
         }
 
-        if (pool == null) {
+        if (pool == null || !scheduleLikelihoods()) {
             // Single threaded
             logLikelihood += evaluateLikelihoods(lateLikelihoods);
         } else {
 
-            try {
-                List<Future<Double>> results = pool.invokeAll(likelihoodCallers);
+            pool.invoke(new ScheduledEvaluation());
 
-                for (Future<Double> result : results) {
-                    double logL = result.get();
-                    logLikelihood += logL;
-                }
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
+            // add them up in a fixed order so the result doesn't depend on the schedule
+            for (LikelihoodCaller caller : likelihoodCallers) {
+                logLikelihood += logLikelihoods[caller.index];
             }
         }
 
@@ -230,25 +256,19 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
         return logLikelihood;
     }
 
-    private double evaluateLikelihoods(ArrayList<Likelihood> likelihoods) {
+    private double evaluateLikelihoods(ArrayList<LikelihoodCaller> callers) {
         double logLikelihood = 0.0;
-        int i = 0;
-        for (Likelihood likelihood : likelihoods) {
+        for (LikelihoodCaller caller : callers) {
             if (EVALUATION_TIMERS) {
                 // this code is only compiled if EVALUATION_TIMERS is true
-                long time = System.nanoTime();
-                double l = likelihood.getLogLikelihood();
-                evaluationTimes[i] += System.nanoTime() - time;
-                evaluationCounts[i] ++;
+                double l = caller.call();
 
                 if( l == Double.NEGATIVE_INFINITY )
                     return Double.NEGATIVE_INFINITY;
 
                 logLikelihood += l;
-
-                i++;
             } else {
-                final double l = likelihood.getLogLikelihood();
+                final double l = caller.likelihood.getLogLikelihood();
                 // if the likelihood is zero then short cut the rest of the likelihoods
                 // This means that expensive likelihoods such as TreeLikelihoods should
                 // be put after cheap ones such as BooleanLikelihoods
@@ -261,6 +281,75 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
         return logLikelihood;
     }
 
+    /**
+     * Decide which of the likelihoods to dispatch to other threads in this evaluation: the ones that
+     * need recalculating and are expected to take longer than DISPATCH_THRESHOLD. The most expensive
+     * of these is put first as it is done by the thread that evaluates the cheap ones.
+     *
+     * @return true if there is more than one likelihood worth dispatching
+     */
+    private boolean scheduleLikelihoods() {
+        dispatchedCount = 0;
+        for (LikelihoodCaller caller : likelihoodCallers) {
+            isDispatched[caller.index] = expensive[caller.index] && !caller.isLikelihoodKnown();
+            if (isDispatched[caller.index]) {
+                dispatched[dispatchedCount] = caller;
+                if (costs[caller.index] > costs[dispatched[0].index]) {
+                    dispatched[dispatchedCount] = dispatched[0];
+                    dispatched[0] = caller;
+                }
+                dispatchedCount ++;
+            }
+        }
+        return dispatchedCount > 1;
+    }
+
+    /**
+     * Update the running average of the cost of evaluating a likelihood. Likelihoods that can say whether
+     * they need recalculating are only timed when they do, so the cost is that of a full evaluation.
+     */
+    private void updateCost(LikelihoodCaller caller, long time, boolean known) {
+        if (pool == null || (known && caller.isThreadAware)) {
+            return;
+        }
+        int index = caller.index;
+        if (costs[index] == 0.0) {
+            costs[index] = time;
+        } else {
+            costs[index] += COST_SMOOTHING * (time - costs[index]);
+        }
+        boolean isExpensive = costs[index] > DISPATCH_THRESHOLD;
+        if (isExpensive != expensive[index]) {
+            expensive[index] = isExpensive;
+            // the partition has changed so let the profiler know
+            Profiler.setSchedule(getScheduleName(), getSchedule());
+        }
+    }
+
+    /**
+     * @return a description of how the likelihoods are currently scheduled
+     */
+    public String getSchedule() {
+        if (pool == null) {
+            return "serial";
+        }
+        StringBuilder dispatch = new StringBuilder();
+        StringBuilder inline = new StringBuilder();
+        for (LikelihoodCaller caller : likelihoodCallers) {
+            StringBuilder sb = (expensive[caller.index] ? dispatch : inline);
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(caller.likelihood.prettyName());
+        }
+        return "dispatched when dirty: [" + dispatch + "], inline: [" + inline + "] using " +
+                threadCount + " threads";
+    }
+
+    private String getScheduleName() {
+        return (getId() != null ? getId() : "compoundLikelihood");
+    }
+
     public void makeDirty() {
         for( Likelihood likelihood : likelihoods ) {
             likelihood.makeDirty();
@@ -373,6 +462,22 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
     	}
     }
 
+    /**
+     * @return the running average of the time (in nanoseconds) taken to evaluate each likelihood
+     * (or null if the likelihoods are not scheduled)
+     */
+    public double[] getEvaluationCosts() {
+        return costs;
+    }
+
+    /**
+     * @return the number of times each likelihood has been dispatched to another thread
+     * (or null if the likelihoods are not scheduled)
+     */
+    public int[] getDispatchCounts() {
+        return dispatchCounts;
+    }
+
 
     // **************************************************************
     // Loggable IMPLEMENTATION
@@ -473,10 +578,22 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
                     message += evaluationCounts[index] + " evaluations in " +
                             nf.format(secs) + " secs (" +
                             nf.format(secs / evaluationCounts[index]) + " secs/eval)";
+                    if (pool != null) {
+                        message += ", " + nf.format(costs[index] / 1.0E9) + " secs/full eval, " +
+                                (expensive[index] ? "dispatched " + dispatchCounts[index] + " times" : "inline");
+                    }
                 }
                 index++;
             }
 
+            if (pool != null) {
+                message += "\n";
+                for (int i = 0; i < indent; i++) {
+                    message += " ";
+                }
+                message += "Schedule: " + getSchedule();
+            }
+
             return message;
         } else {
             return "No evaluation timer report available";
@@ -503,32 +620,108 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
 
     private final int threadCount;
 
-    private final ExecutorService pool;
+    private final ForkJoinPool pool;
 
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
 
-    private final ArrayList<Likelihood> earlyLikelihoods = new ArrayList<Likelihood>();
-    private final ArrayList<Likelihood> lateLikelihoods = new ArrayList<Likelihood>();
+    private final ArrayList<LikelihoodCaller> earlyLikelihoods = new ArrayList<LikelihoodCaller>();
+    private final ArrayList<LikelihoodCaller> lateLikelihoods = new ArrayList<LikelihoodCaller>();
+
+    private final List<LikelihoodCaller> likelihoodCallers = new ArrayList<LikelihoodCaller>();
+
+    // the state of the scheduler (all indexed by the position in the list of likelihoods)
+    private final double[] costs;
+    private final int[] dispatchCounts;
+    private final boolean[] expensive;
+    private final double[] logLikelihoods;
+    private final boolean[] isDispatched;
+    private final LikelihoodCaller[] dispatched;
+    private int dispatchedCount;
+
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+    /**
+     * @return a pool with the given parallelism which is shared by all the compound likelihoods
+     * that ask for the same number of threads.
+     */
+    private static synchronized ForkJoinPool getPool(int threadCount) {
+        ForkJoinPool pool = pools.get(threadCount);
+        if (pool == null) {
+            // the worker threads of a ForkJoinPool are daemon threads
+            pool = new ForkJoinPool(threadCount);
+            pools.put(threadCount, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Forks the expensive likelihoods picked by scheduleLikelihoods() except the most expensive which it
+     * evaluates itself along with all the cheap ones. Idle threads in the pool steal the forked tasks.
+     */
+    private class ScheduledEvaluation extends RecursiveAction {
+
+        protected void compute() {
+            ForkJoinTask[] tasks = new ForkJoinTask[dispatchedCount - 1];
+            for (int i = 1; i < dispatchedCount; i++) {
+                final LikelihoodCaller caller = dispatched[i];
+                tasks[i - 1] = new RecursiveAction() {
+                    protected void compute() {
+                        logLikelihoods[caller.index] = caller.call();
+                    }
+                }.fork();
+                dispatchCounts[caller.index] ++;
+            }
 
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
+            LikelihoodCaller first = dispatched[0];
+            logLikelihoods[first.index] = first.call();
+            dispatchCounts[first.index] ++;
+
+            for (LikelihoodCaller caller : likelihoodCallers) {
+                if (!isDispatched[caller.index]) {
+                    logLikelihoods[caller.index] = caller.call();
+                }
+            }
+
+            // join in the reverse order of forking so this thread can run any that have not been stolen
+            for (int i = tasks.length - 1; i >= 0; i--) {
+                tasks[i].join();
+            }
+        }
+    }
 
     class LikelihoodCaller implements Callable<Double> {
 
         public LikelihoodCaller(Likelihood likelihood, int index) {
             this.likelihood = likelihood;
             this.index = index;
+            this.isThreadAware = likelihood instanceof ThreadAwareLikelihood;
         }
 
-        public Double call() throws Exception {
+        /**
+         * @return true if the likelihood doesn't need recalculating (if it can tell)
+         */
+        boolean isLikelihoodKnown() {
+            return isThreadAware && ((ThreadAwareLikelihood) likelihood).isLikelihoodKnown();
+        }
+
+        public Double call() {
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + index + " for " + likelihood.getId() + ": ");
             }
             if (EVALUATION_TIMERS) {
+                boolean known = isLikelihoodKnown();
                 long time = System.nanoTime();
                 double logL = likelihood.getLogLikelihood();
-                evaluationTimes[index] += System.nanoTime() - time;
+                time = System.nanoTime() - time;
+                if (metrics == null) {
+                    // the id of the likelihood isn't known when this is created
+                    metrics = ChainMetrics.getHistogram("likelihood." + likelihood.prettyName());
+                }
+                metrics.record(time);
+                evaluationTimes[index] += time;
                 evaluationCounts[index] ++;
+                updateCost(this, time, known);
                 return logL;
             }
             return likelihood.getLogLikelihood();
@@ -536,6 +729,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Keywordable {
 
         private final Likelihood likelihood;
         private final int index;
+        private final boolean isThreadAware;
+        private ChainMetrics.Histogram metrics = null;
     }
 
     public static final boolean DEBUG_PARALLEL_EVALUATION = false;
@@ -88,6 +88,80 @@ public class OperatorAnalysisPrinter {
 
         }
         out.println();
+
+        if (schedule instanceof ThroughputOperatorSchedule) {
+            showThroughputAnalysis(out, (ThroughputOperatorSchedule) schedule);
+        }
+    }
+
+    /**
+     * Writes the costs and movements measured by a throughput schedule and the weights it chose
+     *
+     * @param out the print stream to write the analysis to
+     */
+    public static void showThroughputAnalysis(PrintStream out, ThroughputOperatorSchedule schedule) {
+        out.println("Throughput analysis (weights " + (schedule.isAdapting() ? "adapting" : "fixed after " +
+                schedule.getAdaptationLength() + " states") + ")");
+        out.println(formatter.formatToFieldWidth("Operator", 50) +
+                formatter.formatToFieldWidth("Weight", 9) +
+                formatter.formatToFieldWidth("Chosen", 9) +
+                formatter.formatToFieldWidth("Pr(choose)", 11) +
+                formatter.formatToFieldWidth("Timed", 11) +
+                formatter.formatToFieldWidth("us/Op", 9) +
+                formatter.formatToFieldWidth("Pr(accept)", 11) +
+                formatter.formatToFieldWidth("Jump", 9) +
+                formatter.formatToFieldWidth("Jump/s", 11));
+
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            final MCMCOperator op = schedule.getOperator(i);
+            final double cost = schedule.getCost(i);
+
+            out.println(formattedOperatorName(op.getOperatorName())
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(op.getWeight(), 3), 8) + " "
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(schedule.getAdaptedWeight(i), 3), 8) + " "
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(schedule.getAdaptedProbability(i), 4), 10) + " "
+                    + formatter.formatToFieldWidth(Long.toString(schedule.getProposalCount(i)), 10) + " "
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(cost / 1000.0, 2), 8) + " "
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(schedule.getAcceptanceProbability(i), 4), 10) + " "
+                    + formatter.formatToFieldWidth(formatter.formatDecimal(schedule.getMovement(i), 4), 8) + " "
+                    + formatter.formatToFieldWidth(cost > 0 ? formatter.formatDecimal(schedule.getMovement(i) * 1.0E9 / cost, 2) : "-", 11));
+        }
+        out.println();
+    }
+
+    /**
+     * Writes the proportion of each operator's proposals that were rejected by the surrogate
+     * likelihood in delayed acceptance
+     *
+     * @param out                  the print stream to write the analysis to
+     * @param screenedCounts       the number of proposals of each operator that were screened
+     * @param earlyRejectionCounts the number of proposals of each operator rejected by the surrogate
+     */
+    public static void showDelayedAcceptanceAnalysis(PrintStream out, OperatorSchedule schedule,
+                                                     long[] screenedCounts, long[] earlyRejectionCounts) {
+        out.println("Delayed acceptance analysis");
+        out.println(formatter.formatToFieldWidth("Operator", 50) +
+                formatter.formatToFieldWidth("Screened", 11) +
+                formatter.formatToFieldWidth("Rejected", 11) +
+                formatter.formatToFieldWidth("Pr(reject)", 11) +
+                formatter.formatToFieldWidth("Pr(accept|pass)", 16));
+
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            final MCMCOperator op = schedule.getOperator(i);
+            final long screened = screenedCounts[i];
+            final long rejected = earlyRejectionCounts[i];
+            final long passed = screened - rejected;
+
+            out.println(formattedOperatorName(op.getOperatorName())
+                    + formatter.formatToFieldWidth(Long.toString(screened), 10) + " "
+                    + formatter.formatToFieldWidth(Long.toString(rejected), 10) + " "
+                    + formatter.formatToFieldWidth(screened > 0 ? formatter.formatDecimal((double) rejected / screened, 4) : "-", 11)
+                    // the proposals accepted at the second stage (the acceptance count also includes
+                    // those made during the full evaluation test which weren't screened)
+                    + formatter.formatToFieldWidth(passed > 0 ? formatter.formatDecimal(
+                    Math.min((double) op.getAcceptCount() / passed, 1.0), 4) : "-", 16));
+        }
+        out.println();
     }
 
     private static String formattedOperatorName(String operatorName) {
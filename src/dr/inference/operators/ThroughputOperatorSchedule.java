@@ -0,0 +1,377 @@
+/*
+ * ThroughputOperatorSchedule.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.operators;
+
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.Model;
+import dr.math.MathUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An operator schedule that adjusts the weights of the operators for the first part of the chain
+ * to make the most movement per second. The cost of each operator is the time from choosing it
+ * to choosing the next one (so it includes the evaluation of the likelihood and the accepting or
+ * restoring of the model) and its movement is the mean absolute change in the log posterior of
+ * each proposal (zero for those rejected). Every so often the weights are set to those that
+ * maximize the expected movement per second with each weight kept between the given multiples
+ * of the operator's own weight. After the adaptation length the weights are fixed so the rest of
+ * the chain is a valid MCMC.
+ *
+ * The adaptation is timed by the state of the chain, which the schedule hears of as a listener of
+ * the chain, rather than by the number of operators chosen (several may be chosen for one state
+ * when proposals are evaluated in parallel). The weights are not saved in a dumped state so a
+ * chain resumed before the end of the adaptation adapts them afresh until then and one resumed
+ * after it uses the operators' own weights.
+ *
+ * @version $Id$
+ */
+public class ThroughputOperatorSchedule implements OperatorSchedule, MarkovChainListener {
+
+    // the number of proposals of an operator before its weight is changed
+    public static final int MINIMUM_PROPOSAL_COUNT = 10;
+
+    /**
+     * @param adaptationLength the number of states for which the weights are adapted
+     * @param adaptEvery       the number of states between the adjustments of the weights
+     * @param minWeightFactor  the smallest multiple of an operator's weight that may be used
+     * @param maxWeightFactor  the largest multiple of an operator's weight that may be used
+     */
+    public ThroughputOperatorSchedule(long adaptationLength, int adaptEvery,
+                                      double minWeightFactor, double maxWeightFactor) {
+        if (adaptEvery < 1) {
+            throw new IllegalArgumentException("The adaptation interval should be at least 1");
+        }
+        if (minWeightFactor <= 0.0 || maxWeightFactor < minWeightFactor) {
+            throw new IllegalArgumentException("The weight factors should be positive with the minimum no more than the maximum");
+        }
+        this.adaptationLength = adaptationLength;
+        this.adaptEvery = adaptEvery;
+        this.minWeightFactor = minWeightFactor;
+        this.maxWeightFactor = maxWeightFactor;
+        nextAdaptationState = adaptEvery;
+    }
+
+    public void addOperator(MCMCOperator op) {
+        operators.add(op);
+        operatorsHasBeenUpdated();
+    }
+
+    public void addOperators(List<MCMCOperator> v) {
+        operators.addAll(v);
+        operatorsHasBeenUpdated();
+    }
+
+    public void operatorsHasBeenUpdated() {
+        final int n = operators.size();
+        weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            weights[i] = operators.get(i).getWeight();
+        }
+        totalWeight = calculateTotalWeight();
+
+        if (proposalCounts.length != n) {
+            proposalCounts = Arrays.copyOf(proposalCounts, n);
+            acceptCounts = Arrays.copyOf(acceptCounts, n);
+            totalCosts = Arrays.copyOf(totalCosts, n);
+            totalMovements = Arrays.copyOf(totalMovements, n);
+        }
+    }
+
+    public int getNextOperatorIndex() {
+        final long time = System.nanoTime();
+        if (lastIndex >= 0) {
+            recordProposal(lastIndex, time - lastTime);
+        }
+
+        if (!isFixed) {
+            if (currentState >= adaptationLength) {
+                updateWeights();
+                isFixed = true;
+                Logger.getLogger("dr.inference").info("Operator weights fixed after " + currentState + " states");
+            } else if (currentState >= nextAdaptationState) {
+                updateWeights();
+                nextAdaptationState = (currentState / adaptEvery + 1) * adaptEvery;
+            }
+        }
+
+        final double q = MathUtils.nextDouble() * totalWeight;
+        int index = 0;
+        double weight = weights[0];
+        while (weight <= q && index < weights.length - 1) {
+            index += 1;
+            weight += weights[index];
+        }
+
+        final MCMCOperator op = operators.get(index);
+        lastIndex = index;
+        lastAcceptCount = op.getAcceptCount();
+        lastSumDeviation = op.getSumDeviation();
+        // the time is taken again so the cost doesn't include choosing the operator
+        lastTime = System.nanoTime();
+
+        return index;
+    }
+
+    /**
+     * Record the outcome of the last proposal of an operator. It was accepted if the operator's
+     * acceptance count has gone up by one since it was chosen.
+     */
+    private void recordProposal(int index, long cost) {
+        final MCMCOperator op = operators.get(index);
+        proposalCounts[index]++;
+        totalCosts[index] += cost;
+        if (op.getAcceptCount() == lastAcceptCount + 1) {
+            acceptCounts[index]++;
+            final double deviation = op.getSumDeviation() - lastSumDeviation;
+            if (!Double.isNaN(deviation) && !Double.isInfinite(deviation)) {
+                totalMovements[index] += Math.abs(deviation);
+            }
+        }
+    }
+
+    /**
+     * Sets the weights to maximize the expected movement per second. Operators that haven't been
+     * used enough keep their own weight.
+     */
+    private void updateWeights() {
+        final int n = operators.size();
+
+        final double[] movements = new double[n];
+        final double[] costs = new double[n];
+        final double[] lower = new double[n];
+        final double[] upper = new double[n];
+        for (int i = 0; i < n; i++) {
+            final double weight = operators.get(i).getWeight();
+            movements[i] = getMovement(i);
+            costs[i] = getCost(i);
+            if (proposalCounts[i] >= MINIMUM_PROPOSAL_COUNT && totalCosts[i] > 0) {
+                lower[i] = weight * minWeightFactor;
+                upper[i] = weight * maxWeightFactor;
+            } else {
+                lower[i] = weight;
+                upper[i] = weight;
+            }
+        }
+
+        weights = getOptimalWeights(movements, costs, lower, upper);
+        totalWeight = calculateTotalWeight();
+    }
+
+    /**
+     * Finds the weights between the bounds that maximize the expected movement per second, the
+     * sum of the weighted movements over the sum of the weighted costs. This is largest with each
+     * weight at one of its bounds: the upper bound for the operators with a movement to cost ratio
+     * above the best overall ratio and the lower bound for the rest. The operators are sorted by
+     * their ratio and each split is tried in turn.
+     *
+     * @param movements the mean movement of a proposal of each operator
+     * @param costs     the mean cost of a proposal of each operator
+     * @param lower     the smallest weight of each operator
+     * @param upper     the largest weight of each operator (equal to the smallest to fix it)
+     * @return the weights
+     */
+    public static double[] getOptimalWeights(double[] movements, double[] costs, double[] lower, double[] upper) {
+        final int n = movements.length;
+
+        final double[] ratios = new double[n];
+        final List<Integer> adaptable = new ArrayList<Integer>();
+        double movement = 0.0;
+        double cost = 0.0;
+        for (int i = 0; i < n; i++) {
+            // start with all the operators at their lower bounds
+            movement += lower[i] * movements[i];
+            cost += lower[i] * costs[i];
+            if (upper[i] > lower[i]) {
+                ratios[i] = movements[i] / costs[i];
+                adaptable.add(i);
+            }
+        }
+
+        Integer[] order = adaptable.toArray(new Integer[adaptable.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(ratios[i2], ratios[i1]);
+            }
+        });
+
+        int bestSplit = 0;
+        double bestRate = movement / cost;
+        for (int k = 0; k < order.length; k++) {
+            final int i = order[k];
+            movement += (upper[i] - lower[i]) * movements[i];
+            cost += (upper[i] - lower[i]) * costs[i];
+            if (movement / cost > bestRate) {
+                bestRate = movement / cost;
+                bestSplit = k + 1;
+            }
+        }
+
+        final double[] weights = Arrays.copyOf(lower, n);
+        for (int k = 0; k < bestSplit; k++) {
+            weights[order[k]] = upper[order[k]];
+        }
+        return weights;
+    }
+
+    private double calculateTotalWeight() {
+        double total = 0.0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        return total;
+    }
+
+    public MCMCOperator getOperator(int index) {
+        return operators.get(index);
+    }
+
+    public int getOperatorCount() {
+        return operators.size();
+    }
+
+    /**
+     * @return the weight currently used to choose the operator
+     */
+    public double getAdaptedWeight(int index) {
+        return weights[index];
+    }
+
+    /**
+     * @return the probability of choosing the operator with the current weights
+     */
+    public double getAdaptedProbability(int index) {
+        return weights[index] / totalWeight;
+    }
+
+    /**
+     * @return the number of proposals of the operator that have been timed
+     */
+    public long getProposalCount(int index) {
+        return proposalCounts[index];
+    }
+
+    /**
+     * @return the mean time in nanoseconds of the proposals of the operator
+     */
+    public double getCost(int index) {
+        return (proposalCounts[index] > 0 ? (double) totalCosts[index] / proposalCounts[index] : 0.0);
+    }
+
+    /**
+     * @return the proportion of the timed proposals of the operator that were accepted
+     */
+    public double getAcceptanceProbability(int index) {
+        return (proposalCounts[index] > 0 ? (double) acceptCounts[index] / proposalCounts[index] : 0.0);
+    }
+
+    /**
+     * @return the mean absolute change in the log posterior of each proposal of the operator
+     */
+    public double getMovement(int index) {
+        return (proposalCounts[index] > 0 ? totalMovements[index] / proposalCounts[index] : 0.0);
+    }
+
+    public boolean isAdapting() {
+        return !isFixed;
+    }
+
+    public long getAdaptationLength() {
+        return adaptationLength;
+    }
+
+    public double getOptimizationTransform(double d) {
+        switch (optimizationSchedule) {
+            case DEFAULT:
+            case LOG:
+                return Math.log(d);
+            case SQRT:
+                return Math.sqrt(d);
+            case LINEAR:
+                return d;
+
+            default:
+                throw new UnsupportedOperationException("Unknown enum value");
+        }
+    }
+
+    public void setOptimizationSchedule(OptimizationTransform optimizationSchedule) {
+        this.optimizationSchedule = optimizationSchedule;
+    }
+
+    // MarkovChainListener interface *******************************************
+
+    public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+        currentState = state;
+    }
+
+    public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+    }
+
+    public void finished(long chainLength, MarkovChain markovChain) {
+    }
+
+    public long getMinimumAcceptAndRejectCount() {
+        long minCount = Long.MAX_VALUE;
+        for (MCMCOperator op : operators) {
+            if (op.getAcceptCount() < minCount || op.getRejectCount() < minCount) {
+                minCount = op.getCount();
+            }
+        }
+        return minCount;
+    }
+
+    private final List<MCMCOperator> operators = new ArrayList<MCMCOperator>();
+    private double[] weights = new double[0];
+    private double totalWeight = 0.0;
+    private OptimizationTransform optimizationSchedule = OptimizationTransform.DEFAULT;
+
+    private final long adaptationLength;
+    private final int adaptEvery;
+    private final double minWeightFactor;
+    private final double maxWeightFactor;
+
+    // the state of the chain, the state at which the weights are next adjusted and whether they are fixed
+    private long currentState = 0;
+    private long nextAdaptationState;
+    private boolean isFixed = false;
+
+    private long[] proposalCounts = new long[0];
+    private long[] acceptCounts = new long[0];
+    private long[] totalCosts = new long[0];
+    private double[] totalMovements = new double[0];
+
+    // the last operator chosen and its state when it was chosen
+    private int lastIndex = -1;
+    private long lastTime;
+    private long lastAcceptCount;
+    private double lastSumDeviation;
+}
@@ -26,19 +26,31 @@
 package dr.inference.operators.hmc;
 
 import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.inference.operators.AbstractCoercableOperator;
 import dr.inference.operators.CoercionMode;
+import dr.math.MathUtils;
 import dr.math.distributions.NormalDistribution;
 import dr.util.Transform;
 
 /**
+ * The momentum is drawn with the variance drawVariance for every dimension, unless a mass
+ * adaptation length is given. Then the variance of each dimension of the (transformed) position is
+ * estimated over that many operations (i.e., during burn-in) and the momentum variances (the
+ * diagonal mass matrix) are set to the inverse of these.
+ *
+ * The number of gradient evaluations and the time spent in them can be logged, so the cost per
+ * effective sample can be compared with other operators.
+ *
  * @author Max Tolkoff
  * @author Marc A. Suchard
  */
 
-public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
+public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator implements Loggable {
 
     final GradientWrtParameterProvider gradientProvider;
     protected double stepSize;
@@ -46,9 +58,27 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
     final NormalDistribution drawDistribution;
     final LeapFrogEngine leapFrogEngine;
 
+    private final Parameter parameter;
+    private final double[] momentum;
+    private final MassAdaptation massAdaptation;
+
+    // the diagonal of the mass matrix (and its square root) once it has been adapted
+    private double[] mass = null;
+    private double[] sqrtMass = null;
+
+    private long gradientEvaluationCount = 0;
+    private long gradientEvaluationTime = 0;
+
     public HamiltonianMonteCarloOperator(CoercionMode mode, double weight, GradientWrtParameterProvider gradientProvider,
                                          Parameter parameter, Transform transform,
                                          double stepSize, int nSteps, double drawVariance) {
+        this(mode, weight, gradientProvider, parameter, transform, stepSize, nSteps, drawVariance, 0);
+    }
+
+    public HamiltonianMonteCarloOperator(CoercionMode mode, double weight, GradientWrtParameterProvider gradientProvider,
+                                         Parameter parameter, Transform transform,
+                                         double stepSize, int nSteps, double drawVariance,
+                                         int massAdaptationLength) {
         super(mode);
         setWeight(weight);
         setTargetAcceptanceProbability(0.8); // Stan default
@@ -61,6 +91,10 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
                 new LeapFrogEngine.WithTransform(parameter, transform) :
                 new LeapFrogEngine.Default(parameter));
 
+        this.parameter = parameter;
+        this.momentum = new double[gradientProvider.getDimension()];
+        this.massAdaptation = (massAdaptationLength > 0 ?
+                new MassAdaptation(gradientProvider.getDimension(), massAdaptationLength) : null);
     }
 
     @Override
@@ -83,14 +117,69 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
         return total / (2 * sigmaSquared);
     }
 
+    static double getScaledDotProduct(final double[] momentum,
+                                      final double[] mass) {
+        double total = 0.0;
+        for (int i = 0; i < momentum.length; i++) {
+            total += momentum[i] * momentum[i] / mass[i];
+        }
+
+        return total / 2;
+    }
+
     static double[] drawInitialMomentum(final NormalDistribution distribution, final int dim) {
         double[] momentum = new double[dim];
-        for (int i = 0; i < dim; i++) {
-            momentum[i] = (Double) distribution.nextRandom();
-        }
+        drawInitialMomentum(distribution, momentum);
         return momentum;
     }
 
+    /**
+     * Fills the momentum with draws from the distribution (as distribution.nextRandom() but
+     * without boxing each value).
+     */
+    static void drawInitialMomentum(final NormalDistribution distribution, final double[] momentum) {
+        final double sd = distribution.getSD();
+        final double mean = distribution.getMean();
+        for (int i = 0; i < momentum.length; i++) {
+            momentum[i] = MathUtils.nextGaussian() * sd + mean;
+        }
+    }
+
+    private static void drawInitialMomentum(final double[] sqrtMass, final double[] momentum) {
+        for (int i = 0; i < momentum.length; i++) {
+            momentum[i] = MathUtils.nextGaussian() * sqrtMass[i];
+        }
+    }
+
+    /**
+     * @return the gradient of the log density at the current parameter values
+     */
+    final double[] getGradientLogDensity() {
+        final long startTime = System.nanoTime();
+        final double[] gradient = gradientProvider.getGradientLogDensity();
+        gradientEvaluationTime += System.nanoTime() - startTime;
+        ++gradientEvaluationCount;
+        return gradient;
+    }
+
+    public long getGradientEvaluationCount() {
+        return gradientEvaluationCount;
+    }
+
+    /**
+     * @return the total time spent evaluating gradients in milliseconds
+     */
+    public double getGradientEvaluationTime() {
+        return gradientEvaluationTime / 1000000.0;
+    }
+
+    /**
+     * @return the diagonal of the adapted mass matrix or null if it hasn't been adapted
+     */
+    public double[] getMassMatrixDiagonal() {
+        return mass;
+    }
+
     @Override
     public double doOperation() { return leapFrog(); }
 
@@ -107,18 +196,33 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
             ++count;
         }
 
-        final int dim = gradientProvider.getDimension();
-
         final double sigmaSquared = drawDistribution.getSD() * drawDistribution.getSD();
 
-        final double[] momentum = drawInitialMomentum(drawDistribution, dim);
         final double[] position = leapFrogEngine.getInitialPosition();
 
-        final double prop = getScaledDotProduct(momentum, sigmaSquared) +
+        if (massAdaptation != null && mass == null) {
+            // the position is the current state of the chain
+            massAdaptation.update(position);
+            if (massAdaptation.isComplete()) {
+                mass = massAdaptation.getMass();
+                sqrtMass = new double[mass.length];
+                for (int i = 0; i < mass.length; i++) {
+                    sqrtMass[i] = Math.sqrt(mass[i]);
+                }
+            }
+        }
+
+        if (mass == null) {
+            drawInitialMomentum(drawDistribution, momentum);
+        } else {
+            drawInitialMomentum(sqrtMass, momentum);
+        }
+
+        final double prop = getKineticEnergy(momentum, sigmaSquared) +
                 leapFrogEngine.getParameterLogJacobian();
 
         leapFrogEngine.updateMomentum(position, momentum,
-                gradientProvider.getGradientLogDensity(), stepSize / 2);
+                getGradientLogDensity(), stepSize / 2);
 
 
         if (DEBUG) {
@@ -127,23 +231,92 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
 
         for (int i = 0; i < nSteps; i++) { // Leap-frog
 
-            leapFrogEngine.updatePosition(position, momentum, stepSize, sigmaSquared);
+            if (mass == null) {
+                leapFrogEngine.updatePosition(position, momentum, stepSize, sigmaSquared);
+            } else {
+                leapFrogEngine.updatePosition(position, momentum, stepSize, mass);
+            }
 
             if (i < (nSteps - 1)) {
                 leapFrogEngine.updateMomentum(position, momentum,
-                        gradientProvider.getGradientLogDensity(), stepSize);
+                        getGradientLogDensity(), stepSize);
             }
         }
 
         leapFrogEngine.updateMomentum(position, momentum,
-                gradientProvider.getGradientLogDensity(), stepSize / 2);
+                getGradientLogDensity(), stepSize / 2);
 
-        final double res = getScaledDotProduct(momentum, sigmaSquared) +
+        final double res = getKineticEnergy(momentum, sigmaSquared) +
                 leapFrogEngine.getParameterLogJacobian();
 
         return prop - res; //hasting ratio
     }
 
+    private double getKineticEnergy(final double[] momentum, final double sigmaSquared) {
+        return (mass == null ? getScaledDotProduct(momentum, sigmaSquared) : getScaledDotProduct(momentum, mass));
+    }
+
+    @Override
+    public LogColumn[] getColumns() {
+        final String prefix = "hmc(" + parameter.getId() + ").";
+        return new LogColumn[] {
+                new NumberColumn(prefix + "gradientEvaluations") {
+                    @Override
+                    public double getDoubleValue() {
+                        return gradientEvaluationCount;
+                    }
+                },
+                new NumberColumn(prefix + "gradientTime") {
+                    @Override
+                    public double getDoubleValue() {
+                        return getGradientEvaluationTime();
+                    }
+                }
+        };
+    }
+
+    /**
+     * Estimates the variance of each dimension of the position over the first adaptationLength
+     * operations (using Welford's method) and gives the diagonal mass matrix as the inverse of these,
+     * shrunk towards a small value as in Stan.
+     */
+    private static class MassAdaptation {
+
+        MassAdaptation(int dim, int adaptationLength) {
+            this.adaptationLength = adaptationLength;
+            mean = new double[dim];
+            sumOfSquares = new double[dim];
+        }
+
+        void update(final double[] position) {
+            ++count;
+            for (int i = 0; i < mean.length; i++) {
+                final double delta = position[i] - mean[i];
+                mean[i] += delta / count;
+                sumOfSquares[i] += delta * (position[i] - mean[i]);
+            }
+        }
+
+        boolean isComplete() {
+            return count >= adaptationLength;
+        }
+
+        double[] getMass() {
+            final double[] mass = new double[mean.length];
+            for (int i = 0; i < mass.length; i++) {
+                final double variance = (count > 1 ? sumOfSquares[i] / (count - 1) : 0.0);
+                final double regularized = (count / (count + 5.0)) * variance + 1E-3 * (5.0 / (count + 5.0));
+                mass[i] = 1.0 / regularized;
+            }
+            return mass;
+        }
+
+        private final int adaptationLength;
+        private final double[] mean;
+        private final double[] sumOfSquares;
+        private int count = 0;
+    }
+
     @Override
     public double getCoercableParameter() {
         return Math.log(stepSize);
@@ -178,6 +351,11 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
                             final double functionalStepSize,
                             final double sigmaSquared);
 
+        void updatePosition(final double[] position,
+                            final double[] momentum,
+                            final double functionalStepSize,
+                            final double[] mass);
+
         void setParameter(double[] position);
 
         class Default implements LeapFrogEngine {
@@ -220,6 +398,18 @@ public class HamiltonianMonteCarloOperator extends AbstractCoercableOperator {
                 setParameter(position);
             }
 
+            @Override
+            public void updatePosition(double[] position, double[] momentum,
+                                       double functionalStepSize, double[] mass) {
+
+                final int dim = momentum.length;
+                for (int j = 0; j < dim; j++) {
+                    position[j] += functionalStepSize * momentum[j] / mass[j];
+                }
+
+                setParameter(position);
+            }
+
 
             public void setParameter(double[] position) {
 
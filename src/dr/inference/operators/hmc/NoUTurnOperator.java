@@ -261,9 +261,9 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
     private void doLeap(final double[] position,
                         final double[] momentum,
                         final double stepSize) {
-        leapFrogEngine.updateMomentum(position, momentum, gradientProvider.getGradientLogDensity(), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum, getGradientLogDensity(), stepSize / 2);
         leapFrogEngine.updatePosition(position, momentum, stepSize, 1.0);
-        leapFrogEngine.updateMomentum(position, momentum, gradientProvider.getGradientLogDensity(), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum, getGradientLogDensity(), stepSize / 2);
     }
 
     private StepSize findReasonableStepSize(double[] initialPosition) {
@@ -0,0 +1,577 @@
+/*
+ * BinaryLogTraces.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import dr.inference.loggers.BinaryLogFormatter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A set of traces read from a binary log written by BinaryLogFormatter. The file is memory
+ * mapped and only indexed when loaded; the values of a column are read when they are asked
+ * for and, for numeric columns, analyseTrace() and getValues() only read the states after the
+ * burn-in.
+ *
+ * @version $Id$
+ */
+public class BinaryLogTraces extends LogFileTraces {
+
+    // the largest region of the file held by a single mapping
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private static final int MAX_UNIQUE_VALUE = 200;
+
+    public BinaryLogTraces(String name, File file) {
+        super(name, file);
+    }
+
+    /**
+     * @param file a log file
+     * @return true if the file starts with the binary log MAGIC bytes
+     */
+    public static boolean isBinaryLog(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+                in.readFully(magic);
+                return Arrays.equals(magic, BinaryLogFormatter.MAGIC);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    public long getMaxState() {
+        return lastState;
+    }
+
+    public int getStateCount() {
+        // This is done as two integer divisions to ensure the same rounding for
+        // the burnin...
+        return (int) (((lastState - firstState) / stepSize) - (getBurnIn() / stepSize) + 1);
+    }
+
+    public int getBurninStateCount() {
+        return (int) (getBurnIn() / stepSize);
+    }
+
+    public long getStepSize() {
+        return stepSize;
+    }
+
+    public long getBurnIn() {
+        return burnIn;
+    }
+
+    public void setBurnIn(long burnin) {
+        this.burnIn = burnin;
+        for (Trace trace : traces) {
+            if (trace != null) {
+                trace.setTraceStatistics(null);
+            }
+        }
+        Arrays.fill(correlations, null);
+    }
+
+    public int getTraceCount() {
+        return labels.length;
+    }
+
+    public int getTraceIndex(String name) {
+        for (int i = 0; i < labels.length; i++) {
+            if (name.equals(labels[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getTraceName(int index) {
+        return labels[index];
+    }
+
+    /**
+     * @return the trace for a given index, reading all its values from the file the first time
+     */
+    public Trace getTrace(int index) {
+        if (traces[index] == null) {
+            traces[index] = readTrace(index);
+        }
+        return traces[index];
+    }
+
+    public double getStateValue(int trace, int index) {
+        return getTrace(trace).getValue(index + getBurninStateCount());
+    }
+
+    public void getStateValues(int nState, double[] destination, int offset) {
+        final int row = nState + getBurninStateCount();
+        for (int k = 0; k < destination.length; ++k) {
+            destination[k] = getTrace(k + offset).getValue(row);
+        }
+    }
+
+    public List<Double> getValues(int index, int fromIndex, int toIndex) {
+        if (filtered != null || traces[index] != null || columnTypes[index] == BinaryLogFormatter.CATEGORICAL) {
+            return super.getValues(index, fromIndex, toIndex);
+        }
+
+        double[] values = readColumn(index, fromIndex, toIndex);
+        List<Double> valueList = new ArrayList<Double>(values.length);
+        for (double value : values) {
+            valueList.add(value);
+        }
+        return valueList;
+    }
+
+    public List<Double> getValues(int index) {
+        return getValues(index, getBurninStateCount(), rowCount);
+    }
+
+    public List<Double> getBurninValues(int index) {
+        return getValues(index, 0, getBurninStateCount());
+    }
+
+    public TraceCorrelation getCorrelationStatistics(int index) {
+        if (correlations[index] != null) {
+            return correlations[index];
+        }
+        return super.getCorrelationStatistics(index);
+    }
+
+    public void analyseTrace(int index) {
+        if (filtered != null || traces[index] != null || columnTypes[index] == BinaryLogFormatter.CATEGORICAL) {
+            super.analyseTrace(index);
+            correlations[index] = null;
+            return;
+        }
+
+        // read just the values after the burnin without building the trace
+        List<Double> values = getValues(index);
+
+        boolean isConstant = true;
+        Set<Double> uniqueValues = new HashSet<Double>();
+        for (Double value : values) {
+            if (isConstant && !value.equals(values.get(0))) {
+                isConstant = false;
+            }
+            if (uniqueValues.size() <= MAX_UNIQUE_VALUE) {
+                uniqueValues.add(value);
+            }
+        }
+
+        TraceType traceType = TraceType.REAL;
+        if (columnTypes[index] == BinaryLogFormatter.INTEGER && uniqueValues.size() <= MAX_UNIQUE_VALUE) {
+            traceType = TraceType.INTEGER;
+        }
+
+        correlations[index] = new TraceCorrelation(values, traceType, getStepSize(), isConstant);
+    }
+
+    public Trace changeTraceType(int id, TraceType newType) throws TraceException {
+        if (id >= getTraceCount() || id < 0)
+            throw new TraceException("Invalid trace id : " + id + ", which should 0 < and >= " + getTraceCount());
+        Trace trace = getTrace(id);
+        TraceType oldType = trace.getTraceType();
+        if (oldType != newType) {
+            if (oldType.isCategorical() || newType.isCategorical()) {
+                throw new TraceException("The type of trace " + trace.getName() +
+                        " cannot be changed to or from categorical in a binary log.");
+            }
+            trace.setTraceType(newType);
+            correlations[id] = null;
+        }
+        return trace;
+    }
+
+    public void loadTraces() throws TraceException, IOException {
+        loadTraces(file);
+    }
+
+    /**
+     * Index the chunks of the binary log and map the file into memory.
+     *
+     * @param file the binary log
+     * @throws TraceException if the file isn't a binary log or contains no complete chunks
+     * @throws IOException
+     */
+    public void loadTraces(File file) throws TraceException, IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BinaryLogFormatter.MAGIC)) {
+                throw new TraceException("Not a binary log file: " + file.getName());
+            }
+            int version = in.readInt();
+            if (version != BinaryLogFormatter.VERSION) {
+                throw new TraceException("Unsupported binary log version: " + version);
+            }
+
+            int headingCount = in.readInt();
+            headings = new String[headingCount];
+            for (int i = 0; i < headingCount; i++) {
+                headings[i] = in.readUTF();
+            }
+
+            int columnCount = in.readInt();
+            labels = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                labels[i] = in.readUTF();
+            }
+
+            columnTypes = new byte[columnCount];
+            categoryLabels = new ArrayList<List<String>>();
+            for (int i = 0; i < columnCount; i++) {
+                categoryLabels.add(new ArrayList<String>());
+            }
+
+            indexChunks(in, columnCount);
+
+            if (rowCount == 0) {
+                throw new TraceException("Incorrect file format, no sample is found !");
+            }
+
+            mapSegments(in.getChannel());
+        } catch (EOFException eofe) {
+            throw new TraceException("Binary log header is truncated: " + file.getName());
+        } finally {
+            in.close();
+        }
+
+        traces = new Trace[labels.length];
+        correlations = new TraceCorrelation[labels.length];
+
+        if (stepSize < 0) {
+            stepSize = (lastState > 0 ? lastState : 1);
+        }
+        burnIn = lastState / 10;
+    }
+
+    public void loadTraces(InputStream in) throws TraceException, IOException {
+        throw new TraceException("Binary logs can only be read from a file");
+    }
+
+    /**
+     * @return the header lines of the log (the comment lines of a tab-delimited log)
+     */
+    public String[] getHeadings() {
+        return headings;
+    }
+
+    /**
+     * @return the total number of rows including the burnin
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param row the row index
+     * @return the state number of that row
+     */
+    public long getState(int row) {
+        Chunk chunk = chunks.get(findChunk(row));
+        ByteBuffer buffer = segments.get(chunk.segment).duplicate();
+        return buffer.getLong(chunk.position + 4 + (8 * (row - chunk.firstRow)));
+    }
+
+    /**
+     * Get the values of one column as they would appear in a tab-delimited log.
+     * @param index the column
+     * @param fromRow low endpoint (inclusive) of the rows
+     * @param toRow high endpoint (exclusive) of the rows
+     * @return the formatted values
+     */
+    public String[] getFormattedValues(int index, int fromRow, int toRow) {
+        double[] values = readColumn(index, fromRow, toRow);
+        String[] formatted = new String[values.length];
+
+        int row = fromRow;
+        int c = findChunk(fromRow);
+        for (int j = 0; j < values.length; j++, row++) {
+            while (row >= chunks.get(c).firstRow + chunks.get(c).rowCount) {
+                c++;
+            }
+            byte type = chunks.get(c).types[index];
+            if (type == BinaryLogFormatter.CATEGORICAL) {
+                formatted[j] = categoryLabels.get(index).get((int) values[j]);
+            } else if (type == BinaryLogFormatter.INTEGER) {
+                formatted[j] = Long.toString((long) values[j]);
+            } else {
+                formatted[j] = Double.toString(values[j]);
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * @return a reader that gives the log in tab-delimited form, formatting one chunk at a time
+     */
+    public Reader getTabDelimitedReader() {
+        return new Reader() {
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                while (position >= text.length()) {
+                    if (nextChunk >= chunks.size()) {
+                        return -1;
+                    }
+                    text = (nextChunk < 0 ? formatHeader() : formatChunk(nextChunk));
+                    position = 0;
+                    nextChunk++;
+                }
+                int count = Math.min(length, text.length() - position);
+                text.getChars(position, position + count, buffer, offset);
+                position += count;
+                return count;
+            }
+
+            public void close() {
+            }
+
+            private int nextChunk = -1;
+            private String text = "";
+            private int position = 0;
+        };
+    }
+
+    private String formatHeader() {
+        StringBuilder sb = new StringBuilder();
+        for (String heading : headings) {
+            sb.append("# ").append(heading).append('\n');
+        }
+        sb.append("state");
+        for (String label : labels) {
+            sb.append('\t').append(label);
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private String formatChunk(int c) {
+        Chunk chunk = chunks.get(c);
+        int fromRow = chunk.firstRow;
+        int toRow = chunk.firstRow + chunk.rowCount;
+
+        String[][] columns = new String[labels.length][];
+        for (int i = 0; i < labels.length; i++) {
+            columns[i] = getFormattedValues(i, fromRow, toRow);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < chunk.rowCount; j++) {
+            sb.append(getState(fromRow + j));
+            for (String[] column : columns) {
+                sb.append('\t').append(column[j]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a range of values for a column straight from the mapped file
+     * @param index the column
+     * @param fromRow low endpoint (inclusive) of the rows
+     * @param toRow high endpoint (exclusive) of the rows
+     * @return the values
+     */
+    public double[] readColumn(int index, int fromRow, int toRow) {
+        if (fromRow < 0 || toRow > rowCount || fromRow > toRow) {
+            throw new IndexOutOfBoundsException("Invalid rows: fromRow = " + fromRow + "; toRow = " + toRow);
+        }
+
+        double[] values = new double[toRow - fromRow];
+        int row = fromRow;
+        int c = findChunk(fromRow);
+        while (row < toRow) {
+            Chunk chunk = chunks.get(c);
+            int start = row - chunk.firstRow;
+            int count = Math.min(chunk.rowCount - start, toRow - row);
+
+            ByteBuffer buffer = segments.get(chunk.segment).duplicate();
+            buffer.position(chunk.getColumnPosition(index, labels.length) + (8 * start));
+            DoubleBuffer doubles = buffer.slice().asDoubleBuffer();
+            doubles.get(values, row - fromRow, count);
+
+            row += count;
+            c++;
+        }
+        return values;
+    }
+
+    private Trace readTrace(int index) {
+        boolean isCategorical = columnTypes[index] == BinaryLogFormatter.CATEGORICAL;
+        Trace trace = new Trace(labels[index], isCategorical ? TraceType.CATEGORICAL :
+                (columnTypes[index] == BinaryLogFormatter.INTEGER ? TraceType.INTEGER : TraceType.REAL));
+
+        double[] values = readColumn(index, 0, rowCount);
+        if (isCategorical) {
+            String[] formatted = getFormattedValues(index, 0, rowCount);
+            for (int j = 0; j < values.length; j++) {
+                // values logged before the column became categorical are converted as LogFileTraces does
+                trace.add(chunks.get(findChunk(j)).types[index] == BinaryLogFormatter.CATEGORICAL ?
+                        formatted[j] : Double.toString(values[j]));
+            }
+        } else {
+            for (double value : values) {
+                trace.add(value);
+            }
+            if (trace.getTraceType().isInteger() && trace.getUniqueValueCount() > MAX_UNIQUE_VALUE) {
+                trace.setTraceType(TraceType.REAL);
+            }
+        }
+        return trace;
+    }
+
+    private void indexChunks(RandomAccessFile in, int columnCount) throws IOException, TraceException {
+        long fileLength = in.length();
+        long position = in.getFilePointer();
+
+        while (position + 8 <= fileLength) {
+            in.seek(position);
+            int byteCount = in.readInt();
+            if (position + 4 + byteCount > fileLength) {
+                // the last chunk is incomplete - probably still being written
+                break;
+            }
+
+            Chunk chunk = new Chunk();
+            chunk.offset = position + 4;
+            chunk.byteCount = byteCount;
+            chunk.rowCount = in.readInt();
+            chunk.firstRow = rowCount;
+
+            long state0 = in.readLong();
+            if (chunk.rowCount > 1) {
+                long state1 = in.readLong();
+                if (stepSize < 0) {
+                    stepSize = state1 - state0;
+                }
+            }
+            if (firstState < 0) {
+                firstState = state0;
+            } else if (stepSize < 0) {
+                stepSize = state0 - lastState;
+            }
+            if (lastState >= 0 && stepSize > 0 && state0 - lastState != stepSize) {
+                throw new TraceException("State " + state0 + " is not consistent with previous spacing");
+            }
+            in.seek(chunk.offset + 4 + (8L * (chunk.rowCount - 1)));
+            lastState = in.readLong();
+
+            chunk.types = new byte[columnCount];
+            in.readFully(chunk.types);
+            for (int i = 0; i < columnCount; i++) {
+                columnTypes[i] = (byte) Math.max(columnTypes[i], chunk.types[i]);
+            }
+
+            in.seek(chunk.offset + 4 + (8L * chunk.rowCount) + columnCount + (8L * chunk.rowCount * columnCount));
+            int newLabelCount = in.readInt();
+            for (int i = 0; i < newLabelCount; i++) {
+                int column = in.readInt();
+                categoryLabels.get(column).add(in.readUTF());
+            }
+
+            chunks.add(chunk);
+            rowCount += chunk.rowCount;
+            position = chunk.offset + byteCount;
+        }
+    }
+
+    private void mapSegments(FileChannel channel) throws IOException {
+        int i = 0;
+        while (i < chunks.size()) {
+            long start = chunks.get(i).offset;
+            long end = start;
+            int segment = segments.size();
+            while (i < chunks.size() && (end == start || chunks.get(i).offset + chunks.get(i).byteCount - start <= MAX_SEGMENT_SIZE)) {
+                Chunk chunk = chunks.get(i);
+                chunk.segment = segment;
+                chunk.position = (int) (chunk.offset - start);
+                end = chunk.offset + chunk.byteCount;
+                i++;
+            }
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        }
+    }
+
+    private int findChunk(int row) {
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunks.get(mid).firstRow <= row) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static class Chunk {
+        long offset;       // file offset of the row count
+        int byteCount;
+        int rowCount;
+        int firstRow;
+        byte[] types;
+
+        int segment;
+        int position;      // offset of the row count in the segment
+
+        int getColumnPosition(int column, int columnCount) {
+            return position + 4 + (8 * rowCount) + columnCount + (8 * rowCount * column);
+        }
+    }
+
+    private String[] headings;
+    private String[] labels;
+    private byte[] columnTypes;
+    private List<List<String>> categoryLabels;
+
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private int rowCount = 0;
+
+    private Trace[] traces;
+    private TraceCorrelation[] correlations;
+
+    private long burnIn = -1;
+    private long firstState = -1;
+    private long lastState = -1;
+    private long stepSize = -1;
+}
@@ -207,7 +207,7 @@ public class GeneralizedSteppingStoneSamplingAnalysis {
     				cxo = xo.getChild(THETA_COLUMN);
     				String thetaName = cxo.getStringAttribute(Attribute.NAME);
 
-    				LogFileTraces traces = new LogFileTraces(fileName, file);
+    				LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
     				traces.loadTraces();
                 
     				long burnin = 0;
@@ -44,6 +44,21 @@ public class LogFileTraces extends AbstractTraceList {
         this.file = file;
     }
 
+    /**
+     * Creates the traces for a log file, choosing BinaryLogTraces if it is a binary log
+     * written by BinaryLogFormatter.
+     *
+     * @param name the name of the trace set
+     * @param file the log file
+     * @return the traces (not yet loaded)
+     */
+    public static LogFileTraces createLogFileTraces(String name, File file) {
+        if (BinaryLogTraces.isBinaryLog(file)) {
+            return new BinaryLogTraces(name, file);
+        }
+        return new LogFileTraces(name, file);
+    }
+
     /**
      * @return the name of this traceset
      */
@@ -192,7 +192,7 @@ public class PathSamplingAnalysis {
                     cxo = xo.getChild(THETA_COLUMN);
                     String thetaName = cxo.getStringAttribute(Attribute.NAME);
                     
-                    LogFileTraces traces = new LogFileTraces(fileName, file);
+                    LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
                     traces.loadTraces();
                     long maxState = traces.getMaxState();
                     
@@ -0,0 +1,226 @@
+/*
+ * QuantileSketch.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A quantile sketch for a stream of values using a fixed amount of memory per level. Values are
+ * added to a buffer of size k; when a buffer is full it is sorted and every other value is promoted
+ * to the next level where it stands for twice as many samples. The memory used grows with the log
+ * of the number of values and the error in the rank of a quantile is roughly n/k. While fewer than k
+ * values have been added the quantiles and HPD intervals are exact.
+ *
+ * @version $Id$
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    public QuantileSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of values held at each level (at least 2)
+     */
+    public QuantileSketch(int capacity) {
+        this.capacity = Math.max(capacity, 2);
+    }
+
+    public void add(double value) {
+        if (levels.isEmpty()) {
+            addLevel();
+        }
+        insert(0, value);
+        count++;
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of values held by the sketch
+     */
+    public int getRetainedCount() {
+        int retained = 0;
+        for (int size : sizes) {
+            retained += size;
+        }
+        return retained;
+    }
+
+    /**
+     * @param q the quantile (between 0 and 1)
+     * @return the approximate value at that quantile
+     */
+    public double getQuantile(double q) {
+        Summary summary = summarize();
+        if (summary.values.length == 0) {
+            return Double.NaN;
+        }
+        double target = q * summary.totalWeight;
+        for (int i = 0; i < summary.values.length; i++) {
+            if (summary.cumulative[i] >= target) {
+                return summary.values[i];
+            }
+        }
+        return summary.values[summary.values.length - 1];
+    }
+
+    /**
+     * The shortest interval that holds the given proportion of the values. With exact counts this
+     * is the same interval as DiscreteStatistics.HPDInterval gives.
+     *
+     * @param proportion the proportion of the values (e.g., 0.95)
+     * @return the lower and upper bound of the interval
+     */
+    public double[] getHPDInterval(double proportion) {
+        Summary summary = summarize();
+        int n = summary.values.length;
+        if (n == 0) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+
+        final double target = Math.max(Math.round(proportion * summary.totalWeight), 1);
+
+        double minRange = Double.MAX_VALUE;
+        int lower = 0;
+        int upper = n - 1;
+
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            double before = (i == 0 ? 0.0 : summary.cumulative[i - 1]);
+            if (j < i) {
+                j = i;
+            }
+            while (j < n && summary.cumulative[j] - before < target) {
+                j++;
+            }
+            if (j == n) {
+                break;
+            }
+            double range = summary.values[j] - summary.values[i];
+            if (range < minRange) {
+                minRange = range;
+                lower = i;
+                upper = j;
+            }
+        }
+
+        return new double[]{summary.values[lower], summary.values[upper]};
+    }
+
+    private void addLevel() {
+        levels.add(new double[capacity]);
+        sizes.add(0);
+    }
+
+    private void insert(int level, double value) {
+        double[] buffer = levels.get(level);
+        int size = sizes.get(level);
+        buffer[size] = value;
+        size++;
+
+        if (size == capacity) {
+            if (level + 1 == levels.size()) {
+                addLevel();
+            }
+            Arrays.sort(buffer, 0, size);
+
+            // alternate which half is kept so the promoted values aren't biased up or down
+            int offset = (flip ? 1 : 0);
+            flip = !flip;
+            for (int i = offset; i < size; i += 2) {
+                insert(level + 1, buffer[i]);
+            }
+            size = 0;
+        }
+        sizes.set(level, size);
+    }
+
+    private Summary summarize() {
+        int retained = getRetainedCount();
+        final double[] values = new double[retained];
+        final double[] weights = new double[retained];
+
+        int k = 0;
+        double weight = 1.0;
+        for (int level = 0; level < levels.size(); level++) {
+            double[] buffer = levels.get(level);
+            int size = sizes.get(level);
+            for (int i = 0; i < size; i++) {
+                values[k] = buffer[i];
+                weights[k] = weight;
+                k++;
+            }
+            weight *= 2.0;
+        }
+
+        Integer[] order = new Integer[retained];
+        for (int i = 0; i < retained; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a], values[b]);
+            }
+        });
+
+        Summary summary = new Summary(retained);
+        double total = 0.0;
+        for (int i = 0; i < retained; i++) {
+            summary.values[i] = values[order[i]];
+            total += weights[order[i]];
+            summary.cumulative[i] = total;
+        }
+        summary.totalWeight = total;
+        return summary;
+    }
+
+    private static class Summary {
+        Summary(int size) {
+            values = new double[size];
+            cumulative = new double[size];
+        }
+
+        final double[] values;
+        final double[] cumulative;
+        double totalWeight;
+    }
+
+    private final int capacity;
+    private final List<double[]> levels = new ArrayList<double[]>();
+    private final List<Integer> sizes = new ArrayList<Integer>();
+    private long count = 0;
+    private boolean flip = false;
+}
@@ -190,7 +190,7 @@ public class SteppingStoneSamplingAnalysis {
     				cxo = xo.getChild(THETA_COLUMN);
     				String thetaName = cxo.getStringAttribute(Attribute.NAME);
 
-    				LogFileTraces traces = new LogFileTraces(fileName, file);
+    				LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
     				traces.loadTraces();
                 
     				int burnin = 0;
@@ -0,0 +1,371 @@
+/*
+ * StreamingLogAnalysis.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Summarizes a tab-delimited log file as it is being written. Each call to update() reads only the
+ * lines appended since the last call (a partially written last line is kept until it is complete)
+ * and adds the values to a StreamingTraceStatistics for each numerical column, so the memory used
+ * doesn't depend on the length of the log. A line that is incomplete or has a value that isn't a
+ * number where one is expected is skipped with a warning rather than ending the analysis.
+ *
+ * Unlike TraceAnalysis the burn-in has to be known in advance as the values before it are discarded
+ * as they are read. If the file gets shorter (e.g., the run was restarted) the analysis starts again.
+ *
+ * @version $Id$
+ */
+public class StreamingLogAnalysis {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * @param file   the log file
+     * @param burnin the first state to include in the summaries
+     */
+    public StreamingLogAnalysis(File file, long burnin) {
+        this.file = file;
+        this.burnin = Math.max(burnin, 0);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getBurnIn() {
+        return burnin;
+    }
+
+    /**
+     * Read any complete lines that have been added to the file since the last update.
+     *
+     * @return true if any new samples were read
+     * @throws IOException if the file can't be read
+     */
+    public boolean update() throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+
+        long length = file.length();
+        if (length < position) {
+            reset();
+        }
+        if (length == position) {
+            return false;
+        }
+
+        long before = sampleCount;
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(position);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (position < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length - position))) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        partialLine.write(buffer, start, i - start);
+                        parseLine(partialLine.toString("UTF-8"));
+                        partialLine.reset();
+                        start = i + 1;
+                    }
+                }
+                partialLine.write(buffer, start, read - start);
+                position += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        return sampleCount > before;
+    }
+
+    /**
+     * @return the number of samples read including the burn-in
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of lines that were skipped because they were incomplete or not numbers
+     */
+    public long getSkippedLineCount() {
+        return skippedLineCount;
+    }
+
+    public long getMaxState() {
+        return lastState;
+    }
+
+    public long getStepSize() {
+        return stepSize;
+    }
+
+    public int getTraceCount() {
+        return statistics.size();
+    }
+
+    public String getTraceName(int index) {
+        return statistics.get(index).getName();
+    }
+
+    public StreamingTraceStatistics getStatistics(int index) {
+        return statistics.get(index);
+    }
+
+    /**
+     * Print a report in the same format as TraceAnalysis.report.
+     *
+     * @param out          the stream to print to
+     * @param withStdError if true then also report stdErr, median and 50% HPD
+     */
+    public void report(PrintStream out, boolean withStdError) {
+        out.println("burnIn   <= " + burnin + ",   maxState  = " + lastState);
+
+        out.print("statistic");
+        String[] names;
+        if (!withStdError)
+            names = new String[]{"mean", "hpdLower", "hpdUpper", "ESS"};
+        else
+            names = new String[]{"mean", "stdErr", "median", "hpdLower", "hpdUpper", "ESS", "50hpdLower", "50hpdUpper"};
+
+        for (String name : names) {
+            out.print("\t" + name);
+        }
+        out.println();
+
+        int warning = 0;
+        for (StreamingTraceStatistics trace : statistics) {
+            double ess = trace.getESS();
+            double[] hpd = trace.getHPDInterval(0.95);
+
+            out.print(trace.getName());
+            out.print("\t" + TraceAnalysis.formattedNumber(trace.getMean()));
+            if (withStdError) {
+                out.print("\t" + TraceAnalysis.formattedNumber(trace.getStdError()));
+                out.print("\t" + TraceAnalysis.formattedNumber(trace.getMedian()));
+            }
+            out.print("\t" + TraceAnalysis.formattedNumber(hpd[0]));
+            out.print("\t" + TraceAnalysis.formattedNumber(hpd[1]));
+            out.print("\t" + TraceAnalysis.formattedNumber(ess));
+            if (withStdError) {
+                double[] hpd50 = trace.getHPDInterval(0.5);
+                out.print("\t" + TraceAnalysis.formattedNumber(hpd50[0]));
+                out.print("\t" + TraceAnalysis.formattedNumber(hpd50[1]));
+            }
+
+            if (ess < 100) {
+                warning += 1;
+                out.println("\t" + "*");
+            } else {
+                out.println("\t");
+            }
+        }
+        out.println();
+
+        if (warning > 0) {
+            out.println(" * WARNING: The results of this MCMC analysis may be invalid as ");
+            out.println("            one or more statistics had very low effective sample sizes (ESS)");
+        }
+    }
+
+    /**
+     * Print a single line summary in the same format as TraceAnalysis.shortReport.
+     *
+     * @param out            the stream to print to
+     * @param drawHeader     if true then print the column headings first
+     * @param hpds           if true then report 95% hpd upper and lower
+     * @param individualESSs if true then report the ESS of each statistic
+     * @param stdErr         if true then report the standard error of the mean
+     */
+    public void shortReport(PrintStream out, boolean drawHeader, boolean hpds, boolean individualESSs, boolean stdErr) {
+        if (drawHeader) {
+            out.print("file\t");
+            for (StreamingTraceStatistics trace : statistics) {
+                String traceName = trace.getName();
+                out.print(traceName + "\t");
+                if (stdErr)
+                    out.print(traceName + " stdErr\t");
+                if (hpds) {
+                    out.print(traceName + " hpdLower\t");
+                    out.print(traceName + " hpdUpper\t");
+                }
+                if (individualESSs) {
+                    out.print(traceName + " ESS\t");
+                }
+            }
+            out.println("minESS\tchainLength");
+        }
+
+        double minESS = Double.MAX_VALUE;
+        out.print(file.getPath() + "\t");
+        for (StreamingTraceStatistics trace : statistics) {
+            out.print(trace.getMean() + "\t");
+            if (stdErr)
+                out.print(trace.getStdErrorOfMean() + "\t");
+            if (hpds) {
+                double[] hpd = trace.getHPDInterval(0.95);
+                out.print(hpd[0] + "\t");
+                out.print(hpd[1] + "\t");
+            }
+            double ess = trace.getESS();
+            if (individualESSs) {
+                out.print(ess + "\t");
+            }
+            if (ess < minESS) {
+                minESS = ess;
+            }
+        }
+        out.print(minESS + "\t");
+        out.println(lastState);
+    }
+
+    private void parseLine(String line) {
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (line.trim().length() == 0) {
+            return;
+        }
+
+        if (columns == null) {
+            // skip the comments and header before the column labels
+            if (line.startsWith("#") || line.startsWith("[")) {
+                return;
+            }
+            String[] labels = line.split("\t");
+            columns = new StreamingTraceStatistics[labels.length - 1];
+            numerical = new boolean[labels.length - 1];
+            for (int i = 1; i < labels.length; i++) {
+                columns[i - 1] = new StreamingTraceStatistics(labels[i]);
+                numerical[i - 1] = true;
+            }
+            return;
+        }
+
+        String[] values = line.split("\t");
+        if (values.length < columns.length + 1) {
+            skipLine("it has " + values.length + " of " + (columns.length + 1) + " columns");
+            return;
+        }
+
+        // check the whole line before counting it so a damaged line doesn't stop a follow
+        long state;
+        try {
+            state = Long.parseLong(values[0].trim());
+        } catch (NumberFormatException nfe) {
+            skipLine("the state " + values[0] + " is not an integer");
+            return;
+        }
+
+        boolean first = statistics.isEmpty();
+        double[] sample = new double[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (!numerical[i]) {
+                continue;
+            }
+            try {
+                sample[i] = Double.parseDouble(values[i + 1]);
+            } catch (NumberFormatException nfe) {
+                if (first) {
+                    // categorical columns (e.g., model indicators) are left out of the summaries
+                    numerical[i] = false;
+                } else {
+                    skipLine("the value " + values[i + 1] + " in column " + columns[i].getName() +
+                            " at state " + state + " is not a number");
+                    return;
+                }
+            }
+        }
+
+        if (sampleCount == 1) {
+            stepSize = state - lastState;
+        }
+        lastState = state;
+        sampleCount++;
+
+        if (state < burnin) {
+            return;
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            if (numerical[i]) {
+                columns[i].add(sample[i]);
+            }
+        }
+        if (first) {
+            for (int i = 0; i < columns.length; i++) {
+                if (numerical[i]) {
+                    statistics.add(columns[i]);
+                }
+            }
+        }
+    }
+
+    private void skipLine(String reason) {
+        skippedLineCount++;
+        Logger.getLogger("dr.inference.trace").warning("Skipping line " + (sampleCount + skippedLineCount) +
+                " of the samples in file " + file.getName() + " because " + reason);
+    }
+
+    private void reset() {
+        position = 0;
+        partialLine.reset();
+        columns = null;
+        numerical = null;
+        statistics.clear();
+        sampleCount = 0;
+        skippedLineCount = 0;
+        lastState = -1;
+        stepSize = -1;
+    }
+
+    private final File file;
+    private final long burnin;
+
+    private long position = 0;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+    private StreamingTraceStatistics[] columns = null;
+    private boolean[] numerical = null;
+    private final List<StreamingTraceStatistics> statistics = new ArrayList<StreamingTraceStatistics>();
+
+    private long sampleCount = 0;
+    private long skippedLineCount = 0;
+    private long lastState = -1;
+    private long stepSize = -1;
+}
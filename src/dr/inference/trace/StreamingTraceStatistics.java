@@ -0,0 +1,200 @@
+/*
+ * StreamingTraceStatistics.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+/**
+ * Summary statistics of a trace that are updated one value at a time using a bounded amount of
+ * memory. The mean and variance are accumulated with Welford's method, the ESS is estimated by
+ * batch means and the median and HPD intervals come from a QuantileSketch.
+ *
+ * The batch means use a fixed number of slots: when they are all full adjacent batches are merged
+ * and the batch size doubles, so there are always between MAX_BATCH_COUNT / 2 and MAX_BATCH_COUNT
+ * complete batches once enough samples have been seen.
+ *
+ * @version $Id$
+ */
+public class StreamingTraceStatistics {
+
+    public static final int MAX_BATCH_COUNT = 32;
+
+    public StreamingTraceStatistics(String name) {
+        this(name, QuantileSketch.DEFAULT_CAPACITY);
+    }
+
+    public StreamingTraceStatistics(String name, int sketchCapacity) {
+        this.name = name;
+        this.sketch = new QuantileSketch(sketchCapacity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        sumOfSquares += delta * (value - mean);
+
+        if (value < minimum) {
+            minimum = value;
+        }
+        if (value > maximum) {
+            maximum = value;
+        }
+
+        currentBatchSum += value;
+        currentBatchCount++;
+        if (currentBatchCount == batchSize) {
+            batchMeans[batchCount] = currentBatchSum / batchSize;
+            batchCount++;
+            currentBatchSum = 0.0;
+            currentBatchCount = 0;
+
+            if (batchCount == MAX_BATCH_COUNT) {
+                for (int i = 0; i < MAX_BATCH_COUNT / 2; i++) {
+                    batchMeans[i] = (batchMeans[2 * i] + batchMeans[2 * i + 1]) / 2.0;
+                }
+                batchCount = MAX_BATCH_COUNT / 2;
+                batchSize *= 2;
+            }
+        }
+
+        sketch.add(value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        if (count < 2) {
+            return 0.0;
+        }
+        return sumOfSquares / (count - 1);
+    }
+
+    public double getStdError() {
+        return Math.sqrt(getVariance());
+    }
+
+    public double getMinimum() {
+        return minimum;
+    }
+
+    public double getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return the batch means estimate of the variance of the sample mean multiplied by the sample count
+     * (i.e., the asymptotic variance), or NaN if there are too few batches.
+     */
+    public double getAsymptoticVariance() {
+        if (batchCount < 2) {
+            return Double.NaN;
+        }
+        double batchMean = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            batchMean += batchMeans[i];
+        }
+        batchMean /= batchCount;
+
+        double ss = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            double d = batchMeans[i] - batchMean;
+            ss += d * d;
+        }
+        return batchSize * ss / (batchCount - 1);
+    }
+
+    /**
+     * @return the effective sample size estimated from the batch means
+     */
+    public double getESS() {
+        double variance = getVariance();
+        double asymptoticVariance = getAsymptoticVariance();
+        if (variance == 0.0 || Double.isNaN(asymptoticVariance)) {
+            return count;
+        }
+        if (asymptoticVariance == 0.0) {
+            return count;
+        }
+        return count * variance / asymptoticVariance;
+    }
+
+    /**
+     * @param stepSize the number of states between samples
+     * @return the auto-correlation time in states
+     */
+    public double getACT(long stepSize) {
+        double ess = getESS();
+        if (ess == 0.0) {
+            return Double.NaN;
+        }
+        return stepSize * count / ess;
+    }
+
+    public double getStdErrorOfMean() {
+        double asymptoticVariance = getAsymptoticVariance();
+        if (Double.isNaN(asymptoticVariance)) {
+            asymptoticVariance = getVariance();
+        }
+        return Math.sqrt(asymptoticVariance / count);
+    }
+
+    public double getMedian() {
+        return sketch.getQuantile(0.5);
+    }
+
+    public double getQuantile(double q) {
+        return sketch.getQuantile(q);
+    }
+
+    public double[] getHPDInterval(double proportion) {
+        return sketch.getHPDInterval(proportion);
+    }
+
+    private final String name;
+
+    private long count = 0;
+    private double mean = 0.0;
+    private double sumOfSquares = 0.0;
+    private double minimum = Double.POSITIVE_INFINITY;
+    private double maximum = Double.NEGATIVE_INFINITY;
+
+    private final double[] batchMeans = new double[MAX_BATCH_COUNT];
+    private int batchCount = 0;
+    private long batchSize = 1;
+    private double currentBatchSum = 0.0;
+    private long currentBatchCount = 0;
+
+    private final QuantileSketch sketch;
+}
@@ -46,7 +46,7 @@ public class TraceAnalysis {
     public static LogFileTraces analyzeLogFile(String fileName, long burnin) throws java.io.IOException, TraceException {
 
         File file = new File(fileName);
-        LogFileTraces traces = new LogFileTraces(fileName, file);
+        LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
         traces.loadTraces();
         traces.setBurnIn(burnin);
 
@@ -75,7 +75,7 @@ public class TraceAnalysis {
 
         File file = new File(fileName);
 
-        LogFileTraces traces = new LogFileTraces(fileName, file);
+        LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
 //        if (traces == null) {
 //            throw new TraceException("Trace file is empty.");
 //        }
@@ -179,7 +179,7 @@ public class TraceAnalysis {
     public static void reportTrace(String fileName, long inBurnin, String traceName) throws IOException, TraceException {
         File file = new File(fileName);
 
-        LogFileTraces traces = new LogFileTraces(fileName, file);
+        LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
         traces.loadTraces();
         long burnin = inBurnin;
         if (burnin == -1) {
@@ -87,6 +87,16 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         likelihood.setUsed();
 
+        Likelihood surrogate = null;
+        if (xo.hasChildNamed(SURROGATE)) {
+            surrogate = (Likelihood) xo.getElementFirstChild(SURROGATE);
+            surrogate.setUsed();
+
+            // so the components of the surrogate aren't reported as unused when the chain is created
+            Likelihood.CONNECTED_LIKELIHOOD_SET.add(surrogate);
+            Likelihood.CONNECTED_LIKELIHOOD_SET.addAll(surrogate.getLikelihoodSet());
+        }
+
         if (Boolean.valueOf(System.getProperty("show_warnings", "false"))) {
 
             // check that all models, parameters and likelihoods are being used
@@ -133,11 +143,16 @@ public class MCMCParser extends AbstractXMLObjectParser {
                 "\n  chainLength=" + options.getChainLength() +
                 "\n  autoOptimize=" + options.useCoercion() +
                 (options.useCoercion() ? "\n  autoOptimize delayed for " + options.getCoercionDelay() + " steps" : "") +
-                (options.getFullEvaluationCount() == 0 ? "\n  full evaluation test off" : "")
+                (options.getFullEvaluationCount() == 0 ? "\n  full evaluation test off" : "") +
+                (surrogate != null ? "\n  delayed acceptance using surrogate likelihood, " + surrogate.getId() : "")
         );
 
         mcmc.init(options, likelihood, opsched, loggerArray);
 
+        if (surrogate != null) {
+            mcmc.getMarkovChain().setSurrogateLikelihood(surrogate);
+        }
+
 
         MarkovChain mc = mcmc.getMarkovChain();
         double initialScore = mc.getCurrentScore();
@@ -188,10 +203,14 @@ public class MCMCParser extends AbstractXMLObjectParser {
             AttributeRule.newStringRule(OPERATOR_ANALYSIS, true),
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
+            new ElementRule(SURROGATE, new XMLSyntaxRule[]{
+                    new ElementRule(Likelihood.class)
+            }, "A cheap approximation to the likelihood used to screen proposals (delayed acceptance)", true),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
     };
 
     public static final String COERCION = "autoOptimize";
+    public static final String SURROGATE = "surrogate";
     public static final String NAME = "name";
     public static final String PRE_BURNIN = "preBurnin";
     public static final String COERCION_DELAY = "autoOptimizeDelay";
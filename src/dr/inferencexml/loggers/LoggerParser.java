@@ -35,6 +35,7 @@ import dr.util.Property;
 import dr.xml.*;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Date;
 
@@ -54,6 +55,8 @@ public class LoggerParser extends AbstractXMLObjectParser {
     public static final String TAB = "tab";
     public static final String HTML = "html";
     public static final String PRETTY = "pretty";
+    public static final String BINARY = "binary";
+    public static final String BOTH = "both";
     public static final String LOG_EVERY = "logEvery";
     public static final String ALLOW_OVERWRITE_LOG = "overwrite";
 
@@ -76,9 +79,25 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // You must say how often you want to log
         final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
 
-        final PrintWriter pw = getLogFile(xo, getParserName());
+        String format = xo.getAttribute(FORMAT, TAB);
+        if (!format.equals(TAB) && !format.equals(BINARY) && !format.equals(BOTH)) {
+            throw new XMLParseException("Unknown log format '" + format + "' in " + getParserName() + " element");
+        }
+        if (!format.equals(TAB) && !xo.hasAttribute(FILE_NAME)) {
+            throw new XMLParseException("A binary log needs a " + FILE_NAME + " in " + getParserName() + " element");
+        }
+
+        // the binary copy's file is checked before the tab-delimited log is opened
+        final OutputStream binaryCopy = (format.equals(BOTH) ?
+                getBinaryLogFile(xo, BinaryLogFormatter.FILE_EXTENSION) : null);
 
-        final LogFormatter formatter = new TabDelimitedFormatter(pw);
+        final LogFormatter formatter;
+        if (format.equals(BINARY)) {
+            formatter = new BinaryLogFormatter(getBinaryLogFile(xo, null));
+        } else {
+            final PrintWriter pw = getLogFile(xo, getParserName());
+            formatter = new TabDelimitedFormatter(pw);
+        }
 
         boolean performanceReport = false;
 
@@ -90,6 +109,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // added a performance measurement delay to avoid the full evaluation period.
         final MCLogger logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
 
+        if (binaryCopy != null) {
+            // write a binary copy alongside the tab-delimited log
+            logger.addFormatter(new BinaryLogFormatter(binaryCopy));
+        }
+
         String title = null;
         if (xo.hasAttribute(TITLE)) {
             title = xo.getStringAttribute(TITLE);
@@ -146,6 +170,18 @@ public class LoggerParser extends AbstractXMLObjectParser {
         return XMLParser.getFilePrintWriter(xo, parserName);
     }
 
+    /**
+     * @param extension if not null then the extension replaces that of the log file name
+     * @return a stream to the binary log file
+     */
+    private OutputStream getBinaryLogFile(XMLObject xo, String extension) throws XMLParseException {
+        File logFile = XMLParser.getFileHandle(xo, FILE_NAME);
+        if (extension != null) {
+            logFile = new File(logFile.getParentFile(), BinaryLogFormatter.getBinaryFileName(logFile.getName()));
+        }
+        return XMLParser.getLogOutputStream(XMLParser.checkLogFile(xo, logFile), getParserName());
+    }
+
     //************************************************************************
     // AbstractXMLObjectParser implementation
     //************************************************************************
@@ -160,6 +196,10 @@ public class LoggerParser extends AbstractXMLObjectParser {
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
+            new StringAttributeRule(FORMAT,
+                    "The format of the log file: 'tab' (the default), 'binary' or 'both' " +
+                            "(binary written alongside the tab-delimited log with the extension " +
+                            BinaryLogFormatter.FILE_EXTENSION + ")", true),
             new StringAttributeRule(TITLE,
                     "The title of the log", true),
             new StringAttributeRule(HEADER,
@@ -0,0 +1,117 @@
+/*
+ * ThroughputOperatorScheduleParser.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.operators;
+
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ThroughputOperatorSchedule;
+import dr.xml.*;
+
+import java.util.logging.Logger;
+
+/**
+ * @version $Id$
+ */
+public class ThroughputOperatorScheduleParser extends AbstractXMLObjectParser {
+
+    public static final String THROUGHPUT_OPERATOR_SCHEDULE = "throughputOperators";
+    public static final String ADAPTATION_LENGTH = "adaptationLength";
+    public static final String ADAPT_EVERY = "adaptEvery";
+    public static final String MIN_WEIGHT_FACTOR = "minWeightFactor";
+    public static final String MAX_WEIGHT_FACTOR = "maxWeightFactor";
+
+    public String getParserName() {
+        return THROUGHPUT_OPERATOR_SCHEDULE;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        final long adaptationLength = xo.getLongIntegerAttribute(ADAPTATION_LENGTH);
+        final int adaptEvery = xo.getAttribute(ADAPT_EVERY, 1000);
+        final double minWeightFactor = xo.getAttribute(MIN_WEIGHT_FACTOR, 0.5);
+        final double maxWeightFactor = xo.getAttribute(MAX_WEIGHT_FACTOR, 2.0);
+
+        if (adaptEvery < 1) {
+            throw new XMLParseException("The " + ADAPT_EVERY + " attribute should be at least 1");
+        }
+        if (minWeightFactor <= 0.0 || maxWeightFactor < minWeightFactor) {
+            throw new XMLParseException("The " + MIN_WEIGHT_FACTOR + " attribute should be positive and no greater than " +
+                    MAX_WEIGHT_FACTOR);
+        }
+
+        ThroughputOperatorSchedule schedule = new ThroughputOperatorSchedule(adaptationLength, adaptEvery,
+                minWeightFactor, maxWeightFactor);
+
+        if (xo.hasAttribute(SimpleOperatorScheduleParser.OPTIMIZATION_SCHEDULE)) {
+            String type = xo.getStringAttribute(SimpleOperatorScheduleParser.OPTIMIZATION_SCHEDULE);
+            Logger.getLogger("dr.inference").info("Optimization Schedule: " + type);
+
+            try {
+                schedule.setOptimizationSchedule(OperatorSchedule.OptimizationTransform.valueOf(type.toUpperCase()));
+            } catch (IllegalArgumentException iae) {
+                throw new XMLParseException("Unsupported optimization schedule");
+            }
+        }
+
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Object child = xo.getChild(i);
+            if (child instanceof MCMCOperator) {
+                schedule.addOperator((MCMCOperator) child);
+            }
+        }
+
+        Logger.getLogger("dr.inference").info("Operator weights adapted to the throughput of each operator for the first " +
+                adaptationLength + " states (between " + minWeightFactor + " and " + maxWeightFactor + " times their weights)");
+
+        return schedule;
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newLongIntegerRule(ADAPTATION_LENGTH, false, "The number of states for which the weights are adapted"),
+            AttributeRule.newIntegerRule(ADAPT_EVERY, true, "The number of states between adjustments of the weights"),
+            AttributeRule.newDoubleRule(MIN_WEIGHT_FACTOR, true, "The smallest multiple of an operator's weight that may be used"),
+            AttributeRule.newDoubleRule(MAX_WEIGHT_FACTOR, true, "The largest multiple of an operator's weight that may be used"),
+            AttributeRule.newStringRule(SimpleOperatorScheduleParser.OPTIMIZATION_SCHEDULE, true),
+            new ElementRule(MCMCOperator.class, 1, Integer.MAX_VALUE)
+    };
+
+    public String getParserDescription() {
+        return "An operator schedule that adapts the operator weights to make the most movement per second " +
+                "during the first part of the chain";
+    }
+
+    public Class getReturnType() {
+        return ThroughputOperatorSchedule.class;
+    }
+}
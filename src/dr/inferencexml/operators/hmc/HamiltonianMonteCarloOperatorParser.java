@@ -49,6 +49,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
     private final static String MODE = "mode";
     private final static String NUTS = "nuts";
     private final static String VANILLA = "vanilla";
+    private final static String MASS_ADAPTATION_LENGTH = "massAdaptationLength";
 
     @Override
     public String getParserName() {
@@ -71,6 +72,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
         double stepSize = xo.getDoubleAttribute(STEP_SIZE);
         double drawVariance = xo.getDoubleAttribute(DRAW_VARIANCE);
         int runMode = parseRunMode(xo);
+        int massAdaptationLength = xo.getAttribute(MASS_ADAPTATION_LENGTH, 0);
 
         CoercionMode coercionMode = CoercionMode.parseMode(xo);
 
@@ -90,8 +92,11 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
 
         if (runMode == 0) {
             return new HamiltonianMonteCarloOperator(coercionMode, weight, derivative, parameter, transform,
-                    stepSize, nSteps, drawVariance);
+                    stepSize, nSteps, drawVariance, massAdaptationLength);
         } else {
+            if (massAdaptationLength > 0) {
+                throw new XMLParseException("The mass matrix can only be adapted for vanilla HMC");
+            }
             return new NoUTurnOperator(coercionMode, weight, derivative, parameter,transform,
                     stepSize, nSteps, drawVariance);
         }
@@ -109,6 +114,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
             AttributeRule.newDoubleRule(DRAW_VARIANCE),
             AttributeRule.newBooleanRule(CoercableMCMCOperator.AUTO_OPTIMIZE, true),
             AttributeRule.newStringRule(MODE, true),
+            AttributeRule.newIntegerRule(MASS_ADAPTATION_LENGTH, true),
             new ElementRule(Parameter.class),
             new ElementRule(Transform.MultivariableTransformWithParameter.class, true),
             new ElementRule(GradientWrtParameterProvider.class),
@@ -72,7 +72,7 @@ public class AICMAnalysisParser extends AbstractXMLObjectParser {
             int bootstrapLength = xo.getAttribute(BOOTSTRAP_LENGTH, 1000);
 
             // Load traces and remove burnin
-            LogFileTraces traces = new LogFileTraces(fileName, file);
+            LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
             traces.loadTraces();
             long maxState = traces.getMaxState();
 
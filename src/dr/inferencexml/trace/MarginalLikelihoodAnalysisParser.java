@@ -72,7 +72,7 @@ public class MarginalLikelihoodAnalysisParser extends AbstractXMLObjectParser {
             XMLObject cxo = xo.getChild(COLUMN_NAME);
             String likelihoodName = cxo.getStringAttribute(Attribute.NAME);
 
-            LogFileTraces traces = new LogFileTraces(fileName, file);
+            LogFileTraces traces = LogFileTraces.createLogFileTraces(fileName, file);
             traces.loadTraces();
             long maxState = traces.getMaxState();
 
@@ -0,0 +1,231 @@
+/*
+ * TridiagonalCholesky.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.math.matrixAlgebra;
+
+/**
+ * The Cholesky factorization Q = U'U of a symmetric positive definite tridiagonal matrix (such as
+ * the precision matrix of a GMRF) given by its diagonal and off diagonal, with the solves, log
+ * determinant and quadratic form that go with it. Everything is O(n) and works in arrays that are
+ * allocated once, so one of these can be kept and reused for matrices of the same size.
+ *
+ * The arithmetic is done in the same order as the LAPACK routines used by MTJ (pbtrf, tbtrs and
+ * ptsv with a bandwidth of 1) so the results are the same as those from BandCholesky,
+ * UpperTriangBandMatrix and SPDTridiagMatrix.
+ *
+ * @version $Id$
+ */
+public class TridiagonalCholesky {
+
+    public TridiagonalCholesky(int dimension) {
+        this.dimension = dimension;
+        diagonal = new double[dimension];
+        offDiagonal = new double[Math.max(dimension - 1, 0)];
+        work = new double[dimension];
+        workOffDiagonal = new double[Math.max(dimension - 1, 0)];
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Factorizes the matrix with this diagonal and off diagonal (which aren't changed).
+     *
+     * @return false if the matrix isn't positive definite
+     */
+    public boolean factor(double[] matrixDiagonal, double[] matrixOffDiagonal) {
+        double next = matrixDiagonal[0];
+        for (int i = 0; i < dimension; i++) {
+            if (next <= 0.0) {
+                factored = false;
+                return false;
+            }
+            final double d = Math.sqrt(next);
+            diagonal[i] = d;
+            if (i < dimension - 1) {
+                final double u = matrixOffDiagonal[i] * (1.0 / d);
+                offDiagonal[i] = u;
+                next = matrixDiagonal[i + 1] + u * -u;
+            }
+        }
+        factored = true;
+        return true;
+    }
+
+    /**
+     * @return the ith diagonal element of the factor U
+     */
+    public double getFactorDiagonal(int i) {
+        checkFactored();
+        return diagonal[i];
+    }
+
+    /**
+     * @return the ith off diagonal element of the factor U (i.e., U[i][i + 1])
+     */
+    public double getFactorOffDiagonal(int i) {
+        checkFactored();
+        return offDiagonal[i];
+    }
+
+    /**
+     * @return the log determinant of the factorized matrix
+     */
+    public double getLogDeterminant() {
+        checkFactored();
+        double logDet = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            logDet += Math.log(diagonal[i]);
+        }
+        return 2.0 * logDet;
+    }
+
+    /**
+     * Solves U'x = b (x and b may be the same array).
+     */
+    public void solveTranspose(double[] b, double[] x) {
+        checkFactored();
+        double previous = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double value = b[i];
+            if (i > 0) {
+                value -= offDiagonal[i - 1] * previous;
+            }
+            previous = value / diagonal[i];
+            x[i] = previous;
+        }
+    }
+
+    /**
+     * Solves Ux = b (x and b may be the same array).
+     */
+    public void solveUpper(double[] b, double[] x) {
+        checkFactored();
+        if (x != b) {
+            System.arraycopy(b, 0, x, 0, dimension);
+        }
+        for (int i = dimension - 1; i >= 0; i--) {
+            if (x[i] != 0.0) {
+                x[i] = x[i] / diagonal[i];
+                if (i > 0) {
+                    x[i - 1] -= x[i] * offDiagonal[i - 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Solves Qx = b for the factorized matrix Q (x and b may be the same array).
+     */
+    public void solve(double[] b, double[] x) {
+        solveTranspose(b, work);
+        solveUpper(work, x);
+    }
+
+    /**
+     * Solves Qx = b without keeping a factorization, using the LDL' factorization (as LAPACK ptsv
+     * does). Doesn't change the factorization held by this object.
+     *
+     * @return false if the matrix isn't positive definite
+     */
+    public boolean solveOnce(double[] matrixDiagonal, double[] matrixOffDiagonal, double[] b, double[] x) {
+        final double[] d = work;
+        final double[] e = workOffDiagonal;
+        System.arraycopy(matrixDiagonal, 0, d, 0, dimension);
+        if (dimension > 1) {
+            System.arraycopy(matrixOffDiagonal, 0, e, 0, dimension - 1);
+        }
+
+        for (int i = 0; i < dimension - 1; i++) {
+            if (d[i] <= 0.0) {
+                return false;
+            }
+            final double ei = e[i];
+            e[i] = ei / d[i];
+            d[i + 1] = d[i + 1] - e[i] * ei;
+        }
+        if (d[dimension - 1] <= 0.0) {
+            return false;
+        }
+
+        if (x != b) {
+            System.arraycopy(b, 0, x, 0, dimension);
+        }
+        for (int i = 1; i < dimension; i++) {
+            x[i] = x[i] - x[i - 1] * e[i - 1];
+        }
+        x[dimension - 1] = x[dimension - 1] / d[dimension - 1];
+        for (int i = dimension - 2; i >= 0; i--) {
+            x[i] = x[i] / d[i] - x[i + 1] * e[i];
+        }
+        return true;
+    }
+
+    private void checkFactored() {
+        if (!factored) {
+            throw new IllegalStateException("No matrix has been factorized");
+        }
+    }
+
+    /**
+     * Calculates y = Qx for the symmetric tridiagonal matrix Q with this diagonal and off diagonal
+     * (adding the entries in the same order as MTJ's SymmTridiagMatrix.mult).
+     */
+    public static void multiply(double[] matrixDiagonal, double[] matrixOffDiagonal, double[] x, double[] y, int dimension) {
+        for (int i = 0; i < dimension; i++) {
+            y[i] = matrixDiagonal[i] * x[i];
+        }
+        for (int i = 0; i < dimension - 1; i++) {
+            y[i + 1] += matrixOffDiagonal[i] * x[i];
+        }
+        for (int i = 0; i < dimension - 1; i++) {
+            y[i] += matrixOffDiagonal[i] * x[i + 1];
+        }
+    }
+
+    /**
+     * @return x'Qx for the symmetric tridiagonal matrix Q with this diagonal and off diagonal, using
+     * the array y of the same dimension for Qx.
+     */
+    public static double quadraticForm(double[] matrixDiagonal, double[] matrixOffDiagonal, double[] x, double[] y, int dimension) {
+        multiply(matrixDiagonal, matrixOffDiagonal, x, y, dimension);
+        double sum = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    private final int dimension;
+
+    // the factor U
+    private final double[] diagonal;
+    private final double[] offDiagonal;
+    private boolean factored = false;
+
+    private final double[] work;
+    private final double[] workOffDiagonal;
+}
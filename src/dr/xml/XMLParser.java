@@ -46,6 +46,12 @@ public class XMLParser {
     public static final String CONCURRENT = "concurrent";
     public static final String VERSION = "version";
 
+    /**
+     * A system property that, when true, stops the log files of the elements being parsed from
+     * being checked or opened (for copies of a model that are parsed but never run themselves).
+     */
+    public static final String DISCARD_LOGS = "log.discard";
+
     private Vector<Thread> threads = new Vector<Thread>();
     protected boolean strictXML;
     protected boolean parserWarnings;
@@ -412,7 +418,7 @@ public class XMLParser {
      * @param xo
      * @return
      */
-    private static File getFileHandle(XMLObject xo, String attributeName) throws XMLParseException {
+    public static File getFileHandle(XMLObject xo, String attributeName) throws XMLParseException {
         String fileName = xo.getStringAttribute(attributeName);
 
         // Check to see if a filename prefix has been specified, check it doesn't contain directory
@@ -455,20 +461,46 @@ public class XMLParser {
 
         if (xo.hasAttribute(attributeName)) {
             File logFile = getLogFile(xo, attributeName);
+            return new PrintWriter(getLogOutputStream(logFile, parserName));
+        }
+        return new PrintWriter(System.out);
+    }
 
-            try {
-                return new PrintWriter(new FileOutputStream(logFile));
-            } catch (FileNotFoundException fnfe) {
-                throw new XMLParseException("File '" + logFile.getAbsolutePath() +
-                        "' can not be opened for " + parserName + " element.");
-            }
+    /**
+     * @return a stream to the log file or one that discards what is written if DISCARD_LOGS is set
+     * @throws XMLParseException if the file can't be opened
+     */
+    public static OutputStream getLogOutputStream(File logFile, String parserName) throws XMLParseException {
+        if (Boolean.getBoolean(DISCARD_LOGS)) {
+            return new OutputStream() {
+                public void write(int b) {
+                }
 
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+
+        try {
+            return new FileOutputStream(logFile);
+        } catch (FileNotFoundException fnfe) {
+            throw new XMLParseException("File '" + logFile.getAbsolutePath() +
+                    "' can not be opened for " + parserName + " element.");
         }
-        return new PrintWriter(System.out);
     }
 
     public static File getLogFile(XMLObject xo, String attributeName) throws XMLParseException {
-        final File logFile = getFileHandle(xo, attributeName);
+        return checkLogFile(xo, getFileHandle(xo, attributeName));
+    }
+
+    /**
+     * Checks that a log file doesn't already exist unless it is allowed to be overwritten (by the
+     * element or the '-overwrite' option).
+     *
+     * @return the log file
+     * @throws XMLParseException if the file exists and can't be overwritten
+     */
+    public static File checkLogFile(XMLObject xo, File logFile) throws XMLParseException {
         boolean allowOverwrite = false;
 
         if (xo.hasAttribute(LoggerParser.ALLOW_OVERWRITE_LOG)) {
@@ -480,7 +512,7 @@ public class XMLParser {
             allowOverwrite = Boolean.parseBoolean(System.getProperty("log.allow.overwrite", "false"));
         }
 
-        if (logFile.exists() && !allowOverwrite) {
+        if (logFile.exists() && !allowOverwrite && !Boolean.getBoolean(DISCARD_LOGS)) {
             throw new XMLParseException("\nThe log file " + logFile.getName() + " already exists in the working directory." +
                     "\nTo allow it to be overwritten, use the '-overwrite' command line option when running" +
                     "\nBEAST or select the option in the Run Options dialog box as appropriate.");
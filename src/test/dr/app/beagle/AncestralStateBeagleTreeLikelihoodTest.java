@@ -13,6 +13,7 @@ import dr.evolution.util.Taxa;
 import dr.evolution.alignment.SimpleAlignment;
 import dr.evolution.datatype.Nucleotides;
 import dr.math.MathUtils;
+import dr.evolution.tree.NodeRef;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.inference.model.Parameter;
@@ -22,6 +23,9 @@ import dr.evomodel.treelikelihood.AncestralStateBeagleTreeLikelihood;
 import dr.evomodel.treelikelihood.PartialsRescalingScheme;
 import dr.evomodel.siteratemodel.GammaSiteRateModel;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * @author Alexei Drummond
@@ -126,4 +130,115 @@ public class AncestralStateBeagleTreeLikelihoodTest extends TraceCorrelationAsse
 
         assertEquals(logLike, Math.log(trueValue), 1e-6);
     }
-}
\ No newline at end of file
+
+    /**
+     * One sampling thread draws the same states from the same random numbers as a likelihood that
+     * was never given a thread count, and leaves the random number generator in the same state.
+     */
+    public void testSingleSamplingThread() {
+        TreeModel treeModel = new TreeModel("treeModel", tree);
+        AncestralStateBeagleTreeLikelihood baseline = createSamplingLikelihood(treeModel);
+        AncestralStateBeagleTreeLikelihood treeLikelihood = createSamplingLikelihood(treeModel);
+        treeLikelihood.setSamplingThreadCount(3);
+        treeLikelihood.setSamplingThreadCount(1);
+
+        MathUtils.setSeed(1234);
+        List<int[]> expected = drawStates(baseline, treeModel);
+        double next = MathUtils.nextDouble();
+
+        MathUtils.setSeed(1234);
+        assertStatesEqual(expected, drawStates(treeLikelihood, treeModel));
+        assertEquals(next, MathUtils.nextDouble(), 0.0);
+    }
+
+    /**
+     * With several threads each block of patterns has its own generator, seeded from the main one
+     * each time the states are drawn, so the draws are the same for the same seed.
+     */
+    public void testSamplingThreadsReproducible() {
+        TreeModel treeModel = new TreeModel("treeModel", tree);
+        AncestralStateBeagleTreeLikelihood first = createSamplingLikelihood(treeModel);
+        AncestralStateBeagleTreeLikelihood second = createSamplingLikelihood(treeModel);
+        first.setSamplingThreadCount(3);
+        second.setSamplingThreadCount(3);
+
+        MathUtils.setSeed(1234);
+        List<int[]> expected = drawStates(first, treeModel);
+
+        MathUtils.setSeed(1234);
+        List<int[]> states = drawStates(second, treeModel);
+        assertStatesEqual(expected, states);
+
+        // the tips are unambiguous so their states are those of the alignment
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            int[] tipStates = second.getStatesForNode(treeModel, treeModel.getExternalNode(i));
+            String sequence = SAMPLING_SEQUENCES[Integer.parseInt(treeModel.getNodeTaxon(treeModel.getExternalNode(i)).getId())];
+            for (int j = 0; j < tipStates.length; j++) {
+                assertEquals(Nucleotides.INSTANCE.getState(sequence.charAt(j)), tipStates[j]);
+            }
+        }
+    }
+
+    private static final String[] SAMPLING_SEQUENCES = {
+            "ACGTACGTAAGGCCTTACGAACGTTTGACA",
+            "ACGTACGAAAGGCTTTACGAACCTTTGACA",
+            "ACCTACGTTAGGCCTAACGTACGTTAGGCA"
+    };
+
+    private List<int[]> drawStates(AncestralStateBeagleTreeLikelihood treeLikelihood, TreeModel treeModel) {
+        List<int[]> states = new ArrayList<int[]>();
+        for (int i = 0; i < 5; i++) {
+            treeLikelihood.makeDirty();
+            treeLikelihood.getLogLikelihood();
+            for (int j = 0; j < treeModel.getNodeCount(); j++) {
+                NodeRef node = treeModel.getNode(j);
+                states.add(treeLikelihood.getStatesForNode(treeModel, node).clone());
+            }
+        }
+        return states;
+    }
+
+    private void assertStatesEqual(List<int[]> expected, List<int[]> states) {
+        assertEquals(expected.size(), states.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).length, states.get(i).length);
+            for (int j = 0; j < expected.get(i).length; j++) {
+                assertEquals(expected.get(i)[j], states.get(i)[j]);
+            }
+        }
+    }
+
+    /**
+     * Four gamma categories, so the categories of the patterns are drawn as well as their states.
+     */
+    private AncestralStateBeagleTreeLikelihood createSamplingLikelihood(TreeModel treeModel) {
+        SimpleAlignment alignment = new SimpleAlignment();
+        for (int i = 0; i < SAMPLING_SEQUENCES.length; i++) {
+            alignment.addSequence(new Sequence(new Taxon("" + i), SAMPLING_SEQUENCES[i]));
+        }
+
+        Parameter freqs = new Parameter.Default(new double[]{0.40, 0.25, 0.25, 0.10});
+        HKY hky = new HKY(new Parameter.Default(1, 5.0), new FrequencyModel(Nucleotides.INSTANCE, freqs));
+
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", new Parameter.Default(1, 1.0),
+                new Parameter.Default(1, 0.5), 4, null);
+        siteRateModel.setSubstitutionModel(hky);
+
+        return new AncestralStateBeagleTreeLikelihood(
+                alignment,
+                treeModel,
+                new HomogeneousBranchModel(hky),
+                siteRateModel,
+                null,
+                null,
+                false,
+                PartialsRescalingScheme.DEFAULT,
+                true,
+                null,
+                hky.getDataType(),
+                "stateTag",
+                false, // useMap = false
+                false
+        );
+    }
+}
@@ -121,6 +121,77 @@ public class MarkovJumpsTest extends TraceCorrelationAssert {
         assertEquals(valuesFromR, averages, 1E-2);
     }
 
+    /**
+     * With several rate categories the expected counts kept for a branch must be recomputed when
+     * the categories of its patterns are redrawn, even if their states are not. Each draw is
+     * compared with that of a new likelihood given the same random numbers.
+     */
+    public void testRateCategories() {
+
+        createAlignment(sequencesFour, Nucleotides.INSTANCE);
+
+        try {
+            createSpecifiedTree("((human:0.3,chimp:0.2):0.1,(gorilla:0.4,orangutan:0.5):0.2)");
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to parse Newick tree");
+        }
+
+        Parameter freqs = new Parameter.Default(new double[]{0.40, 0.25, 0.25, 0.10});
+        Parameter kappa = new Parameter.Default(HKYParser.KAPPA, 10.0, 0, 100);
+        HKY hky = new HKY(kappa, new FrequencyModel(Nucleotides.INSTANCE, freqs));
+
+        Parameter mu = new Parameter.Default(GammaSiteModelParser.MUTATION_RATE, 1.0, 0, Double.POSITIVE_INFINITY);
+        Parameter shape = new Parameter.Default(GammaSiteModelParser.GAMMA_SHAPE, 0.2, 0, Double.POSITIVE_INFINITY);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", mu, shape, 4, null);
+        siteRateModel.setSubstitutionModel(hky);
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        MarkovJumpsBeagleTreeLikelihood mjTreeLikelihood = createLikelihood(patterns, hky, siteRateModel);
+
+        for (int i = 0; i < 50; i++) {
+            mjTreeLikelihood.makeDirty();
+            mjTreeLikelihood.getLogLikelihood();
+            MathUtils.setSeed(1000 + i);
+            double[][] values = mjTreeLikelihood.getMarkovJumpsForRegister(treeModel, 0);
+
+            MarkovJumpsBeagleTreeLikelihood newTreeLikelihood = createLikelihood(patterns, hky, siteRateModel);
+            newTreeLikelihood.getLogLikelihood();
+            MathUtils.setSeed(1000 + i);
+            double[][] expected = newTreeLikelihood.getMarkovJumpsForRegister(treeModel, 0);
+
+            assertEquals(expected, values, 1E-12);
+        }
+    }
+
+    private MarkovJumpsBeagleTreeLikelihood createLikelihood(SitePatterns patterns, HKY hky,
+                                                             GammaSiteRateModel siteRateModel) {
+        MarkovJumpsBeagleTreeLikelihood mjTreeLikelihood = new MarkovJumpsBeagleTreeLikelihood(
+                patterns,
+                treeModel,
+                new HomogeneousBranchModel(hky),
+                siteRateModel,
+                null,
+                null,
+                false,
+                PartialsRescalingScheme.AUTO,
+                true,
+                null,
+                hky.getDataType(),
+                "stateTag",
+                false, // use MAP
+                true, // return ML
+                false, // use uniformization
+                false,
+                1000
+        );
+
+        Parameter registerParameter = new Parameter.Default(registerValues[0]);
+        registerParameter.setId(registerTages[0]);
+        mjTreeLikelihood.addRegister(registerParameter, registerTypes[0], registerScales[0]);
+        return mjTreeLikelihood;
+    }
+
     private static double[][] registerValues = {
             {
                     0, 1, 1, 1,
@@ -157,6 +228,15 @@ public class MarkovJumpsTest extends TraceCorrelationAssert {
                     "A"}
     };
 
+    static private String sequencesFour[][] = {
+            {"human", "chimp", "gorilla", "orangutan"},
+            {
+                    "ACGTACGTAAGGCCTTACGA",
+                    "ACGTACGAAAGGCTTTACGA",
+                    "ACCTACGTTAGGCCTAACGT",
+                    "TCCTGCGTTAGACCTAACCT"}
+    };
+
 //    static private String sequencesThree[][] = {
 //            {"human", "chimp", "gorilla"},
 //            {
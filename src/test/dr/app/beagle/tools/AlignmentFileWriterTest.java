@@ -0,0 +1,176 @@
+package test.dr.app.beagle.tools;
+
+import dr.app.beagle.tools.AlignmentFileWriter;
+import dr.app.beagle.tools.BeagleSequenceSimulator;
+import dr.app.beagle.tools.Partition;
+import dr.evolution.datatype.GeneralDataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.GeneralSubstitutionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that an alignment written in blocks of columns comes out the same whatever order the blocks
+ * are written in, that the states of a general data type may have codes of more than one
+ * character, and that a simulation in blocks doesn't depend on the number of threads. There is
+ * no native BEAGLE library in some test environments so the Java implementation is used.
+ */
+public class AlignmentFileWriterTest extends TestCase {
+
+    private static final String[] LOCATIONS = {"AB", "CD", "EF"};
+
+    private File directory;
+
+    public void setUp() throws IOException {
+        System.setProperty("java.only", "true");
+
+        directory = File.createTempFile("alignment", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() {
+        System.clearProperty("java.only");
+
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    public void testBlocks() throws IOException {
+        List<Taxon> taxa = createTaxa("human", "chimp", "gorilla");
+        File file = new File(directory, "blocks.fasta");
+
+        AlignmentFileWriter writer = new AlignmentFileWriter(file, AlignmentFileWriter.Format.FASTA, taxa, 8,
+                Nucleotides.INSTANCE);
+        assertEquals(1, writer.getCharactersPerSite());
+
+        // the second block first
+        writer.writeBlock(4, new byte[][]{"TTTT".getBytes(), "GG--".getBytes(), "CCCC".getBytes()});
+        writer.writeBlock(0, new byte[][]{"ACGT".getBytes(), "AAAA".getBytes(), "----".getBytes()});
+        writer.close();
+
+        assertEquals(Arrays.asList(">human", "ACGTTTTT", ">chimp", "AAAAGG--", ">gorilla", "----CCCC"), readLines(file));
+    }
+
+    public void testMultipleCharacterCodes() throws IOException {
+        List<Taxon> taxa = createTaxa("a", "bb");
+        File file = new File(directory, "locations.phy");
+
+        AlignmentFileWriter writer = new AlignmentFileWriter(file, AlignmentFileWriter.Format.PHYLIP, taxa, 3,
+                new GeneralDataType(LOCATIONS));
+        assertEquals(2, writer.getCharactersPerSite());
+        assertEquals("CD", new String(writer.getStateCodes()[1]));
+        assertEquals("--", new String(writer.getGapCode()));
+
+        writer.writeBlock(0, new byte[][]{"ABCDEF".getBytes(), "EF--AB".getBytes()});
+        writer.close();
+
+        assertEquals(Arrays.asList("2 6", "a  ABCDEF", "bb EF--AB"), readLines(file));
+    }
+
+    public void testDifferentCodeLengths() throws IOException {
+        try {
+            new AlignmentFileWriter(new File(directory, "mixed.fasta"), AlignmentFileWriter.Format.FASTA,
+                    createTaxa("a"), 10, new GeneralDataType(new String[]{"A", "BC"}));
+            fail("Codes of different lengths can't be written in columns");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    public void testSimulateLocations() throws Exception {
+        final int siteCount = 50;
+
+        // each block has its own random numbers so the output doesn't depend on the number of threads
+        List<String> lines1 = simulate(1, siteCount, 7, 1, null);
+        List<String> lines3 = simulate(1, siteCount, 7, 3, null);
+        assertEquals(lines1, lines3);
+
+        assertEquals(8, lines1.size());
+        for (int i = 1; i < lines1.size(); i += 2) {
+            String sequence = lines1.get(i);
+            assertEquals(2 * siteCount, sequence.length());
+            for (int j = 0; j < sequence.length(); j += 2) {
+                assertTrue(Arrays.asList(LOCATIONS).contains(sequence.substring(j, j + 2)));
+            }
+        }
+
+        // a root sequence of two character codes is read site by site (the branches are so short
+        // that the tips are all the same as the root)
+        StringBuilder root = new StringBuilder();
+        for (int i = 0; i < siteCount; i++) {
+            root.append(LOCATIONS[(i * 7) % LOCATIONS.length]);
+        }
+        List<String> lines = simulate(1E-12, siteCount, 10, 2, root.toString());
+        for (int i = 1; i < lines.size(); i += 2) {
+            assertEquals(root.toString(), lines.get(i));
+        }
+    }
+
+    private List<String> simulate(double branchLength, int siteCount, int blockSize, int threadCount,
+                                  String rootSequence) throws Exception {
+        MathUtils.setSeed(666);
+
+        Tree tree = new NewickImporter("((a:" + branchLength + ",b:" + branchLength + "):" + branchLength +
+                ",(c:" + branchLength + ",d:" + branchLength + "):" + branchLength + ")").importTree(null);
+        TreeModel treeModel = new TreeModel(tree);
+
+        GeneralDataType dataType = new GeneralDataType(LOCATIONS);
+        FrequencyModel frequencyModel = new FrequencyModel(dataType, new double[]{0.5, 0.3, 0.2});
+        GeneralSubstitutionModel substitutionModel = new GeneralSubstitutionModel("locations", dataType,
+                frequencyModel, new Parameter.Default(3, 1.0), -1);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel");
+
+        Partition partition = new Partition(treeModel, new HomogeneousBranchModel(substitutionModel), siteRateModel,
+                new DefaultBranchRateModel(), frequencyModel, 0, siteCount - 1, 1);
+        if (rootSequence != null) {
+            partition.setRootSequence(new Sequence(rootSequence));
+        }
+
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(partition);
+
+        File file = new File(directory, "simulated" + threadCount + ".fasta");
+        new BeagleSequenceSimulator(partitions).simulate(file, AlignmentFileWriter.Format.FASTA, threadCount, blockSize);
+        return readLines(file);
+    }
+
+    private static List<Taxon> createTaxa(String... names) {
+        List<Taxon> taxa = new ArrayList<Taxon>();
+        for (String name : names) {
+            taxa.add(new Taxon(name));
+        }
+        return taxa;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+}
@@ -0,0 +1,180 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.AsyncCheckpointWriter;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class AsyncCheckpointWriterTest extends TestCase {
+
+    private File directory;
+    private File file;
+
+    public void setUp() throws IOException {
+        directory = File.createTempFile("checkpoint", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "test.state");
+    }
+
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    public void testRoundTrip() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(1);
+        byte[] payload = writeSnapshot(writer, 1000);
+        writer.close();
+
+        assertEquals(1, writer.getWriteCount());
+        assertTrue(AsyncCheckpointWriter.isBinaryCheckpoint(file));
+        assertTrue(Arrays.equals(payload, AsyncCheckpointWriter.readPayload(file)));
+
+        // the temporary file has been renamed over the checkpoint
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    public void testGenerations() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(3);
+        byte[][] payloads = new byte[5][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = writeSnapshot(writer, 100 + i);
+            // wait so the generations are shifted in order
+            writer.flush();
+        }
+        writer.close();
+
+        assertEquals(5, writer.getWriteCount());
+        assertTrue(Arrays.equals(payloads[4], AsyncCheckpointWriter.readPayload(file)));
+        assertTrue(Arrays.equals(payloads[3], AsyncCheckpointWriter.readPayload(AsyncCheckpointWriter.getGenerationFile(file, 1))));
+        assertTrue(Arrays.equals(payloads[2], AsyncCheckpointWriter.readPayload(AsyncCheckpointWriter.getGenerationFile(file, 2))));
+        assertFalse(AsyncCheckpointWriter.getGenerationFile(file, 3).exists());
+    }
+
+    public void testTruncated() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(1);
+        writeSnapshot(writer, 1000);
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 20);
+        raf.close();
+
+        try {
+            AsyncCheckpointWriter.readPayload(file);
+            fail("A truncated checkpoint should not be read");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage().contains("truncated"));
+        }
+    }
+
+    public void testCorrupt() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(1);
+        writeSnapshot(writer, 1000);
+        writer.close();
+
+        // flip a byte in the payload
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(AsyncCheckpointWriter.MAGIC.length + 8 + 500);
+        int b = raf.read();
+        raf.seek(AsyncCheckpointWriter.MAGIC.length + 8 + 500);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        try {
+            AsyncCheckpointWriter.readPayload(file);
+            fail("A corrupt checkpoint should not be read");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage().contains("checksum"));
+        }
+    }
+
+    public void testNotBinary() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("state\t1000\n");
+        raf.close();
+
+        assertFalse(AsyncCheckpointWriter.isBinaryCheckpoint(file));
+        try {
+            AsyncCheckpointWriter.readPayload(file);
+            fail("A text checkpoint should not be read as binary");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    public void testFallBackToEarlierGeneration() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(2);
+        byte[] first = writeSnapshot(writer, 100);
+        writer.flush();
+        writeSnapshot(writer, 200);
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(AsyncCheckpointWriter.MAGIC.length + 10);
+        raf.close();
+
+        assertTrue(Arrays.equals(first, AsyncCheckpointWriter.readLatestPayload(file)));
+
+        // and with the latest missing altogether
+        file.delete();
+        assertTrue(Arrays.equals(first, AsyncCheckpointWriter.readLatestPayload(file)));
+
+        AsyncCheckpointWriter.getGenerationFile(file, 1).delete();
+        try {
+            AsyncCheckpointWriter.readLatestPayload(file);
+            fail("There is no checkpoint to read");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    public void testInterrupted() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(1);
+        byte[] payload = null;
+        Thread.currentThread().interrupt();
+        try {
+            // an interrupt doesn't let a buffer be reused while it is still being written
+            for (int i = 0; i < 10; i++) {
+                payload = writeSnapshot(writer, 100000 + i);
+            }
+            writer.flush();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        writer.close();
+
+        assertEquals(10, writer.getWriteCount());
+        assertTrue(Arrays.equals(payload, AsyncCheckpointWriter.readPayload(file)));
+    }
+
+    public void testMovedAside() throws IOException {
+        AsyncCheckpointWriter writer = new AsyncCheckpointWriter(1);
+        byte[] payload = writeSnapshot(writer, 1000);
+        writer.close();
+
+        // as left by a write that stopped after moving the old checkpoint aside
+        assertTrue(file.renameTo(new File(file.getPath() + ".old")));
+        assertTrue(Arrays.equals(payload, AsyncCheckpointWriter.readLatestPayload(file)));
+    }
+
+    private byte[] writeSnapshot(AsyncCheckpointWriter writer, int length) throws IOException {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + length);
+        }
+        DataOutputStream out = writer.beginSnapshot();
+        out.write(payload);
+        out.flush();
+        writer.submit(file);
+        return payload;
+    }
+}
@@ -0,0 +1,81 @@
+package test.dr.evolution;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.CladeHashCounter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks the hashed clade counts against counting the sets of tips of each clade.
+ */
+public class CladeHashCounterTest extends TestCase {
+
+    private static final String[] TREES = {
+            "((A:1,B:1):1,(C:1,(D:0.5,E:0.5):0.5):1);",
+            "((B:1,A:1):1,((E:0.5,D:0.5):0.5,C:1):1);",
+            "((A:1,C:1):1,(B:1,(D:0.5,E:0.5):0.5):1);",
+            "(((A:0.5,B:0.5):0.5,C:1):1,(D:1,E:1):1);",
+            "((A:1,B:1):1,(C:1,(D:0.5,E:0.5):0.5):1);"
+    };
+
+    public void testCounts() throws Exception {
+        Tree[] trees = new Tree[TREES.length];
+        CladeHashCounter counter = new CladeHashCounter();
+        for (int i = 0; i < TREES.length; i++) {
+            trees[i] = new NewickImporter(TREES[i]).importTree(null);
+            counter.add(trees[i]);
+        }
+
+        Set<Set<String>> clades = new HashSet<Set<String>>();
+        for (Tree tree : trees) {
+            for (int j = 0; j < tree.getInternalNodeCount(); j++) {
+                clades.add(getTips(tree, tree.getInternalNode(j)));
+            }
+        }
+        assertEquals(clades.size(), counter.getCladeCount());
+
+        Tree tree = trees[0];
+        double logCredibility = 0.0;
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+            NodeRef node = tree.getInternalNode(i);
+            int expected = 0;
+            for (Tree other : trees) {
+                if (containsClade(other, getTips(tree, node))) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, counter.getCount(tree, node));
+            logCredibility += Math.log((double) expected / trees.length);
+        }
+        assertEquals(logCredibility, counter.getLogCladeCredibility(tree, trees.length), 1E-12);
+
+        // the same topology with the children in a different order
+        assertEquals(counter.getLogCladeCredibility(trees[0], trees.length),
+                counter.getLogCladeCredibility(trees[1], trees.length), 1E-12);
+    }
+
+    private static Set<String> getTips(Tree tree, NodeRef node) {
+        Set<String> tips = new HashSet<String>();
+        if (tree.isExternal(node)) {
+            tips.add(tree.getNodeTaxon(node).getId());
+        } else {
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                tips.addAll(getTips(tree, tree.getChild(node, i)));
+            }
+        }
+        return tips;
+    }
+
+    private static boolean containsClade(Tree tree, Set<String> tips) {
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+            if (getTips(tree, tree.getInternalNode(i)).equals(tips)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
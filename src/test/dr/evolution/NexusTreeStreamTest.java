@@ -0,0 +1,130 @@
+package test.dr.evolution;
+
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.NexusTreeStream;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Checks the trees read by NexusTreeStream against those read by NexusImporter.
+ */
+public class NexusTreeStreamTest extends TestCase {
+
+    private static final String[] TAXA = {"A", "B", "'C;c'", "'D''s d'", "E"};
+
+    private static final int TREE_COUNT = 200;
+
+    public void testSameTrees() throws Exception {
+        String nexus = createTrees(TREE_COUNT);
+        Tree[] expected = new NexusImporter(new StringReader(nexus)).importTrees(null);
+        assertEquals(TREE_COUNT, expected.length);
+
+        for (int threadCount = 1; threadCount <= 4; threadCount *= 2) {
+            NexusTreeStream stream = new NexusTreeStream(new StringReader(nexus), false, threadCount);
+            for (int i = 0; i < TREE_COUNT; i++) {
+                assertTrue(stream.hasTree());
+                assertSameTree(expected[i], stream.importNextTree());
+                assertEquals(i, stream.getLastTreeIndex());
+            }
+            assertFalse(stream.hasTree());
+            assertNull(stream.importNextTree());
+            assertEquals(TREE_COUNT, stream.getTreeCount());
+        }
+    }
+
+    public void testBurninAndThinning() throws Exception {
+        String nexus = createTrees(TREE_COUNT);
+        Tree[] expected = new NexusImporter(new StringReader(nexus)).importTrees(null);
+
+        // the tree names are STATE_0, STATE_1000...
+        NexusTreeStream stream = new NexusTreeStream(new StringReader(nexus), false, 3);
+        stream.setBurnin(10, 50000);
+        stream.setThinning(7);
+        int count = 0;
+        for (int i = 50; i < TREE_COUNT; i += 7) {
+            Tree tree = stream.importNextTree();
+            assertSameTree(expected[i], tree);
+            assertEquals(i, stream.getLastTreeIndex());
+            count++;
+        }
+        assertNull(stream.importNextTree());
+        assertEquals(TREE_COUNT, stream.getTreeCount());
+    }
+
+    public void testBadTree() throws Exception {
+        String nexus = createTrees(20).replace("tree STATE_5000", "twee STATE_5000");
+        NexusTreeStream stream = new NexusTreeStream(new StringReader(nexus), false, 2);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(stream.importNextTree());
+        }
+        try {
+            stream.importNextTree();
+            fail("Expected an ImportException");
+        } catch (NexusImporter.ImportException e) {
+            // expected
+        }
+        assertFalse(stream.hasTree());
+    }
+
+    private static void assertSameTree(Tree expected, Tree tree) {
+        assertNotNull(tree);
+        assertEquals(expected.getId(), tree.getId());
+        assertEquals(TreeUtils.newick(expected), TreeUtils.newick(tree));
+        assertEquals(expected.getAttribute("lnP"), tree.getAttribute("lnP"));
+        for (int i = 0; i < expected.getNodeCount(); i++) {
+            NodeRef node1 = expected.getNode(i);
+            NodeRef node2 = tree.getNode(i);
+            assertEquals(expected.getNodeHeight(node1), tree.getNodeHeight(node2));
+            Iterator<?> names = expected.getNodeAttributeNames(node1);
+            while (names != null && names.hasNext()) {
+                String name = (String) names.next();
+                assertEquals(toString(expected.getNodeAttribute(node1, name)),
+                        toString(tree.getNodeAttribute(node2, name)));
+            }
+        }
+    }
+
+    private static String toString(Object value) {
+        return (value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+    }
+
+    private static String createTrees(int treeCount) {
+        MathUtils.setSeed(666);
+
+        StringBuilder nexus = new StringBuilder();
+        nexus.append("#NEXUS\n\n[a comment with a ; and a quote ']\n\nBegin taxa;\n\tDimensions ntax=")
+                .append(TAXA.length).append(";\n\tTaxlabels\n");
+        for (String taxon : TAXA) {
+            nexus.append("\t\t").append(taxon).append("\n");
+        }
+        nexus.append("\t\t;\nEnd;\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < TAXA.length; i++) {
+            nexus.append("\t\t").append(i + 1).append(" ").append(TAXA[i]).append(i < TAXA.length - 1 ? ",\n" : "\n");
+        }
+        nexus.append("\t\t;\n");
+
+        for (int i = 0; i < treeCount; i++) {
+            nexus.append("tree STATE_").append(i * 1000).append(" [&lnP=").append(-1000.0 * MathUtils.nextDouble())
+                    .append("] = [&R] ").append(createClade(1, TAXA.length)).append(";\n");
+        }
+        nexus.append("End;\n");
+        return nexus.toString();
+    }
+
+    private static String createClade(int first, int last) {
+        String annotation = "[&rate=" + MathUtils.nextDouble() + ",range={" + first + "," + last + "}]";
+        String length = ":" + MathUtils.nextDouble();
+        if (first == last) {
+            return first + annotation + length;
+        }
+        int split = first + MathUtils.nextInt(last - first);
+        return "(" + createClade(first, split) + "," + createClade(split + 1, last) + ")" + annotation + length;
+    }
+}
@@ -0,0 +1,122 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks the hashed (and parallel) pattern compression of SitePatterns against comparing each
+ * site with all the patterns found so far.
+ */
+public class SitePatternsTest extends TestCase {
+
+    public void setUp() {
+        MathUtils.setSeed(666);
+    }
+
+    public void tearDown() {
+        System.clearProperty("patterns.threads");
+    }
+
+    public void testSmallAlignment() {
+        SimpleAlignment alignment = createAlignment(10, 500);
+        checkPatterns(alignment, new SitePatterns(alignment, null, -1, -1, 1, true), true);
+        checkPatterns(alignment, new SitePatterns(alignment, null, -1, -1, 1, false), false);
+    }
+
+    public void testParallel() {
+        // large enough to be built in parallel
+        SimpleAlignment alignment = createAlignment(200, 6000);
+
+        System.setProperty("patterns.threads", "4");
+        SitePatterns parallel = new SitePatterns(alignment, null, -1, -1, 1);
+        checkPatterns(alignment, parallel, true);
+
+        System.setProperty("patterns.threads", "1");
+        SitePatterns serial = new SitePatterns(alignment, null, -1, -1, 1);
+        assertEquals(serial.getInvariantCount(), parallel.getInvariantCount());
+        for (int i = 0; i < serial.getPatternCount(); i++) {
+            assertEquals(serial.getPatternWeight(i), parallel.getPatternWeight(i));
+        }
+    }
+
+    private void checkPatterns(SimpleAlignment alignment, SitePatterns sitePatterns, boolean strip) {
+        int siteCount = alignment.getSiteCount();
+        int[][] patterns = new int[siteCount][];
+        double[] weights = new double[siteCount];
+        int patternCount = 0;
+
+        for (int i = 0; i < siteCount; i++) {
+            int[] pattern = alignment.getSitePattern(i);
+
+            boolean invariant = true;
+            boolean ambiguous = false;
+            for (int state : pattern) {
+                invariant &= (state == pattern[0]);
+                ambiguous |= Nucleotides.INSTANCE.isAmbiguousState(state) || Nucleotides.INSTANCE.isGapState(state) ||
+                        Nucleotides.INSTANCE.isUnknownState(state);
+            }
+            if (strip && invariant && ambiguous) {
+                assertEquals(-1, sitePatterns.getPatternIndex(i));
+                continue;
+            }
+
+            int index = -1;
+            for (int j = 0; j < patternCount && index < 0; j++) {
+                if (Arrays.equals(patterns[j], pattern)) {
+                    index = j;
+                }
+            }
+            if (index < 0) {
+                patterns[patternCount] = pattern;
+                index = patternCount;
+                patternCount++;
+            }
+            weights[index] += 1;
+            assertEquals(index, sitePatterns.getPatternIndex(i));
+        }
+
+        assertEquals(patternCount, sitePatterns.getPatternCount());
+        for (int j = 0; j < patternCount; j++) {
+            assertTrue(Arrays.equals(patterns[j], sitePatterns.getPattern(j)));
+            assertEquals(weights[j], sitePatterns.getPatternWeight(j));
+        }
+    }
+
+    private static SimpleAlignment createAlignment(int taxonCount, int siteCount) {
+        // a few sites with lots of variation and the rest with a few changes from a reference
+        char[] reference = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            reference[i] = Nucleotides.INSTANCE.getChar(MathUtils.nextInt(4));
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < taxonCount; i++) {
+            char[] sequence = reference.clone();
+            for (int j = 0; j < siteCount; j++) {
+                double u = MathUtils.nextDouble();
+                if (j % 50 == 0) {
+                    sequence[j] = "ACGT-NR".charAt(MathUtils.nextInt(7));
+                } else if (u < 0.002) {
+                    sequence[j] = '-';
+                } else if (u < 0.004) {
+                    sequence[j] = 'N';
+                } else if (u < 0.01) {
+                    sequence[j] = Nucleotides.INSTANCE.getChar(MathUtils.nextInt(4));
+                }
+            }
+            Sequence s = new Sequence(new String(sequence));
+            s.setTaxon(new Taxon("taxon" + (i + 1)));
+            s.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(s);
+        }
+        return alignment;
+    }
+}
@@ -0,0 +1,123 @@
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.coalescent.Coalescent;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.coalescent.TreeIntervals;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.CoalescentLikelihood;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.evomodel.coalescent.DemographicModel;
+import dr.evomodel.coalescent.ExponentialGrowthModel;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.MCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Checks the coalescent likelihood with incrementally updated intervals against the likelihood of
+ * the intervals collected from the tree, through a long run of tree and demographic moves that are
+ * accepted or restored.
+ */
+public class IncrementalCoalescentLikelihoodTest extends TestCase {
+
+    private static final int TAXON_COUNT = 40;
+    private static final int ITERATIONS = 5000;
+
+    public void testConstantPopulation() throws Exception {
+        MathUtils.setSeed(666);
+        TreeModel treeModel = createTree();
+        Parameter popSize = new Parameter.Default(1.0);
+        checkLikelihood(treeModel, new ConstantPopulationModel(popSize, Units.Type.YEARS), popSize, null);
+    }
+
+    public void testExponentialGrowth() throws Exception {
+        MathUtils.setSeed(667);
+        TreeModel treeModel = createTree();
+        Parameter popSize = new Parameter.Default(2.0);
+        Parameter growthRate = new Parameter.Default(0.5);
+        checkLikelihood(treeModel, new ExponentialGrowthModel(popSize, growthRate, Units.Type.YEARS, true),
+                popSize, growthRate);
+    }
+
+    private void checkLikelihood(TreeModel treeModel, DemographicModel demoModel,
+                                 Parameter popSize, Parameter growthRate) throws Exception {
+        CoalescentLikelihood likelihood = new CoalescentLikelihood(treeModel, null, null, demoModel);
+
+        MCMCOperator[] operators = {
+                new SubtreeSlideOperator(treeModel, 1.0, 0.1, true, false, false, false, CoercionMode.COERCION_OFF),
+                new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                new ExchangeOperator(ExchangeOperator.WIDE, treeModel, 1.0)
+        };
+
+        assertLikelihood(treeModel, demoModel, likelihood);
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            likelihood.storeModelState();
+
+            MCMCOperator operator = null;
+            int move = MathUtils.nextInt(10);
+            if (move < 6) {
+                operator = operators[MathUtils.nextInt(operators.length)];
+                operator.operate();
+            } else if (move < 8) {
+                // move a tip so the first event (which the interval times are measured from) changes
+                NodeRef tip = treeModel.getExternalNode(MathUtils.nextInt(treeModel.getExternalNodeCount()));
+                double parentHeight = treeModel.getNodeHeight(treeModel.getParent(tip));
+                treeModel.setNodeHeight(tip, MathUtils.nextDouble() * 0.1 * parentHeight);
+            } else if (move < 9 || growthRate == null) {
+                popSize.setParameterValue(0, popSize.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+            } else {
+                growthRate.setParameterValue(0, growthRate.getParameterValue(0) + MathUtils.nextDouble() - 0.5);
+            }
+
+            if (MathUtils.nextInt(4) != 0) {
+                // sometimes the likelihood isn't calculated before the move is accepted or rejected
+                assertLikelihood(treeModel, demoModel, likelihood);
+            }
+
+            if (MathUtils.nextBoolean()) {
+                if (operator != null) {
+                    operator.accept(0.0);
+                }
+                likelihood.acceptModelState();
+            } else {
+                if (operator != null) {
+                    operator.reject();
+                }
+                likelihood.restoreModelState();
+            }
+
+            assertLikelihood(treeModel, demoModel, likelihood);
+        }
+    }
+
+    private static void assertLikelihood(TreeModel treeModel, DemographicModel demoModel, CoalescentLikelihood likelihood) {
+        double expected = getExpected(treeModel, demoModel);
+        // the interval times are measured differently so only agree to rounding error
+        assertEquals(expected, likelihood.getLogLikelihood(), 1E-12 * Math.max(1.0, Math.abs(expected)));
+    }
+
+    private static double getExpected(TreeModel treeModel, DemographicModel demoModel) {
+        DemographicFunction demoFunction = demoModel.getDemographicFunction();
+        return Coalescent.calculateLogLikelihood(new TreeIntervals(treeModel), demoFunction, demoFunction.getThreshold());
+    }
+
+    private static TreeModel createTree() {
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(1.0);
+        return new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+    }
+}
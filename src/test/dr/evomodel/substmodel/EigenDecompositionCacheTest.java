@@ -0,0 +1,95 @@
+package test.dr.evomodel.substmodel;
+
+import dr.evolution.datatype.GeneralDataType;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SVSGeneralSubstitutionModel;
+import dr.inference.markovchain.Profiler;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks that the transition probabilities of a BSSVS model whose indicators are flipped back and
+ * forth are exactly the same with and without the eigen decomposition cache.
+ */
+public class EigenDecompositionCacheTest extends TestCase {
+
+    private static final int STATE_COUNT = 20;
+
+    public void testCachedTransitionProbabilities() {
+        MathUtils.setSeed(666);
+
+        // the cache is off by default and only counts its hits when profiling
+        System.setProperty(Profiler.REPORT_PROPERTY, "true");
+        Model defaulted = new Model("defaulted");
+        defaulted.model.getEigenDecomposition();
+
+        System.setProperty("substmodel.cache.mb", "0");
+        Model uncached = new Model("uncached");
+        uncached.model.getEigenDecomposition();
+
+        System.setProperty("substmodel.cache.mb", "4");
+        System.setProperty("substmodel.cache.matrices", "8");
+        Model cached = new Model("cached");
+        cached.model.getEigenDecomposition();
+
+        System.clearProperty("substmodel.cache.mb");
+        System.clearProperty("substmodel.cache.matrices");
+        System.clearProperty(Profiler.REPORT_PROPERTY);
+
+        double[] matrix1 = new double[STATE_COUNT * STATE_COUNT];
+        double[] matrix2 = new double[STATE_COUNT * STATE_COUNT];
+
+        for (int i = 0; i < 200; i++) {
+            // flip one of the first few indicators so the same matrices come round again
+            int index = MathUtils.nextInt(4);
+            double value = 1.0 - uncached.indicators.getParameterValue(index);
+            uncached.indicators.setParameterValue(index, value);
+            defaulted.indicators.setParameterValue(index, value);
+            cached.indicators.setParameterValue(index, value);
+
+            double distance = 0.1 * (1 + MathUtils.nextInt(3));
+            uncached.model.getTransitionProbabilities(distance, matrix1);
+            defaulted.model.getTransitionProbabilities(distance, matrix2);
+            assertTrue(Arrays.equals(matrix1, matrix2));
+            cached.model.getTransitionProbabilities(distance, matrix2);
+            assertTrue(Arrays.equals(matrix1, matrix2));
+
+            cached.model.getTransitionProbabilities(distance, matrix2);
+            assertTrue(Arrays.equals(matrix1, matrix2));
+        }
+
+        assertEquals(0, Profiler.getCount("defaulted.eigenCache.misses"));
+        assertEquals(0, Profiler.getCount("uncached.eigenCache.hits"));
+        // at most 16 different matrices so all but 16 of the decompositions are found in the cache
+        assertTrue(Profiler.getCount("cached.eigenCache.hits") >= 200 + 1 - 16);
+        assertTrue(Profiler.getCount("cached.matrixCache.hits") >= 200);
+    }
+
+    private static class Model {
+        Model(String name) {
+            String[] states = new String[STATE_COUNT];
+            double[] frequencies = new double[STATE_COUNT];
+            for (int i = 0; i < STATE_COUNT; i++) {
+                states[i] = "S" + i;
+                frequencies[i] = 1.0 / STATE_COUNT;
+            }
+            GeneralDataType dataType = new GeneralDataType(states);
+
+            Parameter rates = new Parameter.Default(STATE_COUNT * (STATE_COUNT - 1) / 2);
+            for (int i = 0; i < rates.getDimension(); i++) {
+                rates.setParameterValue(i, 0.5 + (i % 7) * 0.25);
+            }
+            indicators = new Parameter.Default(rates.getDimension(), 1.0);
+
+            model = new SVSGeneralSubstitutionModel(name, dataType, new FrequencyModel(dataType, frequencies),
+                    rates, indicators);
+            model.setId(name);
+        }
+
+        final Parameter indicators;
+        final SVSGeneralSubstitutionModel model;
+    }
+}
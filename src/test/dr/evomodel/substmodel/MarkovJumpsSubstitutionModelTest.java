@@ -129,6 +129,46 @@ public class MarkovJumpsSubstitutionModelTest extends MathTestCase {
         assertEquals(1.0, marginalRate, tolerance);
     }
 
+    public void testSelectedEntries() {
+        HKY substModel = new HKY(2.0,
+                new FrequencyModel(Nucleotides.INSTANCE,
+                        new double[]{0.3, 0.2, 0.25, 0.25})); // A,C,G,T
+
+        int states = substModel.getDataType().getStateCount();
+
+        MarkovJumpsSubstitutionModel markovjumps = new MarkovJumpsSubstitutionModel(substModel,
+                MarkovJumpsType.COUNTS);
+        double[] r = new double[states * states];
+        MarkovJumpsCore.fillRegistrationMatrix(r, states);
+        markovjumps.setRegistration(r);
+
+        double time = 0.7;
+        double[] c = new double[states * states];
+        double[] s = new double[states * states];
+        double[] p = new double[2 * states * states];
+        int[] entries = {1, 6, 11, 12, 0};
+
+        // the eigen decomposition is replaced when kappa changes
+        for (double kappa : new double[]{2.0, 5.0}) {
+            substModel.setKappa(kappa);
+            substModel.getTransitionProbabilities(time, c);
+            System.arraycopy(c, 0, p, states * states, states * states);
+
+            markovjumps.computeCondStatMarkovJumps(time, c);
+            markovjumps.computeCondStatMarkovJumps(time, p, states * states, entries, entries.length, s);
+
+            MarkovJumpsSubstitutionModel fresh = new MarkovJumpsSubstitutionModel(substModel, MarkovJumpsType.COUNTS);
+            fresh.setRegistration(r);
+            double[] f = new double[states * states];
+            fresh.computeCondStatMarkovJumps(time, f);
+
+            for (int entry : entries) {
+                assertEquals(c[entry], s[entry], tolerance);
+                assertEquals(f[entry], c[entry], tolerance);
+            }
+        }
+    }
+
     private static double tolerance = 1E-6;
 
     private static double[] rMarkovJumpsJ = {
@@ -0,0 +1,155 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.operators.WilsonBalding;
+import dr.evomodel.tree.TreeChangedEvent;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Model;
+import dr.inference.model.ModelListener;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.MCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that a TreeModel is put back exactly as it was by restore (or kept by accept) after a
+ * long run of tree moves, now that only the nodes that have changed are copied when it is stored,
+ * and that a node is only reported as changed once in each edit.
+ */
+public class TreeModelStoreRestoreTest extends TestCase {
+
+    private static final int TAXON_COUNT = 50;
+    private static final int ITERATIONS = 5000;
+
+    public void testStoreRestore() {
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(1.0);
+        final TreeModel treeModel = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+
+        final Set<NodeRef> changedNodes = new HashSet<NodeRef>();
+        final boolean[] duplicate = {false};
+        treeModel.addModelListener(new ModelListener() {
+            public void modelChangedEvent(Model model, Object object, int index) {
+                if (!(object instanceof TreeChangedEvent)) {
+                    return;
+                }
+                TreeChangedEvent event = (TreeChangedEvent) object;
+                if (event.isNodeChanged() && !event.isNodeParameterChanged() && !changedNodes.add(event.getNode())) {
+                    duplicate[0] = true;
+                }
+            }
+
+            public void modelRestored(Model model) {
+            }
+        });
+
+        MCMCOperator[] operators = {
+                new SubtreeSlideOperator(treeModel, 1.0, 0.1, true, false, false, false, CoercionMode.COERCION_OFF),
+                new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                new ExchangeOperator(ExchangeOperator.WIDE, treeModel, 1.0),
+                new WilsonBalding(treeModel, 1.0)
+        };
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            String before = TreeUtils.newick(treeModel);
+
+            treeModel.storeModelState();
+            changedNodes.clear();
+            MCMCOperator operator = operators[MathUtils.nextInt(operators.length)];
+            double hastingsRatio = operator.operate();
+            assertFalse("a node was reported more than once by " + operator.getOperatorName(), duplicate[0]);
+
+            if (hastingsRatio != Double.NEGATIVE_INFINITY && MathUtils.nextBoolean()) {
+                String after = TreeUtils.newick(treeModel);
+                operator.accept(0.0);
+                treeModel.acceptModelState();
+                assertEquals(after, TreeUtils.newick(treeModel));
+            } else {
+                operator.reject();
+                treeModel.restoreModelState();
+                assertEquals(before, TreeUtils.newick(treeModel));
+            }
+        }
+    }
+
+    public void testNestedEdit() {
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(1.0);
+        final TreeModel treeModel = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+
+        final int[] outerNodes = {TAXON_COUNT, TAXON_COUNT + 1, TAXON_COUNT + 2};
+        final int[][] innerNodes = {{TAXON_COUNT + 3, TAXON_COUNT + 4}, {TAXON_COUNT + 5}};
+
+        // the events are reused so only their node numbers are kept
+        final List<Integer> firedNodes = new ArrayList<Integer>();
+        final int[] nestedCount = {0};
+        treeModel.addModelListener(new ModelListener() {
+            public void modelChangedEvent(Model model, Object object, int index) {
+                if (!(object instanceof TreeChangedEvent)) {
+                    return;
+                }
+                TreeChangedEvent event = (TreeChangedEvent) object;
+                firedNodes.add(event.getNode().getNumber());
+
+                // the first two events of the outer transaction each start another one
+                if (nestedCount[0] < innerNodes.length && event.getNode().getNumber() == outerNodes[nestedCount[0]]) {
+                    int[] nodes = innerNodes[nestedCount[0]];
+                    nestedCount[0]++;
+                    setHeights(treeModel, nodes);
+                }
+            }
+
+            public void modelRestored(Model model) {
+            }
+        });
+
+        setHeights(treeModel, outerNodes);
+
+        List<Integer> expected = Arrays.asList(
+                outerNodes[0], innerNodes[0][0], innerNodes[0][1],
+                outerNodes[1], innerNodes[1][0],
+                outerNodes[2]);
+        assertEquals(expected, firedNodes);
+
+        // and the model is ready for the next transaction
+        firedNodes.clear();
+        nestedCount[0] = innerNodes.length;
+        setHeights(treeModel, outerNodes);
+        assertEquals(Arrays.asList(outerNodes[0], outerNodes[1], outerNodes[2]), firedNodes);
+    }
+
+    private static void setHeights(TreeModel treeModel, int[] nodes) {
+        treeModel.beginTreeEdit();
+        for (int number : nodes) {
+            NodeRef node = treeModel.getNode(number);
+            treeModel.setNodeHeight(node, treeModel.getNodeHeight(node));
+        }
+        treeModel.endTreeEdit();
+    }
+}
@@ -0,0 +1,108 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evomodel.treedatalikelihood.continuous.cdi.ContinuousDiffusionIntegrator;
+import dr.evomodel.treedatalikelihood.continuous.cdi.MultivariateIntegratorBenchmark;
+import dr.evomodel.treedatalikelihood.continuous.cdi.PrecisionType;
+import dr.evomodel.treedatalikelihood.continuous.cdi.ThreadedBasicIntegrator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the threaded integrator gives exactly the same post-order and pre-order partials as
+ * the Basic integrator for a scalar diffusion, for different numbers of threads.
+ */
+public class ThreadedBasicIntegratorTest extends TestCase {
+
+    private static final int TAXON_COUNT = 50;
+    private static final int DIM_TRAIT = 3;
+    private static final int NUM_TRAITS = 2;
+
+    private static final int DIM_PARTIAL = NUM_TRAITS * (DIM_TRAIT + 1);
+
+    public void testAgainstBasicIntegrator() {
+        MathUtils.setSeed(666);
+
+        int[] operations = MultivariateIntegratorBenchmark.createOperations(TAXON_COUNT);
+        double[] branchLengths = MultivariateIntegratorBenchmark.createBranchLengths(TAXON_COUNT);
+        double[] precision = MultivariateIntegratorBenchmark.createDiffusionPrecision(DIM_TRAIT);
+        double[][] tipPartials = new double[TAXON_COUNT][DIM_PARTIAL];
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            for (int t = 0; t < NUM_TRAITS; t++) {
+                for (int j = 0; j < DIM_TRAIT; j++) {
+                    tipPartials[i][t * (DIM_TRAIT + 1) + j] = MathUtils.nextGaussian();
+                }
+                tipPartials[i][t * (DIM_TRAIT + 1) + DIM_TRAIT] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        double[][] expected = calculatePartials(
+                new ContinuousDiffusionIntegrator.Basic(PrecisionType.SCALAR, NUM_TRAITS, DIM_TRAIT,
+                        2 * TAXON_COUNT, 2 * TAXON_COUNT),
+                operations, branchLengths, tipPartials, precision);
+
+        for (int threadCount : new int[] { 1, 3, 8 }) {
+            double[][] partials = calculatePartials(
+                    new ThreadedBasicIntegrator(PrecisionType.SCALAR, NUM_TRAITS, DIM_TRAIT,
+                            2 * TAXON_COUNT, 2 * TAXON_COUNT, threadCount),
+                    operations, branchLengths, tipPartials, precision);
+
+            for (int i = 0; i < expected.length; i++) {
+                for (int j = 0; j < DIM_PARTIAL; j++) {
+                    assertFalse(Double.isNaN(expected[i][j]));
+                    assertEquals(expected[i][j], partials[i][j], 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the post-order and then the pre-order partials of every node
+     */
+    private static double[][] calculatePartials(ContinuousDiffusionIntegrator cdi, int[] operations,
+                                                double[] branchLengths, double[][] tipPartials,
+                                                double[] precision) {
+        final int nodeCount = 2 * TAXON_COUNT - 1;
+        final int rootIndex = nodeCount - 1;
+
+        cdi.setDiffusionPrecision(0, precision, 0.0);
+
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            cdi.setPostOrderPartial(i, tipPartials[i]);
+        }
+
+        int[] indices = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            indices[i] = i;
+        }
+        cdi.updateBrownianDiffusionMatrices(0, indices, branchLengths, null, nodeCount);
+
+        cdi.updatePostOrderPartials(operations, TAXON_COUNT - 1, false);
+
+        // the root prior as the pre-order partial of the root
+        double[] prior = new double[DIM_PARTIAL];
+        for (int t = 0; t < NUM_TRAITS; t++) {
+            prior[t * (DIM_TRAIT + 1) + DIM_TRAIT] = 0.1;
+        }
+        cdi.setPreOrderPartial(rootIndex, prior);
+
+        // each post-order operation in reverse gives the pre-order operations for its two children
+        final int size = ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+        int[] preOrderOperations = new int[2 * (TAXON_COUNT - 1) * size];
+        int offset = 0;
+        for (int op = TAXON_COUNT - 2; op >= 0; op--) {
+            final int k = operations[op * size];
+            final int i = operations[op * size + 1];
+            final int j = operations[op * size + 3];
+            System.arraycopy(new int[] { k, i, i, j, j, k, j, j, i, i }, 0, preOrderOperations, offset, 2 * size);
+            offset += 2 * size;
+        }
+        cdi.updatePreOrderPartials(preOrderOperations, 2 * (TAXON_COUNT - 1));
+
+        double[][] partials = new double[2 * nodeCount][DIM_PARTIAL];
+        for (int i = 0; i < nodeCount; i++) {
+            cdi.getPostOrderPartial(i, partials[i]);
+            cdi.getPreOrderPartial(i, partials[nodeCount + i]);
+        }
+        return partials;
+    }
+}
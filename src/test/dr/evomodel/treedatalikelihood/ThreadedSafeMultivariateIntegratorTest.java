@@ -0,0 +1,52 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evomodel.treedatalikelihood.continuous.cdi.ContinuousDiffusionIntegrator;
+import dr.evomodel.treedatalikelihood.continuous.cdi.MultivariateIntegratorBenchmark;
+import dr.evomodel.treedatalikelihood.continuous.cdi.PrecisionType;
+import dr.evomodel.treedatalikelihood.continuous.cdi.SafeMultivariateIntegrator;
+import dr.evomodel.treedatalikelihood.continuous.cdi.ThreadedSafeMultivariateIntegrator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the threaded integrator gives exactly the same log likelihoods as the
+ * SafeMultivariateIntegrator, for several traits with missing values and different numbers of
+ * threads.
+ */
+public class ThreadedSafeMultivariateIntegratorTest extends TestCase {
+
+    private static final int TAXON_COUNT = 50;
+    private static final int DIM_TRAIT = 4;
+    private static final int NUM_TRAITS = 3;
+
+    public void testAgainstSafeIntegrator() {
+        MathUtils.setSeed(666);
+
+        for (double missingProbability : new double[] { 0.0, 0.2, 0.6 }) {
+            int[] operations = MultivariateIntegratorBenchmark.createOperations(TAXON_COUNT);
+            double[] branchLengths = MultivariateIntegratorBenchmark.createBranchLengths(TAXON_COUNT);
+            double[][] tipPartials = MultivariateIntegratorBenchmark.createTipPartials(TAXON_COUNT, DIM_TRAIT,
+                    NUM_TRAITS, missingProbability);
+            double[] precision = MultivariateIntegratorBenchmark.createDiffusionPrecision(DIM_TRAIT);
+
+            double[] expected = new double[NUM_TRAITS];
+            MultivariateIntegratorBenchmark.calculateLogLikelihoods(
+                    new SafeMultivariateIntegrator(PrecisionType.FULL, NUM_TRAITS, DIM_TRAIT, 2 * TAXON_COUNT, 1),
+                    operations, TAXON_COUNT, DIM_TRAIT, branchLengths, tipPartials, precision, expected);
+
+            for (int threadCount : new int[] { 1, 3, 8 }) {
+                ContinuousDiffusionIntegrator threaded = new ThreadedSafeMultivariateIntegrator(PrecisionType.FULL,
+                        NUM_TRAITS, DIM_TRAIT, 2 * TAXON_COUNT, 1, threadCount);
+
+                double[] logLikelihoods = new double[NUM_TRAITS];
+                MultivariateIntegratorBenchmark.calculateLogLikelihoods(threaded, operations, TAXON_COUNT,
+                        DIM_TRAIT, branchLengths, tipPartials, precision, logLikelihoods);
+
+                for (int i = 0; i < NUM_TRAITS; i++) {
+                    assertFalse(Double.isNaN(expected[i]));
+                    assertEquals(expected[i], logLikelihoods[i], 0.0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * JavaDataLikelihoodDelegateTest.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.treelikelihood;
+
+import beagle.Beagle;
+import dr.evolution.alignment.PatternBlock;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.PatternBlockDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.ProcessOnTreeDelegate.NodeOperation;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.oldevomodel.sitemodel.GammaSiteModel;
+import dr.oldevomodel.treelikelihood.TreeLikelihood;
+import dr.oldevomodelxml.sitemodel.GammaSiteModelParser;
+import dr.oldevomodelxml.substmodel.HKYParser;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks the Java DataLikelihoodDelegate against the old likelihood cores.
+ */
+public class JavaDataLikelihoodDelegateTest extends TraceCorrelationAssert {
+
+    private NumberFormat format = NumberFormat.getNumberInstance(Locale.ENGLISH);
+
+    public JavaDataLikelihoodDelegateTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        format.setMaximumFractionDigits(5);
+
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+
+        treeModel = createPrimateTreeModel();
+    }
+
+    public void testLikelihoodHKY85G() {
+        System.out.println("\nTest Java delegate likelihood using HKY85G:");
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        TreeDataLikelihood treeDataLikelihood = createTreeDataLikelihood(patterns,
+                alignment.getStateFrequencies(), 38.829740, 0.137064, 1);
+
+        // the same value as the old likelihood core in LikelihoodTest
+        assertEquals("treeLikelihoodHKY85G", format.format(-1789.75936), format.format(treeDataLikelihood.getLogLikelihood()));
+    }
+
+    public void testThreadedPatternBlocks() {
+        System.out.println("\nTest threaded Java delegate against old likelihood core:");
+
+        // a long random alignment so that the patterns are split across several blocks
+        MathUtils.setSeed(666);
+        alignment = createRandomAlignment(10000);
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+        double[] frequencies = alignment.getStateFrequencies();
+
+        double threaded = createTreeDataLikelihood(patterns, frequencies, 2.0, 0.5, 4).getLogLikelihood();
+        double serial = createTreeDataLikelihood(patterns, frequencies, 2.0, 0.5, 1).getLogLikelihood();
+
+        Parameter freqs = new Parameter.Default(frequencies);
+        dr.oldevomodel.substmodel.FrequencyModel f = new dr.oldevomodel.substmodel.FrequencyModel(Nucleotides.INSTANCE, freqs);
+        dr.oldevomodel.substmodel.HKY hky = new dr.oldevomodel.substmodel.HKY(
+                new Parameter.Default(HKYParser.KAPPA, 2.0, 0, 100), f);
+        Parameter mu = new Parameter.Default(GammaSiteModelParser.MUTATION_RATE, 1.0, 0, Double.POSITIVE_INFINITY);
+        Parameter shape = new Parameter.Default(GammaSiteModelParser.GAMMA_SHAPE, 0.5, 0, 1000.0);
+        GammaSiteModel siteModel = new GammaSiteModel(hky, mu, shape, 4, null);
+
+        TreeLikelihood treeLikelihood = new TreeLikelihood(patterns, treeModel, siteModel, null, null,
+                false, false, true, false, false);
+        double expected = treeLikelihood.getLogLikelihood();
+
+        assertEquals("serial", expected, serial, 1E-8);
+        assertEquals("threaded", expected, threaded, 1E-8);
+    }
+
+    public void testPatternBlocks() {
+        System.out.println("\nTest pattern block delegate against a single delegate:");
+
+        MathUtils.setSeed(666);
+        alignment = createRandomAlignment(1000);
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+        double[] frequencies = alignment.getStateFrequencies();
+
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(frequencies));
+        Parameter kappa = new Parameter.Default(HKYParser.KAPPA, 2.0, 0, 100);
+        HomogeneousBranchModel branchModel = new HomogeneousBranchModel(new HKY(kappa, f));
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+
+        JavaDataLikelihoodDelegate single = new JavaDataLikelihoodDelegate(treeModel, patterns,
+                branchModel, siteRateModel, false, 1);
+        TreeDataLikelihood expected = new TreeDataLikelihood(single, treeModel, new DefaultBranchRateModel());
+
+        final int blockCount = 3;
+        int[] blockStarts = PatternBlock.getBlockStarts(patterns, blockCount);
+        List<DataLikelihoodDelegate> blockDelegates = new ArrayList<DataLikelihoodDelegate>();
+        for (int i = 0; i < blockCount; i++) {
+            blockDelegates.add(new JavaDataLikelihoodDelegate(treeModel,
+                    new PatternBlock(patterns, blockStarts[i], blockStarts[i + 1]),
+                    branchModel, siteRateModel, false, 1));
+        }
+        PatternBlockDataLikelihoodDelegate blocks = new PatternBlockDataLikelihoodDelegate(branchModel, siteRateModel,
+                blockDelegates, blockStarts, 2);
+        TreeDataLikelihood observed = new TreeDataLikelihood(blocks, treeModel, new DefaultBranchRateModel());
+
+        assertEquals("logL", expected.getLogLikelihood(), observed.getLogLikelihood(), 1E-8);
+
+        double[] expectedSites = single.getSiteLogLikelihoods();
+        double[] observedSites = blocks.getSiteLogLikelihoods();
+        assertEquals("site count", expectedSites.length, observedSites.length);
+        for (int i = 0; i < expectedSites.length; i++) {
+            assertEquals("site " + i, expectedSites[i], observedSites[i], 1E-10);
+        }
+
+        // propose a change and reject it
+        double storedLogL = observed.getLogLikelihood();
+        observed.storeModelState();
+        expected.storeModelState();
+        kappa.setParameterValue(0, 5.0);
+        assertEquals("changed logL", expected.getLogLikelihood(), observed.getLogLikelihood(), 1E-8);
+        assertTrue("logL should change", Math.abs(storedLogL - observed.getLogLikelihood()) > 1E-6);
+        kappa.setParameterValue(0, 2.0);
+        observed.restoreModelState();
+        expected.restoreModelState();
+        assertEquals("restored logL", storedLogL, observed.getLogLikelihood(), 1E-8);
+    }
+
+    public void testUnevenPatternBlocks() {
+        System.out.println("\nTest pattern blocks of different sizes against a single delegate:");
+
+        MathUtils.setSeed(666);
+        alignment = createRandomAlignment(2000);
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+        HomogeneousBranchModel branchModel = new HomogeneousBranchModel(new HKY(new Parameter.Default(HKYParser.KAPPA, 2.0, 0, 100), f));
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+
+        JavaDataLikelihoodDelegate single = new JavaDataLikelihoodDelegate(treeModel, patterns,
+                branchModel, siteRateModel, false, 1);
+        TreeDataLikelihood expected = new TreeDataLikelihood(single, treeModel, new DefaultBranchRateModel());
+
+        // block i has about i + 1 shares of the patterns
+        final int blockCount = 7;
+        final int shareCount = blockCount * (blockCount + 1) / 2;
+        int[] blockStarts = new int[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            blockStarts[i] = patterns.getPatternCount() * (i * (i + 1) / 2) / shareCount;
+        }
+
+        List<DataLikelihoodDelegate> blockDelegates = new ArrayList<DataLikelihoodDelegate>();
+        for (int i = 0; i < blockCount; i++) {
+            blockDelegates.add(new JavaDataLikelihoodDelegate(treeModel,
+                    new PatternBlock(patterns, blockStarts[i], blockStarts[i + 1]),
+                    branchModel, siteRateModel, false, 1));
+        }
+        PatternBlockDataLikelihoodDelegate blocks = new PatternBlockDataLikelihoodDelegate(branchModel, siteRateModel,
+                blockDelegates, blockStarts, 4);
+        TreeDataLikelihood observed = new TreeDataLikelihood(blocks, treeModel, new DefaultBranchRateModel());
+
+        assertEquals("logL", expected.getLogLikelihood(), observed.getLogLikelihood(), 1E-8);
+
+        double[] expectedSites = single.getSiteLogLikelihoods();
+        double[] observedSites = blocks.getSiteLogLikelihoods();
+        for (int i = 0; i < expectedSites.length; i++) {
+            assertEquals("site " + i, expectedSites[i], observedSites[i], 1E-10);
+        }
+
+        // the operations and report of each block follow each other
+        List<NodeOperation> nodeOperations = new ArrayList<NodeOperation>();
+        NodeRef root = treeModel.getRoot();
+        nodeOperations.add(new NodeOperation(root.getNumber(), treeModel.getChild(root, 0).getNumber(),
+                treeModel.getChild(root, 1).getNumber()));
+        int[] operations = new int[blockCount * Beagle.OPERATION_TUPLE_SIZE];
+        assertEquals(blockCount, blocks.vectorizeNodeOperations(nodeOperations, operations));
+        int[] blockOperations = new int[Beagle.OPERATION_TUPLE_SIZE];
+        for (int i = 0; i < blockCount; i++) {
+            assertEquals(1, blockDelegates.get(i).vectorizeNodeOperations(nodeOperations, blockOperations));
+            for (int j = 0; j < blockOperations.length; j++) {
+                assertEquals(blockOperations[j], operations[i * Beagle.OPERATION_TUPLE_SIZE + j]);
+            }
+        }
+        assertEquals(blockCount + 1, blocks.getReport().split("\n").length);
+    }
+
+    private TreeDataLikelihood createTreeDataLikelihood(SitePatterns patterns, double[] frequencies,
+                                                        double kappa, double alpha, int threadCount) {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(frequencies));
+        HKY hky = new HKY(new Parameter.Default(HKYParser.KAPPA, kappa, 0, 100), f);
+
+        Parameter mu = new Parameter.Default(GammaSiteModelParser.MUTATION_RATE, 1.0, 0, Double.POSITIVE_INFINITY);
+        Parameter shape = new Parameter.Default(GammaSiteModelParser.GAMMA_SHAPE, alpha, 0, 1000.0);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", mu, shape, 4, null);
+
+        JavaDataLikelihoodDelegate delegate = new JavaDataLikelihoodDelegate(treeModel, patterns,
+                new HomogeneousBranchModel(hky), siteRateModel, false, threadCount);
+
+        return new TreeDataLikelihood(delegate, treeModel, new DefaultBranchRateModel());
+    }
+
+    private SimpleAlignment createRandomAlignment(int siteCount) {
+        SimpleAlignment randomAlignment = new SimpleAlignment();
+        randomAlignment.setDataType(Nucleotides.INSTANCE);
+
+        final String codes = "ACGTACGTACGTACGT-N";
+        for (int i = 0; i < alignment.getSequenceCount(); i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < siteCount; j++) {
+                sb.append(codes.charAt(MathUtils.nextInt(codes.length())));
+            }
+            Sequence sequence = new Sequence(sb.toString());
+            sequence.setTaxon(alignment.getTaxon(i));
+            sequence.setDataType(Nucleotides.INSTANCE);
+            randomAlignment.addSequence(sequence);
+        }
+        return randomAlignment;
+    }
+}
@@ -0,0 +1,66 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evomodel.treelikelihood.MarkovJumpsBeagleTreeLikelihood.BranchCache;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the cached counts of a branch are only reused for the same model, times, states and
+ * rate category of each pattern (without needing the BEAGLE library).
+ */
+public class MarkovJumpsBranchCacheTest extends TestCase {
+
+    private static final int NODE = 1;
+
+    public void testRateCategory() {
+        BranchCache cache = new BranchCache(3, 4, 2);
+        double[] categoryRates = {0.5, 1.5};
+        int[] parentStates = {0, 1, 2, 3};
+        int[] childStates = {1, 1, 3, 0};
+        int[] rateCategory = {0, 1, 1, 0};
+
+        assertFalse(cache.isValid(NODE, 0, 1.0, 1.0, categoryRates));
+        cache.set(NODE, 0, 1.0, 1.0, categoryRates, parentStates, childStates, rateCategory);
+        assertTrue(cache.isValid(NODE, 0, 1.0, 1.0, categoryRates));
+
+        for (int j = 0; j < parentStates.length; j++) {
+            assertTrue(cache.isPatternValid(NODE, j, parentStates[j], childStates[j], rateCategory[j]));
+
+            // the same states with the pattern in the other rate category
+            assertFalse(cache.isPatternValid(NODE, j, parentStates[j], childStates[j], 1 - rateCategory[j]));
+        }
+
+        // a pattern that moves category is stale but the others can still be used
+        rateCategory[2] = 0;
+        assertFalse(cache.isPatternValid(NODE, 2, parentStates[2], childStates[2], rateCategory[2]));
+        cache.set(NODE, 0, 1.0, 1.0, categoryRates, parentStates, childStates, rateCategory);
+        for (int j = 0; j < parentStates.length; j++) {
+            assertTrue(cache.isPatternValid(NODE, j, parentStates[j], childStates[j], rateCategory[j]));
+        }
+    }
+
+    public void testSingleCategory() {
+        BranchCache cache = new BranchCache(3, 2, 1);
+        double[] categoryRates = {1.0};
+        cache.set(NODE, 0, 1.0, 1.0, categoryRates, new int[]{0, 1}, new int[]{1, 0}, null);
+
+        // without rate categories each pattern is in the first
+        assertTrue(cache.isPatternValid(NODE, 0, 0, 1, 0));
+        assertTrue(cache.isPatternValid(NODE, 1, 1, 0, 0));
+        assertFalse(cache.isPatternValid(NODE, 1, 1, 1, 0));
+    }
+
+    public void testBranchChanges() {
+        BranchCache cache = new BranchCache(3, 1, 2);
+        double[] categoryRates = {0.5, 1.5};
+        cache.set(NODE, 3, 1.0, 2.0, categoryRates, new int[]{0}, new int[]{1}, new int[]{1});
+
+        assertFalse(cache.isValid(NODE, 4, 1.0, 2.0, categoryRates));
+        assertFalse(cache.isValid(NODE, 3, 1.5, 2.0, categoryRates));
+        assertFalse(cache.isValid(NODE, 3, 1.0, 2.5, categoryRates));
+        assertFalse(cache.isValid(NODE, 3, 1.0, 2.0, new double[]{0.25, 1.75}));
+        assertFalse(cache.isValid(NODE + 1, 3, 1.0, 2.0, categoryRates));
+
+        cache.invalidate(NODE);
+        assertFalse(cache.isValid(NODE, 3, 1.0, 2.0, categoryRates));
+    }
+}
@@ -0,0 +1,113 @@
+package test.dr.geo;
+
+import dr.geo.KernelDensityEstimator2D;
+import dr.geo.contouring.ContourPath;
+import dr.geo.contouring.ContourWithSynder;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the binned kernel density estimate is close to the exact one on the same grid, and
+ * that contours found on several threads at once (as TimeSlicer does for its slices) are the same
+ * as those found one at a time.
+ */
+public class KernelDensityEstimator2DTest extends TestCase {
+
+    private static final double HPD = 0.8;
+
+    public void setUp() {
+        MathUtils.setSeed(666);
+    }
+
+    public void testBinned() {
+        double[][] points = createPoints(2000);
+
+        KernelDensityEstimator2D exact = new KernelDensityEstimator2D(points[0], points[1], null, 50, null, false, false);
+        KernelDensityEstimator2D binned = new KernelDensityEstimator2D(points[0], points[1], null, 50, null, false, true);
+
+        double[][] z = exact.getKDE();
+        double[][] binnedZ = binned.getKDE();
+        double max = 0.0;
+        for (double[] row : z) {
+            for (double value : row) {
+                max = Math.max(max, value);
+            }
+        }
+
+        // the points are moved by at most a grid spacing, which is small next to the bandwidth
+        for (int i = 0; i < z.length; i++) {
+            assertEquals(exact.getXGrid()[i], binned.getXGrid()[i], 0.0);
+            for (int j = 0; j < z[i].length; j++) {
+                assertEquals(z[i][j], binnedZ[i][j], 0.02 * max);
+            }
+        }
+
+        double level = exact.findLevelCorrespondingToMass(HPD);
+        assertEquals(level, binned.findLevelCorrespondingToMass(HPD), 0.02 * level);
+    }
+
+    public void testConcurrentContours() throws Exception {
+        final List<double[][]> sets = new ArrayList<double[][]>();
+        for (int i = 0; i < 8; i++) {
+            sets.add(createPoints(200));
+        }
+
+        List<ContourPath[]> expected = new ArrayList<ContourPath[]>();
+        for (double[][] points : sets) {
+            expected.add(new ContourWithSynder(points[0], points[1], true, false).getContourPaths(HPD));
+        }
+
+        List<Callable<ContourPath[]>> tasks = new ArrayList<Callable<ContourPath[]>>();
+        for (final double[][] points : sets) {
+            tasks.add(new Callable<ContourPath[]>() {
+                public ContourPath[] call() throws Exception {
+                    return new ContourWithSynder(points[0], points[1], true, false).getContourPaths(HPD);
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ContourPath[]>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < sets.size(); i++) {
+                ContourPath[] paths = results.get(i).get();
+                assertTrue(paths.length > 0);
+                assertEquals(expected.get(i).length, paths.length);
+                for (int j = 0; j < paths.length; j++) {
+                    assertArrayEquals(expected.get(i)[j].getAllX(), paths[j].getAllX());
+                    assertArrayEquals(expected.get(i)[j].getAllY(), paths[j].getAllY());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 0.0);
+        }
+    }
+
+    /**
+     * Correlated bivariate normal points, like the locations of a slice.
+     */
+    private static double[][] createPoints(int count) {
+        double[][] points = new double[2][count];
+        for (int i = 0; i < count; i++) {
+            double u = MathUtils.nextGaussian();
+            double v = MathUtils.nextGaussian();
+            points[0][i] = 30.0 + 2.0 * u;
+            points[1][i] = 100.0 + u + 0.5 * v;
+        }
+        return points;
+    }
+}
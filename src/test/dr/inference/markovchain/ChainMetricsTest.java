@@ -0,0 +1,46 @@
+package test.dr.inference.markovchain;
+
+import dr.inference.markovchain.ChainMetrics;
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class ChainMetricsTest extends TestCase {
+
+    public void testHistogram() {
+        ChainMetrics.Histogram histogram = new ChainMetrics.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(90 * 100 + 10 * 5000, histogram.getTotal());
+        assertEquals(5000, histogram.getMax());
+        assertEquals(590.0, histogram.getMean(), 1E-10);
+
+        // the percentiles are the upper bounds of the buckets
+        assertEquals(127, histogram.getPercentile(0.5));
+        assertEquals(127, histogram.getPercentile(0.9));
+        assertEquals(5000, histogram.getPercentile(0.99));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    public void testReport() {
+        ChainMetrics.getHistogram("test.\"quoted\"").record(1000);
+
+        StringWriter json = new StringWriter();
+        ChainMetrics.writeJSON(new PrintWriter(json));
+        assertTrue(json.toString().contains("\"test.\\\"quoted\\\"\": {\"count\": 1, \"total\": 1000"));
+
+        StringWriter csv = new StringWriter();
+        ChainMetrics.writeCSV(new PrintWriter(csv));
+        assertTrue(csv.toString().contains("\"test.\"\"quoted\"\"\",1,1000,1000,1000,1000,1000,1000"));
+    }
+}
@@ -0,0 +1,315 @@
+package test.dr.inference.markovchain;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodelxml.coalescent.ConstantPopulationModelParser;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.Acceptor;
+import dr.inference.markovchain.ChainReplicas;
+import dr.inference.markovchain.ChainState;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.trace.ArrayTraceList;
+import dr.inference.trace.Trace;
+import dr.inference.trace.TraceCorrelation;
+import dr.math.MathUtils;
+import dr.math.distributions.LogNormalDistribution;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a chain that evaluates several proposals at each step with replicas samples the same
+ * distribution as one that makes one proposal at a time, that each state is logged as it was after
+ * the moves before it, and that the state of a tree (including its node rates) is copied from one
+ * replica to another.
+ */
+public class ChainReplicasTest extends TraceCorrelationAssert {
+
+    private static final int CHAIN_LENGTH = 500000;
+    private static final String SECOND_POPULATION_SIZE = "popSize2";
+
+    public ChainReplicasTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testSameDistribution() {
+        ArrayLogFormatter singleFormatter = new ArrayLogFormatter(false);
+        MCMC single = createChain(singleFormatter);
+        single.run();
+
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+        MCMC[] mcmcs = new MCMC[3];
+        MarkovChain[] chains = new MarkovChain[mcmcs.length];
+        for (int i = 0; i < mcmcs.length; i++) {
+            mcmcs[i] = createChain(i == 0 ? formatter : new ArrayLogFormatter(false));
+            chains[i] = mcmcs[i].getMarkovChain();
+        }
+        ChainReplicas replicas = new ChainReplicas(chains, 0);
+        chains[0].setReplicas(replicas);
+        mcmcs[0].run();
+        replicas.shutdown();
+
+        // every state is logged even though several are moved through at some steps
+        assertEquals(singleFormatter.getTraces().get(0).getValueCount(), formatter.getTraces().get(0).getValueCount());
+
+        // each operator is only used by its own replica so the others' are left alone
+        for (int i = 0; i < chains[0].getSchedule().getOperatorCount(); i++) {
+            for (int j = 0; j < chains.length; j++) {
+                MCMCOperator operator = chains[j].getSchedule().getOperator(i);
+                if (j == i % chains.length) {
+                    assertTrue(operator.getCount() > 0);
+                    assertEquals(operator.getCount(), chains[0].getSchedule().getOperator(i).getCount());
+                } else if (j != 0) {
+                    assertEquals(0, operator.getCount());
+                }
+            }
+        }
+
+        String[] names = {ConstantPopulationModelParser.POPULATION_SIZE, SECOND_POPULATION_SIZE};
+        double[] expectations = {Math.exp(1.5), Math.exp(0.125)};
+        for (int i = 0; i < names.length; i++) {
+            TraceCorrelation singleStats = getStatistics(singleFormatter, names[i]);
+            TraceCorrelation stats = getStatistics(formatter, names[i]);
+
+            // the log-normal has a long tail so allow three standard errors
+            assertEquals(expectations[i], singleStats.getMean(), 3 * singleStats.getStdErrorOfMean());
+            assertEquals(expectations[i], stats.getMean(), 3 * stats.getStdErrorOfMean());
+
+            double stderr = Math.sqrt(singleStats.getStdErrorOfMean() * singleStats.getStdErrorOfMean() +
+                    stats.getStdErrorOfMean() * stats.getStdErrorOfMean());
+            assertEquals(singleStats.getMean(), stats.getMean(), 3 * stderr);
+            assertEquals(singleStats.getVariance(), stats.getVariance(), 0.25 * singleStats.getVariance());
+        }
+    }
+
+    public void testLoggedStates() {
+        final int chainCount = 3;
+        final int length = 20000;
+
+        // every move adds one so the value is the number of moves accepted so far
+        final RecordingAcceptor acceptor = new RecordingAcceptor();
+        Parameter[] counts = new Parameter[chainCount];
+        MarkovChain[] chains = new MarkovChain[chainCount];
+        for (int i = 0; i < chainCount; i++) {
+            counts[i] = new Parameter.Default(0.0);
+            counts[i].setId(ConstantPopulationModelParser.POPULATION_SIZE);
+
+            OperatorSchedule schedule = new SimpleOperatorSchedule();
+            for (int j = 0; j < chainCount; j++) {
+                schedule.addOperator(new IncrementOperator(counts[i]));
+            }
+            chains[i] = new MarkovChain(new DummyLikelihood(new ConstantPopulationModel(counts[i], Units.Type.YEARS)),
+                    schedule, acceptor, 0, 1, 0.0, false);
+        }
+
+        final Parameter count = counts[0];
+        final List<Double> values = new ArrayList<Double>();
+        chains[0].addMarkovChainListener(new MarkovChainListener() {
+            public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+                assertEquals(values.size(), state);
+                values.add(count.getParameterValue(0));
+            }
+
+            public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+            }
+
+            public void finished(long chainLength, MarkovChain markovChain) {
+            }
+        });
+
+        ChainReplicas replicas = new ChainReplicas(chains, 0);
+        chains[0].setReplicas(replicas);
+        chains[0].runChain(length, true);
+        replicas.shutdown();
+
+        // each state is logged with the moves accepted before it, however many proposals were
+        // made at the step it was reached in
+        assertEquals(length, acceptor.decisions.size());
+        assertEquals(length, values.size());
+        int accepted = 0;
+        for (int i = 0; i < length; i++) {
+            assertEquals("state " + i, accepted, values.get(i), 0.0);
+            if (acceptor.decisions.get(i)) {
+                accepted++;
+            }
+        }
+        assertEquals(accepted, count.getParameterValue(0), 0.0);
+    }
+
+    public void testCopyTree() {
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < 20; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(1.0);
+
+        // two different trees of the same taxa
+        TreeModel source = new TreeModel("source", new CoalescentSimulator().simulateTree(taxa, constant));
+        TreeModel tree = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, constant));
+        source.createNodeRatesParameter(null, false, true, true);
+        tree.createNodeRatesParameter(null, false, true, true);
+        for (int i = 0; i < source.getNodeCount(); i++) {
+            source.setNodeRate(source.getNode(i), MathUtils.nextDouble());
+        }
+
+        ChainState sourceState = new ChainState(createMarkovChain(source));
+        ChainState state = new ChainState(createMarkovChain(tree));
+        state.checkMatches(sourceState);
+
+        tree.storeModelState();
+        state.copyFrom(sourceState);
+        tree.acceptModelState();
+
+        assertEquals(TreeUtils.newick(source), TreeUtils.newick(tree));
+        for (int i = 0; i < source.getNodeCount(); i++) {
+            NodeRef sourceNode = source.getNode(i);
+            NodeRef node = getMatchingNode(tree, source, sourceNode);
+            assertEquals(source.getNodeRate(sourceNode), tree.getNodeRate(node), 0.0);
+        }
+    }
+
+    private static NodeRef getMatchingNode(TreeModel tree, TreeModel source, NodeRef sourceNode) {
+        if (source.isExternal(sourceNode)) {
+            for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+                NodeRef node = tree.getExternalNode(i);
+                if (tree.getNodeTaxon(node).getId().equals(source.getNodeTaxon(sourceNode).getId())) {
+                    return node;
+                }
+            }
+            throw new IllegalArgumentException("No matching taxon");
+        }
+        return tree.getNode(sourceNode.getNumber());
+    }
+
+    private static MarkovChain createMarkovChain(TreeModel tree) {
+        return new MarkovChain(new DummyLikelihood(tree), new SimpleOperatorSchedule(), new MCMCCriterion(),
+                0, 1, 0.0, false);
+    }
+
+    private TraceCorrelation getStatistics(ArrayLogFormatter formatter, String name) {
+        List<Trace> traces = formatter.getTraces();
+        ArrayTraceList traceList = new ArrayTraceList("ChainReplicasTest", traces, 0);
+        for (int i = 1; i < traces.size(); i++) {
+            traceList.analyseTrace(i);
+        }
+        return traceList.getCorrelationStatistics(traceList.getTraceIndex(name));
+    }
+
+    /**
+     * Two population sizes with log-normal priors and three operators (so each replica has one).
+     * The evaluation is tested for the first few thousand states.
+     */
+    private MCMC createChain(ArrayLogFormatter formatter) {
+        Parameter popSize = new Parameter.Default(6.0);
+        popSize.setId(ConstantPopulationModelParser.POPULATION_SIZE);
+        Parameter popSize2 = new Parameter.Default(1.0);
+        popSize2.setId(SECOND_POPULATION_SIZE);
+
+        DistributionLikelihood prior = new DistributionLikelihood(new LogNormalDistribution(1.0, 1.0), 0);
+        prior.addData(popSize);
+        DistributionLikelihood prior2 = new DistributionLikelihood(new LogNormalDistribution(0.0, 0.5), 0);
+        prior2.addData(popSize2);
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(prior);
+        likelihoods.add(prior2);
+        likelihoods.add(new DummyLikelihood(new ConstantPopulationModel(popSize, Units.Type.YEARS)));
+        likelihoods.add(new DummyLikelihood(new ConstantPopulationModel(popSize2, Units.Type.YEARS)));
+        Likelihood posterior = new CompoundLikelihood(0, likelihoods);
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operator = new ScaleOperator(popSize, 0.75);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+        operator = new ScaleOperator(popSize2, 0.75);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+        operator = new ScaleOperator(popSize, 0.5);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+
+        MCLogger[] loggers = new MCLogger[1];
+        loggers[0] = new MCLogger(formatter, 100, false);
+        loggers[0].add(popSize);
+        loggers[0].add(popSize2);
+
+        MCMC mcmc = new MCMC("mcmc1");
+        mcmc.init(new MCMCOptions(CHAIN_LENGTH, 2000, 1, 0.1, true, 0, 1.0), posterior, schedule, loggers);
+        return mcmc;
+    }
+
+    /**
+     * Accepts a random third of the moves (whatever their scores) and records which in the order
+     * they are decided, which is the order of the moves in the chain.
+     */
+    private static class RecordingAcceptor implements Acceptor {
+        public boolean accept(double oldScore, double newScore, double hastingsRatio, double[] logr) {
+            boolean accept = random.nextDouble() < 1.0 / 3.0;
+            decisions.add(accept);
+            return accept;
+        }
+
+        private final Random random = new Random(666);
+        private final List<Boolean> decisions = new ArrayList<Boolean>();
+    }
+
+    private static class IncrementOperator extends SimpleMCMCOperator {
+        IncrementOperator(Parameter parameter) {
+            this.parameter = parameter;
+            setWeight(1.0);
+        }
+
+        public double doOperation() {
+            parameter.setParameterValue(0, parameter.getParameterValue(0) + 1.0);
+            return 0.0;
+        }
+
+        public String getOperatorName() {
+            return "increment";
+        }
+
+        public String getPerformanceSuggestion() {
+            return "";
+        }
+
+        private final Parameter parameter;
+    }
+
+    public static Test suite() {
+        return new TestSuite(ChainReplicasTest.class);
+    }
+}
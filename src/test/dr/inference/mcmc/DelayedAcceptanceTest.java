@@ -0,0 +1,118 @@
+package test.dr.inference.mcmc;
+
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.evomodelxml.coalescent.ConstantPopulationModelParser;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.trace.ArrayTraceList;
+import dr.inference.trace.Trace;
+import dr.inference.trace.TraceCorrelation;
+import dr.math.MathUtils;
+import dr.math.distributions.LogNormalDistribution;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples a log-normal prior with and without delayed acceptance. The surrogate is a different
+ * log-normal so the chain only samples the right distribution if the second stage corrects for it.
+ */
+public class DelayedAcceptanceTest extends TraceCorrelationAssert {
+
+    private static final double EXPECTATION = Math.exp(1.5);
+
+    public DelayedAcceptanceTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testSurrogate() {
+        TraceCorrelation withoutSurrogate = runChain(false);
+        TraceCorrelation withSurrogate = runChain(true);
+
+        // the log-normal has a long tail so allow three standard errors
+        assertEquals(EXPECTATION, withoutSurrogate.getMean(), 3 * withoutSurrogate.getStdErrorOfMean());
+        assertEquals(EXPECTATION, withSurrogate.getMean(), 3 * withSurrogate.getStdErrorOfMean());
+
+        // the surrogate's own expectation is e^2.5 which the chain should be well away from
+        assertTrue(Math.abs(withSurrogate.getMean() - Math.exp(2.5)) > 10 * withSurrogate.getStdErrorOfMean());
+
+        double stderr = Math.sqrt(withoutSurrogate.getStdErrorOfMean() * withoutSurrogate.getStdErrorOfMean() +
+                withSurrogate.getStdErrorOfMean() * withSurrogate.getStdErrorOfMean());
+        assertEquals(withoutSurrogate.getMean(), withSurrogate.getMean(), 3 * stderr);
+    }
+
+    private TraceCorrelation runChain(boolean useSurrogate) {
+        Parameter popSize = new Parameter.Default(6.0);
+        popSize.setId(ConstantPopulationModelParser.POPULATION_SIZE);
+        ConstantPopulationModel demo = new ConstantPopulationModel(popSize, Units.Type.YEARS);
+
+        DistributionLikelihood logNormalLikelihood = new DistributionLikelihood(new LogNormalDistribution(1.0, 1.0), 0);
+        logNormalLikelihood.addData(popSize);
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(logNormalLikelihood);
+        likelihoods.add(new DummyLikelihood(demo));
+        Likelihood posterior = new CompoundLikelihood(0, likelihoods);
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operator = new ScaleOperator(popSize, 0.75);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+        MCLogger[] loggers = new MCLogger[1];
+        loggers[0] = new MCLogger(formatter, 100, false);
+        loggers[0].add(popSize);
+
+        MCMC mcmc = new MCMC("mcmc1");
+        MCMCOptions options = new MCMCOptions(1000000);
+        mcmc.init(options, posterior, schedule, loggers);
+
+        if (useSurrogate) {
+            DistributionLikelihood surrogate = new DistributionLikelihood(new LogNormalDistribution(2.0, 1.0), 0);
+            surrogate.addData(popSize);
+            mcmc.getMarkovChain().setSurrogateLikelihood(surrogate);
+        }
+
+        mcmc.run();
+
+        if (useSurrogate) {
+            long[] screened = mcmc.getMarkovChain().getScreenedCounts();
+            long[] rejected = mcmc.getMarkovChain().getEarlyRejectionCounts();
+            assertTrue(screened[0] > 0);
+            assertTrue(rejected[0] > 0 && rejected[0] < screened[0]);
+        }
+
+        List<Trace> traces = formatter.getTraces();
+        ArrayTraceList traceList = new ArrayTraceList("DelayedAcceptanceTest", traces, 0);
+        for (int i = 1; i < traces.size(); i++) {
+            traceList.analyseTrace(i);
+        }
+        return traceList.getCorrelationStatistics(traceList.getTraceIndex(ConstantPopulationModelParser.POPULATION_SIZE));
+    }
+
+    public static Test suite() {
+        return new TestSuite(DelayedAcceptanceTest.class);
+    }
+}
@@ -0,0 +1,167 @@
+package test.dr.inference.mcmcmc;
+
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.evomodelxml.coalescent.ConstantPopulationModelParser;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmcmc.MCMCMC;
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.trace.ArrayTraceList;
+import dr.inference.trace.Trace;
+import dr.inference.trace.TraceCorrelation;
+import dr.math.MathUtils;
+import dr.math.distributions.LogNormalDistribution;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs Metropolis-coupled chains on a log-normal prior and checks the cold chain samples it
+ * correctly whichever chain is cold, and that the swaps and the temperature ladder are sensible.
+ */
+public class MCMCMCTest extends TraceCorrelationAssert {
+
+    private static final int CHAIN_LENGTH = 200000;
+
+    public MCMCMCTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testFixedTemperatures() {
+        double[] temperatures = {1.0, 0.5, 0.25};
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+
+        // more chains than threads so the chains take turns
+        MCMCMC mcmcmc = new MCMCMC(createChains(temperatures, formatter),
+                new MCMCMCOptions(temperatures, 100, 1, 1, 0.0));
+        mcmcmc.run();
+
+        assertColdChainExpectation(formatter);
+
+        // the temperatures are swapped but not changed
+        double[] ladder = mcmcmc.getTemperatureLadder();
+        for (int i = 0; i < temperatures.length; i++) {
+            assertEquals(temperatures[i], ladder[i], 0.0);
+        }
+
+        for (double rate : mcmcmc.getSwapAcceptanceRates()) {
+            assertTrue(rate > 0.0 && rate <= 1.0);
+        }
+        for (double throughput : mcmcmc.getChainThroughputs()) {
+            assertTrue(throughput > 0.0);
+        }
+    }
+
+    public void testAdaptiveTemperatures() {
+        double[] temperatures = {1.0, 0.9, 0.8, 0.7};
+        double target = 0.3;
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+
+        MCMCMC mcmcmc = new MCMCMC(createChains(temperatures, formatter),
+                new MCMCMCOptions(temperatures, 50, 3, 1, target));
+        mcmcmc.run();
+
+        assertColdChainExpectation(formatter);
+
+        // the cold chain stays at 1 and the rest are spread out to lower the swap acceptance
+        double[] ladder = mcmcmc.getTemperatureLadder();
+        assertEquals(1.0, ladder[0], 0.0);
+        for (int i = 1; i < ladder.length; i++) {
+            assertTrue(ladder[i] < ladder[i - 1]);
+        }
+        assertTrue(ladder[ladder.length - 1] < temperatures[temperatures.length - 1]);
+
+        for (double rate : mcmcmc.getSwapAcceptanceRates()) {
+            assertEquals(target, rate, 0.15);
+        }
+    }
+
+    public void testThreads() {
+        double[] temperatures = {1.0, 0.5, 0.25};
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+
+        // the order the chains draw random numbers in isn't fixed so only check that they all ran
+        MCMCMC mcmcmc = new MCMCMC(createChains(temperatures, formatter),
+                new MCMCMCOptions(temperatures, 1000, 2, 3, 0.0));
+        mcmcmc.run();
+
+        // one row is logged every 100 states of whichever chain is cold
+        assertEquals(CHAIN_LENGTH / 100, formatter.getTraces().get(0).getValueCount());
+        for (double throughput : mcmcmc.getChainThroughputs()) {
+            assertTrue(throughput > 0.0);
+        }
+    }
+
+    private void assertColdChainExpectation(ArrayLogFormatter formatter) {
+        List<Trace> traces = formatter.getTraces();
+        ArrayTraceList traceList = new ArrayTraceList("MCMCMCTest", traces, 0);
+        for (int i = 1; i < traces.size(); i++) {
+            traceList.analyseTrace(i);
+        }
+
+        TraceCorrelation popSizeStats = traceList.getCorrelationStatistics(
+                traceList.getTraceIndex(ConstantPopulationModelParser.POPULATION_SIZE));
+        assertExpectation(ConstantPopulationModelParser.POPULATION_SIZE, popSizeStats, Math.exp(1.5));
+    }
+
+    /**
+     * Each chain has its own copy of the model. Only the first (cold) chain's logger has a
+     * destination - MCMCMC passes it on to whichever chain is cold.
+     */
+    private MCMC[] createChains(double[] temperatures, ArrayLogFormatter formatter) {
+        MCMC[] mcmcs = new MCMC[temperatures.length];
+        for (int i = 0; i < temperatures.length; i++) {
+            Parameter popSize = new Parameter.Default(6.0);
+            popSize.setId(ConstantPopulationModelParser.POPULATION_SIZE);
+            ConstantPopulationModel demo = new ConstantPopulationModel(popSize, Units.Type.YEARS);
+
+            DistributionLikelihood logNormalLikelihood = new DistributionLikelihood(new LogNormalDistribution(1.0, 1.0), 0);
+            logNormalLikelihood.addData(popSize);
+
+            List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+            likelihoods.add(logNormalLikelihood);
+            likelihoods.add(new DummyLikelihood(demo));
+            Likelihood posterior = new CompoundLikelihood(0, likelihoods);
+
+            OperatorSchedule schedule = new SimpleOperatorSchedule();
+            MCMCOperator operator = new ScaleOperator(popSize, 0.75);
+            operator.setWeight(1.0);
+            schedule.addOperator(operator);
+
+            MCLogger[] loggers = new MCLogger[1];
+            loggers[0] = (i == 0 ? new MCLogger(formatter, 100, false) : new MCLogger(new ArrayLogFormatter(false), 100, false));
+            loggers[0].add(popSize);
+
+            MCMCOptions options = new MCMCOptions(CHAIN_LENGTH, 2000, 1, 0.1, true, 0, temperatures[i]);
+
+            mcmcs[i] = new MCMC("mcmc" + i);
+            mcmcs[i].init(options, posterior, schedule, loggers);
+        }
+        return mcmcs;
+    }
+
+    public static Test suite() {
+        return new TestSuite(MCMCMCTest.class);
+    }
+}
@@ -0,0 +1,118 @@
+package test.dr.inference.model;
+
+import dr.inference.markovchain.Profiler;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the cost-based scheduling of a threaded CompoundLikelihood gives the same
+ * result as serial evaluation and dispatches only the expensive likelihoods.
+ */
+public class CompoundLikelihoodTest extends TestCase {
+
+    public void testSchedule() {
+        List<Likelihood> serialLikelihoods = createLikelihoods();
+        List<Likelihood> threadedLikelihoods = createLikelihoods();
+
+        CompoundLikelihood serial = new CompoundLikelihood(0, serialLikelihoods);
+        CompoundLikelihood threaded = new CompoundLikelihood(2, threadedLikelihoods);
+        threaded.setId("threaded");
+
+        assertEquals("serial", serial.getSchedule());
+
+        for (int i = 0; i < 20; i++) {
+            serial.makeDirty();
+            threaded.makeDirty();
+            assertEquals(serial.getLogLikelihood(), threaded.getLogLikelihood(), 0.0);
+        }
+
+        double[] costs = threaded.getEvaluationCosts();
+        int[] dispatchCounts = threaded.getDispatchCounts();
+        for (int i = 0; i < threadedLikelihoods.size(); i++) {
+            TestLikelihood likelihood = (TestLikelihood) threadedLikelihoods.get(i);
+            if (likelihood.isExpensive()) {
+                assertTrue(costs[i] > CompoundLikelihood.DISPATCH_THRESHOLD);
+                assertTrue(dispatchCounts[i] > 0);
+            } else {
+                assertTrue(costs[i] < CompoundLikelihood.DISPATCH_THRESHOLD);
+                assertEquals(0, dispatchCounts[i]);
+            }
+        }
+
+        String schedule = threaded.getSchedule();
+        assertEquals("dispatched when dirty: [slow1, slow2], inline: [fast1, fast2] using 2 threads", schedule);
+        assertEquals(schedule, Profiler.getSchedule("threaded"));
+    }
+
+    public void testLikelihoodKnown() {
+        List<Likelihood> likelihoods = createLikelihoods();
+        CompoundLikelihood threaded = new CompoundLikelihood(2, likelihoods);
+        double logL = threaded.getLogLikelihood();
+
+        // nothing has changed so no likelihood is recalculated
+        assertEquals(logL, threaded.getLogLikelihood(), 0.0);
+        for (Likelihood likelihood : likelihoods) {
+            assertEquals(1, ((TestLikelihood) likelihood).getCalculationCount());
+        }
+
+        // only the one that has changed is recalculated
+        likelihoods.get(1).makeDirty();
+        assertEquals(logL, threaded.getLogLikelihood(), 0.0);
+        assertEquals(2, ((TestLikelihood) likelihoods.get(1)).getCalculationCount());
+        assertEquals(1, ((TestLikelihood) likelihoods.get(2)).getCalculationCount());
+    }
+
+    private List<Likelihood> createLikelihoods() {
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(new TestLikelihood("fast1", -1.5, 0));
+        likelihoods.add(new TestLikelihood("slow1", -100.25, 2));
+        likelihoods.add(new TestLikelihood("fast2", -0.125, 0));
+        likelihoods.add(new TestLikelihood("slow2", -200.5, 1));
+        return likelihoods;
+    }
+
+    private static class TestLikelihood extends Likelihood.Abstract {
+
+        TestLikelihood(String name, double logL, long millis) {
+            super(null);
+            this.name = name;
+            this.logL = logL;
+            this.millis = millis;
+        }
+
+        boolean isExpensive() {
+            return millis > 0;
+        }
+
+        synchronized int getCalculationCount() {
+            return calculationCount;
+        }
+
+        protected double calculateLogLikelihood() {
+            synchronized (this) {
+                calculationCount++;
+            }
+            if (millis > 0) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return logL;
+        }
+
+        public String prettyName() {
+            return name;
+        }
+
+        private final String name;
+        private final double logL;
+        private final long millis;
+        private int calculationCount = 0;
+    }
+}
@@ -0,0 +1,98 @@
+package test.dr.inference.operators;
+
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.hmc.HamiltonianMonteCarloOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Samples two independent normals with very different scales with the HMC operator and checks
+ * that the adapted (diagonal) mass matrix is close to the inverse of their variances and that the
+ * samples after adaptation have about the right variances.
+ */
+public class HamiltonianMonteCarloOperatorTest extends TestCase {
+
+    private static final double[] SDS = { 1.0, 5.0 };
+    private static final int ADAPTATION_LENGTH = 5000;
+    private static final int SAMPLE_COUNT = 20000;
+    private static final int N_STEPS = 10;
+
+    public void testMassAdaptation() {
+        MathUtils.setSeed(666);
+
+        final Parameter parameter = new Parameter.Default("x", new double[] { 0.0, 0.0 });
+
+        GradientWrtParameterProvider gradient = new GradientWrtParameterProvider() {
+            public Likelihood getLikelihood() {
+                return null;
+            }
+
+            public Parameter getParameter() {
+                return parameter;
+            }
+
+            public int getDimension() {
+                return parameter.getDimension();
+            }
+
+            public double[] getGradientLogDensity() {
+                double[] gradient = new double[SDS.length];
+                for (int i = 0; i < SDS.length; i++) {
+                    gradient[i] = -parameter.getParameterValue(i) / (SDS[i] * SDS[i]);
+                }
+                return gradient;
+            }
+        };
+
+        HamiltonianMonteCarloOperator operator = new HamiltonianMonteCarloOperator(CoercionMode.COERCION_OFF,
+                1.0, gradient, parameter, null, 0.3, N_STEPS, 1.0, ADAPTATION_LENGTH);
+
+        double[] sumOfSquares = new double[SDS.length];
+        for (int n = 0; n < ADAPTATION_LENGTH + SAMPLE_COUNT; n++) {
+            double[] current = parameter.getParameterValues();
+            double logDensity = getLogDensity(parameter);
+
+            double hastingsRatio = operator.operate();
+            double logAcceptance = getLogDensity(parameter) - logDensity + hastingsRatio;
+
+            if (Math.log(MathUtils.nextDouble()) < logAcceptance) {
+                operator.accept(0.0);
+            } else {
+                operator.reject();
+                for (int i = 0; i < current.length; i++) {
+                    parameter.setParameterValue(i, current[i]);
+                }
+            }
+
+            if (n >= ADAPTATION_LENGTH) {
+                for (int i = 0; i < SDS.length; i++) {
+                    sumOfSquares[i] += parameter.getParameterValue(i) * parameter.getParameterValue(i);
+                }
+            }
+        }
+
+        double[] mass = operator.getMassMatrixDiagonal();
+        assertNotNull(mass);
+        for (int i = 0; i < SDS.length; i++) {
+            double variance = SDS[i] * SDS[i];
+            assertEquals(1.0, mass[i] * variance, 0.3);
+            assertEquals(1.0, sumOfSquares[i] / SAMPLE_COUNT / variance, 0.1);
+        }
+
+        // one gradient for each step plus one per operation
+        assertEquals((long) (ADAPTATION_LENGTH + SAMPLE_COUNT) * (N_STEPS + 1),
+                operator.getGradientEvaluationCount());
+    }
+
+    private static double getLogDensity(Parameter parameter) {
+        double logDensity = 0.0;
+        for (int i = 0; i < SDS.length; i++) {
+            double x = parameter.getParameterValue(i) / SDS[i];
+            logDensity -= 0.5 * x * x;
+        }
+        return logDensity;
+    }
+}
@@ -0,0 +1,178 @@
+package test.dr.inference.operators;
+
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.ThroughputOperatorSchedule;
+import dr.math.MathUtils;
+import dr.math.distributions.LogNormalDistribution;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the weights found by the throughput schedule give the most movement per second of
+ * any weights between the bounds, and that the weights are fixed once the chain reaches the end
+ * of the adaptation however many operators are chosen for each state.
+ */
+public class ThroughputOperatorScheduleTest extends TestCase {
+
+    private static final long ADAPTATION_LENGTH = 5000;
+
+    public void setUp() {
+        MathUtils.setSeed(666);
+    }
+
+    public void testOptimalWeights() {
+        for (int trial = 0; trial < 100; trial++) {
+            final int n = 1 + MathUtils.nextInt(6);
+            double[] movements = new double[n];
+            double[] costs = new double[n];
+            double[] lower = new double[n];
+            double[] upper = new double[n];
+            for (int i = 0; i < n; i++) {
+                movements[i] = MathUtils.nextDouble();
+                costs[i] = 0.1 + MathUtils.nextDouble();
+                lower[i] = 0.5 + MathUtils.nextDouble();
+                // some operators are fixed at their weight
+                upper[i] = (MathUtils.nextDouble() < 0.25 ? lower[i] : lower[i] * 4.0);
+            }
+
+            double[] weights = ThroughputOperatorSchedule.getOptimalWeights(movements, costs, lower, upper);
+            double rate = getRate(weights, movements, costs);
+
+            // every weight is at one of its bounds and no other choice of bounds does better
+            for (int i = 0; i < n; i++) {
+                assertTrue(weights[i] == lower[i] || weights[i] == upper[i]);
+            }
+            double[] other = new double[n];
+            for (int mask = 0; mask < (1 << n); mask++) {
+                for (int i = 0; i < n; i++) {
+                    other[i] = ((mask & (1 << i)) != 0 ? upper[i] : lower[i]);
+                }
+                assertTrue(getRate(other, movements, costs) <= rate * (1.0 + 1E-12));
+            }
+
+            // nor do any weights in between
+            for (int k = 0; k < 100; k++) {
+                for (int i = 0; i < n; i++) {
+                    other[i] = lower[i] + MathUtils.nextDouble() * (upper[i] - lower[i]);
+                }
+                assertTrue(getRate(other, movements, costs) <= rate * (1.0 + 1E-12));
+            }
+        }
+    }
+
+    public void testFixedOperators() {
+        double[] lower = {1.0, 2.0};
+        double[] weights = ThroughputOperatorSchedule.getOptimalWeights(new double[]{1.0, 0.0},
+                new double[]{1.0, 0.0}, lower, lower);
+        assertEquals(1.0, weights[0], 0.0);
+        assertEquals(2.0, weights[1], 0.0);
+    }
+
+    public void testFreeze() {
+        Parameter popSize = new Parameter.Default(6.0);
+        popSize.setId("popSize");
+        DistributionLikelihood prior = new DistributionLikelihood(new LogNormalDistribution(1.0, 1.0), 0);
+        prior.addData(popSize);
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(prior);
+        likelihoods.add(new DummyLikelihood(new ConstantPopulationModel(popSize, Units.Type.YEARS)));
+        Likelihood posterior = new CompoundLikelihood(0, likelihoods);
+
+        // which operator is favoured depends on the timings so only the freeze is checked
+        final ThroughputOperatorSchedule schedule = new ThroughputOperatorSchedule(ADAPTATION_LENGTH, 100, 0.5, 2.0);
+        MCMCOperator operator = new ScaleOperator(popSize, 0.5);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+        operator = new ScaleOperator(popSize, 0.999);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+
+        MCLogger[] loggers = new MCLogger[1];
+        loggers[0] = new MCLogger(new ArrayLogFormatter(false), 1000, false);
+        loggers[0].add(popSize);
+
+        MCMC mcmc = new MCMC("mcmc1");
+        mcmc.init(new MCMCOptions(4 * ADAPTATION_LENGTH, 0, 1, 0.1, false, 0, 1.0), posterior, schedule, loggers);
+
+        final double[] fixedWeights = new double[2];
+        mcmc.getMarkovChain().addMarkovChainListener(new MarkovChainListener() {
+            public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+                if (state == ADAPTATION_LENGTH + 1) {
+                    assertFalse(schedule.isAdapting());
+                    fixedWeights[0] = schedule.getAdaptedWeight(0);
+                    fixedWeights[1] = schedule.getAdaptedWeight(1);
+                } else if (state < ADAPTATION_LENGTH) {
+                    assertTrue(schedule.isAdapting());
+                }
+            }
+
+            public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+            }
+
+            public void finished(long chainLength, MarkovChain markovChain) {
+            }
+        });
+
+        mcmc.run();
+
+        assertFalse(schedule.isAdapting());
+        for (int i = 0; i < fixedWeights.length; i++) {
+            assertTrue(fixedWeights[i] == 0.5 || fixedWeights[i] == 2.0);
+            assertEquals(fixedWeights[i], schedule.getAdaptedWeight(i), 0.0);
+        }
+    }
+
+    public void testFreezeByState() {
+        ThroughputOperatorSchedule schedule = new ThroughputOperatorSchedule(100, 10, 0.5, 2.0);
+        MCMCOperator operator = new ScaleOperator(new Parameter.Default(1.0), 0.5);
+        operator.setWeight(1.0);
+        schedule.addOperator(operator);
+
+        // several operators may be chosen for one state without ending the adaptation
+        schedule.currentState(0, null, null);
+        for (int i = 0; i < 1000; i++) {
+            schedule.getNextOperatorIndex();
+        }
+        assertTrue(schedule.isAdapting());
+
+        schedule.currentState(100, null, null);
+        schedule.getNextOperatorIndex();
+        assertFalse(schedule.isAdapting());
+
+        // a chain resumed after the adaptation uses the operators' own weights
+        ThroughputOperatorSchedule resumed = new ThroughputOperatorSchedule(100, 10, 0.5, 2.0);
+        resumed.addOperator(operator);
+        resumed.currentState(5000, null, null);
+        resumed.getNextOperatorIndex();
+        assertFalse(resumed.isAdapting());
+        assertEquals(1.0, resumed.getAdaptedWeight(0), 0.0);
+    }
+
+    private static double getRate(double[] weights, double[] movements, double[] costs) {
+        double movement = 0.0;
+        double cost = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            movement += weights[i] * movements[i];
+            cost += weights[i] * costs[i];
+        }
+        return movement / cost;
+    }
+}
@@ -0,0 +1,136 @@
+package test.dr.inference.trace;
+
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.trace.BinaryLogTraces;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceCorrelation;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Writes the same log in tab-delimited and binary form and checks that both are read the same.
+ */
+public class BinaryLogTracesTest extends TestCase {
+
+    private static final int STATE_COUNT = 3001;
+
+    public void setUp() throws Exception {
+        MathUtils.setSeed(666);
+
+        textFile = File.createTempFile("test", ".log");
+        binaryFile = File.createTempFile("test", BinaryLogFormatter.FILE_EXTENSION);
+
+        TabDelimitedFormatter text = new TabDelimitedFormatter(new PrintWriter(new FileWriter(textFile)), true);
+        BinaryLogFormatter binary = new BinaryLogFormatter(new FileOutputStream(binaryFile));
+
+        String[] labels = {"state", "posterior", "count", "model"};
+        text.logHeading("BEAST test\nsecond line");
+        binary.logHeading("BEAST test\nsecond line");
+        text.logLabels(labels);
+        binary.logLabels(labels);
+
+        double x = 0.0;
+        for (int i = 0; i < STATE_COUNT; i++) {
+            x = 0.9 * x + MathUtils.nextGaussian();
+            String[] values = {
+                    Long.toString(i * 1000L),
+                    Double.toString(x),
+                    Integer.toString(MathUtils.nextInt(5)),
+                    (MathUtils.nextBoolean() ? "HKY" : "GTR")
+            };
+            text.logValues(values);
+            binary.logValues(values);
+        }
+        text.stopLogging();
+        binary.stopLogging();
+    }
+
+    public void tearDown() {
+        textFile.delete();
+        binaryFile.delete();
+    }
+
+    public void testBinaryLog() throws Exception {
+        assertFalse(BinaryLogTraces.isBinaryLog(textFile));
+        assertTrue(BinaryLogTraces.isBinaryLog(binaryFile));
+
+        LogFileTraces expected = LogFileTraces.createLogFileTraces("text", textFile);
+        LogFileTraces observed = LogFileTraces.createLogFileTraces("binary", binaryFile);
+        assertTrue(observed instanceof BinaryLogTraces);
+
+        expected.loadTraces();
+        observed.loadTraces();
+
+        assertEquals(expected.getTraceCount(), observed.getTraceCount());
+        assertEquals(expected.getMaxState(), observed.getMaxState());
+        assertEquals(expected.getStepSize(), observed.getStepSize());
+        assertEquals(expected.getStateCount(), observed.getStateCount());
+
+        expected.setBurnIn(500000);
+        observed.setBurnIn(500000);
+
+        for (int i = 0; i < expected.getTraceCount(); i++) {
+            assertEquals(expected.getTraceName(i), observed.getTraceName(i));
+
+            List<Double> expectedValues = expected.getValues(i);
+            List<Double> observedValues = observed.getValues(i);
+            assertEquals(expectedValues, observedValues);
+
+            expected.analyseTrace(i);
+            observed.analyseTrace(i);
+            TraceCorrelation expectedStats = expected.getCorrelationStatistics(i);
+            TraceCorrelation observedStats = observed.getCorrelationStatistics(i);
+            assertEquals(expected.getTrace(i).getTraceType(), observed.getTrace(i).getTraceType());
+            assertEquals(expectedStats.getMean(), observedStats.getMean(), 1E-12);
+            assertEquals(expectedStats.getESS(), observedStats.getESS(), 1E-8);
+        }
+    }
+
+    public void testTabDelimitedReader() throws Exception {
+        BinaryLogTraces traces = new BinaryLogTraces("binary", binaryFile);
+        traces.loadTraces();
+
+        BufferedReader expected = new BufferedReader(new FileReader(textFile));
+        BufferedReader observed = new BufferedReader(traces.getTabDelimitedReader());
+
+        String line = expected.readLine();
+        while (line != null) {
+            assertEquals(line, observed.readLine());
+            line = expected.readLine();
+        }
+        assertNull(observed.readLine());
+        expected.close();
+    }
+
+    public void testColumnBecomesCategorical() throws Exception {
+        File file = File.createTempFile("test", BinaryLogFormatter.FILE_EXTENSION);
+        BinaryLogFormatter binary = new BinaryLogFormatter(new FileOutputStream(file));
+        binary.logLabels(new String[]{"state", "x", "model"});
+
+        // the model column changes from numbers to labels part way through a chunk
+        String[] expected = new String[20];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (i < 7 ? Integer.toString(i % 3) : (i % 2 == 0 ? "HKY" : "GTR"));
+            binary.logValues(new String[]{Long.toString(i * 10L), Double.toString(i + 0.5), expected[i]});
+        }
+        binary.stopLogging();
+
+        BinaryLogTraces traces = new BinaryLogTraces("binary", file);
+        traces.loadTraces();
+
+        String[] observed = traces.getFormattedValues(1, 0, expected.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], observed[i]);
+        }
+        assertEquals(18.5, Double.parseDouble(traces.getFormattedValues(0, 18, 19)[0]), 0.0);
+
+        file.delete();
+    }
+
+    private File textFile;
+    private File binaryFile;
+}
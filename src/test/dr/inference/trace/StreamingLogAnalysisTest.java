@@ -0,0 +1,134 @@
+package test.dr.inference.trace;
+
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.QuantileSketch;
+import dr.inference.trace.StreamingLogAnalysis;
+import dr.inference.trace.StreamingTraceStatistics;
+import dr.inference.trace.TraceCorrelation;
+import dr.math.MathUtils;
+import dr.stats.DiscreteStatistics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+/**
+ * Compares the single pass summaries of a log file that is written in pieces to those of TraceAnalysis.
+ */
+public class StreamingLogAnalysisTest extends TestCase {
+
+    private static final int STATE_COUNT = 1500;
+    private static final long BURNIN = 100000;
+
+    public void setUp() throws Exception {
+        MathUtils.setSeed(666);
+        file = File.createTempFile("test", ".log");
+    }
+
+    public void tearDown() {
+        file.delete();
+    }
+
+    public void testGrowingLog() throws Exception {
+        StreamingLogAnalysis analysis = new StreamingLogAnalysis(file, BURNIN);
+
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("# BEAST test");
+        writer.println("state\tposterior\tmodel");
+        writer.flush();
+        assertFalse(analysis.update());
+
+        double x = 0.0;
+        for (int i = 0; i < STATE_COUNT; i++) {
+            x = 0.9 * x + MathUtils.nextGaussian();
+            writer.print(i * 1000L);
+            writer.print("\t");
+            writer.flush();
+            if (i % 100 == 0) {
+                // read with a half written line
+                analysis.update();
+            }
+            writer.println(x + "\t" + (MathUtils.nextBoolean() ? "HKY" : "GTR"));
+        }
+        writer.close();
+
+        assertTrue(analysis.update());
+        assertEquals(STATE_COUNT, analysis.getSampleCount());
+        assertEquals((STATE_COUNT - 1) * 1000L, analysis.getMaxState());
+        assertEquals(1, analysis.getTraceCount());
+        assertEquals("posterior", analysis.getTraceName(0));
+
+        LogFileTraces traces = LogFileTraces.createLogFileTraces("test", file);
+        traces.loadTraces();
+        traces.setBurnIn(BURNIN);
+        traces.analyseTrace(0);
+        TraceCorrelation expected = traces.getCorrelationStatistics(0);
+
+        StreamingTraceStatistics observed = analysis.getStatistics(0);
+        assertEquals(traces.getStateCount(), observed.getCount());
+        assertEquals(expected.getMean(), observed.getMean(), 1E-10);
+        assertEquals(expected.getStdError(), observed.getStdError(), 1E-10);
+
+        // fewer values than the sketch capacity so the quantiles are exact
+        assertEquals(expected.getLowerHPD(), observed.getHPDInterval(0.95)[0], 1E-10);
+        assertEquals(expected.getUpperHPD(), observed.getHPDInterval(0.95)[1], 1E-10);
+
+        // different estimators so only expect them to be close
+        assertEquals(expected.getESS(), observed.getESS(), expected.getESS());
+    }
+
+    public void testDamagedLines() throws Exception {
+        StreamingLogAnalysis analysis = new StreamingLogAnalysis(file, 0);
+
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("state\tposterior\tmodel");
+        writer.println("0\t-10.0\tHKY");
+        writer.println("1000\t-11.0\tGTR");
+        // a line cut short, a value that isn't a number and a state that isn't an integer
+        writer.println("2000\t-12.0");
+        writer.println("3000\t-1.2e\tHKY");
+        writer.println("4x000\t-13.0\tHKY");
+        writer.println("5000\t-14.0\tGTR");
+        writer.close();
+
+        assertTrue(analysis.update());
+        assertEquals(3, analysis.getSampleCount());
+        assertEquals(3, analysis.getSkippedLineCount());
+        assertEquals(5000, analysis.getMaxState());
+        assertEquals(1, analysis.getTraceCount());
+        assertEquals(3, analysis.getStatistics(0).getCount());
+        assertEquals(-35.0 / 3.0, analysis.getStatistics(0).getMean(), 1E-10);
+    }
+
+    public void testQuantileSketch() {
+        int n = 100000;
+        double[] values = new double[n];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < n; i++) {
+            values[i] = MathUtils.nextGaussian();
+            sketch.add(values[i]);
+        }
+        assertTrue(sketch.getRetainedCount() < QuantileSketch.DEFAULT_CAPACITY * 10);
+
+        assertEquals(DiscreteStatistics.quantile(0.5, values), sketch.getQuantile(0.5), 0.02);
+        assertEquals(DiscreteStatistics.quantile(0.025, values), sketch.getQuantile(0.025), 0.05);
+
+        int[] indices = new int[n];
+        dr.util.HeapSort.sort(values, indices);
+        double[] hpd = DiscreteStatistics.HPDInterval(0.95, values, indices);
+        double[] approximate = sketch.getHPDInterval(0.95);
+
+        // the position of the shortest interval is poorly determined so compare the width and coverage
+        assertEquals(hpd[1] - hpd[0], approximate[1] - approximate[0], 0.05);
+        int inside = 0;
+        for (double value : values) {
+            if (value >= approximate[0] && value <= approximate[1]) {
+                inside++;
+            }
+        }
+        assertEquals(0.95, (double) inside / n, 0.005);
+    }
+
+    private File file;
+}
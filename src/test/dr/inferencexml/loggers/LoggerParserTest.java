@@ -0,0 +1,96 @@
+package test.dr.inferencexml.loggers;
+
+import dr.app.beast.BeastVersion;
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.model.ParameterParser;
+import dr.inference.trace.BinaryLogTraces;
+import dr.inferencexml.loggers.LoggerParser;
+import dr.xml.XMLParseException;
+import dr.xml.XMLParser;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.StringReader;
+
+/**
+ * Parses log elements with the binary formats and checks which files are written and that
+ * existing ones are only overwritten when this is allowed.
+ */
+public class LoggerParserTest extends TestCase {
+
+    public void setUp() throws Exception {
+        directory = File.createTempFile("logger", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testBinary() throws Exception {
+        File binaryFile = new File(directory, "test" + BinaryLogFormatter.FILE_EXTENSION);
+
+        writeLog(binaryFile, LoggerParser.BINARY, false);
+        assertTrue(BinaryLogTraces.isBinaryLog(binaryFile));
+        assertEquals(1, directory.listFiles().length);
+
+        try {
+            writeLog(binaryFile, LoggerParser.BINARY, false);
+            fail("An existing binary log was overwritten");
+        } catch (XMLParseException e) {
+            // expected
+        }
+        writeLog(binaryFile, LoggerParser.BINARY, true);
+    }
+
+    public void testBoth() throws Exception {
+        File textFile = new File(directory, "test.log");
+        File binaryFile = new File(directory, "test" + BinaryLogFormatter.FILE_EXTENSION);
+
+        writeLog(textFile, LoggerParser.BOTH, false);
+        assertFalse(BinaryLogTraces.isBinaryLog(textFile));
+        assertTrue(BinaryLogTraces.isBinaryLog(binaryFile));
+
+        // either file existing stops the log from being written again
+        textFile.delete();
+        try {
+            writeLog(textFile, LoggerParser.BOTH, false);
+            fail("An existing binary log was overwritten");
+        } catch (XMLParseException e) {
+            // expected
+        }
+        assertFalse(textFile.exists());
+
+        writeLog(textFile, LoggerParser.BOTH, true);
+        assertTrue(textFile.exists());
+        assertTrue(BinaryLogTraces.isBinaryLog(binaryFile));
+    }
+
+    private static void writeLog(File file, String format, boolean overwrite) throws Exception {
+        String xml = "<beast>" +
+                "<parameter id=\"x\" value=\"1.0\"/>" +
+                "<log id=\"log\" logEvery=\"10\" format=\"" + format + "\" overwrite=\"" + overwrite + "\"" +
+                " fileName=\"" + file.getAbsolutePath() + "\">" +
+                "<parameter idref=\"x\"/>" +
+                "</log>" +
+                "</beast>";
+
+        XMLParser parser = new XMLParser(false, false, false, new BeastVersion());
+        parser.addXMLObjectParser(new ParameterParser());
+        parser.addXMLObjectParser(new LoggerParser());
+
+        MCLogger logger = (MCLogger) parser.parse(new StringReader(xml), MCLogger.class);
+        logger.startLogging();
+        for (int i = 0; i <= 100; i++) {
+            logger.log(i);
+        }
+        logger.stopLogging();
+    }
+
+    private File directory;
+}
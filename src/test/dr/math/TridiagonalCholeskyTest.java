@@ -0,0 +1,102 @@
+package test.dr.math;
+
+import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.BandCholesky;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SPDTridiagMatrix;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDBandMatrix;
+import no.uib.cipr.matrix.UpperTriangBandMatrix;
+
+/**
+ * Checks TridiagonalCholesky against the MTJ classes it replaces for GMRF precision matrices. The
+ * arithmetic is done in the same order so the results should be exactly the same.
+ */
+public class TridiagonalCholeskyTest extends TestCase {
+
+    private static final int DIMENSION = 200;
+
+    public void testAgainstMTJ() {
+        MathUtils.setSeed(666);
+
+        TridiagonalCholesky cholesky = new TridiagonalCholesky(DIMENSION);
+
+        for (int rep = 0; rep < 20; rep++) {
+            // a scaled GMRF precision matrix plus a positive diagonal (as in the block update operator)
+            double precision = 0.1 + 10.0 * MathUtils.nextDouble();
+            double[] diag = new double[DIMENSION];
+            double[] offDiag = new double[DIMENSION - 1];
+            for (int i = 0; i < DIMENSION - 1; i++) {
+                offDiag[i] = -precision / (0.1 + MathUtils.nextDouble());
+            }
+            for (int i = 0; i < DIMENSION; i++) {
+                diag[i] = -(i > 0 ? offDiag[i - 1] : 0.0) - (i < DIMENSION - 1 ? offDiag[i] : 0.0) +
+                        MathUtils.nextDouble();
+            }
+            double[] x = new double[DIMENSION];
+            for (int i = 0; i < DIMENSION; i++) {
+                x[i] = MathUtils.nextGaussian();
+            }
+
+            SymmTridiagMatrix q = new SymmTridiagMatrix(diag.clone(), offDiag.clone());
+
+            // the quadratic form
+            DenseVector qx = new DenseVector(DIMENSION);
+            q.mult(new DenseVector(x), qx);
+            double expected = new DenseVector(x).dot(qx);
+            assertEquals(expected, TridiagonalCholesky.quadraticForm(diag, offDiag, x, new double[DIMENSION], DIMENSION), 0.0);
+
+            // the factorization
+            BandCholesky bandCholesky = new BandCholesky(DIMENSION, 1, true);
+            bandCholesky.factor(new UpperSPDBandMatrix(q, 1).copy());
+            UpperTriangBandMatrix u = bandCholesky.getU();
+
+            assertTrue(cholesky.factor(diag, offDiag));
+            double logDet = 0.0;
+            for (int i = 0; i < DIMENSION; i++) {
+                assertEquals(u.get(i, i), cholesky.getFactorDiagonal(i), 0.0);
+                if (i < DIMENSION - 1) {
+                    assertEquals(u.get(i, i + 1), cholesky.getFactorOffDiagonal(i), 0.0);
+                }
+                logDet += Math.log(u.get(i, i));
+            }
+            assertEquals(2.0 * logDet, cholesky.getLogDeterminant(), 1E-12 * Math.abs(logDet));
+
+            // the triangular solves
+            DenseVector y1 = new DenseVector(DIMENSION);
+            u.transSolve(new DenseVector(x), y1);
+            double[] y2 = new double[DIMENSION];
+            cholesky.solveTranspose(x, y2);
+            assertEquals(y1.getData(), y2);
+
+            DenseVector z1 = new DenseVector(DIMENSION);
+            u.solve(y1, z1);
+            double[] z2 = new double[DIMENSION];
+            cholesky.solveUpper(y2, z2);
+            assertEquals(z1.getData(), z2);
+
+            // the LDL' solve
+            DenseVector w1 = new DenseVector(DIMENSION);
+            new SPDTridiagMatrix(q, true).solve(new DenseVector(x), w1);
+            double[] w2 = new double[DIMENSION];
+            assertTrue(cholesky.solveOnce(diag, offDiag, x, w2));
+            assertEquals(w1.getData(), w2);
+        }
+    }
+
+    public void testNotPositiveDefinite() {
+        TridiagonalCholesky cholesky = new TridiagonalCholesky(3);
+        double[] diag = {1.0, 1.0, 1.0};
+        double[] offDiag = {-2.0, 0.0};
+        assertFalse(cholesky.factor(diag, offDiag));
+        assertFalse(cholesky.solveOnce(diag, offDiag, new double[3], new double[3]));
+    }
+
+    private static void assertEquals(double[] expected, double[] values) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], values[i], 0.0);
+        }
+    }
+}